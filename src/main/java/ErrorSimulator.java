@@ -44,6 +44,9 @@ public class ErrorSimulator extends Thread {
 	
 	public void setState(states.State state) {
 		this.state.stopState();
+		// The sessions in progress keep their flows (and the pipeline) in the new error mode
+		if (state instanceof ForwardState && this.state instanceof ForwardState)
+			((ForwardState) state).adopt((ForwardState) this.state);
 		this.state = state;
 	}
 
@@ -134,6 +137,10 @@ public class ErrorSimulator extends Thread {
 		if(GLOBAL_CONFIG.DEBUG_MODE)
 			Logger.setLogLevel(Logger.LogLevel.VERBOSE);
 
+		// Keep the relay thread from blocking on console output
+		if(GLOBAL_CONFIG.ASYNC_LOGGING)
+			Logger.enableAsyncLogging();
+
 		LOG.logQuiet("Current Log Level: " + Logger.getLogLevel().name());
 
 		try {
@@ -172,6 +179,10 @@ public class ErrorSimulator extends Thread {
 						System.out.println(toHelp());
 						break;
 					default:
+						if (command.toLowerCase().startsWith("pipeline")) {
+							Parser.parsePipelineCommand(command.trim().split("\\s+"), errorSim.getSimulatorState().getPipeline());
+							break;
+						}
 						state = Parser.parseStateInformation(
 								command.split(" "),
 								errorSim.getSimulatorState().getConnection(),
@@ -205,8 +216,21 @@ public class ErrorSimulator extends Thread {
 		buffer.append("invop TYPE [BLOCK_NUM] [REPEAT_INTERVAL]\n");
 		buffer.append("invtid TYPE [DATA || ACK] [REPEAT_INTERVAL]\n");
 		buffer.append("extend TYPE [BLOCK_NUM] [REPEAT_INTERVAL]\n");
+		buffer.append("random LOSS_PERCENT [SEED]\n");
+		buffer.append("netem [loss PERCENT] [gemodel P R [1-H [1-K]]] [delay MS [JITTER_MS]] [reorder PERCENT] [duplicate PERCENT] [rate BYTES_PER_SEC [BURST_BYTES]] [seed SEED]\n");
+		buffer.append("\n==== Fault Pipeline (runs after the error mode, in order) ====\n");
+		buffer.append("pipeline [list]\n");
+		buffer.append("pipeline add filter|loss|delay MS|dup|corrupt [PERCENT%] [TYPE [BLOCK_NUM] [REPEAT_INTERVAL] [PREDICATES]]\n");
+		buffer.append("pipeline remove INDEX\n");
+		buffer.append("pipeline clear\n");
 		buffer.append("\n==== Packet Types for Error Mode States ====\n");
-		buffer.append("ack, data, rrq, wrq\n");
+		buffer.append("ack, data, rrq, wrq, error, oack, any (several types are separated by commas: data,ack)\n");
+		buffer.append("\n==== Predicates (after the type and block number, in any order) ====\n");
+		buffer.append("block N[-M] - Only the Data and Ack Messages of these block numbers.\n");
+		buffer.append("every N - Only every Nth selected packet.\n");
+		buffer.append("from client|server - Only the packets sent by this side.\n");
+		buffer.append("size N[-M] - Only the packets of this size in bytes.\n");
+		buffer.append("PERCENT% - Only this share of the selected packets, at random.\n");
 		buffer.append("\n==== Example Commands for Error Mode States ====\n");
 		buffer.append("dup ack 4 2 - Duplicate every second packet beginning with number 4.\n");
 		buffer.append("lose data 1 - Lose the first data packet.\n");
@@ -215,6 +239,14 @@ public class ErrorSimulator extends Thread {
 		buffer.append("invop data 2 - Send an invalid op code when you recieve data 2\n");
 		buffer.append("invtid data 2 - Send a packet invalid tid code and then the normal packet when you recieve data 2\n");
 		buffer.append("extend data 1 4 - Extend every 4th Data Message with fake data.\n");
+		buffer.append("random 2.5 - Lose 2.5% of the Data and Ack Messages, at random.\n");
+		buffer.append("netem loss 1 delay 30 5 rate 125000 seed 7 - Lose 1% of the Data and Ack Messages, delay them by 30 ms (+/- 5 ms), at 1 Mbit/s.\n");
+		buffer.append("netem gemodel 1 25 - Lose the Data and Ack Messages in bursts of 4 on average, about 4% of them.\n");
+		buffer.append("pipeline add loss 2% - Lose 2% of all packets, while the error mode runs.\n");
+		buffer.append("pipeline add delay 30 - Then delay every packet by 30 ms.\n");
+		buffer.append("pipeline add dup ack 7 - Then duplicate Ack 7.\n");
+		buffer.append("pipeline add corrupt data block 10-20 from server 5% - Then corrupt 5% of the Data 10 to 20 of the server.\n");
+		buffer.append("lose data,ack every 50 - Lose every 50th Data or Ack Message.\n");
 		return buffer.toString();
 	}
 }
@@ -1,17 +1,28 @@
 import exceptions.InvalidPacketException;
 import exceptions.SessionException;
 import formats.ErrorMessage;
+import formats.Message;
 import formats.RequestMessage;
+import formats.ResumeOption;
+import formats.Message.MessageType;
 import formats.ErrorMessage.ErrorType;
 
+import event.SessionEventLoop;
 import logging.Logger;
+import metrics.Metrics;
+import resources.MemoryBudget;
 import resources.ResourceFile;
 import resources.ResourceManager;
 import session.ISessionHandler;
+import session.MulticastGroups;
+import session.MulticastSessionDriver;
+import session.MulticastTransmitSession;
 import session.ReceiveSession;
 import session.TFTPSession;
 import session.TransmitSession;
 import socket.TFTPDatagramSocket;
+import trace.PacketTrace;
+import trace.TraceFile;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -19,6 +30,7 @@ import java.net.InetAddress;
 import java.net.SocketException;
 
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.*;
 
 import static resources.Configuration.GLOBAL_CONFIG;
@@ -31,12 +43,21 @@ public class FTPServer extends Thread {
     private static final Logger LOG = new Logger("FTPServer");
     private TFTPDatagramSocket connection;
     private List<ServerWorker> serverWorkers;
+    private List<SessionEventLoop> eventLoops;
     private long currentWorkerId;
 
-    public FTPServer() throws SocketException {
+    public FTPServer() throws IOException {
         connection = new TFTPDatagramSocket(GLOBAL_CONFIG.SERVER_PORT);
         serverWorkers = new ArrayList<>();
+        eventLoops = new ArrayList<>();
         currentWorkerId = 1;
+
+        // With event loops, sessions share a few threads instead of using one thread each
+        for (int i = 0; i < GLOBAL_CONFIG.EVENT_LOOP_THREADS; i++) {
+            SessionEventLoop eventLoop = new SessionEventLoop("SessionEventLoop-" + i);
+            eventLoop.start();
+            eventLoops.add(eventLoop);
+        }
     }
 
     /**
@@ -82,6 +103,17 @@ public class FTPServer extends Thread {
                 iE.printStackTrace();
             }
         }
+
+        for (SessionEventLoop eventLoop : eventLoops) {
+            try {
+                LOG.logVerbose("Waiting for " + eventLoop.getSessionCount() + " session(s) of " + eventLoop.getName());
+                eventLoop.awaitSessions();
+                eventLoop.shutdown();
+                eventLoop.join();
+            } catch (InterruptedException iE) {
+                iE.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -96,10 +128,24 @@ public class FTPServer extends Thread {
                 serverWorkers.removeIf(serverWorker -> serverWorker.getState() == State.TERMINATED);
 
                 DatagramPacket receivedPacket = connection.receive();
+                ServerWorker worker = new ServerWorker(currentWorkerId++, receivedPacket);
+
+                if (!eventLoops.isEmpty()) {
+                    // Validate the request here, and run the session on an event loop (spread by worker id).
+                    // A resumed transfer reads the checksum of its file first, on the worker thread.
+                    SessionEventLoop eventLoop = eventLoops.get((int) (currentWorkerId % eventLoops.size()));
+                    if (!worker.isResumeRequest()) {
+                        worker.dispatch(eventLoop);
+                        continue;
+                    }
+
+                    worker.dispatchLater(eventLoop);
+                    this.serverWorkers.add(worker);
+                    continue;
+                }
 
                 // Create and start the worker thread that will handle the request
                 LOG.logVerbose("Dispatching Server worker thread.");
-                ServerWorker worker = new ServerWorker(currentWorkerId++, receivedPacket);
                 worker.start();
 
                 // Add worker thread to our listing
@@ -118,12 +164,92 @@ public class FTPServer extends Thread {
     }
 
 
+    /**
+     * Sets the global log level, or the level of a component when one is given (ex: 'verbose TransmitSession')
+     * @param tokens The command tokens
+     * @param level  The level to set
+     */
+    private static void setLogLevel(String[] tokens, Logger.LogLevel level) {
+        if (tokens.length < 2) {
+            Logger.setLogLevel(level);
+            System.out.println("Logging has been set to " + level.name().toLowerCase());
+        } else {
+            Logger.setLogLevel(tokens[1], level);
+            System.out.println("Logging for '" + tokens[1] + "' has been set to " + level.name().toLowerCase());
+        }
+    }
+
+    /**
+     * Enables or disables verbose logging for all sessions with a peer (ex: 'debug 192.168.0.4')
+     * @param tokens The command tokens
+     */
+    private static void setPeerDebug(String[] tokens) {
+        if (tokens.length < 2) {
+            System.out.println("Missing peer address. Usage: " + tokens[0] + " PEER_ADDRESS");
+            return;
+        }
+
+        try {
+            InetAddress peer = InetAddress.getByName(tokens[1]);
+            if (tokens[0].equalsIgnoreCase("debug")) {
+                Logger.enablePeerDebug(peer);
+                System.out.println("Verbose logging enabled for sessions with " + peer);
+            } else {
+                Logger.disablePeerDebug(peer);
+                System.out.println("Verbose logging disabled for sessions with " + peer);
+            }
+        } catch (UnknownHostException uHE) {
+            System.out.println("Unknown peer address '" + tokens[1] + "'");
+        }
+    }
+
+    /**
+     * Writes the packet traces of all running sessions to the trace file
+     */
+    private static void dumpTraces() {
+        try {
+            TraceFile traceFile = TraceFile.getDefault();
+            if (traceFile == null) {
+                System.out.println("Trace dumps are disabled. Set TRACE_FILE in the configuration to enable them.");
+                return;
+            }
+
+            System.out.println("Wrote the packet traces of " + PacketTrace.dumpActive(traceFile) + " active session(s)");
+        } catch (IOException ioE) {
+            System.out.println("Failed to write packet traces: " + ioE.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return The server CLI help
+     */
+    private static String toHelp() {
+        return "Commands:\n" +
+                "'exit' -> Shutdown the server\n" +
+                "'verbose [COMPONENT]' -> Enable verbose logging (globally, or for a component such as TransmitSession)\n" +
+                "'quiet [COMPONENT]' -> Enable quiet logging (globally, or for a component such as TFTPDatagramSocket)\n" +
+                "'reset' -> Clear all component log levels\n" +
+                "'levels' -> Show the global and component log levels\n" +
+                "'debug PEER_ADDRESS' -> Enable verbose logging for sessions with a peer\n" +
+                "'nodebug PEER_ADDRESS' -> Disable verbose logging for sessions with a peer\n" +
+                "'metrics' -> Show a snapshot of the server metrics (also published over JMX as " + Metrics.OBJECT_NAME + ")\n" +
+                "'memory' -> Show the memory reserved by sessions, file buffers, read-ahead and write-behind\n" +
+                "'trace' -> Write the packet traces of all running sessions to the trace file";
+    }
+
     public static void main(String[] args) {
 
         // Set VERBOSE on debug mode
         if (GLOBAL_CONFIG.DEBUG_MODE)
             Logger.setLogLevel(Logger.LogLevel.VERBOSE);
 
+        // Keep sessions from serializing on console output
+        if (GLOBAL_CONFIG.ASYNC_LOGGING)
+            Logger.enableAsyncLogging();
+
+        // Publish the server metrics over JMX
+        Metrics.registerMBean();
+
         LOG.logQuiet("Starting Server");
         LOG.logQuiet("Current Log Level: " + Logger.getLogLevel().name());
 
@@ -143,7 +269,9 @@ public class FTPServer extends Thread {
                 if (command.trim().isEmpty())
                     continue;
 
-                switch (command.toLowerCase()) {
+                String[] tokens = command.trim().split("\\s+");
+
+                switch (tokens[0].toLowerCase()) {
                     case "exit":
                         runServer = false;
                         server.stopServer();
@@ -152,15 +280,34 @@ public class FTPServer extends Thread {
                         server.join();
                         break;
                     case "verbose":
-                        System.out.println("Logging has been set to verbose");
-                        Logger.setLogLevel(Logger.LogLevel.VERBOSE);
+                        setLogLevel(tokens, Logger.LogLevel.VERBOSE);
                         break;
                     case "quiet":
-                        System.out.println("Logging has been set to quiet");
-                        Logger.setLogLevel(Logger.LogLevel.QUIET);
+                        setLogLevel(tokens, Logger.LogLevel.QUIET);
+                        break;
+                    case "reset":
+                        Logger.clearComponentLogLevels();
+                        System.out.println("Component log levels have been cleared");
+                        break;
+                    case "debug":
+                    case "nodebug":
+                        setPeerDebug(tokens);
+                        break;
+                    case "levels":
+                        System.out.println("Global: " + Logger.getLogLevel().name());
+                        Logger.getComponentLogLevels().forEach((component, level) -> System.out.println(component + ": " + level.name()));
+                        break;
+                    case "metrics":
+                        System.out.println(Metrics.GLOBAL_METRICS);
+                        break;
+                    case "memory":
+                        System.out.println(MemoryBudget.GLOBAL_BUDGET);
+                        break;
+                    case "trace":
+                        dumpTraces();
                         break;
                     case "help":
-                        System.out.println("Commands:\n'exit' -> Shutdown the server\n'verbose' -> Enable verbose logging\n'quiet' -> Enable quiet logging");
+                        System.out.println(toHelp());
                         break;
                     default:
                         System.out.println("'" + command + "' is not a valid command.");
@@ -169,7 +316,7 @@ public class FTPServer extends Thread {
                 }
             }
 
-        } catch (SocketException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         } catch (InterruptedException | NoSuchElementException iE) {
             // No need to worry about this
@@ -178,10 +325,18 @@ public class FTPServer extends Thread {
 }
 
 class ServerWorker extends Thread implements ISessionHandler {
-    private static final Logger LOG = new Logger("ServerWorker");
+    // Each worker has its own logger, so that its component name (and level) is per worker
+    private final Logger LOG = new Logger("ServerWorker");
+    // Heap pinned by a running session (trace ring and packet buffers), reserved before it starts
+    private static final long SESSION_MEMORY_BYTES = (long) GLOBAL_CONFIG.TRACE_RECORDS * PacketTrace.RECORD_SIZE + 4 * (Message.MAX_PACKET_SIZE + 1);
+
     private TFTPDatagramSocket socket;
     private DatagramPacket packet;
+    private boolean sessionMemoryReserved;
+    // True once the session was handed to the event loop (which releases its memory when it completes)
+    private boolean sessionDispatched;
     private ResourceManager resourceManager;
+    private SessionEventLoop eventLoop;
 
     public ServerWorker(long workerId, DatagramPacket p) throws IOException {
         // Include Worker ID in Log Tag
@@ -195,11 +350,107 @@ class ServerWorker extends Thread implements ISessionHandler {
     @Override
     public void run() {
 
+        // Enable verbose logging for this session only, if the peer is being debugged
+        if (Logger.isPeerDebugEnabled(packet.getAddress()))
+            Logger.setThreadLogLevel(Logger.LogLevel.VERBOSE);
+
+        try {
+            handleRequest();
+        } finally {
+            LOG.logVerbose("Shutting down this instance of ServerWorker.");
+            if (socket != null)
+                socket.close();
+            Logger.setThreadLogLevel(null);
+        }
+    }
+
+    /**
+     * Handles the request on the calling thread, and runs its session on an event loop
+     * (instead of running it on this worker thread)
+     * @param eventLoop The event loop to run the session on
+     */
+    public void dispatch(SessionEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+
+        if (Logger.isPeerDebugEnabled(packet.getAddress()))
+            Logger.setThreadLogLevel(Logger.LogLevel.VERBOSE);
+
+        try {
+            handleRequest();
+        } finally {
+            Logger.setThreadLogLevel(null);
+        }
+    }
+
+    /**
+     * Handles the request on this worker thread, then runs its session on an event loop
+     * @param eventLoop The event loop to run the session on
+     */
+    public void dispatchLater(SessionEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+        start();
+    }
+
+    /**
+     * @return True if the request asks to resume a transfer (the session checks the checksum of a file prefix)
+     */
+    public boolean isResumeRequest() {
+        try {
+            return isResumeRequest(RequestMessage.parseMessage(packet));
+        } catch (InvalidPacketException iPE) {
+            return false;
+        }
+    }
+
+    private static boolean isResumeRequest(RequestMessage request) {
+        return GLOBAL_CONFIG.RESUME && request.getMode() == RequestMessage.MessageMode.OCTET && request.getOption(ResumeOption.NAME) != null;
+    }
+
+    /**
+     * Computes the checksum that the session of a resumed transfer checks (it is cached by ResourceFile), so that
+     * the session does not read the file on the event loop. Any failure is left to the session.
+     */
+    private void prepareResume(RequestMessage request) {
+        if (!isResumeRequest(request))
+            return;
+
+        try {
+            if (request.getMessageType() == MessageType.RRQ) {
+                long offset = ResumeOption.parse(request.getOption(ResumeOption.NAME)).getOffset();
+                ResourceFile file = resourceManager.getFile(request.getFileName());
+                if (offset > 0 && file.exists() && offset <= file.length())
+                    file.checksum(offset);
+            } else {
+                ResourceFile partialFile = resourceManager.getPartialFile(request.getFileName());
+                if (partialFile.exists() && partialFile.length() > 0)
+                    partialFile.checksum(partialFile.length());
+            }
+        } catch (InvalidPacketException | IOException e) {
+            LOG.logVerbose("Failed to prepare the resumed transfer: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Parses and validates the request, then runs (or dispatches) the session
+     */
+    private void handleRequest() {
+        try {
+            handleRequestMessage();
+        } finally {
+            // A session that was not handed off never completes, so its memory is released here
+            if (eventLoop != null && !sessionDispatched)
+                releaseSessionMemory();
+        }
+    }
+
+    private void handleRequestMessage() {
         try {
             try {
-                // Create the socket within the context of the thread
-                socket = new TFTPDatagramSocket();
-                socket.setSoTimeout(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS);
+                // Create the socket within the context of the thread (event loop sessions have their own channel)
+                if (eventLoop == null) {
+                    socket = new TFTPDatagramSocket();
+                    socket.setSoTimeout(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS);
+                }
 
                 // Parse data into a DAO that is accessible
                 RequestMessage receivedMessage = RequestMessage.parseMessage(this.packet);
@@ -216,17 +467,30 @@ class ServerWorker extends Thread implements ISessionHandler {
                 LOG.logVerbose("Full File Path: " + resourceManager.getFile(receivedMessage.getFileName()).getAbsolutePath());
                 LOG.logVerbose("Mode: " + receivedMessage.getMode());
 
+                Metrics.GLOBAL_METRICS.requestReceived(receivedMessage.getMessageType());
+
+                if (eventLoop != null)
+                    prepareResume(receivedMessage);
+
+                // Queue the request for a while if the server is out of memory, then reject it (at once on an
+                // event loop, since the request is handled on the listener thread)
+                if (!reserveSessionMemory()) {
+                    LOG.logQuiet("The memory budget is exhausted. Rejecting the request.");
+                    raiseError(new ErrorMessage(ErrorType.NOT_DEFINED, "The server is busy. Try again later."));
+                    return;
+                }
+
                 // Perform logic based on the type of request
                 switch (receivedMessage.getMessageType()) {
                     case RRQ:
                         LOG.logQuiet("Received Read Request");
                         readRequest(receivedMessage);
-                        LOG.logQuiet("Successfully handled RRQ");
+                        LOG.logQuiet(eventLoop == null ? "Successfully handled RRQ" : "Dispatched RRQ to " + eventLoop.getName());
                         break;
                     case WRQ:
                         LOG.logQuiet("Received Write Request");
                         writeRequest(receivedMessage);
-                        LOG.logQuiet("Successfully handled WRQ");
+                        LOG.logQuiet(eventLoop == null ? "Successfully handled WRQ" : "Dispatched WRQ to " + eventLoop.getName());
                         break;
                     default:
                         break;
@@ -252,12 +516,35 @@ class ServerWorker extends Thread implements ISessionHandler {
         } catch (IOException ioE) {
             LOG.logQuiet("There was an IOException while raising an ERROR. The client will not be notified of this exception.");
             LOG.logVerbose(ioE.getMessage());
-        } finally {
-            LOG.logVerbose("Shutting down this instance of ServerWorker.");
-            socket.close();
         }
     }
 
+    /**
+     * Reserves the memory of the session, waiting up to SESSION_ADMISSION_WAIT_MS for other sessions to release theirs
+     * (without waiting for an event loop session, so that one exhausted budget does not stall the listener)
+     * @return False if the memory could not be reserved
+     */
+    private synchronized boolean reserveSessionMemory() {
+        long waitMs = eventLoop == null ? GLOBAL_CONFIG.SESSION_ADMISSION_WAIT_MS : 0;
+        try {
+            sessionMemoryReserved = MemoryBudget.GLOBAL_BUDGET.reserve(MemoryBudget.Subsystem.SESSIONS, SESSION_MEMORY_BYTES, waitMs);
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        }
+
+        return sessionMemoryReserved;
+    }
+
+    /**
+     * Releases the memory of the session (only once)
+     */
+    private synchronized void releaseSessionMemory() {
+        if (sessionMemoryReserved)
+            MemoryBudget.GLOBAL_BUDGET.release(MemoryBudget.Subsystem.SESSIONS, SESSION_MEMORY_BYTES);
+
+        sessionMemoryReserved = false;
+    }
+
     /**
      * Logs and sends an error to the client
      *
@@ -267,6 +554,15 @@ class ServerWorker extends Thread implements ISessionHandler {
     private void raiseError(ErrorMessage errorMessage) throws IOException {
         LOG.logQuiet("An error has been raised! Sending an ERROR message to the client.");
         LOG.logQuiet(errorMessage);
+
+        if (socket == null) {
+            // Event loop requests have no worker socket. Errors are rare, so use a temporary one.
+            try (TFTPDatagramSocket errorSocket = new TFTPDatagramSocket()) {
+                errorSocket.sendMessage(errorMessage, packet.getSocketAddress());
+            }
+            return;
+        }
+
         socket.sendMessage(errorMessage, packet.getSocketAddress());
     }
 
@@ -277,7 +573,55 @@ class ServerWorker extends Thread implements ISessionHandler {
      * @throws IOException
      */
     private void readRequest(RequestMessage message) throws IOException {
-        new TransmitSession(this, message, packet.getSocketAddress());
+        MulticastGroups groups = MulticastGroups.GLOBAL_MULTICAST_GROUPS;
+
+        if (groups.isEnabled() && MulticastGroups.isRequested(message)) {
+            // A multicast read of a file that is already being sent joins its group (no new session)
+            if (groups.join(message, packet.getSocketAddress())) {
+                LOG.logQuiet("Client joined the multicast group of '" + message.getFileName() + "'");
+                releaseSessionMemory();
+                return;
+            }
+
+            multicastReadRequest(message);
+            return;
+        }
+
+        if (eventLoop != null)
+            dispatchSession(new TransmitSession(this), message);
+        else
+            new TransmitSession(this, message, packet.getSocketAddress());
+    }
+
+    /**
+     * Handle a multicast read request (the first client of a group). Without an event loop, the session
+     * runs on its own channel, which sends to the groups through MULTICAST_INTERFACE.
+     *
+     * @param message The request message received.
+     * @throws IOException
+     */
+    private void multicastReadRequest(RequestMessage message) throws IOException {
+        MulticastTransmitSession session = new MulticastTransmitSession(this);
+
+        if (eventLoop != null) {
+            dispatchSession(session, message);
+            return;
+        }
+
+        MulticastSessionDriver driver;
+        try {
+            driver = new MulticastSessionDriver(session, MulticastSessionDriver.getConfiguredInterface());
+        } catch (IOException ioE) {
+            // The session never starts, so it never completes
+            releaseSessionMemory();
+            throw ioE;
+        }
+
+        try {
+            driver.run(message, packet.getSocketAddress());
+        } finally {
+            driver.close();
+        }
     }
 
     /**
@@ -287,7 +631,18 @@ class ServerWorker extends Thread implements ISessionHandler {
      * @throws IOException
      */
     private void writeRequest(RequestMessage message) throws IOException {
-        new ReceiveSession(this, message, packet.getSocketAddress());
+        if (eventLoop != null)
+            dispatchSession(new ReceiveSession(this), message);
+        else
+            new ReceiveSession(this, message, packet.getSocketAddress());
+    }
+
+    /**
+     * Registers the session on the event loop, which completes it (and releases its memory) from then on
+     */
+    private void dispatchSession(TFTPSession session, RequestMessage message) throws IOException {
+        eventLoop.register(session, message, packet.getSocketAddress());
+        sessionDispatched = true;
     }
 
 
@@ -395,6 +750,7 @@ class ServerWorker extends Thread implements ISessionHandler {
 
     @Override
     public void sessionCompleted(TFTPSession session) {
+        releaseSessionMemory();
 
         LOG.logQuiet("Session complete. Success: " + session.getSessionSuccess());
     }
@@ -0,0 +1,82 @@
+import trace.TraceFile;
+import trace.TraceReader;
+import trace.TraceRecord;
+import trace.TraceSession;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Offline tool that decodes binary packet trace segments into session timelines and RTT statistics
+ */
+public class TraceDecoder {
+
+    /**
+     * Prints CLI help
+     */
+    private static void printHelp() {
+        System.out.println("Command Line Arguments:");
+        System.out.println("TraceDecoder [-h] [-s] trace_file...");
+        System.out.println("\t[-h]: Shows Help page");
+        System.out.println("\t[-s]: Only print the session summaries (no timelines)");
+        System.out.println("\ttrace_file: A trace segment (ex: trace/tftp.trace.0)");
+    }
+
+    /**
+     * Prints a decoded session
+     * @param session       The session to print
+     * @param printTimeline True if every record should be printed
+     */
+    private static void printSession(TraceSession session, boolean printTimeline) {
+        String reason = session.getReason() == TraceFile.REASON_FAILED ? "FAILED" : "ON DEMAND";
+        String start = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(session.getStartMillis()));
+
+        System.out.println("---- Session #" + session.getSessionId() + " (" + reason + ") ----");
+        System.out.println("Peer: " + (session.getPeer() == null ? "unknown" : session.getPeer()) + ", Started: " + start);
+        System.out.println("Records: " + session.getRecords().size() + ", Dropped: " + session.getDroppedCount() +
+                ", Retransmits: " + session.getRetransmitCount() + ", Timeouts: " + session.getTimeoutCount());
+        System.out.println(session.getRttSummary());
+
+        if (printTimeline) {
+            for (TraceRecord record : session.getRecords())
+                System.out.println(record);
+        }
+
+        System.out.println();
+    }
+
+    public static void main(String[] args) {
+        boolean printTimeline = true;
+        List<Path> segments = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("-h")) {
+                printHelp();
+                return;
+            } else if (arg.equalsIgnoreCase("-s"))
+                printTimeline = false;
+            else
+                segments.add(Paths.get(arg));
+        }
+
+        if (segments.isEmpty()) {
+            printHelp();
+            return;
+        }
+
+        for (Path segment : segments) {
+            try {
+                System.out.println("==== " + segment + " ====");
+                for (TraceSession session : TraceReader.read(segment))
+                    printSession(session, printTimeline);
+            } catch (IOException ioE) {
+                System.out.println("Failed to read trace file: " + ioE.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel (Varghese and Lauck) for a large number of coarse timeouts.
+ *
+ * Time is divided into ticks. A timeout is placed in the bucket of its deadline tick (modulo the wheel
+ * size), in an intrusive doubly linked list, so scheduling and cancelling are O(1) and do not allocate
+ * when a {@link Timeout} is re-used. Advancing the wheel only visits the buckets of the elapsed ticks.
+ * Timeouts expire on the first tick at or after their deadline (never early, at most one tick late).
+ *
+ * The wheel is not thread safe: it must only be used by the thread that drives it (the event loop).
+ * @param <T> The type of the task attached to a timeout
+ */
+public class HashedTimingWheel<T> {
+
+    /**
+     * A scheduled (or re-usable) timeout
+     * @param <T> The type of the task
+     */
+    public static final class Timeout<T> {
+        private final T task;
+        private long deadline;
+        private long deadlineTick;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+        private int bucket = -1;
+
+        public Timeout(T task) {
+            this.task = task;
+        }
+
+        public T getTask() {
+            return task;
+        }
+
+        /**
+         * @return The deadline the timeout was scheduled for
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return True if the timeout is scheduled (has not expired or been cancelled)
+         */
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    private final Timeout<T>[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos;
+    private final List<Timeout<T>> expired;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickNanos  The duration of a tick (the timer resolution)
+     * @param wheelSize  The number of buckets. Rounded up to a power of two.
+     * @param startNanos The time of tick 0
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedTimingWheel(long tickNanos, int wheelSize, long startNanos) {
+        int bucketCount = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.buckets = (Timeout<T>[]) new Timeout[bucketCount];
+        this.mask = bucketCount - 1;
+        this.tickNanos = Math.max(1, tickNanos);
+        this.startNanos = startNanos;
+        this.expired = new ArrayList<>();
+        this.currentTick = 0;
+    }
+
+    /**
+     * Schedules a new timeout
+     * @param task     The task of the timeout
+     * @param deadline The deadline (same clock as {@link #advance(long, Consumer)})
+     * @return The scheduled timeout (can be cancelled or rescheduled)
+     */
+    public Timeout<T> schedule(T task, long deadline) {
+        Timeout<T> timeout = new Timeout<>(task);
+        schedule(timeout, deadline);
+        return timeout;
+    }
+
+    /**
+     * Schedules (or reschedules) a timeout
+     * @param timeout  The timeout
+     * @param deadline The new deadline
+     */
+    public void schedule(Timeout<T> timeout, long deadline) {
+        cancel(timeout);
+
+        // Round up, so the timeout never expires before its deadline
+        long elapsed = deadline - startNanos;
+        long tick = elapsed <= 0 ? 0 : (elapsed + tickNanos - 1) / tickNanos;
+
+        timeout.deadline = deadline;
+        timeout.deadlineTick = Math.max(currentTick + 1, tick);
+        timeout.bucket = (int) (timeout.deadlineTick & mask);
+
+        // Insert at the head of the bucket
+        Timeout<T> head = buckets[timeout.bucket];
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null)
+            head.previous = timeout;
+        buckets[timeout.bucket] = timeout;
+        size++;
+    }
+
+    /**
+     * Cancels a timeout (does nothing if it is not scheduled)
+     * @param timeout The timeout to cancel
+     */
+    public void cancel(Timeout<T> timeout) {
+        if (timeout == null || timeout.bucket < 0)
+            return;
+
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Advances the wheel to the current time, and expires all due timeouts. Timeouts are removed from the
+     * wheel before the handler is called, so the handler may reschedule them (or cancel other timeouts).
+     * @param now     The current time
+     * @param handler Called for every expired timeout
+     * @return The number of expired timeouts
+     */
+    public int advance(long now, Consumer<Timeout<T>> handler) {
+        long nowTick = (now - startNanos) / tickNanos;
+        if (nowTick <= currentTick)
+            return 0;
+
+        // After a full rotation, every bucket has been visited
+        long ticks = Math.min(nowTick - currentTick, buckets.length);
+
+        for (long t = 1; t <= ticks; t++) {
+            int bucket = (int) ((currentTick + t) & mask);
+            Timeout<T> timeout = buckets[bucket];
+
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+
+                if (timeout.deadlineTick <= nowTick) {
+                    cancel(timeout);
+                    expired.add(timeout);
+                }
+
+                timeout = next;
+            }
+        }
+
+        currentTick = nowTick;
+
+        int count = expired.size();
+        for (int i = 0; i < count; i++)
+            handler.accept(expired.get(i));
+        expired.clear();
+
+        return count;
+    }
+
+    /**
+     * @param now The current time
+     * @return The time until the next tick (in ns), or -1 if no timeouts are scheduled
+     */
+    public long getNanosToNextTick(long now) {
+        if (size == 0)
+            return -1;
+
+        long nextTickTime = startNanos + (currentTick + 1) * tickNanos;
+        return Math.max(0, nextTickTime - now);
+    }
+
+    /**
+     * @return The number of scheduled timeouts
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,506 @@
+package event;
+
+import formats.DataMessage;
+import formats.Message;
+import formats.RequestMessage;
+import logging.Logger;
+import metrics.TransferClass;
+import session.MulticastGroups;
+import session.MulticastSessionDriver;
+import session.MulticastTransmitSession;
+import session.SessionStep;
+import session.TFTPSession;
+import socket.DataFrame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Runs many sessions on a single thread.
+ *
+ * Every session has its own non-blocking channel (its TID), registered with one selector. Session
+ * deadlines (retransmit, final dally timeout and the optional maximum session duration) are kept
+ * in a {@link HashedTimingWheel}, which the loop advances after every select. An idle session
+ * therefore only costs a channel, a selection key and a wheel entry, and no thread.
+ *
+ * Received packets are not handled in selection order: ready sessions are queued in a {@link SessionScheduler},
+ * which serves small transfers first and shares the rest fairly between peers. At most SCHEDULER_BATCH_PACKETS
+ * packets are handled between two selects, so newly ready small transfers do not wait behind bulk transfers.
+ *
+ * Sessions are driven through the non-blocking API of {@link TFTPSession}
+ * (start / onPacket / onTimer / onWakeup / onIOException), so they behave exactly as with the
+ * blocking driver. Sessions never block the loop thread: work done on other threads (ex: buffered
+ * writes) wakes the session on the loop once it is done.
+ *
+ * A session that fails unexpectedly (a RuntimeException) is failed alone, and the sessions still
+ * running when the loop stops are aborted, so their handlers release their resources.
+ */
+public class SessionEventLoop extends Thread {
+    private static final Logger LOG = new Logger("SessionEventLoop");
+
+    private final Selector selector;
+    private final HashedTimingWheel<SessionContext> timers;
+    private final SessionScheduler<SessionContext> scheduler;
+    private final int batchPackets;
+    private final Queue<SessionContext> pendingSessions;
+    private final Queue<SessionContext> wokenSessions;
+    private final ByteBuffer receiveBuffer;
+    private final AtomicInteger sessionCount;
+    private final long maxSessionNanos;
+    private final NetworkInterface multicastInterface;
+    private volatile boolean running;
+
+    /**
+     * State kept by the loop for each session
+     */
+    private static final class SessionContext {
+        private final TFTPSession session;
+        private final RequestMessage request;
+        private final SocketAddress peer;
+        private final DatagramChannel channel;
+        private final boolean debug;
+        private final HashedTimingWheel.Timeout<SessionContext> deadline;
+        private final HashedTimingWheel.Timeout<SessionContext> expiry;
+        private DataFrame dataFrame;
+
+        private SessionContext(TFTPSession session, RequestMessage request, SocketAddress peer, DatagramChannel channel) {
+            this.session = session;
+            this.request = request;
+            this.peer = peer;
+            this.channel = channel;
+            this.debug = peer instanceof InetSocketAddress && Logger.isPeerDebugEnabled(((InetSocketAddress) peer).getAddress());
+            this.deadline = new HashedTimingWheel.Timeout<>(this);
+            this.expiry = new HashedTimingWheel.Timeout<>(this);
+        }
+    }
+
+    /**
+     * Classifies sessions for the scheduler: by transfer class, remaining (or transferred) bytes and peer host
+     */
+    private static final class SessionClassifier implements SessionScheduler.Classifier<SessionContext> {
+        @Override
+        public boolean isBulk(SessionContext context) {
+            return context.session.getTransferClass() == TransferClass.BULK;
+        }
+
+        @Override
+        public long getPriority(SessionContext context) {
+            long size = context.session.getTransferSize();
+            long transferred = context.session.getBytesTransferred();
+            return size >= 0 ? size - transferred : transferred;
+        }
+
+        @Override
+        public Object getFlow(SessionContext context) {
+            return context.peer instanceof InetSocketAddress ? ((InetSocketAddress) context.peer).getAddress() : context.peer;
+        }
+
+        @Override
+        public int getCost(SessionContext context) {
+            return context.session.getBlockSize();
+        }
+    }
+
+    /**
+     * Creates an event loop using the TIMER_TICK_MS, TIMER_WHEEL_SIZE and SESSION_MAX_DURATION_MS configuration
+     * @param name The name of the loop thread
+     * @throws IOException If the selector could not be opened
+     */
+    public SessionEventLoop(String name) throws IOException {
+        this(name, TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.TIMER_TICK_MS), GLOBAL_CONFIG.TIMER_WHEEL_SIZE,
+                TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.SESSION_MAX_DURATION_MS));
+    }
+
+    /**
+     * @param name            The name of the loop thread
+     * @param tickNanos       The resolution of the session timers
+     * @param wheelSize       The number of timer wheel buckets
+     * @param maxSessionNanos The maximum duration of a session (0 for no limit)
+     * @throws IOException If the selector could not be opened
+     */
+    public SessionEventLoop(String name, long tickNanos, int wheelSize, long maxSessionNanos) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.timers = new HashedTimingWheel<>(tickNanos, wheelSize, System.nanoTime());
+        this.scheduler = new SessionScheduler<>(new SessionClassifier(), GLOBAL_CONFIG.SCHEDULER_QUANTUM_BYTES);
+        this.batchPackets = Math.max(1, GLOBAL_CONFIG.SCHEDULER_BATCH_PACKETS);
+        this.pendingSessions = new ConcurrentLinkedQueue<>();
+        this.wokenSessions = new ConcurrentLinkedQueue<>();
+        this.receiveBuffer = ByteBuffer.allocate(Message.MAX_NEGOTIATED_PACKET_SIZE + 1);
+        this.sessionCount = new AtomicInteger();
+        this.maxSessionNanos = maxSessionNanos;
+        this.multicastInterface = MulticastSessionDriver.getConfiguredInterface();
+        this.running = true;
+    }
+
+    /**
+     * Adds a session to the loop. The session is started on the loop thread, from a new channel
+     * bound to an ephemeral port (the TID of the session).
+     * @param session The session to run
+     * @param request The request that started the session
+     * @param peer    The address of the peer
+     * @throws IOException If the session channel could not be opened
+     */
+    public void register(TFTPSession session, RequestMessage request, SocketAddress peer) throws IOException {
+        if (!running)
+            throw new IOException("The event loop has been shut down");
+
+        // Multicast sessions send to their (IPv4) group through MULTICAST_INTERFACE. Unicast sessions keep the
+        // default channel, so that IPv6 clients are served.
+        boolean multicast = session instanceof MulticastTransmitSession && MulticastGroups.GLOBAL_MULTICAST_GROUPS.isEnabled();
+        DatagramChannel channel = multicast ? DatagramChannel.open(StandardProtocolFamily.INET) : DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+
+            if (multicast && multicastInterface != null)
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+
+            channel.bind(null);
+        } catch (IOException ioE) {
+            channel.close();
+            throw ioE;
+        }
+
+        SessionContext context = new SessionContext(session, request, peer, channel);
+
+        // The session never blocks the loop, it asks to be woken instead (ex: once its buffered blocks are written)
+        session.setWakeupListener(() -> {
+            wokenSessions.add(context);
+            selector.wakeup();
+        });
+
+        sessionCount.incrementAndGet();
+        pendingSessions.add(context);
+        selector.wakeup();
+    }
+
+    /**
+     * @return The number of sessions that were registered and have not completed yet
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * Waits until all registered sessions are complete
+     * @throws InterruptedException
+     */
+    public void awaitSessions() throws InterruptedException {
+        while (sessionCount.get() > 0 && isAlive())
+            Thread.sleep(10);
+    }
+
+    /**
+     * Stops the loop. Sessions that are still running are aborted (their channels are closed).
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                startPendingSessions();
+                wakeSessions();
+
+                // Sleep until the next tick (rounded up, so the tick has passed when select returns)
+                // Do not sleep while sessions are waiting to be served
+                long nanosToTick = scheduler.isEmpty() ? timers.getNanosToNextTick(System.nanoTime()) : 0;
+                if (nanosToTick < 0)
+                    selector.select();
+                else if (nanosToTick == 0)
+                    selector.selectNow();
+                else
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(nanosToTick + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isReadable())
+                        scheduler.add((SessionContext) key.attachment());
+                }
+
+                serveReadySessions();
+
+                timers.advance(System.nanoTime(), this::timerExpired);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.logQuiet("The event loop stopped unexpectedly: " + e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Registers and starts the sessions added by {@link #register(TFTPSession, RequestMessage, SocketAddress)}
+     */
+    private void startPendingSessions() {
+        SessionContext context;
+
+        while ((context = pendingSessions.poll()) != null) {
+            try {
+                context.channel.register(selector, SelectionKey.OP_READ, context);
+            } catch (IOException ioE) {
+                LOG.logQuiet("Failed to register session channel: " + ioE.getLocalizedMessage());
+                abort(context);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            if (maxSessionNanos > 0)
+                timers.schedule(context.expiry, now + maxSessionNanos);
+
+            final SessionContext started = context;
+            dispatch(context, () -> started.session.start(started.request, started.peer, now));
+        }
+    }
+
+    /**
+     * Runs the wakeups requested by sessions (from other threads) since the last select
+     */
+    private void wakeSessions() {
+        SessionContext context;
+
+        while ((context = wokenSessions.poll()) != null) {
+            if (!context.channel.isOpen() || context.session.isSessionComplete())
+                continue;
+
+            final SessionContext woken = context;
+            dispatch(context, () -> woken.session.onWakeup(System.nanoTime()));
+        }
+    }
+
+    /**
+     * Handles the packets of ready sessions, in scheduler order, one packet at a time.
+     * Sessions that still have packets stay queued for the next select.
+     */
+    private void serveReadySessions() {
+        int served = 0;
+
+        while (served < batchPackets) {
+            SessionContext context = scheduler.poll();
+            if (context == null)
+                return;
+
+            if (!context.channel.isOpen() || context.session.isSessionComplete())
+                continue;
+
+            if (receive(context)) {
+                served++;
+                scheduler.add(context);
+            }
+        }
+    }
+
+    /**
+     * Reads and handles one pending packet of a session channel
+     * @param context The session
+     * @return True if a packet was handled, False if no packet was pending (or the receive failed)
+     */
+    private boolean receive(SessionContext context) {
+        SocketAddress source;
+        receiveBuffer.clear();
+
+        try {
+            source = context.channel.receive(receiveBuffer);
+        } catch (IOException ioE) {
+            dispatch(context, () -> context.session.onIOException(ioE, System.nanoTime()));
+            return false;
+        }
+
+        // No more packets
+        if (source == null)
+            return false;
+
+        receiveBuffer.flip();
+        if (LOG.isVerbose())
+            LOG.logVerbose("Received " + receiveBuffer.remaining() + " bytes from " + source);
+
+        dispatch(context, () -> context.session.onPacket(receiveBuffer, source, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Handles an expired session timer
+     * @param timeout The expired timer
+     */
+    private void timerExpired(HashedTimingWheel.Timeout<SessionContext> timeout) {
+        SessionContext context = timeout.getTask();
+
+        if (timeout == context.expiry) {
+            LOG.logQuiet("Session with " + context.peer + " exceeded the maximum session duration");
+            dispatch(context, () -> context.session.onIOException(new SocketTimeoutException("Maximum session duration exceeded"), System.nanoTime()));
+        } else {
+            // The wheel never expires a timer early, so the deadline has passed
+            dispatch(context, () -> context.session.onTimer(Math.max(System.nanoTime(), timeout.getDeadline())));
+        }
+    }
+
+    /**
+     * Runs a session callback (with the session log level) and applies its step
+     * @param context  The session
+     * @param callback The session callback
+     */
+    private void dispatch(SessionContext context, Supplier<SessionStep> callback) {
+        if (context.debug)
+            Logger.setThreadLogLevel(Logger.LogLevel.VERBOSE);
+
+        try {
+            SessionStep step = send(context, callback.get());
+
+            if (step.isComplete())
+                close(context);
+            else
+                timers.schedule(context.deadline, step.getDeadline());
+        } catch (RuntimeException rE) {
+            // Only this session fails, the loop keeps running the others
+            LOG.logQuiet("Session with " + context.peer + " failed unexpectedly: " + rE);
+            fail(context, rE);
+        } finally {
+            if (context.debug)
+                Logger.setThreadLogLevel(null);
+        }
+    }
+
+    /**
+     * Fails a session after an unexpected exception: sends its ERROR (NOT_DEFINED) and completes it
+     * @param context The session
+     * @param cause   The exception thrown by the session
+     */
+    private void fail(SessionContext context, RuntimeException cause) {
+        try {
+            send(context, context.session.onIOException(new IOException("Internal error: " + cause, cause), System.nanoTime()));
+        } catch (RuntimeException rE) {
+            LOG.logQuiet("Failed to send ERROR message: " + rE);
+        }
+
+        abort(context);
+    }
+
+    /**
+     * Completes a session that did not complete (failed if it was still running) and closes its channel
+     * @param context The session
+     */
+    private void abort(SessionContext context) {
+        try {
+            context.session.abort(System.nanoTime());
+        } catch (RuntimeException rE) {
+            LOG.logQuiet("Failed to abort session with " + context.peer + ": " + rE);
+        }
+
+        close(context);
+    }
+
+    /**
+     * Sends the messages of a step. A full send buffer drops the datagram, which is then
+     * recovered like any lost packet (by a retransmission).
+     * @param context The session
+     * @param step    The step to send
+     * @return The step to continue with (a new step if sending failed)
+     */
+    private SessionStep send(SessionContext context, SessionStep step) {
+        for (int i = 0; i < step.getMessageCount(); i++) {
+            Message message = step.getMessage(i);
+            SocketAddress destination = step.getDestination(i);
+
+            try {
+                if (LOG.isVerbose())
+                    LOG.logVerbose("Sending " + message.getMessageType() + " to " + destination);
+
+                context.channel.send(toBuffer(context, message), destination);
+            } catch (IOException ioE) {
+                if (step.isComplete()) {
+                    // Occurs when sending the final (ERROR) message. Do nothing here other than log.
+                    LOG.logQuiet("Failed to send ERROR message. IOException: " + ioE.getLocalizedMessage());
+                    return step;
+                }
+
+                return send(context, context.session.onIOException(ioE, System.nanoTime()));
+            }
+        }
+
+        return step;
+    }
+
+    /**
+     * @param context The session
+     * @param message The message to encode
+     * @return The datagram of the message. DATA messages are framed in the reusable session frame.
+     * @throws IOException
+     */
+    private static ByteBuffer toBuffer(SessionContext context, Message message) throws IOException {
+        if (message instanceof DataMessage) {
+            if (context.dataFrame == null)
+                context.dataFrame = new DataFrame();
+
+            return context.dataFrame.set((DataMessage) message).toBuffer();
+        }
+
+        return ByteBuffer.wrap(message.toByteArray());
+    }
+
+    /**
+     * Cancels the timers of a session and closes its channel
+     * @param context The completed session
+     */
+    private void close(SessionContext context) {
+        if (!context.channel.isOpen())
+            return;
+
+        timers.cancel(context.deadline);
+        timers.cancel(context.expiry);
+
+        try {
+            context.channel.close();
+        } catch (IOException ioE) {
+            LOG.logVerbose("Failed to close session channel: " + ioE.getLocalizedMessage());
+        }
+
+        sessionCount.decrementAndGet();
+    }
+
+    /**
+     * Aborts the sessions that are still running, and closes their channels and the selector
+     */
+    private void closeAll() {
+        running = false;
+
+        SessionContext pending;
+        while ((pending = pendingSessions.poll()) != null)
+            abort(pending);
+
+        try {
+            for (SelectionKey key : selector.keys()) {
+                SessionContext context = (SessionContext) key.attachment();
+                if (context.channel.isOpen())
+                    abort(context);
+            }
+
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            LOG.logVerbose("Failed to close selector: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package event;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Orders the sessions that have work ready on an event loop.
+ *
+ * Small transfers are served first, shortest job first (by remaining bytes, or by bytes transferred
+ * when the size is not known). Bulk transfers share the rest with deficit round-robin between flows
+ * (peer hosts): when a flow runs out of credit it earns a quantum of bytes and goes to the back of the
+ * round, and every served packet costs the block size of its session. A peer running many bulk sessions
+ * therefore gets the same share as a peer running one. So that bulk transfers never starve, one bulk
+ * packet is served after every SMALL_BURST small packets.
+ *
+ * An item is served one packet at a time: the caller adds it again if it still has work. The scheduler
+ * is not thread safe (it is only used by the event loop thread).
+ * @param <T> The type of the scheduled items
+ */
+public class SessionScheduler<T> {
+    private static final int SMALL_BURST = 8;
+
+    /**
+     * Describes the scheduled items
+     * @param <T> The type of the items
+     */
+    public interface Classifier<T> {
+        /**
+         * @return True if the item is a bulk transfer (served by deficit round-robin)
+         */
+        boolean isBulk(T item);
+
+        /**
+         * @return The priority of a small transfer (lowest first)
+         */
+        long getPriority(T item);
+
+        /**
+         * @return The flow of a bulk transfer (bulk flows get equal shares)
+         */
+        Object getFlow(T item);
+
+        /**
+         * @return The cost of serving the item once, in bytes
+         */
+        int getCost(T item);
+    }
+
+    private static final class SmallEntry<T> implements Comparable<SmallEntry<T>> {
+        private final T item;
+        private final long priority;
+        private final long sequence;
+
+        private SmallEntry(T item, long priority, long sequence) {
+            this.item = item;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(SmallEntry<T> other) {
+            int order = Long.compare(priority, other.priority);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class Flow<T> {
+        private final Object key;
+        private final Queue<T> items;
+        private long deficit;
+
+        private Flow(Object key) {
+            this.key = key;
+            this.items = new ArrayDeque<>();
+        }
+    }
+
+    private final Classifier<T> classifier;
+    private final long quantum;
+    private final PriorityQueue<SmallEntry<T>> smallQueue;
+    private final Map<Object, Flow<T>> flows;
+    private final Queue<Flow<T>> activeFlows;
+    private final Set<T> queued;
+    private long sequence;
+    private int smallServed;
+
+    /**
+     * @param classifier   Describes the items
+     * @param quantumBytes The credit earned by a bulk flow on every round
+     */
+    public SessionScheduler(Classifier<T> classifier, long quantumBytes) {
+        this.classifier = classifier;
+        this.quantum = Math.max(1, quantumBytes);
+        this.smallQueue = new PriorityQueue<>();
+        this.flows = new HashMap<>();
+        this.activeFlows = new ArrayDeque<>();
+        this.queued = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Queues an item that has work ready. Does nothing if the item is already queued.
+     * The item is classified now, so its class and priority must not change while it is queued.
+     * @param item The item
+     */
+    public void add(T item) {
+        if (!queued.add(item))
+            return;
+
+        if (!classifier.isBulk(item)) {
+            smallQueue.add(new SmallEntry<>(item, classifier.getPriority(item), sequence++));
+            return;
+        }
+
+        Flow<T> flow = flows.get(classifier.getFlow(item));
+        if (flow == null) {
+            flow = new Flow<>(classifier.getFlow(item));
+            flows.put(flow.key, flow);
+            activeFlows.add(flow);
+        }
+
+        flow.items.add(item);
+    }
+
+    /**
+     * @return The next item to serve, or null if no item is queued
+     */
+    public T poll() {
+        if (smallServed >= SMALL_BURST || smallQueue.isEmpty()) {
+            smallServed = 0;
+
+            T item = pollBulk();
+            if (item != null)
+                return item;
+        }
+
+        SmallEntry<T> entry = smallQueue.poll();
+        if (entry == null)
+            return null;
+
+        smallServed++;
+        queued.remove(entry.item);
+        return entry.item;
+    }
+
+    /**
+     * @return The next bulk item (deficit round-robin), or null if no bulk item is queued
+     */
+    private T pollBulk() {
+        while (!activeFlows.isEmpty()) {
+            Flow<T> flow = activeFlows.peek();
+            T item = flow.items.peek();
+
+            // Idle flows leave the round, and lose their credit
+            if (item == null) {
+                activeFlows.poll();
+                flows.remove(flow.key);
+                continue;
+            }
+
+            int cost = classifier.getCost(item);
+            if (flow.deficit >= cost) {
+                flow.deficit -= cost;
+                flow.items.poll();
+                queued.remove(item);
+                return item;
+            }
+
+            // Out of credit: earn a quantum, and wait for the next round
+            flow.deficit += quantum;
+            activeFlows.add(activeFlows.poll());
+        }
+
+        return null;
+    }
+
+    /**
+     * @return True if no item is queued
+     */
+    public boolean isEmpty() {
+        return queued.isEmpty();
+    }
+
+    /**
+     * @return The number of queued items
+     */
+    public int size() {
+        return queued.size();
+    }
+}
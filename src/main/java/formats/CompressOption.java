@@ -0,0 +1,48 @@
+package formats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The value of the compress option: the DATA blocks of the session are a compressed stream of the file.
+ *
+ * The client asks with the algorithms it can decompress (a comma separated list, only 'deflate' for now).
+ * The side that sends the file decides: it acknowledges the algorithm if the file compresses well, and does not
+ * acknowledge the option otherwise (the file is sent as is). On a RRQ the server decides with the file; on a WRQ
+ * the client only asks if its file compresses well, and the server acknowledges it.
+ *
+ * 'deflate' is a zlib stream (RFC 1950), so the receiver checks the Adler-32 of the decompressed file as well.
+ */
+public final class CompressOption {
+    public static final String NAME = "compress";
+    public static final String DEFLATE = "deflate";
+
+    private CompressOption() {
+    }
+
+    /**
+     * @param options The other request options
+     * @return The request options, with the algorithms of this implementation
+     */
+    public static Map<String, String> getRequestOptions(Map<String, String> options) {
+        Map<String, String> requestOptions = new LinkedHashMap<>(options);
+        requestOptions.put(NAME, DEFLATE);
+        return requestOptions;
+    }
+
+    /**
+     * @param value The requested option value
+     * @return The algorithm to acknowledge, or null if none of the requested algorithms is supported
+     */
+    public static String accept(String value) {
+        if (value == null)
+            return null;
+
+        for (String algorithm : value.split(",")) {
+            if (algorithm.trim().equalsIgnoreCase(DEFLATE))
+                return DEFLATE;
+        }
+
+        return null;
+    }
+}
@@ -3,6 +3,7 @@ package formats;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -15,9 +16,11 @@ import exceptions.InvalidPacketException;
 public class DataMessage extends Message{
 
     private int blockNum;
-    private byte[] data;
+    private ByteBuffer payload;
+    private int blockSize;
     public static final int MAX_BLOCK_SIZE = 512;
     public static final int MAX_BLOCK_NUM = 0x0000FFFF;
+    public static final int HEADER_SIZE = 4;
 
     /**
      * Create a data message object
@@ -26,10 +29,43 @@ public class DataMessage extends Message{
      */
     public DataMessage(int blockNum, byte[] data)
     {
+        this(blockNum, ByteBuffer.wrap(Arrays.copyOf(data, Math.min(data.length, MAX_BLOCK_SIZE))));
+    }
+
+    /**
+     * Create a data message object backed by an existing payload slice. The slice is NOT copied,
+     * which allows cached or memory-mapped file contents to be sent without an intermediate array.
+     * The caller must not modify the underlying bytes while the message is in use.
+     * @param blockNum The block number. Must be >= 1 otherwise a runtime exception will be thrown
+     * @param payload The payload (from position to limit). Will be truncated to 512 bytes if necessary.
+     */
+    public DataMessage(int blockNum, ByteBuffer payload)
+    {
+        this(blockNum, payload, MAX_BLOCK_SIZE);
+
         if(blockNum < 1)
             throw new RuntimeException("blockNum can not be less than 1 (" + blockNum + ")");
+    }
+
+    /**
+     * Create a data message object of a session with a negotiated block size (see {@link TransferOptions}).
+     * The slice is NOT copied, as above.
+     * @param blockNum  The block number, from 0 to MAX_BLOCK_NUM (0 follows MAX_BLOCK_NUM with rollover to 0)
+     * @param payload   The payload (from position to limit). Will be truncated to the block size if necessary.
+     * @param blockSize The size of a full block. Only a shorter block is the final block.
+     */
+    public DataMessage(int blockNum, ByteBuffer payload, int blockSize)
+    {
+        if(blockNum < 0 || blockNum > MAX_BLOCK_NUM)
+            throw new RuntimeException("blockNum must be from 0 to " + MAX_BLOCK_NUM + " (" + blockNum + ")");
         this.blockNum = blockNum;
-        this.data = Arrays.copyOf(data, Math.min(data.length, MAX_BLOCK_SIZE));
+        this.blockSize = blockSize;
+
+        ByteBuffer slice = payload.slice();
+        if(slice.remaining() > blockSize)
+            slice.limit(blockSize);
+
+        this.payload = slice.asReadOnlyBuffer();
     }
 
     /**
@@ -43,14 +79,23 @@ public class DataMessage extends Message{
      * @return True if this block is the final block in a sequence of blocks
      */
     public boolean isFinalBlock() {
-        return data.length != MAX_BLOCK_SIZE;
+        return payload.remaining() != blockSize;
+    }
+
+    /**
+     * @return The size of a full block of the session (512 unless it was negotiated)
+     */
+    public int getBlockSize() {
+        return blockSize;
     }
 
     /**
      * Returns a copy of the data, in case of accidental modification to the byte array outside this class
      */
     public byte[] getData() {
-        return Arrays.copyOf(data, data.length);
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        return data;
     }
 
     /**
@@ -58,7 +103,27 @@ public class DataMessage extends Message{
      */
     public int getDataSize()
     {
-        return this.data.length;
+        return this.payload.remaining();
+    }
+
+    /**
+     * @return A read-only view of the payload. Does not copy the data, so this is the
+     * preferred way of reading the payload on the send path.
+     */
+    public ByteBuffer getPayload()
+    {
+        return payload.duplicate();
+    }
+
+    /**
+     * Writes the 4 byte DATA header (opcode and block number) into the buffer at its current position
+     * @param header The buffer to write to. Must have at least {@link #HEADER_SIZE} bytes remaining.
+     */
+    public void writeHeader(ByteBuffer header)
+    {
+        header.put((byte) 0);
+        header.put((byte) getMessageType().getType());
+        header.putShort((short) blockNum);
     }
 
     @Override
@@ -69,7 +134,7 @@ public class DataMessage extends Message{
         bAOS.write(Message.shortToByteArray((short)blockNum));
 
         // Write byte buffer
-        bAOS.write(this.data);
+        bAOS.write(getData());
         return bAOS.toByteArray();
     }
 
@@ -95,26 +160,43 @@ public class DataMessage extends Message{
         DataMessage otherData = (DataMessage) other;
         return this.getMessageType().equals(otherData.getMessageType())
                 && this.blockNum == otherData.blockNum
-                && Arrays.equals(this.data, otherData.data);
+                && this.payload.equals(otherData.payload);
     }
 
     /**
-     * Creates a listing of DataMessage objects that represent the byte array passed in
+     * Creates a listing of DataMessage objects that represent the byte array passed in.
+     * Each message is a slice of the passed in array (the data is not copied), so the array
+     * must not be modified while the messages are in use.
      * @param data The data to parse into a data message sequence
      * @return The sequence of data messages
      */
     public static List<DataMessage> createDataMessageSequence(byte[] data) throws IOException
     {
+        return createDataMessageSequence(data, TransferOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a listing of DataMessage objects that represent the byte array passed in, as above,
+     * with the block size and block numbering of a session
+     * @param data    The data to parse into a data message sequence
+     * @param options The transfer options of the session
+     * @return The sequence of data messages
+     */
+    public static List<DataMessage> createDataMessageSequence(byte[] data, TransferOptions options) throws IOException
+    {
+        int blockSize = options.getBlockSize();
+
         // Calculate number of blocks needed
-        int numBlocks = data.length / MAX_BLOCK_SIZE + 1;
+        int numBlocks = data.length / blockSize + 1;
 
         List<DataMessage> dataSequence = new ArrayList<>();
 
         // Truncate the data into blocks, and encapsulate them into a DataMessage object
         for(int i = 0; i < numBlocks; i++)
         {
-            byte[] curBlock = Arrays.copyOfRange(data, i * MAX_BLOCK_SIZE, Math.min(i * MAX_BLOCK_SIZE + MAX_BLOCK_SIZE, data.length));
-            DataMessage msg = new DataMessage(1 + (i % MAX_BLOCK_NUM), curBlock);
+            int offset = i * blockSize;
+            ByteBuffer curBlock = ByteBuffer.wrap(data, offset, Math.min(blockSize, data.length - offset));
+            DataMessage msg = new DataMessage(options.getBlockNumber(i), curBlock, blockSize);
             dataSequence.add(msg);
         }
 
@@ -138,6 +220,17 @@ public class DataMessage extends Message{
      * @throws InvalidPacketException If there was an error parsing the data
      */
     public static DataMessage parseMessage(byte[] data) throws InvalidPacketException {
+        return parseMessage(data, TransferOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a DataMessage object of a session from a byte array
+     * @param data    The Data retrieved in a packet
+     * @param options The transfer options of the session (the block size, and if block 0 is used)
+     * @return The DataMessage object containing all relevant info
+     * @throws InvalidPacketException If there was an error parsing the data
+     */
+    public static DataMessage parseMessage(byte[] data, TransferOptions options) throws InvalidPacketException {
         // Data Messages have a minimum size of 4.
         if (data.length < 4)
             throw new InvalidPacketException("Packet length too short");
@@ -165,23 +258,15 @@ public class DataMessage extends Message{
         ptr += 2;
 
         // Check if the type is valid
-        if(blockNum < 1)
-            throw new InvalidPacketException("The block number can not be less than 1");
-
-        // Parse the data sent in the packet
-        byte[] sentData;
-
-        // Check if we are at the end of the data (0 bytes of data)
-        if (ptr == data.length)
-            sentData = new byte[0];
-        else
-            sentData = Arrays.copyOfRange(data, ptr, data.length);
+        if(!options.isValidBlockNumber(blockNum))
+            throw new InvalidPacketException("The block number can not be less than " + options.getRollover());
 
         // Throw an exception if the sent data has a size larger than the maximum block size
-        if (sentData.length > MAX_BLOCK_SIZE)
-            throw new InvalidPacketException("The data length can not be greater than " + MAX_BLOCK_SIZE);
+        if (data.length - ptr > options.getBlockSize())
+            throw new InvalidPacketException("The data length can not be greater than " + options.getBlockSize());
 
-        return new DataMessage(blockNum, sentData);
+        // Copy the data sent in the packet once, and wrap it (so that the constructor does not copy it again)
+        return new DataMessage(blockNum, ByteBuffer.wrap(Arrays.copyOfRange(data, ptr, data.length)), options.getBlockSize());
     }
 
     @Override
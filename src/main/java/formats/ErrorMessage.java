@@ -25,7 +25,8 @@ public class ErrorMessage extends Message {
         ILLEGAL_OPERATION(4),
         UNKNOWN_TRANSFER_ID(5),
         FILE_EXISTS(6),
-        NO_SUCH_USER(7);
+        NO_SUCH_USER(7),
+        OPTION_NEGOTIATION(8);
 
         private short code;
         ErrorType(int code)
@@ -6,12 +6,16 @@ import logging.Logger;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.util.Arrays;
 
 
 public abstract class Message {
     private final static Logger LOG = new Logger("Message");
 	public final static int MAX_PACKET_SIZE = 516;
 
+    // The largest DATA packet, with the largest negotiated block size (see TransferOptions)
+    public final static int MAX_NEGOTIATED_PACKET_SIZE = DataMessage.HEADER_SIZE + TransferOptions.MAX_BLOCK_SIZE;
+
     /**
      * Enumeration of TFTP message formats
      */
@@ -20,7 +24,8 @@ public abstract class Message {
         WRQ(2),
         DATA(3),
         ACK(4),
-        ERROR(5);
+        ERROR(5),
+        OACK(6);
 
         private int type;
         MessageType(int type)
@@ -160,10 +165,27 @@ public abstract class Message {
 
     public static Message parseGenericMessage(DatagramPacket packet) throws InvalidPacketException
     {
-        return parseGenericMessage(packet.getData());
+        // Only parse the valid region of the packet buffer (the buffer may be re-used and larger than the packet)
+        byte[] data = packet.getData();
+        if (packet.getOffset() != 0 || packet.getLength() != data.length)
+            data = Arrays.copyOfRange(data, packet.getOffset(), packet.getOffset() + packet.getLength());
+
+        return parseGenericMessage(data);
     }
 
     public static Message parseGenericMessage(byte[] data) throws InvalidPacketException
+    {
+        return parseGenericMessage(data, TransferOptions.DEFAULT);
+    }
+
+    /**
+     * Parses a message of a session
+     * @param data    The packet data
+     * @param options The transfer options of the session (the DATA block size and block numbers)
+     * @return The message
+     * @throws InvalidPacketException If there was an error parsing the data
+     */
+    public static Message parseGenericMessage(byte[] data, TransferOptions options) throws InvalidPacketException
     {
         MessageType type = Message.getMessageType(data);
 
@@ -176,9 +198,11 @@ public abstract class Message {
             case WRQ:
                 return RequestMessage.parseMessage(data);
             case DATA:
-                return DataMessage.parseMessage(data);
+                return DataMessage.parseMessage(data, options);
             case ACK:
                 return AckMessage.parseMessage(data);
+            case OACK:
+                return OptionAckMessage.parseMessage(data);
             case ERROR:
             default:
                 return ErrorMessage.parseMessage(data);
@@ -0,0 +1,88 @@
+package formats;
+
+import exceptions.InvalidPacketException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The value of the multicast option (RFC 2090).
+ *
+ * A client asks for a multicast read with the option 'multicast' and an empty value. The server acknowledges
+ * it with 'addr,port,mc': the group the DATA blocks are sent to, and whether the client is the master client
+ * (mc = 1, the client that acknowledges the blocks) or not (mc = 0, the client only listens to the group).
+ * A repeated OACK with mc = 1 promotes a client to master.
+ */
+public final class MulticastOption {
+    public static final String NAME = "multicast";
+
+    private final InetSocketAddress group;
+    private final boolean master;
+
+    /**
+     * @param group  The multicast group address and port
+     * @param master True for the master client
+     */
+    public MulticastOption(InetSocketAddress group, boolean master) {
+        this.group = group;
+        this.master = master;
+    }
+
+    /**
+     * @return The multicast group address and port
+     */
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    /**
+     * @return True if the client is the master client
+     */
+    public boolean isMaster() {
+        return master;
+    }
+
+    /**
+     * @return A copy of this option for another client role
+     */
+    public MulticastOption withMaster(boolean master) {
+        return new MulticastOption(group, master);
+    }
+
+    /**
+     * Parses the value of an acknowledged multicast option
+     * @param value The option value ('addr,port,mc')
+     * @return The multicast option
+     * @throws InvalidPacketException If the value is not a multicast group with a client role
+     */
+    public static MulticastOption parse(String value) throws InvalidPacketException {
+        String[] fields = value.split(",", -1);
+        if (fields.length != 3)
+            throw new InvalidPacketException("The multicast option must be 'addr,port,mc'. Actual: '" + value + "'");
+
+        try {
+            InetAddress address = InetAddress.getByName(fields[0]);
+            int port = Integer.parseInt(fields[1]);
+
+            if (!address.isMulticastAddress())
+                throw new InvalidPacketException("The multicast address is not a multicast group: " + fields[0]);
+            if (port < 1 || port > 65535)
+                throw new InvalidPacketException("Invalid multicast port: " + fields[1]);
+            if (!fields[2].equals("0") && !fields[2].equals("1"))
+                throw new InvalidPacketException("The master client flag must be 0 or 1. Actual: " + fields[2]);
+
+            return new MulticastOption(new InetSocketAddress(address, port), fields[2].equals("1"));
+        } catch (NumberFormatException | UnknownHostException e) {
+            throw new InvalidPacketException("Invalid multicast group: '" + value + "'");
+        }
+    }
+
+    /**
+     * @return The option value ('addr,port,mc')
+     */
+    @Override
+    public String toString() {
+        return group.getAddress().getHostAddress() + "," + group.getPort() + "," + (master ? 1 : 0);
+    }
+}
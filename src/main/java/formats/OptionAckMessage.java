@@ -0,0 +1,134 @@
+package formats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import exceptions.InvalidPacketException;
+
+/**
+ * Representation of a TFTP Option Acknowledgement Message (OACK, RFC 2347)
+ *
+ * Sent by the server instead of the first DATA block (RRQ) or ACK 0 (WRQ) when it accepts options of the
+ * request. Contains the accepted options, with the values the server will use.
+ */
+public class OptionAckMessage extends Message {
+
+    private Map<String, String> options;
+
+    /**
+     * Create the option acknowledgement message
+     * @param options The accepted option names and values. Can not be empty.
+     */
+    public OptionAckMessage(Map<String, String> options)
+    {
+        if (options.isEmpty())
+            throw new RuntimeException("An option acknowledgement must contain at least one option");
+
+        this.options = RequestMessage.toOptionMap(options);
+    }
+
+    /**
+     * @return The (read-only) accepted options, with lower case names
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @param name The option name (case insensitive)
+     * @return The value of the option, or null if it was not accepted
+     */
+    public String getOption(String name) {
+        return options.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return A byte representation of the message
+     * @throws IOException
+     */
+    @Override
+    protected byte[] getBytes() throws IOException {
+        ByteArrayOutputStream bAOS = new ByteArrayOutputStream();
+        RequestMessage.writeOptions(bAOS, options);
+        return bAOS.toByteArray();
+    }
+
+    /**
+     * @return The MessageType enumeration value
+     */
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.OACK;
+    }
+
+    /**
+     * Check if two OptionAckMessage objects are equal to each other
+     * @param other The other OptionAckMessage
+     * @return True if the objects are equals
+     */
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other)
+            return true;
+
+        if(!(other instanceof OptionAckMessage))
+            return false;
+
+        return this.options.equals(((OptionAckMessage) other).options);
+    }
+
+    /**
+     * Creates a OptionAckMessage object from a packet object
+     * @param packet The packet object containing the data to be parsed
+     * @return The OptionAckMessage object containing all relevant info
+     * @throws InvalidPacketException If there was an error parsing the data
+     */
+    public static OptionAckMessage parseMessage(DatagramPacket packet) throws InvalidPacketException {
+        return parseMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+    }
+
+    /**
+     * Creates a OptionAckMessage object from a byte array
+     * @param data The byte array retrieved in a packet
+     * @return The OptionAckMessage object containing all relevant info
+     * @throws InvalidPacketException If there was an error parsing the data
+     */
+    public static OptionAckMessage parseMessage(byte[] data) throws InvalidPacketException {
+        // The opcode, and at least one option with a one character name and an empty value
+        if (data.length < 5)
+            throw new InvalidPacketException("Packet length too short");
+
+        // Start byte must be 0, otherwise it is incorrect.
+        if (data[0] != 0)
+            throw new InvalidPacketException("Invalid start byte. Expected 0. Actual: " + data[0]);
+
+        MessageType type = MessageType.getMessageType(data[1]);
+
+        // Request type must be valid to continue
+        if (!MessageType.OACK.equals(type))
+            throw new InvalidPacketException("Invalid message type. Must be OACK (" + MessageType.OACK.getType() + "). Actual: " + type);
+
+        Map<String, String> options = RequestMessage.readOptions(data, 2);
+        if (options == null)
+            throw new InvalidPacketException("The options must be pairs of 0 terminated names and values");
+
+        return new OptionAckMessage(options);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("Options: ");
+        builder.append(getOptions());
+        builder.append(System.lineSeparator());
+
+        return super.toString() + builder.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package formats;
+
+import exceptions.InvalidPacketException;
+
+/**
+ * The value of the range option: a byte range of the file, read by one of several concurrent sessions.
+ *
+ * The client does not know the size of the file, so it asks for a segment of the file with 'k/n' (segment k
+ * of n equal segments, from 0). The server acknowledges the byte range of the segment with 'offset,length,size'
+ * (segments start on a block boundary, and the last segment ends with the file), and sends the blocks of the
+ * range only. The size of the file lets the client allocate the whole file before the blocks arrive.
+ */
+public final class RangeOption {
+    public static final String NAME = "range";
+    public static final int MAX_SEGMENTS = 1024;
+
+    private final long offset;
+    private final long length;
+    private final long fileSize;
+
+    /**
+     * @param offset   The offset of the first byte of the range
+     * @param length   The number of bytes of the range
+     * @param fileSize The size of the whole file
+     */
+    public RangeOption(long offset, long length, long fileSize) {
+        this.offset = offset;
+        this.length = length;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @return The offset of the first byte of the range
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The number of bytes of the range
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The size of the whole file
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @param index The segment to read (from 0)
+     * @param count The number of segments of the file
+     * @return The requested option value ('k/n')
+     */
+    public static String segment(int index, int count) {
+        return index + "/" + count;
+    }
+
+    /**
+     * @param segment The requested option value ('k/n')
+     * @return The index of the requested segment
+     * @throws InvalidPacketException If the value is not a segment of the file
+     */
+    public static int getSegmentIndex(String segment) throws InvalidPacketException {
+        return parseSegment(segment)[0];
+    }
+
+    /**
+     * Computes the byte range of a requested segment (the server)
+     * @param segment   The requested option value ('k/n')
+     * @param fileSize  The size of the file
+     * @param blockSize The block size of the session (segments start on a block boundary)
+     * @return The range of the segment
+     * @throws InvalidPacketException If the value is not a segment of the file
+     */
+    public static RangeOption grant(String segment, long fileSize, int blockSize) throws InvalidPacketException {
+        int[] fields = parseSegment(segment);
+        long blocks = fileSize / blockSize;
+
+        long start = blocks * fields[0] / fields[1] * blockSize;
+        long end = fields[0] == fields[1] - 1 ? fileSize : blocks * (fields[0] + 1) / fields[1] * blockSize;
+        return new RangeOption(start, end - start, fileSize);
+    }
+
+    private static int[] parseSegment(String segment) throws InvalidPacketException {
+        String[] fields = segment.split("/", -1);
+        if (fields.length != 2)
+            throw new InvalidPacketException("The range option must be 'k/n'. Actual: '" + segment + "'");
+
+        try {
+            int index = Integer.parseInt(fields[0]);
+            int count = Integer.parseInt(fields[1]);
+
+            if (count < 1 || count > MAX_SEGMENTS)
+                throw new InvalidPacketException("The number of segments must be from 1 to " + MAX_SEGMENTS + ". Actual: " + fields[1]);
+            if (index < 0 || index >= count)
+                throw new InvalidPacketException("Invalid segment: " + segment);
+
+            return new int[] {index, count};
+        } catch (NumberFormatException nFE) {
+            throw new InvalidPacketException("Invalid range option: '" + segment + "'");
+        }
+    }
+
+    /**
+     * Parses the value of an acknowledged range option
+     * @param value The option value ('offset,length,size')
+     * @return The range option
+     * @throws InvalidPacketException If the value is not a range of the file
+     */
+    public static RangeOption parse(String value) throws InvalidPacketException {
+        String[] fields = value.split(",", -1);
+        if (fields.length != 3)
+            throw new InvalidPacketException("The range option must be 'offset,length,size'. Actual: '" + value + "'");
+
+        try {
+            long offset = Long.parseLong(fields[0]);
+            long length = Long.parseLong(fields[1]);
+            long fileSize = Long.parseLong(fields[2]);
+
+            if (offset < 0 || length < 0 || offset > fileSize - length)
+                throw new InvalidPacketException("The range " + fields[0] + "+" + fields[1] + " is not in the file (" + fields[2] + " bytes)");
+
+            return new RangeOption(offset, length, fileSize);
+        } catch (NumberFormatException nFE) {
+            throw new InvalidPacketException("Invalid range option: '" + value + "'");
+        }
+    }
+
+    /**
+     * @return The acknowledged option value ('offset,length,size')
+     */
+    @Override
+    public String toString() {
+        return offset + "," + length + "," + fileSize;
+    }
+}
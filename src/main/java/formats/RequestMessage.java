@@ -5,22 +5,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 import exceptions.InvalidPacketException;
 
 /**
  * Representation of a TFTP Request Message
+ *
+ * A request may carry options after the mode (RFC 2347): pairs of 0 terminated option names and values.
+ * Option names are case insensitive, so they are kept in lower case. The server acknowledges the options
+ * it accepts with an {@link OptionAckMessage}.
  */
 public class RequestMessage extends Message {
     public static final MessageMode DEFAULT_MODE = MessageMode.NET_ASCII;
     private MessageType type;
     private String fileName;
     private MessageMode mode;
+    private Map<String, String> options;
 
     /**
      * Use enumeration to keep track of all valid Message Modes in a Request Packet
      */
-    enum MessageMode
+    public enum MessageMode
     {
         NET_ASCII("netascii"),
         OCTET("octet"),
@@ -65,11 +74,23 @@ public class RequestMessage extends Message {
      * @param mode The mode
      */
     public RequestMessage(MessageType type, String fileName, MessageMode mode) {
+        this(type, fileName, mode, Collections.emptyMap());
+    }
+
+    /**
+     * Create a DataPacket object with options. Throws an exception if type is null
+     * @param type The Request Type of the data (must be MessageType.RRQ or WWQ)
+     * @param fileName The file name
+     * @param mode The mode
+     * @param options The option names and values, in the order they are sent
+     */
+    public RequestMessage(MessageType type, String fileName, MessageMode mode, Map<String, String> options) {
         if (type == null || !MessageType.isRequestType(type))
             throw new RuntimeException("Invalid request type or request type can not be null");
         this.type = type;
         this.fileName = fileName;
         this.mode = mode;
+        this.options = toOptionMap(options);
     }
 
     /**
@@ -81,6 +102,16 @@ public class RequestMessage extends Message {
         this(type, fileName, DEFAULT_MODE);
     }
 
+    /**
+     * Create a DataPacket object with options. Throws an exception if type is null. Uses default mode.
+     * @param type The Request Type of the data
+     * @param fileName The file name
+     * @param options The option names and values, in the order they are sent
+     */
+    public RequestMessage(MessageType type, String fileName, Map<String, String> options) {
+        this(type, fileName, DEFAULT_MODE, options);
+    }
+
     @Override
     public MessageType getMessageType() {
         return this.type;
@@ -100,6 +131,83 @@ public class RequestMessage extends Message {
         return mode;
     }
 
+    /**
+     * @return The (read-only) options of the request, with lower case names. Empty if there are none.
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @param name The option name (case insensitive)
+     * @return The value of the option, or null if it was not requested
+     */
+    public String getOption(String name) {
+        return options.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Copies the options into an ordered, read-only map with lower case names
+     */
+    static Map<String, String> toOptionMap(Map<String, String> options) {
+        if (options.isEmpty())
+            return Collections.emptyMap();
+
+        Map<String, String> optionMap = new LinkedHashMap<>();
+        for (Map.Entry<String, String> option : options.entrySet())
+            optionMap.put(option.getKey().toLowerCase(Locale.ROOT), option.getValue());
+
+        return Collections.unmodifiableMap(optionMap);
+    }
+
+    /**
+     * Writes the options as 0 terminated name and value pairs
+     */
+    static void writeOptions(ByteArrayOutputStream bAOS, Map<String, String> options) throws IOException {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            bAOS.write(option.getKey().getBytes());
+            bAOS.write(0);
+            bAOS.write(option.getValue().getBytes());
+            bAOS.write(0);
+        }
+    }
+
+    /**
+     * Reads 0 terminated name and value pairs up to the end of the packet
+     * @param packet The packet
+     * @param ptr    The position of the first option name
+     * @return The options, or null if the bytes are not a list of options (ex: an empty name, or a missing 0)
+     */
+    static Map<String, String> readOptions(byte[] packet, int ptr) {
+        Map<String, String> options = new LinkedHashMap<>();
+
+        while (ptr < packet.length) {
+            int nameEnd = indexOfZero(packet, ptr);
+            if (nameEnd <= ptr)
+                return null;
+
+            int valueEnd = indexOfZero(packet, nameEnd + 1);
+            if (valueEnd < 0)
+                return null;
+
+            options.put(new String(packet, ptr, nameEnd - ptr).toLowerCase(Locale.ROOT), new String(packet, nameEnd + 1, valueEnd - nameEnd - 1));
+            ptr = valueEnd + 1;
+        }
+
+        return options;
+    }
+
+    /**
+     * @return The index of the next 0 byte from the offset, or -1 if there is none
+     */
+    private static int indexOfZero(byte[] packet, int offset) {
+        for (int i = offset; i < packet.length; i++) {
+            if (packet[i] == 0)
+                return i;
+        }
+        return -1;
+    }
+
     /**
      * @return A byte array representation of this object, to be sent in a packet
      * @throws IOException
@@ -113,6 +221,7 @@ public class RequestMessage extends Message {
         bAOS.write(0);
         bAOS.write(getMode().getModeName().getBytes());
         bAOS.write(0);
+        writeOptions(bAOS, options);
 
         return bAOS.toByteArray();
     }
@@ -135,7 +244,8 @@ public class RequestMessage extends Message {
 
         return this.getMessageType().equals(otherMsg.getMessageType())
                 && this.fileName.equals(otherMsg.fileName)
-                && this.mode.equals(otherMsg.mode);
+                && this.mode.equals(otherMsg.mode)
+                && this.options.equals(otherMsg.options);
     }
 
     /**
@@ -196,11 +306,12 @@ public class RequestMessage extends Message {
         if(mode == null)
             throw new InvalidPacketException("Request Mode " + modeName + " is not a valid mode");
 
-        // Check to see if we are at the end of the packet
-        if (ptr != packet.length)
+        // Anything after the mode must be a list of options
+        Map<String, String> options = readOptions(packet, ptr);
+        if (options == null)
             throw new InvalidPacketException("Packet length is too long. There should be no data after the 0 following the mode. Number of extra bytes: " + (packet.length - ptr));
 
-        return new RequestMessage(type, fileName, mode);
+        return new RequestMessage(type, fileName, mode, options);
     }
 
     @Override
@@ -215,6 +326,12 @@ public class RequestMessage extends Message {
         builder.append(getMode());
         builder.append(System.lineSeparator());
 
+        if (!options.isEmpty()) {
+            builder.append("Options: ");
+            builder.append(options);
+            builder.append(System.lineSeparator());
+        }
+
         return super.toString() + builder.toString();
     }
 }
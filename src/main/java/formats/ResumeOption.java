@@ -0,0 +1,77 @@
+package formats;
+
+import exceptions.InvalidPacketException;
+
+/**
+ * The value of the resume option: a byte offset of the file, and the CRC-32 of the bytes before it
+ * ('offset,crc32', the checksum in hexadecimal).
+ *
+ * The receiver keeps the bytes of an interrupted transfer in a partial file. On a RRQ, the client sends the
+ * length and checksum of its partial file, and the server acknowledges the same value if its file starts
+ * with these bytes (the transfer then starts at the offset). On a WRQ, the client asks with an empty value,
+ * and the server acknowledges the length and checksum of its own partial file; the client checks them against
+ * its file, and fails the session with an OPTION_NEGOTIATION error if they do not match.
+ */
+public final class ResumeOption {
+    public static final String NAME = "resume";
+
+    private final long offset;
+    private final long checksum;
+
+    /**
+     * @param offset   The number of bytes that were already received
+     * @param checksum The CRC-32 of these bytes
+     */
+    public ResumeOption(long offset, long checksum) {
+        this.offset = offset;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return The number of bytes that were already received (the first byte of the transfer)
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The CRC-32 of the bytes before the offset
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Parses the value of a resume option
+     * @param value The option value ('offset,crc32')
+     * @return The resume option
+     * @throws InvalidPacketException If the value is not an offset with a checksum
+     */
+    public static ResumeOption parse(String value) throws InvalidPacketException {
+        String[] fields = value.split(",", -1);
+        if (fields.length != 2)
+            throw new InvalidPacketException("The resume option must be 'offset,crc32'. Actual: '" + value + "'");
+
+        try {
+            long offset = Long.parseLong(fields[0]);
+            long checksum = Long.parseLong(fields[1], 16);
+
+            if (offset < 0)
+                throw new InvalidPacketException("Invalid resume offset: " + fields[0]);
+            if (checksum < 0 || checksum > 0xFFFFFFFFL)
+                throw new InvalidPacketException("Invalid resume checksum: " + fields[1]);
+
+            return new ResumeOption(offset, checksum);
+        } catch (NumberFormatException nFE) {
+            throw new InvalidPacketException("Invalid resume option: '" + value + "'");
+        }
+    }
+
+    /**
+     * @return The option value ('offset,crc32')
+     */
+    @Override
+    public String toString() {
+        return offset + "," + Long.toHexString(checksum);
+    }
+}
@@ -0,0 +1,215 @@
+package formats;
+
+import exceptions.InvalidPacketException;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The DATA block size and block numbering of a session, negotiated with request options (RFC 2347):
+ * - blksize (RFC 2348): the size of a full DATA block, from 8 to 65464 bytes (512 without the option)
+ * - rollover: the block number that follows 65535, 0 or 1 (not standardized, but common). Without the option,
+ *   both sides use their configured BLOCK_NUMBER_ROLLOVER.
+ *
+ * Sessions count blocks with 64 bit indexes (the first block is index 0); only the 16 bit block numbers on the
+ * wire wrap around. A received block number is mapped to the nearest index of a reference block, so duplicates
+ * and old blocks are recognized across the wrap (as long as the peers are less than half the sequence space apart).
+ */
+public final class TransferOptions {
+    public static final String BLOCK_SIZE_OPTION = "blksize";
+    public static final String ROLLOVER_OPTION = "rollover";
+    public static final int DEFAULT_BLOCK_SIZE = DataMessage.MAX_BLOCK_SIZE;
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+    public static final int DEFAULT_ROLLOVER = 1;
+    public static final TransferOptions DEFAULT = new TransferOptions(DEFAULT_BLOCK_SIZE, DEFAULT_ROLLOVER);
+
+    private final int blockSize;
+    private final int rollover;
+
+    /**
+     * @param blockSize The size of a full DATA block
+     * @param rollover  The block number after 65535 (0 or 1)
+     */
+    public TransferOptions(int blockSize, int rollover) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("The block size must be from " + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE + " (" + blockSize + ")");
+        if (rollover != 0 && rollover != 1)
+            throw new IllegalArgumentException("The rollover block number must be 0 or 1 (" + rollover + ")");
+
+        this.blockSize = blockSize;
+        this.rollover = rollover;
+    }
+
+    /**
+     * @return The size of a full DATA block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return The block number after 65535 (0 or 1)
+     */
+    public int getRollover() {
+        return rollover;
+    }
+
+    /**
+     * @return The number of distinct block numbers in the sequence (65536 with rollover to 0, 65535 otherwise)
+     */
+    public int getSequenceSpace() {
+        return DataMessage.MAX_BLOCK_NUM + 1 - rollover;
+    }
+
+    /**
+     * @param index The block index (-1 for the request, acknowledged with block 0)
+     * @return The block number of the index on the wire
+     */
+    public int getBlockNumber(long index) {
+        if (index < 0)
+            return 0;
+
+        return (int) ((index + 1 - rollover) % getSequenceSpace()) + rollover;
+    }
+
+    /**
+     * Maps a block number to the nearest block index of a reference index (forwards or backwards)
+     * @param blockNum  The block number on the wire
+     * @param reference The index to compare to (-1 for the request)
+     * @return The block index. Smaller than the reference for an old block.
+     */
+    public long getBlockIndex(int blockNum, long reference) {
+        int space = getSequenceSpace();
+        long offset = Math.floorMod(blockNum - getBlockNumber(reference), space);
+
+        if (offset > space / 2)
+            offset -= space;
+
+        return reference + offset;
+    }
+
+    /**
+     * @return True if the block number is used by this numbering (block 0 only with rollover to 0)
+     */
+    public boolean isValidBlockNumber(int blockNum) {
+        return blockNum >= rollover && blockNum <= DataMessage.MAX_BLOCK_NUM;
+    }
+
+    /**
+     * @return The request options asking for these transfer options (only those that differ from the defaults)
+     */
+    public Map<String, String> toRequestOptions() {
+        if (blockSize == DEFAULT_BLOCK_SIZE && rollover == DEFAULT_ROLLOVER)
+            return Collections.emptyMap();
+
+        Map<String, String> options = new LinkedHashMap<>();
+        if (blockSize != DEFAULT_BLOCK_SIZE)
+            options.put(BLOCK_SIZE_OPTION, String.valueOf(blockSize));
+        if (rollover != DEFAULT_ROLLOVER)
+            options.put(ROLLOVER_OPTION, String.valueOf(rollover));
+
+        return options;
+    }
+
+    /**
+     * Server side: accepts the options of a request within the limits of the server. Unknown or invalid
+     * options are ignored (the client then uses the defaults). Requested block sizes above the maximum
+     * are lowered to it.
+     * @param request          The request
+     * @param maxBlockSize     The largest block size the server accepts
+     * @param defaultRollover  The rollover used when the request has none
+     * @param acceptedOptions  Filled with the accepted options and values (for the OACK)
+     * @return The transfer options of the session
+     */
+    public static TransferOptions negotiate(RequestMessage request, int maxBlockSize, int defaultRollover, Map<String, String> acceptedOptions) {
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int rollover = defaultRollover;
+
+        int requestedBlockSize = parseInt(request.getOption(BLOCK_SIZE_OPTION));
+        if (requestedBlockSize >= MIN_BLOCK_SIZE && maxBlockSize >= MIN_BLOCK_SIZE) {
+            blockSize = Math.min(requestedBlockSize, Math.min(maxBlockSize, MAX_BLOCK_SIZE));
+            acceptedOptions.put(BLOCK_SIZE_OPTION, String.valueOf(blockSize));
+        }
+
+        int requestedRollover = parseInt(request.getOption(ROLLOVER_OPTION));
+        if (requestedRollover == 0 || requestedRollover == 1) {
+            rollover = requestedRollover;
+            acceptedOptions.put(ROLLOVER_OPTION, String.valueOf(rollover));
+        }
+
+        return new TransferOptions(blockSize, rollover);
+    }
+
+    /**
+     * Client side: applies the options acknowledged by the server. Options that were not acknowledged
+     * take their default value.
+     * @param request         The request (with the options that were asked for)
+     * @param optionAck       The option acknowledgement of the server
+     * @param defaultRollover The rollover used when the OACK has none
+     * @return The transfer options of the session
+     * @throws InvalidPacketException If the server acknowledged an option that was not requested, or a
+     *                                value that the client did not allow
+     */
+    public static TransferOptions acknowledge(RequestMessage request, OptionAckMessage optionAck, int defaultRollover) throws InvalidPacketException {
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int rollover = defaultRollover;
+
+        for (Map.Entry<String, String> option : optionAck.getOptions().entrySet()) {
+            String requested = request.getOption(option.getKey());
+            int value = parseInt(option.getValue());
+
+            if (requested == null)
+                throw new InvalidPacketException("The option '" + option.getKey() + "' was not requested");
+
+            if (BLOCK_SIZE_OPTION.equals(option.getKey())) {
+                if (value < MIN_BLOCK_SIZE || value > parseInt(requested))
+                    throw new InvalidPacketException("Invalid block size: " + option.getValue() + " (requested " + requested + ")");
+                blockSize = value;
+            } else if (ROLLOVER_OPTION.equals(option.getKey())) {
+                if (!option.getValue().equals(requested))
+                    throw new InvalidPacketException("Invalid rollover: " + option.getValue() + " (requested " + requested + ")");
+                rollover = value;
+            }
+        }
+
+        return new TransferOptions(blockSize, rollover);
+    }
+
+    /**
+     * @return The decimal value, or -1 if the value is missing or is not a number
+     */
+    private static int parseInt(String value) {
+        if (value == null)
+            return -1;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nFE) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+
+        if (!(other instanceof TransferOptions))
+            return false;
+
+        TransferOptions otherOptions = (TransferOptions) other;
+        return blockSize == otherOptions.blockSize && rollover == otherOptions.rollover;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * blockSize + rollover;
+    }
+
+    @Override
+    public String toString() {
+        return "blksize=" + blockSize + ", rollover=" + rollover;
+    }
+}
@@ -0,0 +1,205 @@
+package logging;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log appender that hands entries to a background thread through a lock-free ring buffer.
+ *
+ * Logging threads (sessions) only claim a slot with a CAS and publish the entry, so they never
+ * block on each other or on System.out. A single daemon thread drains the ring and writes the
+ * entries in batches. If the ring is full, the producer waits for the entries already in the ring
+ * to be written, then writes its entry synchronously, so that no log entries are ever lost and the
+ * entries of each producer stay in order.
+ */
+public class AsyncLogAppender implements LogAppender {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+
+    // Next slot to be claimed by a producer
+    private final AtomicLong tail;
+
+    // Next slot to be read by the consumer (only written by the drain thread)
+    private final AtomicLong head;
+
+    private final Thread drainThread;
+    private final Thread shutdownHook;
+    private volatile boolean running;
+
+    /**
+     * Creates and starts an asynchronous appender
+     * @param capacity The number of entries in the ring. Rounded up to a power of two.
+     */
+    public AsyncLogAppender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+        this.running = true;
+
+        this.drainThread = new Thread(this::drain, "AsyncLogAppender");
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+
+        // Make sure buffered entries are written when the JVM exits (removed when the appender is stopped)
+        this.shutdownHook = new Thread(this::flush, "AsyncLogAppender-Shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public AsyncLogAppender() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public void append(String entry) {
+        if (!offer(entry)) {
+            // Ring is full (or the appender was stopped). Do not lose the entry, and do not let it
+            // overtake the entries this producer already published.
+            flush();
+            System.out.println(entry);
+        }
+    }
+
+    /**
+     * Attempts to publish an entry to the ring without blocking
+     * @param entry The entry to publish
+     * @return False if the ring is full
+     */
+    private boolean offer(String entry) {
+        long claimed;
+        do {
+            claimed = tail.get();
+
+            if (!running || claimed - head.get() >= slots.length())
+                return false;
+
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+
+        slots.lazySet((int) claimed & mask, entry);
+
+        // The appender may have been stopped after the check above, and the drain thread may have
+        // exited before the slot was claimed: then the entry is written here
+        if (!running)
+            drainStopped();
+        return true;
+    }
+
+    /**
+     * Drain loop of the background thread
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+
+        while (running || head.get() != tail.get()) {
+            if (drainBatch(batch) == 0)
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Writes up to MAX_BATCH_SIZE published entries with a single print call
+     * @return The number of entries written
+     */
+    private int drainBatch(StringBuilder batch) {
+        int count = 0;
+        long current = head.get();
+
+        while (count < MAX_BATCH_SIZE) {
+            int index = (int) current & mask;
+            String entry = slots.get(index);
+
+            // Either empty, or a producer claimed the slot but has not published yet
+            if (entry == null)
+                break;
+
+            slots.lazySet(index, null);
+            batch.append(entry).append(System.lineSeparator());
+            current++;
+            count++;
+        }
+
+        if (count > 0) {
+            PrintStream out = System.out;
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+
+            // (only once written, so flush() returns after the entries are out)
+            head.lazySet(current);
+        }
+
+        return count;
+    }
+
+    @Override
+    public void flush() {
+        long target = tail.get();
+
+        // Wait for the drain thread to catch up to everything appended before this call
+        while (drainThread.isAlive() && head.get() < target)
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+
+        System.out.flush();
+    }
+
+    /**
+     * Stops the appender after writing any remaining entries. Entries appended after
+     * this call are written synchronously.
+     */
+    public void stop() {
+        running = false;
+        drainStopped();
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException iSE) {
+            // The JVM is already shutting down
+        }
+    }
+
+    /**
+     * Writes the entries left in the ring once the drain thread exited (entries published by
+     * producers that raced with {@link #stop()})
+     */
+    private synchronized void drainStopped() {
+        boolean interrupted = false;
+        while (drainThread.isAlive()) {
+            try {
+                drainThread.join();
+            } catch (InterruptedException iE) {
+                interrupted = true;
+            }
+        }
+
+        StringBuilder batch = new StringBuilder();
+        while (head.get() != tail.get()) {
+            // (a producer claimed a slot but has not published it yet)
+            if (drainBatch(batch) == 0)
+                Thread.yield();
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * @return True until the appender is stopped and its remaining entries are written
+     */
+    boolean isRunning() {
+        return drainThread.isAlive();
+    }
+}
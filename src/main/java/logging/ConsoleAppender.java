@@ -0,0 +1,18 @@
+package logging;
+
+/**
+ * Writes log entries synchronously to System.out (on the calling thread)
+ */
+public class ConsoleAppender implements LogAppender {
+
+    @Override
+    public void append(String entry) {
+        // A single println keeps multi-line entries together (PrintStream locks per call)
+        System.out.println(entry);
+    }
+
+    @Override
+    public void flush() {
+        System.out.flush();
+    }
+}
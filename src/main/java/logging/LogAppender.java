@@ -0,0 +1,27 @@
+package logging;
+
+/**
+ * Destination of formatted log entries
+ */
+public interface LogAppender {
+
+    /**
+     * Appends a formatted log entry. An entry may contain multiple lines and
+     * must be written without being interleaved with other entries.
+     * @param entry The formatted entry (without a trailing line separator)
+     */
+    void append(String entry);
+
+    /**
+     * Blocks until all previously appended entries have been written
+     */
+    void flush();
+
+    /**
+     * Writes the remaining entries and releases the resources of the appender, once it is
+     * replaced. Entries appended after this call must still be written.
+     */
+    default void close() {
+        flush();
+    }
+}
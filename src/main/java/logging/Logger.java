@@ -8,6 +8,13 @@ import formats.Message;
 import formats.RequestMessage;
 
 import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class Logger {
 
@@ -33,13 +40,51 @@ public class Logger {
         }
     }
 
-    // Global log level across all loggers
-    private static LogLevel currentLogLevel = LogLevel.QUIET;
+    // Global log level across all loggers (used when no component level applies)
+    private static volatile LogLevel currentLogLevel = LogLevel.QUIET;
+
+    // Per-component level overrides. Keys are component names (ex: "TFTPDatagramSocket", "ServerWorker")
+    private static final Map<String, LogLevel> componentLevels = new ConcurrentHashMap<>();
+
+    // Incremented whenever any level changes. Loggers cache their resolved level until the generation changes.
+    private static volatile int levelGeneration = 0;
+
+    // Thread scoped levels (used for per-session / per-peer debugging). The counter allows
+    // loggers to skip the ThreadLocal lookup entirely while no thread level is set.
+    private static final ThreadLocal<LogLevel> threadLevel = new ThreadLocal<>();
+    private static final AtomicInteger activeThreadLevels = new AtomicInteger();
+
+    // Peers that should have verbose logging for their sessions
+    private static final Set<InetAddress> debugPeers = ConcurrentHashMap.newKeySet();
+
+    // Where formatted log entries are written to (synchronous console output by default)
+    private static volatile LogAppender appender = new ConsoleAppender();
+
+    private volatile String componentName;
+
+    // Cached resolution of the level for this component (valid while its generation == levelGeneration)
+    private ResolvedLevel resolvedLevel;
+
+    /**
+     * Immutable (final fields) pair of a resolved level and the generation it was resolved at.
+     * Allows the cache to be read without locks or additional volatile reads.
+     */
+    private static final class ResolvedLevel
+    {
+        private final LogLevel level;
+        private final int generation;
+
+        private ResolvedLevel(LogLevel level, int generation)
+        {
+            this.level = level;
+            this.generation = generation;
+        }
+    }
 
     /**
      * Gets the Component name
      */
-    public synchronized String getComponentName() {
+    public String getComponentName() {
         return componentName;
     }
 
@@ -47,18 +92,18 @@ public class Logger {
      * Sets Component name
      * @param componentName The new component name
      */
-    public synchronized void setComponentName(String componentName) {
+    public void setComponentName(String componentName) {
         this.componentName = componentName;
+        resolveLevel();
     }
 
-    private String componentName;
-
     /**
      * Create a logger with QUIET level logging
      */
     public Logger(String componentName)
     {
         this.componentName = componentName;
+        resolveLevel();
     }
 
     /**
@@ -71,21 +116,228 @@ public class Logger {
             return;
 
         currentLogLevel = level;
+        levelGeneration++;
     }
 
     /**
      * @return The current Logging Level
      */
-    public static synchronized LogLevel getLogLevel()
+    public static LogLevel getLogLevel()
     {
         return currentLogLevel;
     }
 
+    /**
+     * Sets the level of a component and all of its sub-components. Component names form a hierarchy
+     * separated by '.' or '-' (ex: setting "ServerWorker" applies to "ServerWorker-4").
+     * @param component The component name
+     * @param level The level to use, or null to fall back to the parent component (or global) level
+     */
+    public static synchronized void setLogLevel(String component, LogLevel level)
+    {
+        if(component == null)
+            return;
+
+        if(level == null)
+            componentLevels.remove(component.trim());
+        else
+            componentLevels.put(component.trim(), level);
+
+        levelGeneration++;
+    }
+
+    /**
+     * Removes all component level overrides
+     */
+    public static synchronized void clearComponentLogLevels()
+    {
+        componentLevels.clear();
+        levelGeneration++;
+    }
+
+    /**
+     * @return A copy of the component level overrides
+     */
+    public static Map<String, LogLevel> getComponentLogLevels()
+    {
+        return new TreeMap<>(componentLevels);
+    }
+
+    /**
+     * Sets the level for all loggers used by the current thread (overrides component and global levels).
+     * Used to change the verbosity of a single session without affecting other sessions.
+     * @param level The level, or null to clear the thread level
+     */
+    public static void setThreadLogLevel(LogLevel level)
+    {
+        LogLevel previous = threadLevel.get();
+
+        if(level == null) {
+            if(previous != null) {
+                threadLevel.remove();
+                activeThreadLevels.decrementAndGet();
+            }
+            return;
+        }
+
+        threadLevel.set(level);
+        if(previous == null)
+            activeThreadLevels.incrementAndGet();
+    }
+
+    /**
+     * @return The level set for the current thread, or null if none is set
+     */
+    public static LogLevel getThreadLogLevel()
+    {
+        return activeThreadLevels.get() == 0 ? null : threadLevel.get();
+    }
+
+    /**
+     * Enables verbose logging for all sessions with the given peer
+     * @param peer The peer address
+     */
+    public static void enablePeerDebug(InetAddress peer)
+    {
+        debugPeers.add(peer);
+    }
+
+    /**
+     * Disables peer debugging for the given peer
+     * @param peer The peer address
+     */
+    public static void disablePeerDebug(InetAddress peer)
+    {
+        debugPeers.remove(peer);
+    }
+
+    /**
+     * @param peer The peer address
+     * @return True if sessions with the peer should log verbosely
+     */
+    public static boolean isPeerDebugEnabled(InetAddress peer)
+    {
+        return !debugPeers.isEmpty() && peer != null && debugPeers.contains(peer);
+    }
+
+    /**
+     * @return The resolved level for this logger's component
+     */
+    public LogLevel getEffectiveLevel()
+    {
+        if(activeThreadLevels.get() != 0) {
+            LogLevel level = threadLevel.get();
+            if(level != null)
+                return level;
+        }
+
+        ResolvedLevel resolved = resolvedLevel;
+        if(resolved.generation != levelGeneration)
+            resolved = resolveLevel();
+
+        return resolved.level;
+    }
+
+    /**
+     * Resolves the level of this component by walking up the component hierarchy,
+     * falling back to the global level. The result is cached until a level changes.
+     * @return The resolved level
+     */
+    private ResolvedLevel resolveLevel()
+    {
+        // Read the generation first, so that a concurrent change causes another resolve
+        int generation = levelGeneration;
+        LogLevel level = null;
+
+        if(!componentLevels.isEmpty()) {
+            String name = componentName == null ? "" : componentName.trim();
+
+            while(level == null && !name.isEmpty()) {
+                level = componentLevels.get(name);
+                name = getParentComponent(name);
+            }
+        }
+
+        ResolvedLevel resolved = new ResolvedLevel(level == null ? currentLogLevel : level, generation);
+        resolvedLevel = resolved;
+        return resolved;
+    }
+
+    /**
+     * @param name The component name
+     * @return The parent component name (ex: "FTPClient - Read" -> "FTPClient"), or an empty string
+     */
+    private static String getParentComponent(String name)
+    {
+        int separator = Math.max(name.lastIndexOf('.'), name.lastIndexOf('-'));
+        return separator < 0 ? "" : name.substring(0, separator).trim();
+    }
+
+    /**
+     * Changes where log entries are written to. The previous appender is closed (an
+     * asynchronous appender writes its remaining entries and stops its thread).
+     * @param logAppender The new appender
+     */
+    public static synchronized void setAppender(LogAppender logAppender)
+    {
+        if(logAppender == null || logAppender == appender)
+            return;
+
+        LogAppender previous = appender;
+        appender = logAppender;
+        previous.close();
+    }
+
+    /**
+     * @return Where log entries are currently written to
+     */
+    public static LogAppender getAppender()
+    {
+        return appender;
+    }
+
+    /**
+     * Enables asynchronous logging. Log entries are handed to a background thread
+     * through a lock-free ring buffer instead of being written by the logging thread.
+     */
+    public static synchronized void enableAsyncLogging()
+    {
+        if(!(appender instanceof AsyncLogAppender))
+            setAppender(new AsyncLogAppender());
+    }
+
+    /**
+     * Blocks until all log entries have been written
+     */
+    public static void flush()
+    {
+        appender.flush();
+    }
+
+    /**
+     * Checks whether a level is enabled. Use this to guard the construction of
+     * expensive log text on hot paths (a disabled check costs a single branch).
+     * @param level The level to check
+     * @return True if text logged at the given level will be written
+     */
+    public boolean isEnabled(LogLevel level)
+    {
+        return level.isEnabled(getEffectiveLevel());
+    }
+
+    /**
+     * @return True if verbose logging is enabled
+     */
+    public boolean isVerbose()
+    {
+        return LogLevel.VERBOSE.isEnabled(getEffectiveLevel());
+    }
+
     /**
      * Output verbose text to System.out if verbose mode (or higher) is enabled
      * @param logText The text to log
      */
-    public synchronized void logVerbose(String logText)
+    public void logVerbose(String logText)
     {
         log(LogLevel.VERBOSE, logText);
     }
@@ -94,89 +346,138 @@ public class Logger {
      * Output quiet text to System.out if quiet mode (or higher) is enabled
      * @param logText The text to log
      */
-    public synchronized void logQuiet(String logText)
+    public void logQuiet(String logText)
     {
         log(LogLevel.QUIET, logText);
     }
 
+    /**
+     * Output verbose text, only building the text if verbose mode (or higher) is enabled
+     * @param logText Supplies the text to log
+     */
+    public void logVerbose(Supplier<String> logText)
+    {
+        if(isVerbose())
+            write(LogLevel.VERBOSE, logText.get());
+    }
+
+    /**
+     * Output quiet text, only building the text if quiet mode (or higher) is enabled
+     * @param logText Supplies the text to log
+     */
+    public void logQuiet(Supplier<String> logText)
+    {
+        if(isEnabled(LogLevel.QUIET))
+            write(LogLevel.QUIET, logText.get());
+    }
+
     /**
      * Neatly prints log text. Splits multi-line text so that the log tag is appended to each line
      * @param level The tag of the log level
      * @param text The text to log
      */
-    private synchronized void log(LogLevel level, String text)
+    private void log(LogLevel level, String text)
     {
-        if(level == null || !level.isEnabled(currentLogLevel))
+        if(level == null || !level.isEnabled(getEffectiveLevel()))
             return;
 
+        write(level, text);
+    }
+
+    /**
+     * Formats the text and hands it to the appender (the level must already be checked)
+     * @param level The tag of the log level
+     * @param text The text to log
+     */
+    private void write(LogLevel level, String text)
+    {
         // Make sure multi-lined text is appended with the tag
         String[] lines = text.split("\n");
 
         // Occurs if the input text is strictly a new line character (or empty String)
-        if(lines.length == 0)
-            System.out.println();
+        if(lines.length == 0) {
+            appender.append("");
+            return;
+        }
+
+        String tag = "[" + componentName + "][" + level.name() +  "]: ";
 
+        // Build all lines into one entry so that they are not interleaved with other threads
+        StringBuilder entry = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            if(i > 0)
+                entry.append(System.lineSeparator());
+            entry.append(tag).append(lines[i]);
+        }
 
-        for (String s : lines)
-            System.out.println("[" + componentName + "][" + level.name() +  "]: " + s);
+        appender.append(entry.toString());
     }
 
     /**
      * Logs a byte array to verbose output
      * @param bytes The byte array to log
      */
-    public synchronized void logVerbose(byte[] bytes)
+    public void logVerbose(byte[] bytes)
     {
-        logVerbose(getByteArrayString(bytes, 0, bytes.length));
+        if(isVerbose())
+            write(LogLevel.VERBOSE, getByteArrayString(bytes, 0, bytes.length));
     }
 
     /**
      * Logs a byte array to quiet output
      * @param bytes The byte array to log
      */
-    public synchronized void logQuiet(byte[] bytes)
+    public void logQuiet(byte[] bytes)
     {
-        logQuiet(getByteArrayString(bytes, 0, bytes.length));
+        if(isEnabled(LogLevel.QUIET))
+            write(LogLevel.QUIET, getByteArrayString(bytes, 0, bytes.length));
     }
-    
+
     /**
-     * Logs a packet to verbose output
+     * Logs a packet to verbose output. The packet is only parsed if verbose mode is enabled.
      * @param packet The packet to log
      */
-    public synchronized void logVerbose(DatagramPacket packet)
+    public void logVerbose(DatagramPacket packet)
     {
-        logVerbose(getPacketString(packet));
+        if(isVerbose())
+            write(LogLevel.VERBOSE, getPacketString(packet));
     }
 
     /**
      * Logs a packet to quiet output
      * @param packet The packet to log
      */
-    public synchronized void logQuiet(DatagramPacket packet)
+    public void logQuiet(DatagramPacket packet)
     {
-        logQuiet(getPacketString(packet));
+        if(isEnabled(LogLevel.QUIET))
+            write(LogLevel.QUIET, getPacketString(packet));
     }
 
     /**
      * Logs a message to verbose output
      * @param message The message to log
      */
-    public synchronized void logVerbose(Message message)
+    public void logVerbose(Message message)
     {
-        logVerbose(message.toString());
+        if(isVerbose())
+            write(LogLevel.VERBOSE, message.toString());
     }
 
     /**
      * Logs a message to quiet output
      * @param message The message to log
      */
-    public synchronized void logQuiet(Message message){ logQuiet(message.toString()); }
+    public void logQuiet(Message message)
+    {
+        if(isEnabled(LogLevel.QUIET))
+            write(LogLevel.QUIET, message.toString());
+    }
 
     /**
      * @param packet The packet to print
      * @return A formatted string with packet data
      */
-    private synchronized String getPacketString(DatagramPacket packet)
+    private String getPacketString(DatagramPacket packet)
     {
         StringBuilder builder = new StringBuilder();
         builder.append("Packet Information:");
@@ -213,7 +514,7 @@ public class Logger {
      * @param length the point at which to truncate printing if it's less than the length of bytes
      * @return A comma separated list of all bytes in the array
      */
-    private synchronized String getByteArrayString(byte[] bytes, int offset, int length)
+    private String getByteArrayString(byte[] bytes, int offset, int length)
     {
         StringBuilder byteStr = new StringBuilder("Byte Array: { ");
 
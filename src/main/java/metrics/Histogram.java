@@ -0,0 +1,138 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent log-linear histogram (in the style of HdrHistogram).
+ *
+ * Values below 2^SUB_BUCKET_BITS are counted exactly. Larger values are counted in buckets of
+ * SUB_BUCKET_COUNT / 2 linear sub-buckets per power of two, so every recorded value is within ~3%
+ * of the value reported for its bucket, across the whole range of a long. Recording is lock free
+ * and does not allocate.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount;
+    private final LongAdder totalSum;
+    private final LongAccumulator minValue;
+    private final LongAccumulator maxValue;
+
+    public Histogram() {
+        this.counts = new AtomicLongArray(BUCKET_COUNT);
+        this.totalCount = new LongAdder();
+        this.totalSum = new LongAdder();
+        this.minValue = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        this.maxValue = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * @param value A value (>= 0)
+     * @return The bucket index of the value
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        // Shift the value so that its highest bit lands in the upper half of the sub-buckets
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * @param index A bucket index
+     * @return The highest value counted by the bucket
+     */
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / HALF_SUB_BUCKET_COUNT - 1;
+        long subBucket = index - shift * HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value The value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(v));
+        totalCount.increment();
+        totalSum.add(v);
+        minValue.accumulate(v);
+        maxValue.accumulate(v);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return The smallest recorded value, or 0 if nothing was recorded
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : minValue.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalSum.sum() / count;
+    }
+
+    /**
+     * @param percentile The percentile (0 to 100)
+     * @return The value at the percentile (the highest value of its bucket, capped at the max)
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), getMax());
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be partially cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+
+        totalCount.reset();
+        totalSum.reset();
+        minValue.reset();
+        maxValue.reset();
+    }
+
+    /**
+     * @param unitNanos The number of nanoseconds per reported unit (ex: 1000000 for ms), assuming values are in ns
+     * @return A one line summary of the histogram
+     */
+    public String toString(double unitNanos) {
+        return String.format("count=%d min=%.3f mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+                getCount(), getMin() / unitNanos, getMean() / unitNanos, getValueAtPercentile(50) / unitNanos,
+                getValueAtPercentile(90) / unitNanos, getValueAtPercentile(99) / unitNanos,
+                getValueAtPercentile(99.9) / unitNanos, getMax() / unitNanos);
+    }
+}
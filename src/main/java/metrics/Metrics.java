@@ -0,0 +1,315 @@
+package metrics;
+
+import formats.ErrorMessage.ErrorType;
+import formats.Message.MessageType;
+import logging.Logger;
+import resources.MemoryBudget;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process registry of server / client metrics.
+ *
+ * Counters are LongAdders (striped per thread under contention), so sessions can update them on
+ * every packet without contending with each other. Durations are recorded in nanoseconds.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final Logger LOG = new Logger("Metrics");
+    public static final String OBJECT_NAME = "tftp:type=Metrics";
+    public static final Metrics GLOBAL_METRICS = new Metrics();
+
+    private static final double NANOS_PER_MS = 1e6;
+
+    private final LongAdder sessionsStarted = new LongAdder();
+    private final LongAdder sessionsCompleted = new LongAdder();
+    private final LongAdder sessionsFailed = new LongAdder();
+    private final Map<ErrorType, LongAdder> sessionsFailedByErrorType = createCounters(ErrorType.class);
+    private final Map<MessageType, LongAdder> requestsReceived = createCounters(MessageType.class);
+    private final Map<MessageType, LongAdder> packetsSent = createCounters(MessageType.class);
+    private final Map<MessageType, LongAdder> packetsReceived = createCounters(MessageType.class);
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder duplicateAcks = new LongAdder();
+    private final LongAdder duplicateData = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final Histogram sessionDuration = new Histogram();
+    private final Map<TransferClass, Histogram> sessionDurationByClass = createHistograms(TransferClass.class);
+    private final Histogram blockRtt = new Histogram();
+    private final Histogram timeToFirstByte = new Histogram();
+
+    /**
+     * Creates a counter for every enum constant, so that counters never have to be created on the hot path
+     */
+    private static <E extends Enum<E>> Map<E, LongAdder> createCounters(Class<E> type) {
+        Map<E, LongAdder> counters = new EnumMap<>(type);
+        for (E constant : type.getEnumConstants())
+            counters.put(constant, new LongAdder());
+        return counters;
+    }
+
+    private static <E extends Enum<E>> Map<E, Histogram> createHistograms(Class<E> type) {
+        Map<E, Histogram> histograms = new EnumMap<>(type);
+        for (E constant : type.getEnumConstants())
+            histograms.put(constant, new Histogram());
+        return histograms;
+    }
+
+    /**
+     * Publishes the global metrics as an MBean on the platform MBean server
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(GLOBAL_METRICS, new ObjectName(OBJECT_NAME));
+            LOG.logVerbose("Metrics published over JMX as " + OBJECT_NAME);
+        } catch (InstanceAlreadyExistsException iAEE) {
+            // Already registered
+        } catch (JMException jE) {
+            LOG.logQuiet("Failed to publish metrics over JMX: " + jE.getLocalizedMessage());
+        }
+    }
+
+    public void sessionStarted() {
+        sessionsStarted.increment();
+    }
+
+    /**
+     * @param durationNanos The duration of the successful session
+     * @param transferClass The size class of the transfer
+     */
+    public void sessionCompleted(long durationNanos, TransferClass transferClass) {
+        sessionsCompleted.increment();
+        sessionDuration.record(durationNanos);
+        sessionDurationByClass.get(transferClass).record(durationNanos);
+    }
+
+    /**
+     * @param errorType The error that stopped the session, or null if no ERROR was sent or received (ex: timeout)
+     */
+    public void sessionFailed(ErrorType errorType) {
+        sessionsFailed.increment();
+        if (errorType != null)
+            sessionsFailedByErrorType.get(errorType).increment();
+    }
+
+    /**
+     * @param type The request type (RRQ or WRQ) received by the server
+     */
+    public void requestReceived(MessageType type) {
+        requestsReceived.get(type).increment();
+    }
+
+    /**
+     * @param type         The type of the sent packet
+     * @param payloadBytes The number of DATA bytes sent
+     * @param retransmit   True if the packet is a retransmission
+     */
+    public void packetSent(MessageType type, int payloadBytes, boolean retransmit) {
+        packetsSent.get(type).increment();
+        bytesSent.add(payloadBytes);
+        if (retransmit)
+            retransmits.increment();
+    }
+
+    /**
+     * @param type         The type of the received packet
+     * @param payloadBytes The number of DATA bytes received
+     */
+    public void packetReceived(MessageType type, int payloadBytes) {
+        packetsReceived.get(type).increment();
+        bytesReceived.add(payloadBytes);
+    }
+
+    public void duplicateAck() {
+        duplicateAcks.increment();
+    }
+
+    public void duplicateData() {
+        duplicateData.increment();
+    }
+
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    public void blockRtt(long rttNanos) {
+        blockRtt.record(rttNanos);
+    }
+
+    public void timeToFirstByte(long nanos) {
+        timeToFirstByte.record(nanos);
+    }
+
+    @Override
+    public long getSessionsStarted() {
+        return sessionsStarted.sum();
+    }
+
+    @Override
+    public long getSessionsCompleted() {
+        return sessionsCompleted.sum();
+    }
+
+    @Override
+    public long getSessionsFailed() {
+        return sessionsFailed.sum();
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return Math.max(0, getSessionsStarted() - getSessionsCompleted() - getSessionsFailed());
+    }
+
+    @Override
+    public Map<String, Long> getSessionsFailedByErrorType() {
+        return toSnapshot(sessionsFailedByErrorType);
+    }
+
+    @Override
+    public Map<String, Long> getRequestsReceived() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put(MessageType.RRQ.name(), requestsReceived.get(MessageType.RRQ).sum());
+        snapshot.put(MessageType.WRQ.name(), requestsReceived.get(MessageType.WRQ).sum());
+        return snapshot;
+    }
+
+    @Override
+    public Map<String, Long> getPacketsSent() {
+        return toSnapshot(packetsSent);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceived() {
+        return toSnapshot(packetsReceived);
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    @Override
+    public long getDuplicateData() {
+        return duplicateData.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public Map<String, Double> getSessionDurationMs() {
+        return toSnapshot(sessionDuration);
+    }
+
+    @Override
+    public Map<String, Double> getSmallSessionDurationMs() {
+        return toSnapshot(sessionDurationByClass.get(TransferClass.SMALL));
+    }
+
+    @Override
+    public Map<String, Double> getBulkSessionDurationMs() {
+        return toSnapshot(sessionDurationByClass.get(TransferClass.BULK));
+    }
+
+    @Override
+    public Map<String, Double> getBlockRttMs() {
+        return toSnapshot(blockRtt);
+    }
+
+    @Override
+    public Map<String, Double> getTimeToFirstByteMs() {
+        return toSnapshot(timeToFirstByte);
+    }
+
+    @Override
+    public Map<String, Long> getMemoryUsedBytes() {
+        return MemoryBudget.GLOBAL_BUDGET.getUsage();
+    }
+
+    @Override
+    public long getMemoryLimitBytes() {
+        return MemoryBudget.GLOBAL_BUDGET.getLimitBytes();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : new LongAdder[]{sessionsStarted, sessionsCompleted, sessionsFailed, retransmits,
+                duplicateAcks, duplicateData, timeouts, bytesSent, bytesReceived})
+            counter.reset();
+
+        sessionsFailedByErrorType.values().forEach(LongAdder::reset);
+        requestsReceived.values().forEach(LongAdder::reset);
+        packetsSent.values().forEach(LongAdder::reset);
+        packetsReceived.values().forEach(LongAdder::reset);
+        sessionDuration.reset();
+        sessionDurationByClass.values().forEach(Histogram::reset);
+        blockRtt.reset();
+        timeToFirstByte.reset();
+    }
+
+    private static <E extends Enum<E>> Map<String, Long> toSnapshot(Map<E, LongAdder> counters) {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        counters.forEach((key, counter) -> snapshot.put(key.name(), counter.sum()));
+        return snapshot;
+    }
+
+    private static Map<String, Double> toSnapshot(Histogram histogram) {
+        Map<String, Double> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", (double) histogram.getCount());
+        snapshot.put("min", histogram.getMin() / NANOS_PER_MS);
+        snapshot.put("mean", histogram.getMean() / NANOS_PER_MS);
+        snapshot.put("p50", histogram.getValueAtPercentile(50) / NANOS_PER_MS);
+        snapshot.put("p90", histogram.getValueAtPercentile(90) / NANOS_PER_MS);
+        snapshot.put("p99", histogram.getValueAtPercentile(99) / NANOS_PER_MS);
+        snapshot.put("max", histogram.getMax() / NANOS_PER_MS);
+        return snapshot;
+    }
+
+    /**
+     * @return A multi-line snapshot of all metrics (for the console)
+     */
+    @Override
+    public String toString() {
+        return "Sessions: started=" + getSessionsStarted() + " completed=" + getSessionsCompleted() +
+                " failed=" + getSessionsFailed() + " active=" + getActiveSessions() + "\n" +
+                "Failures by error: " + getSessionsFailedByErrorType() + "\n" +
+                "Requests received: " + getRequestsReceived() + "\n" +
+                "Packets sent: " + getPacketsSent() + "\n" +
+                "Packets received: " + getPacketsReceived() + "\n" +
+                "Retransmits: " + getRetransmits() + ", Duplicate ACKs: " + getDuplicateAcks() +
+                ", Duplicate DATA: " + getDuplicateData() + ", Timeouts: " + getTimeouts() + "\n" +
+                "Bytes sent: " + getBytesSent() + ", Bytes received: " + getBytesReceived() + "\n" +
+                "Session duration (ms): " + sessionDuration.toString(NANOS_PER_MS) + "\n" +
+                "  Small transfers (ms): " + sessionDurationByClass.get(TransferClass.SMALL).toString(NANOS_PER_MS) + "\n" +
+                "  Bulk transfers (ms): " + sessionDurationByClass.get(TransferClass.BULK).toString(NANOS_PER_MS) + "\n" +
+                "Block RTT (ms): " + blockRtt.toString(NANOS_PER_MS) + "\n" +
+                "Time to first byte (ms): " + timeToFirstByte.toString(NANOS_PER_MS) + "\n" +
+                MemoryBudget.GLOBAL_BUDGET;
+    }
+}
@@ -0,0 +1,63 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics} registry (published as "tftp:type=Metrics").
+ * Histogram attributes are summaries (count, min, mean, percentiles, max) in milliseconds.
+ */
+public interface MetricsMXBean {
+
+    long getSessionsStarted();
+
+    long getSessionsCompleted();
+
+    long getSessionsFailed();
+
+    long getActiveSessions();
+
+    Map<String, Long> getSessionsFailedByErrorType();
+
+    Map<String, Long> getRequestsReceived();
+
+    Map<String, Long> getPacketsSent();
+
+    Map<String, Long> getPacketsReceived();
+
+    long getRetransmits();
+
+    long getDuplicateAcks();
+
+    long getDuplicateData();
+
+    long getTimeouts();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    Map<String, Double> getSessionDurationMs();
+
+    /**
+     * @return The duration of successful SMALL transfers (see {@link TransferClass})
+     */
+    Map<String, Double> getSmallSessionDurationMs();
+
+    Map<String, Double> getBulkSessionDurationMs();
+
+    Map<String, Double> getBlockRttMs();
+
+    Map<String, Double> getTimeToFirstByteMs();
+
+    /**
+     * @return The bytes reserved from the memory budget, per subsystem
+     */
+    Map<String, Long> getMemoryUsedBytes();
+
+    long getMemoryLimitBytes();
+
+    /**
+     * Clears all counters and histograms
+     */
+    void reset();
+}
@@ -0,0 +1,9 @@
+package metrics;
+
+/**
+ * Size classes of transfers. Session latency is reported per class, and the session scheduler
+ * favours SMALL transfers (see SCHEDULER_SMALL_TRANSFER_BYTES).
+ */
+public enum TransferClass {
+    SMALL, BULK
+}
@@ -3,6 +3,8 @@ package parsing;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
 
 import formats.Message.MessageType;
 import socket.TFTPDatagramSocket;
@@ -36,61 +38,166 @@ public class Parser {
 	public static ForwardState parseStateInformation(String[] tokens, TFTPDatagramSocket socket, InetAddress serverAddress) throws SocketException {
 		ForwardState state = null;
 
-		switch (tokens[0].toUpperCase()) {
-		case DelayPacketState.MODE:
-			if(!checkInvalidNumberParams(tokens, true)) break;
-			state = new DelayPacketState(
-					socket,
-					serverAddress,
-					getChecker(subList(tokens, 1, tokens.length - 2)),
-					Long.parseLong(tokens[tokens.length - 1]));
-			break;
-		case LostPacketState.MODE:
-			if(!checkInvalidNumberParams(tokens, false)) break;
-			state = new LostPacketState(
-					socket,
-					serverAddress,
-					getChecker(subList(tokens, 1, tokens.length - 1)));
-			break;
-		case DuplicateState.MODE:
-			if(!checkInvalidNumberParams(tokens, false)) break;
-			state = new DuplicateState(
-					socket,
-					serverAddress,
-					getChecker(subList(tokens, 1, tokens.length - 1)));
-			break;
-		case InvalidOpCodeState.MODE:
-			if(!checkInvalidNumberParams(tokens, false)) break;
-			state = new InvalidOpCodeState(
-					socket, 
-					serverAddress, 
-					getChecker(subList(tokens, 1, tokens.length -1)));
-			break;
-		case ExtendPacketState.MODE:
-			if(!checkInvalidNumberParams(tokens, false)) break;
-			state = new ExtendPacketState(
-					socket,
-					serverAddress,
-					getChecker(subList(tokens, 1, tokens.length - 1)));
-			break;
-		case InvalidTIDState.MODE:
-			if(!checkInvalidNumberParams(tokens, false)) break;
-			state = new InvalidTIDState(
-					socket,
-					serverAddress,
-					getInvalidTIDChecker(subList(tokens, 1, tokens.length - 1)));
-			break;
-		case ForwardState.MODE:
-			state = new ForwardState(socket, serverAddress);
-			break;
-		default:
-			System.out.println("'" + tokens[0] + "' is not a valid state.");
-			System.out.println("Type 'help' for a list of commands");
-			break;
+		try {
+			switch (tokens[0].toUpperCase()) {
+			case DelayPacketState.MODE:
+				if(!checkInvalidNumberParams(tokens, true)) break;
+				state = new DelayPacketState(
+						socket,
+						serverAddress,
+						getChecker(subList(tokens, 1, tokens.length - 2)),
+						Long.parseLong(tokens[tokens.length - 1]));
+				break;
+			case LostPacketState.MODE:
+				if(!checkInvalidNumberParams(tokens, false)) break;
+				state = new LostPacketState(
+						socket,
+						serverAddress,
+						getChecker(subList(tokens, 1, tokens.length - 1)));
+				break;
+			case DuplicateState.MODE:
+				if(!checkInvalidNumberParams(tokens, false)) break;
+				state = new DuplicateState(
+						socket,
+						serverAddress,
+						getChecker(subList(tokens, 1, tokens.length - 1)));
+				break;
+			case InvalidOpCodeState.MODE:
+				if(!checkInvalidNumberParams(tokens, false)) break;
+				state = new InvalidOpCodeState(
+						socket, 
+						serverAddress, 
+						getChecker(subList(tokens, 1, tokens.length -1)));
+				break;
+			case ExtendPacketState.MODE:
+				if(!checkInvalidNumberParams(tokens, false)) break;
+				state = new ExtendPacketState(
+						socket,
+						serverAddress,
+						getChecker(subList(tokens, 1, tokens.length - 1)));
+				break;
+			case InvalidTIDState.MODE:
+				if(!checkInvalidNumberParams(tokens, false)) break;
+				state = new InvalidTIDState(
+						socket,
+						serverAddress,
+						getInvalidTIDChecker(subList(tokens, 1, tokens.length - 1)));
+				break;
+			case RandomLossState.MODE:
+				if(tokens.length < 2) {
+					displayInvalidNumberParams(tokens[0]);
+					break;
+				}
+				state = new RandomLossState(
+						socket,
+						serverAddress,
+						Double.parseDouble(tokens[1]) / 100,
+						tokens.length > 2 ? Long.parseLong(tokens[2]) : System.nanoTime());
+				break;
+			case NetemState.MODE:
+				state = new NetemState(
+						socket,
+						serverAddress,
+						NetemProfile.parse(subList(tokens, 1, tokens.length - 1)));
+				break;
+			case ForwardState.MODE:
+				state = new ForwardState(socket, serverAddress);
+				break;
+			default:
+				System.out.println("'" + tokens[0] + "' is not a valid state.");
+				System.out.println("Type 'help' for a list of commands");
+				break;
+			}
+		} catch (ParseException | IllegalArgumentException e) {
+			System.out.println("'" + tokens[0] + "' " + e.getMessage());
 		}
 		return state;
 	}
 	
+	/**
+	 * Changes the fault pipeline of the simulator (while it relays):
+	 * pipeline [list] | add STAGE [ARGS] [PERCENT%] [MATCHER] | remove INDEX | clear
+	 * @param tokens   The command
+	 * @param pipeline The pipeline of the simulator
+	 */
+	public static void parsePipelineCommand(String[] tokens, FaultPipeline pipeline) {
+		String action = tokens.length > 1 ? tokens[1].toLowerCase() : "list";
+
+		try {
+			switch (action) {
+			case "list":
+				break;
+			case "add":
+				if (tokens.length < 3) {
+					displayInvalidNumberParams(tokens[0] + " " + action);
+					return;
+				}
+				pipeline.add(getStage(subList(tokens, 2, tokens.length - 1)));
+				break;
+			case "remove":
+				if (tokens.length < 3) {
+					displayInvalidNumberParams(tokens[0] + " " + action);
+					return;
+				}
+				System.out.println("Removed stage '" + pipeline.remove(Integer.parseInt(tokens[2])) + "'");
+				break;
+			case "clear":
+				pipeline.clear();
+				break;
+			default:
+				System.out.println("'" + tokens[1] + "' is not a valid pipeline command.");
+				return;
+			}
+		} catch (ParseException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			System.out.println("Invalid pipeline command: " + e.getMessage());
+			return;
+		}
+
+		List<FaultStage> stages = pipeline.getStages();
+		System.out.println("Pipeline: " + (stages.isEmpty() ? "(no stages)" : ""));
+		for (int i = 0; i < stages.size(); i++)
+			System.out.println("\t" + i + ": " + stages.get(i));
+	}
+
+	/**
+	 * @param tokens STAGE [ARGS] [PERCENT%] [MATCHER] (see {@link ErrorChecker#compile(String[])})
+	 */
+	private static FaultStage getStage(String[] tokens) {
+		String stage = tokens[0].toLowerCase();
+		int index = 1;
+
+		long delay = 0;
+		if (stage.equals("delay")) {
+			if (tokens.length < 2)
+				throw new ParseException("'delay' needs a delay in milliseconds");
+			delay = Long.parseLong(tokens[index++]);
+		}
+
+		double probability = 1;
+		if (index < tokens.length && tokens[index].endsWith("%"))
+			probability = Double.parseDouble(tokens[index++].replace("%", "")) / 100;
+
+		String[] matcher = Arrays.copyOfRange(tokens, index, tokens.length);
+		ErrorChecker checker = matcher.length > 0 ? getChecker(matcher) : null;
+		String description = String.join(" ", matcher).toLowerCase();
+
+		switch (stage) {
+		case "filter":
+			return new FaultStage.Filter(checker, probability, description);
+		case "loss":
+		case "lose":
+			return new FaultStage.Loss(checker, probability, description);
+		case "delay":
+			return new FaultStage.Delay(delay, checker, probability, description);
+		case "dup":
+			return new FaultStage.Duplicate(checker, probability, description);
+		case "corrupt":
+			return new FaultStage.Corrupt(checker, probability, description);
+		default:
+			throw new ParseException("Invalid stage '" + tokens[0] + "'");
+		}
+	}
+	
 	private static boolean checkInvalidNumberParams(String[] tokens, boolean delay) {
 		int rqLen;
 		int otherLen;
@@ -125,30 +232,15 @@ public class Parser {
 		return getChecker(tokens);
 	}
 	
+	/**
+	 * @param tokens TYPE[,TYPE] [BLOCK_NUM [REPEAT_INTERVAL]] [PREDICATES] (see {@link ErrorChecker#compile(String[])})
+	 */
 	private static ErrorChecker getChecker(String[] tokens) {
-		MessageType type;
-		int blockNum = 0;
-		int replication = -1;
-		
-		if (tokens.length > 1) blockNum = Integer.parseInt(tokens[1]);
-		if (tokens.length > 2) replication = Integer.parseInt(tokens[2]);
-		
-		switch (tokens[0].toUpperCase()) {
-		case "ACK":
-			type = MessageType.ACK;
-			break;
-		case "DATA":
-			type = MessageType.DATA;
-			break;
-		case "RRQ":
-			return new ErrorChecker(MessageType.RRQ);
-		case "WRQ":
-			return new ErrorChecker(MessageType.WRQ);
-		default:
-			throw new ParseException("Invalid MessageType '" + tokens[0] + "'");
+		try {
+			return ErrorChecker.compile(tokens);
+		} catch (IllegalArgumentException iAE) {
+			throw new ParseException(iAE.getMessage());
 		}
-		
-		return new ErrorChecker(type, blockNum, replication);
 	}
 	
 	private static String[] subList(String[] tokens, int startIndex, int endIndex) {
@@ -0,0 +1,99 @@
+package resources;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Shared I/O threads and memory budget for the read-ahead of {@link PrefetchingBlockSource}s.
+ *
+ * Sources reserve the bytes of their read-ahead window from the PREFETCH subsystem of a
+ * {@link MemoryBudget}, so the total prefetched memory of all sessions is bounded. A source that
+ * cannot reserve more keeps a smaller window (and reads missing blocks synchronously).
+ */
+public class BlockPrefetcher {
+    public static final BlockPrefetcher GLOBAL_PREFETCHER = new BlockPrefetcher(GLOBAL_CONFIG.PREFETCH_THREADS, MemoryBudget.GLOBAL_BUDGET);
+
+    private final int threadCount;
+    private final MemoryBudget budget;
+    private volatile ExecutorService executor;
+
+    /**
+     * Creates a prefetcher with its own budget
+     * @param threadCount The number of prefetch threads
+     * @param budgetBytes The maximum number of bytes reserved by all read-ahead windows
+     */
+    public BlockPrefetcher(int threadCount, long budgetBytes) {
+        this(threadCount, new MemoryBudget(budgetBytes));
+    }
+
+    /**
+     * @param threadCount The number of prefetch threads
+     * @param budget      The budget the read-ahead windows are reserved from
+     */
+    public BlockPrefetcher(int threadCount, MemoryBudget budget) {
+        this.threadCount = Math.max(1, threadCount);
+        this.budget = budget;
+    }
+
+    /**
+     * Reserves up to the requested number of bytes
+     * @param bytes The number of bytes wanted
+     * @return The number of bytes granted (between 0 and bytes)
+     */
+    public long reserve(long bytes) {
+        return budget.reserve(MemoryBudget.Subsystem.PREFETCH, bytes);
+    }
+
+    /**
+     * Returns reserved bytes to the budget
+     * @param bytes The number of bytes to release
+     */
+    public void release(long bytes) {
+        budget.release(MemoryBudget.Subsystem.PREFETCH, bytes);
+    }
+
+    /**
+     * @return The number of bytes currently reserved
+     */
+    public long getReservedBytes() {
+        return budget.getUsedBytes(MemoryBudget.Subsystem.PREFETCH);
+    }
+
+    /**
+     * @return True if the memory budget is almost exhausted (windows should shrink)
+     */
+    public boolean isUnderPressure() {
+        return budget.isUnderPressure();
+    }
+
+    /**
+     * Runs a prefetch task on one of the prefetch threads
+     * @param task The task to run
+     */
+    void submit(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    /**
+     * @return The prefetch executor (created on first use, so clients never start the threads)
+     */
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    AtomicInteger threadId = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(threadCount, task -> {
+                        Thread thread = new Thread(task, "BlockPrefetcher-" + threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+
+        return executor;
+    }
+}
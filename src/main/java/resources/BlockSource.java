@@ -0,0 +1,33 @@
+package resources;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the DATA block payloads of a transmitted file.
+ *
+ * Blocks are requested in order (block i is only requested after block i - 1), and the current block
+ * may be requested again for retransmissions. A returned buffer stays valid until a later block is requested.
+ */
+public interface BlockSource extends Closeable {
+
+    /**
+     * @return The number of blocks (a file that is a multiple of the block size ends with an empty block),
+     * or Long.MAX_VALUE while it is not known yet (it is known once the final block was returned)
+     */
+    long getBlockCount();
+
+    /**
+     * @param index The block index (starting at 0)
+     * @return The block payload (position 0, limit = block size)
+     * @throws IOException If the block could not be read
+     */
+    ByteBuffer getBlock(long index) throws IOException;
+
+    /**
+     * Releases any buffers and open files
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,76 @@
+package resources;
+
+import formats.DataMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Blocks of a file that was fully loaded into memory. Blocks are slices of the array (nothing is copied).
+ */
+public class ByteArrayBlockSource implements BlockSource {
+    private final byte[] data;
+    private final int offset;
+    private final int end;
+    private final int blockSize;
+    private MemoryBudget budget;
+    private long reservedBytes;
+
+    /**
+     * @param data The contents of the file
+     */
+    public ByteArrayBlockSource(byte[] data) {
+        this(data, DataMessage.MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * @param data      The contents of the file
+     * @param blockSize The size of a block
+     */
+    public ByteArrayBlockSource(byte[] data, int blockSize) {
+        this(data, 0, data.length, blockSize);
+    }
+
+    /**
+     * @param data      The contents of the file
+     * @param offset    The offset of the first block in the file (ex: a resumed transfer, or a range of the file)
+     * @param length    The number of bytes from the offset
+     * @param blockSize The size of a block
+     */
+    public ByteArrayBlockSource(byte[] data, int offset, int length, int blockSize) {
+        this.data = data;
+        this.offset = offset;
+        this.end = offset + length;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public long getBlockCount() {
+        return (end - offset) / blockSize + 1;
+    }
+
+    @Override
+    public ByteBuffer getBlock(long index) {
+        int start = (int) (offset + index * blockSize);
+        return ByteBuffer.wrap(data, start, Math.min(blockSize, end - start)).slice();
+    }
+
+    /**
+     * Releases the FILE_BUFFERS reservation of the loaded file when the source is closed
+     * @param budget        The budget the file was reserved from
+     * @param reservedBytes The number of reserved bytes
+     * @return This source
+     */
+    public ByteArrayBlockSource releaseOnClose(MemoryBudget budget, long reservedBytes) {
+        this.budget = budget;
+        this.reservedBytes = reservedBytes;
+        return this;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (budget != null)
+            budget.release(MemoryBudget.Subsystem.FILE_BUFFERS, reservedBytes);
+
+        budget = null;
+    }
+}
@@ -15,6 +15,7 @@ public class Configuration {
 
     public final int SERVER_PORT;
     public final int SIMULATOR_PORT;
+    public final int SIMULATOR_FLOW_TIMEOUT_MS;
     public final boolean DEBUG_MODE;
     public final String CLIENT_RESOURCE_DIR;
     public final String SERVER_RESOURCE_DIR;
@@ -22,6 +23,50 @@ public class Configuration {
     public final int SOCKET_TIMEOUT_MS;
     public final boolean CLIENT_DELETE_ON_FAILURE;
     public final boolean SERVER_DELETE_ON_FAILURE;
+    public final boolean ASYNC_LOGGING;
+    public final int TRACE_RECORDS;
+    public final String TRACE_FILE;
+    public final int TRACE_FILE_SIZE;
+    public final int TRACE_FILE_COUNT;
+    public final int EVENT_LOOP_THREADS;
+    public final int TIMER_TICK_MS;
+    public final int TIMER_WHEEL_SIZE;
+    public final int SESSION_MAX_DURATION_MS;
+    public final long PREFETCH_THRESHOLD_BYTES;
+    public final int PREFETCH_MAX_BLOCKS;
+    public final long PREFETCH_BUDGET_BYTES;
+    public final int PREFETCH_THREADS;
+    public final long WRITE_BEHIND_BYTES;
+    public final int WRITE_BEHIND_THREADS;
+    public final long MEMORY_BUDGET_BYTES;
+    public final int SESSION_ADMISSION_WAIT_MS;
+    public final boolean ADAPTIVE_TIMEOUT;
+    public final int MIN_TIMEOUT_MS;
+    public final int PEER_HISTORY_SIZE;
+    public final int PEER_HISTORY_TTL_MS;
+    public final long SCHEDULER_SMALL_TRANSFER_BYTES;
+    public final int SCHEDULER_QUANTUM_BYTES;
+    public final int SCHEDULER_BATCH_PACKETS;
+    public final int WINDOW_SIZE;
+    public final boolean PACING;
+    public final int PACING_TICK_US;
+    public final long PACING_EGRESS_BYTES_PER_SEC;
+    public final String CONGESTION_CONTROL;
+    public final int BLOCK_SIZE;
+    public final int MAX_BLOCK_SIZE;
+    public final int BLOCK_NUMBER_ROLLOVER;
+    public final String MULTICAST_ADDRESS;
+    public final int MULTICAST_PORT;
+    public final int MULTICAST_GROUPS;
+    public final String MULTICAST_INTERFACE;
+    public final boolean MULTICAST;
+    public final String TRANSFER_MODE;
+    public final boolean RESUME;
+    public final int PARALLEL_STREAMS;
+    public final boolean COMPRESSION;
+    public final int COMPRESSION_LEVEL;
+    public final double COMPRESSION_MIN_RATIO;
+    public final boolean COMPRESSION_CACHE;
 
     public Configuration()
     {
@@ -29,12 +74,57 @@ public class Configuration {
         DEBUG_MODE = false;
         SERVER_PORT = 69;
         SIMULATOR_PORT = 23;
+        SIMULATOR_FLOW_TIMEOUT_MS = 30000;
         MAX_TRANSMIT_ATTEMPTS = 5;
         SOCKET_TIMEOUT_MS = 5000;
         CLIENT_RESOURCE_DIR = "client";
         SERVER_RESOURCE_DIR = "server";
         CLIENT_DELETE_ON_FAILURE = true;
         SERVER_DELETE_ON_FAILURE = true;
+        ASYNC_LOGGING = true;
+        TRACE_RECORDS = 512;
+        TRACE_FILE = "";
+        TRACE_FILE_SIZE = 4 * 1024 * 1024;
+        TRACE_FILE_COUNT = 4;
+        EVENT_LOOP_THREADS = 0;
+        TIMER_TICK_MS = 10;
+        TIMER_WHEEL_SIZE = 512;
+        SESSION_MAX_DURATION_MS = 0;
+        PREFETCH_THRESHOLD_BYTES = 1024 * 1024;
+        PREFETCH_MAX_BLOCKS = 64;
+        PREFETCH_BUDGET_BYTES = 16 * 1024 * 1024;
+        PREFETCH_THREADS = 2;
+        WRITE_BEHIND_BYTES = 0;
+        WRITE_BEHIND_THREADS = 1;
+        MEMORY_BUDGET_BYTES = 0;
+        SESSION_ADMISSION_WAIT_MS = 1000;
+        ADAPTIVE_TIMEOUT = false;
+        MIN_TIMEOUT_MS = 100;
+        PEER_HISTORY_SIZE = 1024;
+        PEER_HISTORY_TTL_MS = 10 * 60 * 1000;
+        SCHEDULER_SMALL_TRANSFER_BYTES = 1024 * 1024;
+        SCHEDULER_QUANTUM_BYTES = 8 * 512;
+        SCHEDULER_BATCH_PACKETS = 64;
+        WINDOW_SIZE = 1;
+        PACING = false;
+        PACING_TICK_US = 1000;
+        PACING_EGRESS_BYTES_PER_SEC = 0;
+        CONGESTION_CONTROL = "fixed";
+        BLOCK_SIZE = 512;
+        MAX_BLOCK_SIZE = 65464;
+        BLOCK_NUMBER_ROLLOVER = 1;
+        MULTICAST_ADDRESS = "";
+        MULTICAST_PORT = 1758;
+        MULTICAST_GROUPS = 16;
+        MULTICAST_INTERFACE = "";
+        MULTICAST = false;
+        TRANSFER_MODE = "netascii";
+        RESUME = false;
+        PARALLEL_STREAMS = 1;
+        COMPRESSION = false;
+        COMPRESSION_LEVEL = 6;
+        COMPRESSION_MIN_RATIO = 1.5;
+        COMPRESSION_CACHE = true;
     }
 
     /**
@@ -0,0 +1,239 @@
+package resources;
+
+import logging.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compressed blocks of a file: the blocks of another source (the local file) are compressed into a zlib stream
+ * as blocks are requested, so the file is never compressed as a whole. The compressed stream is cut into
+ * blocks of the block size, like the bytes of a file.
+ *
+ * The length of the compressed stream is only known once its final (short) block was compressed: until then,
+ * {@link #getBlockCount()} is Long.MAX_VALUE. The last compressed blocks are kept in a ring of reused buffers,
+ * so the send window can be requested again.
+ *
+ * The compressed blocks can be copied to a cache file as they are compressed
+ * ({@link #cacheTo(ResourceFile, ResourceFile, long, long)}), which replaces the sidecar of the file once the stream
+ * is complete, so the next transfers send the sidecar instead. The sidecar starts with the length and modification
+ * time of the file it was compressed from ({@link #SIDECAR_HEADER_LENGTH} bytes), and is only sent while the file
+ * still matches them ({@link #isSidecarOf(ResourceFile, ResourceFile)}).
+ */
+public class DeflateBlockSource implements BlockSource {
+    private static final Logger LOG = new Logger("DeflateBlockSource");
+
+    /**
+     * The length of the sidecar header: the length and modification time of the file (two longs)
+     */
+    public static final int SIDECAR_HEADER_LENGTH = 2 * Long.BYTES;
+
+    private final BlockSource source;
+    private final Deflater deflater;
+    private final ByteBuffer[] blocks;
+    private final int blockSize;
+    private long nextSourceIndex;
+    private long compressedBlocks;
+    private long blockCount;
+    private ResourceFile cacheFile;
+    private ResourceFile sidecar;
+    private OutputStream cache;
+
+    /**
+     * @param source         The blocks of the local file (requested in order)
+     * @param blockSize      The size of a compressed block
+     * @param retainedBlocks The number of compressed blocks that can be requested again (at least 1)
+     * @param level          The compression level (0-9)
+     */
+    public DeflateBlockSource(BlockSource source, int blockSize, int retainedBlocks, int level) {
+        this.source = source;
+        this.deflater = new Deflater(level);
+        this.blocks = new ByteBuffer[Math.max(1, retainedBlocks)];
+        this.blockSize = blockSize;
+        this.blockCount = Long.MAX_VALUE;
+    }
+
+    /**
+     * Copies the compressed stream to a cache file, which is moved over the sidecar once the stream is complete
+     * (the cache file is removed if the source is closed before)
+     * @param cacheFile    The new (empty) file the stream is written to
+     * @param sidecar      The sidecar of the file
+     * @param fileLength   The length of the file, before its blocks were read
+     * @param fileModified The modification time of the file, before its blocks were read
+     * @return This source
+     * @throws IOException If the cache file could not be opened
+     */
+    public synchronized DeflateBlockSource cacheTo(ResourceFile cacheFile, ResourceFile sidecar, long fileLength, long fileModified) throws IOException {
+        this.cache = cacheFile.openOutputStream();
+        this.cacheFile = cacheFile;
+        this.sidecar = sidecar;
+
+        try {
+            cache.write(ByteBuffer.allocate(SIDECAR_HEADER_LENGTH).putLong(fileLength).putLong(fileModified).array());
+        } catch (IOException ioE) {
+            abandonCache();
+            throw ioE;
+        }
+        return this;
+    }
+
+    /**
+     * @param sidecar The compressed sidecar of the file
+     * @param file    The file
+     * @return True if the sidecar was compressed from the current file (same length and modification time)
+     * @throws IOException If the sidecar could not be read
+     */
+    public static boolean isSidecarOf(ResourceFile sidecar, ResourceFile file) throws IOException {
+        if (sidecar.length() < SIDECAR_HEADER_LENGTH)
+            return false;
+
+        ByteBuffer header = ByteBuffer.wrap(sidecar.readBytesAt(0, SIDECAR_HEADER_LENGTH));
+        return header.getLong() == file.length() && header.getLong() == file.lastModified();
+    }
+
+    /**
+     * Estimates how well the start of a file compresses
+     * @param source     The blocks of the file (requested in order)
+     * @param probeBytes The number of bytes of the file to compress
+     * @param level      The compression level (0-9)
+     * @return The number of bytes of the file per compressed byte (ex: 4 for a file that compresses to 25%)
+     * @throws IOException If the file could not be read
+     */
+    public static double estimateRatio(BlockSource source, long probeBytes, int level) throws IOException {
+        Deflater deflater = new Deflater(level);
+        byte[] output = new byte[8192];
+        long inputBytes = 0;
+
+        try {
+            for (long index = 0; index < source.getBlockCount() && inputBytes < probeBytes; index++) {
+                ByteBuffer block = source.getBlock(index);
+                inputBytes += block.remaining();
+                setInput(deflater, block);
+
+                while (!deflater.needsInput())
+                    deflater.deflate(output);
+            }
+
+            deflater.finish();
+            while (!deflater.finished())
+                deflater.deflate(output);
+
+            return (double) inputBytes / Math.max(1, deflater.getBytesWritten());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public synchronized long getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized ByteBuffer getBlock(long index) throws IOException {
+        if (index < 0 || index >= blockCount || index < compressedBlocks - blocks.length)
+            throw new IOException("Block " + index + " is not available (compressed " + compressedBlocks + " blocks)");
+
+        while (compressedBlocks <= index)
+            compressBlock();
+
+        ByteBuffer block = blocks[(int) (index % blocks.length)].duplicate();
+        block.position(0);
+        return block;
+    }
+
+    /**
+     * Compresses the next block into its ring slot
+     * @throws IOException If the local file could not be read
+     */
+    private void compressBlock() throws IOException {
+        int slot = (int) (compressedBlocks % blocks.length);
+        if (blocks[slot] == null)
+            blocks[slot] = ByteBuffer.allocate(blockSize);
+
+        byte[] block = blocks[slot].array();
+        int length = 0;
+
+        while (length < blockSize && !deflater.finished()) {
+            if (deflater.needsInput()) {
+                if (nextSourceIndex < source.getBlockCount()) {
+                    setInput(deflater, source.getBlock(nextSourceIndex++));
+                    continue;
+                }
+
+                // The file ends, the rest of the stream is written
+                deflater.finish();
+            }
+
+            length += deflater.deflate(block, length, blockSize - length);
+        }
+
+        blocks[slot].clear();
+        blocks[slot].limit(length);
+        compressedBlocks++;
+
+        if (length < blockSize)
+            blockCount = compressedBlocks;
+
+        if (cache != null)
+            writeCache(block, length);
+    }
+
+    /**
+     * The input stays in the block of the source until it was compressed (the next block is only requested then)
+     */
+    private static void setInput(Deflater deflater, ByteBuffer input) {
+        if (input.hasArray()) {
+            deflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            return;
+        }
+
+        // Only heap buffers are expected, copy any other block
+        byte[] copy = new byte[input.remaining()];
+        input.duplicate().get(copy);
+        deflater.setInput(copy);
+    }
+
+    /**
+     * Copies a compressed block to the cache file, and replaces the sidecar after the final block. The transfer
+     * does not depend on the cache, so it is abandoned if it cannot be written.
+     */
+    private void writeCache(byte[] block, int length) {
+        try {
+            cache.write(block, 0, length);
+
+            if (compressedBlocks == blockCount) {
+                cache.close();
+                cache = null;
+                cacheFile.moveTo(sidecar);
+                LOG.logVerbose(() -> "Cached the compressed file in '" + sidecar.getName() + "'");
+            }
+        } catch (IOException ioE) {
+            LOG.logQuiet("Failed to cache the compressed file: " + ioE.getLocalizedMessage());
+            abandonCache();
+        }
+    }
+
+    private void abandonCache() {
+        try {
+            if (cache != null)
+                cache.close();
+        } catch (IOException ioE) {
+            // The file is removed anyway
+        }
+
+        cache = null;
+        cacheFile.delete();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (cache != null)
+            abandonCache();
+
+        deflater.end();
+        source.close();
+    }
+}
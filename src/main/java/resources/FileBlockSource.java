@@ -0,0 +1,67 @@
+package resources;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Blocks of a file read on demand, with a positional read per block. Unlike the other sources, blocks
+ * may be requested in any order (ex: multicast sessions sending old blocks to a late client).
+ * A returned buffer stays valid until the given number of blocks were requested after it.
+ */
+public class FileBlockSource implements BlockSource {
+    private final FileChannel channel;
+    private final int blockSize;
+    private final long blockCount;
+    private final ByteBuffer[] buffers;
+    private int nextBuffer;
+
+    /**
+     * @param path           The file to read
+     * @param blockSize      The size of a block
+     * @param retainedBlocks The number of returned blocks that stay valid (ex: the blocks sent in one step)
+     * @throws IOException If the file could not be opened
+     */
+    public FileBlockSource(Path path, int blockSize, int retainedBlocks) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.blockSize = blockSize;
+        this.blockCount = channel.size() / blockSize + 1;
+        this.buffers = new ByteBuffer[Math.max(1, retainedBlocks)];
+    }
+
+    @Override
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized ByteBuffer getBlock(long index) throws IOException {
+        if (buffers[nextBuffer] == null)
+            buffers[nextBuffer] = ByteBuffer.allocate(blockSize);
+
+        ByteBuffer buffer = buffers[nextBuffer];
+        nextBuffer = (nextBuffer + 1) % buffers.length;
+        buffer.clear();
+        long position = index * blockSize;
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                break;
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException ioE) {
+            // Nothing to release
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package resources;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Server-wide accountant for the heap pinned by sessions.
+ *
+ * Every large session buffer (session state, in-memory files, read-ahead windows, write-behind
+ * buffers) is reserved from the budget before it is allocated, and released when it is freed.
+ * Each subsystem can also have its own limit (ex: PREFETCH_BUDGET_BYTES for read-ahead windows).
+ *
+ * Sessions degrade when the budget is exhausted: new sessions wait (and are then rejected),
+ * files are streamed instead of loaded, windows shrink and write-behind becomes synchronous.
+ */
+public class MemoryBudget {
+
+    /**
+     * The users of the budget
+     */
+    public enum Subsystem {
+        SESSIONS, FILE_BUFFERS, PREFETCH, WRITE_BEHIND
+    }
+
+    // Above this fraction of the limit, the budget is under pressure (windows shrink)
+    private static final double PRESSURE_THRESHOLD = 0.9;
+
+    public static final MemoryBudget GLOBAL_BUDGET = createGlobalBudget();
+
+    private final long limitBytes;
+    private final AtomicLong usedBytes;
+    private final Map<Subsystem, AtomicLong> usedBySubsystem;
+    private final Map<Subsystem, Long> subsystemLimits;
+
+    /**
+     * @param limitBytes The maximum number of bytes reserved by all subsystems
+     */
+    public MemoryBudget(long limitBytes) {
+        this.limitBytes = Math.max(0, limitBytes);
+        this.usedBytes = new AtomicLong();
+        this.usedBySubsystem = new EnumMap<>(Subsystem.class);
+        this.subsystemLimits = new EnumMap<>(Subsystem.class);
+
+        for (Subsystem subsystem : Subsystem.values()) {
+            usedBySubsystem.put(subsystem, new AtomicLong());
+            subsystemLimits.put(subsystem, this.limitBytes);
+        }
+    }
+
+    /**
+     * @return The budget configured by MEMORY_BUDGET_BYTES (a quarter of the maximum heap if not set)
+     */
+    private static MemoryBudget createGlobalBudget() {
+        long limit = GLOBAL_CONFIG.MEMORY_BUDGET_BYTES > 0 ? GLOBAL_CONFIG.MEMORY_BUDGET_BYTES : Runtime.getRuntime().maxMemory() / 4;
+        MemoryBudget budget = new MemoryBudget(limit);
+        budget.setSubsystemLimit(Subsystem.PREFETCH, GLOBAL_CONFIG.PREFETCH_BUDGET_BYTES);
+        return budget;
+    }
+
+    /**
+     * Limits the reservations of one subsystem (the global limit still applies)
+     * @param subsystem  The subsystem
+     * @param limitBytes The maximum number of bytes reserved by the subsystem
+     */
+    public synchronized void setSubsystemLimit(Subsystem subsystem, long limitBytes) {
+        subsystemLimits.put(subsystem, Math.max(0, Math.min(limitBytes, this.limitBytes)));
+    }
+
+    /**
+     * Reserves up to the requested number of bytes (for buffers that can be smaller, such as windows)
+     * @param subsystem The subsystem reserving memory
+     * @param bytes     The number of bytes wanted
+     * @return The number of bytes granted (between 0 and bytes)
+     */
+    public long reserve(Subsystem subsystem, long bytes) {
+        return reserve(subsystem, bytes, false);
+    }
+
+    /**
+     * Reserves all of the requested bytes, or nothing
+     * @param subsystem The subsystem reserving memory
+     * @param bytes     The number of bytes needed
+     * @return True if the bytes were reserved
+     */
+    public boolean tryReserve(Subsystem subsystem, long bytes) {
+        return bytes <= 0 || reserve(subsystem, bytes, true) == bytes;
+    }
+
+    /**
+     * Reserves all of the requested bytes, waiting for other reservations to be released
+     * @param subsystem The subsystem reserving memory
+     * @param bytes     The number of bytes needed
+     * @param timeoutMs The maximum time to wait
+     * @return True if the bytes were reserved, False if the budget stayed exhausted
+     * @throws InterruptedException
+     */
+    public synchronized boolean reserve(Subsystem subsystem, long bytes, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        while (!tryReserve(subsystem, bytes)) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0)
+                return false;
+
+            wait(remainingMs);
+        }
+
+        return true;
+    }
+
+    private long reserve(Subsystem subsystem, long bytes, boolean allOrNothing) {
+        if (bytes <= 0)
+            return 0;
+
+        AtomicLong subsystemUsed = usedBySubsystem.get(subsystem);
+        long subsystemLimit = subsystemLimits.get(subsystem);
+
+        while (true) {
+            long used = usedBytes.get();
+            long subUsed = subsystemUsed.get();
+            long granted = Math.min(bytes, Math.min(limitBytes - used, subsystemLimit - subUsed));
+
+            if (granted <= 0 || (allOrNothing && granted < bytes))
+                return 0;
+
+            if (!subsystemUsed.compareAndSet(subUsed, subUsed + granted))
+                continue;
+
+            if (usedBytes.compareAndSet(used, used + granted))
+                return granted;
+
+            // Another subsystem reserved concurrently. Undo and retry.
+            subsystemUsed.addAndGet(-granted);
+        }
+    }
+
+    /**
+     * Returns reserved bytes to the budget, and wakes up waiting reservations
+     * @param subsystem The subsystem that reserved the bytes
+     * @param bytes     The number of bytes to release
+     */
+    public void release(Subsystem subsystem, long bytes) {
+        if (bytes <= 0)
+            return;
+
+        usedBySubsystem.get(subsystem).addAndGet(-bytes);
+        usedBytes.addAndGet(-bytes);
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return True if most of the budget is reserved (buffers that can shrink should)
+     */
+    public boolean isUnderPressure() {
+        return usedBytes.get() >= limitBytes * PRESSURE_THRESHOLD;
+    }
+
+    /**
+     * @return The maximum number of bytes reserved by all subsystems
+     */
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    /**
+     * @return The number of bytes currently reserved by all subsystems
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @param subsystem The subsystem
+     * @return The number of bytes currently reserved by the subsystem
+     */
+    public long getUsedBytes(Subsystem subsystem) {
+        return usedBySubsystem.get(subsystem).get();
+    }
+
+    /**
+     * @return The bytes reserved by each subsystem
+     */
+    public Map<String, Long> getUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        usedBySubsystem.forEach((subsystem, used) -> usage.put(subsystem.name(), used.get()));
+        return usage;
+    }
+
+    @Override
+    public String toString() {
+        return "Memory: used=" + getUsedBytes() + " limit=" + getLimitBytes() + " " + getUsage();
+    }
+}
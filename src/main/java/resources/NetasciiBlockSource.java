@@ -0,0 +1,94 @@
+package resources;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Netascii blocks of a file: the blocks of another source (the local file) are translated by a
+ * {@link NetasciiEncoder} as blocks are requested, so the file is never translated as a whole.
+ *
+ * Translation changes the length of the file, so the number of blocks is only known once the final
+ * (short) block was translated: until then, {@link #getBlockCount()} is Long.MAX_VALUE.
+ * The last translated blocks are kept in a ring of reused buffers, so the send window can be requested again.
+ */
+public class NetasciiBlockSource implements BlockSource {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final BlockSource source;
+    private final NetasciiEncoder encoder;
+    private final ByteBuffer[] blocks;
+    private final int blockSize;
+    private ByteBuffer input;
+    private long nextSourceIndex;
+    private long translatedBlocks;
+    private long blockCount;
+
+    /**
+     * @param source         The blocks of the local file (requested in order)
+     * @param blockSize      The size of a translated block
+     * @param retainedBlocks The number of translated blocks that can be requested again (at least 1)
+     */
+    public NetasciiBlockSource(BlockSource source, int blockSize, int retainedBlocks) {
+        this.source = source;
+        this.encoder = new NetasciiEncoder();
+        this.blocks = new ByteBuffer[Math.max(1, retainedBlocks)];
+        this.blockSize = blockSize;
+        this.blockCount = Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized long getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized ByteBuffer getBlock(long index) throws IOException {
+        if (index < 0 || index >= blockCount || index < translatedBlocks - blocks.length)
+            throw new IOException("Block " + index + " is not available (translated " + translatedBlocks + " blocks)");
+
+        while (translatedBlocks <= index)
+            translateBlock();
+
+        ByteBuffer block = blocks[(int) (index % blocks.length)].duplicate();
+        block.position(0);
+        return block;
+    }
+
+    /**
+     * Translates the next block into its ring slot
+     * @throws IOException If the local file could not be read
+     */
+    private void translateBlock() throws IOException {
+        int slot = (int) (translatedBlocks % blocks.length);
+        if (blocks[slot] == null)
+            blocks[slot] = ByteBuffer.allocate(blockSize);
+
+        ByteBuffer block = blocks[slot];
+        block.clear();
+
+        while (block.hasRemaining()) {
+            if (input == null || !input.hasRemaining()) {
+                if (nextSourceIndex >= source.getBlockCount()) {
+                    // The file ends, once the last pair was written
+                    encoder.encode(EMPTY, block);
+                    break;
+                }
+
+                input = source.getBlock(nextSourceIndex++);
+            }
+
+            encoder.encode(input, block);
+        }
+
+        block.flip();
+        translatedBlocks++;
+
+        if (block.limit() < blockSize)
+            blockCount = translatedBlocks;
+    }
+
+    @Override
+    public synchronized void close() {
+        source.close();
+    }
+}
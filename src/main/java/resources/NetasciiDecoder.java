@@ -0,0 +1,109 @@
+package resources;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static resources.NetasciiEncoder.CR;
+import static resources.NetasciiEncoder.LF;
+import static resources.NetasciiEncoder.NUL;
+
+/**
+ * Streaming translation of netascii (RFC 764) to local text: CR LF is written as a line feed (the local end
+ * of line), and CR NUL as a carriage return. A carriage return followed by any other byte is kept as is.
+ *
+ * A carriage return at the end of an input is held until the next input (the pair may span two DATA
+ * blocks), so the output of a call has at most one byte more than its input. The decoder does not allocate.
+ */
+public final class NetasciiDecoder {
+    private boolean carriageReturn;
+
+    /**
+     * Translates all the input
+     * @param in  The netascii bytes (from position to limit)
+     * @param out The local bytes. Must have at least in.remaining() + 1 bytes remaining.
+     */
+    public void decode(ByteBuffer in, ByteBuffer out) {
+        if (out.hasArray()) {
+            decodeToArray(in, out);
+            return;
+        }
+
+        while (in.hasRemaining()) {
+            byte b = in.get();
+
+            if (carriageReturn) {
+                carriageReturn = false;
+
+                if (b == LF) {
+                    out.put(LF);
+                    continue;
+                }
+
+                out.put(CR);
+                if (b == NUL)
+                    continue;
+            }
+
+            if (b == CR)
+                carriageReturn = true;
+            else
+                out.put(b);
+        }
+    }
+
+    /**
+     * The same translation, into the array of a heap buffer (received payloads are read-only, so they are
+     * read with absolute gets)
+     */
+    private void decodeToArray(ByteBuffer in, ByteBuffer out) {
+        byte[] dst = out.array();
+        int end = in.limit();
+        int o = out.arrayOffset() + out.position();
+
+        if (out.remaining() <= end - in.position())
+            throw new BufferOverflowException();
+
+        for (int i = in.position(); i < end; i++) {
+            byte b = in.get(i);
+
+            if (carriageReturn) {
+                carriageReturn = false;
+
+                if (b == LF) {
+                    dst[o++] = LF;
+                    continue;
+                }
+
+                dst[o++] = CR;
+                if (b == NUL)
+                    continue;
+            }
+
+            if (b == CR)
+                carriageReturn = true;
+            else
+                dst[o++] = b;
+        }
+
+        in.position(end);
+        out.position(o - out.arrayOffset());
+    }
+
+    /**
+     * Writes a carriage return held at the end of the last input (the file ended with a lone CR)
+     * @param out The local bytes. Must have at least 1 byte remaining.
+     */
+    public void finish(ByteBuffer out) {
+        if (carriageReturn) {
+            out.put(CR);
+            carriageReturn = false;
+        }
+    }
+
+    /**
+     * Forgets any held carriage return (to decode another file)
+     */
+    public void reset() {
+        carriageReturn = false;
+    }
+}
@@ -0,0 +1,115 @@
+package resources;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming translation of local text to netascii (RFC 764): a line feed (the local end of line) is sent
+ * as CR LF, and a carriage return as CR NUL.
+ *
+ * The output may end in the middle of a pair: the second byte is kept, and written first on the next call,
+ * so a file is encoded block by block without buffering it. The encoder does not allocate.
+ */
+public final class NetasciiEncoder {
+    static final byte CR = '\r';
+    static final byte LF = '\n';
+    static final byte NUL = 0;
+
+    private byte pending;
+    private boolean hasPending;
+
+    /**
+     * Translates bytes until the input is consumed or the output is full
+     * @param in  The local bytes (from position to limit)
+     * @param out The netascii bytes
+     */
+    public void encode(ByteBuffer in, ByteBuffer out) {
+        if (hasPending) {
+            if (!out.hasRemaining())
+                return;
+
+            out.put(pending);
+            hasPending = false;
+        }
+
+        if (in.hasArray() && out.hasArray()) {
+            encodeArrays(in, out);
+            return;
+        }
+
+        while (in.hasRemaining() && out.hasRemaining()) {
+            byte b = in.get();
+            byte second;
+
+            if (b == LF)
+                second = LF;
+            else if (b == CR)
+                second = NUL;
+            else {
+                out.put(b);
+                continue;
+            }
+
+            out.put(CR);
+            if (out.hasRemaining()) {
+                out.put(second);
+            } else {
+                pending = second;
+                hasPending = true;
+            }
+        }
+    }
+
+    /**
+     * The same translation, on the arrays of heap buffers (the usual case, several times faster)
+     */
+    private void encodeArrays(ByteBuffer in, ByteBuffer out) {
+        byte[] src = in.array();
+        byte[] dst = out.array();
+        int i = in.arrayOffset() + in.position();
+        int end = in.arrayOffset() + in.limit();
+        int o = out.arrayOffset() + out.position();
+        int outEnd = out.arrayOffset() + out.limit();
+
+        while (i < end && o < outEnd) {
+            // Copy the run of bytes up to the next line end at once
+            int stop = i + Math.min(end - i, outEnd - o);
+            int j = i;
+            while (j < stop && src[j] != LF && src[j] != CR)
+                j++;
+
+            System.arraycopy(src, i, dst, o, j - i);
+            o += j - i;
+            i = j;
+
+            if (i == stop)
+                continue;
+
+            byte second = src[i++] == LF ? LF : NUL;
+            dst[o++] = CR;
+
+            if (o < outEnd) {
+                dst[o++] = second;
+            } else {
+                pending = second;
+                hasPending = true;
+            }
+        }
+
+        in.position(i - in.arrayOffset());
+        out.position(o - out.arrayOffset());
+    }
+
+    /**
+     * @return True if the second byte of a pair was not written yet
+     */
+    public boolean hasPending() {
+        return hasPending;
+    }
+
+    /**
+     * Forgets any pending byte (to encode another file)
+     */
+    public void reset() {
+        hasPending = false;
+    }
+}
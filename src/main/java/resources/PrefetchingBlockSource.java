@@ -0,0 +1,363 @@
+package resources;
+
+import formats.DataMessage;
+import logging.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the blocks of a file, keeping a window of blocks loaded ahead of the send cursor.
+ *
+ * Blocks are read into a ring of block buffers by the threads of a {@link BlockPrefetcher}, so a
+ * disk read is normally complete before the ACK that requests the block arrives. The window
+ * adapts to the session:
+ * - it doubles whenever a requested block was not loaded yet (a miss, read synchronously)
+ * - otherwise it follows the number of blocks consumed during one read (read latency / ACK interval)
+ *   and shrinks by one block per ACK when it is larger than needed
+ * The bytes of the window are reserved from the budget of the prefetcher. When the memory budget
+ * is under pressure, the window is halved on every ACK (down to the minimum window).
+ *
+ * The ring slots of the last retained blocks (the current block, or the send window of the session)
+ * are never reused while they may be requested, so retransmissions can request them again.
+ */
+public class PrefetchingBlockSource implements BlockSource {
+    private static final Logger LOG = new Logger("PrefetchingBlockSource");
+    private static final int MIN_WINDOW = 2;
+    private static final double EWMA_WEIGHT = 0.125;
+
+    private final FileChannel channel;
+    private final BlockPrefetcher prefetcher;
+    private final int blockSize;
+    private final long startOffset;
+    private final long endOffset;
+    private final long blockCount;
+    private final ByteBuffer[] slots;
+    private final int retainedBlocks;
+
+    private long cursor;
+    private long loadedUpTo;
+    private boolean loading;
+    private boolean prefetchScheduled;
+    private boolean closed;
+    private IOException prefetchFailure;
+
+    private int window;
+    private int reservedBlocks;
+    private long lastRequestNanos;
+    private double requestIntervalNanos;
+    private double readNanos;
+    private long hits;
+    private long misses;
+
+    /**
+     * Opens a file with the default block size, prefetcher and maximum window (PREFETCH_MAX_BLOCKS)
+     * @param path The file to stream
+     * @throws IOException If the file could not be opened
+     */
+    public PrefetchingBlockSource(Path path) throws IOException {
+        this(path, DataMessage.MAX_BLOCK_SIZE, BlockPrefetcher.GLOBAL_PREFETCHER, Configuration.GLOBAL_CONFIG.PREFETCH_MAX_BLOCKS);
+    }
+
+    /**
+     * @param path       The file to stream
+     * @param blockSize  The size of a block
+     * @param prefetcher The prefetch threads and memory budget
+     * @param maxWindow  The maximum number of blocks loaded ahead of the cursor
+     * @throws IOException If the file could not be opened
+     */
+    public PrefetchingBlockSource(Path path, int blockSize, BlockPrefetcher prefetcher, int maxWindow) throws IOException {
+        this(path, blockSize, prefetcher, maxWindow, 1);
+    }
+
+    /**
+     * @param path           The file to stream
+     * @param blockSize      The size of a block
+     * @param prefetcher     The prefetch threads and memory budget
+     * @param maxWindow      The maximum number of blocks loaded ahead of the cursor
+     * @param retainedBlocks The number of blocks up to the cursor that can still be requested (at least 1)
+     * @throws IOException If the file could not be opened
+     */
+    public PrefetchingBlockSource(Path path, int blockSize, BlockPrefetcher prefetcher, int maxWindow, int retainedBlocks) throws IOException {
+        this(path, blockSize, prefetcher, maxWindow, retainedBlocks, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param path           The file to stream
+     * @param blockSize      The size of a block
+     * @param prefetcher     The prefetch threads and memory budget
+     * @param maxWindow      The maximum number of blocks loaded ahead of the cursor
+     * @param retainedBlocks The number of blocks up to the cursor that can still be requested (at least 1)
+     * @param startOffset    The offset of the first block in the file (ex: a resumed transfer, or a range of the
+     *                       file). The bytes before it are never read.
+     * @param length         The number of bytes to stream from the offset (up to the end of the file)
+     * @throws IOException If the file could not be opened
+     */
+    public PrefetchingBlockSource(Path path, int blockSize, BlockPrefetcher prefetcher, int maxWindow, int retainedBlocks,
+                                  long startOffset, long length) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.prefetcher = prefetcher;
+        this.blockSize = blockSize;
+        long fileLength = channel.size();
+        this.startOffset = Math.min(startOffset, fileLength);
+        this.endOffset = this.startOffset + Math.min(length, fileLength - this.startOffset);
+        this.blockCount = (endOffset - this.startOffset) / blockSize + 1;
+
+        // Extra slots for the current block (and the blocks before it)
+        this.retainedBlocks = Math.max(1, retainedBlocks);
+        this.slots = new ByteBuffer[Math.max(MIN_WINDOW, maxWindow) + this.retainedBlocks];
+        this.cursor = -1;
+        this.loadedUpTo = -1;
+        this.window = MIN_WINDOW;
+
+        synchronized (this) {
+            adjustReservation();
+            schedulePrefetch();
+        }
+    }
+
+    @Override
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized ByteBuffer getBlock(long index) throws IOException {
+        if (closed)
+            throw new IOException("The block source is closed");
+
+        if (index < 0 || index >= blockCount || index <= loadedUpTo - slots.length)
+            throw new IOException("Block " + index + " is not available (" + blockCount + " blocks, loaded up to " + loadedUpTo + ")");
+
+        boolean advanced = index > cursor;
+        if (advanced) {
+            cursor = index;
+            requestReceived(System.nanoTime());
+        }
+
+        // A prefetch read may be loading the block right now
+        while (loadedUpTo < index && loading) {
+            try {
+                wait();
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for block " + index);
+            }
+        }
+
+        if (loadedUpTo < index) {
+            misses++;
+            window = Math.min(slots.length - retainedBlocks, window * 2);
+
+            // Blocks are requested in order, so this normally reads a single block
+            while (loadedUpTo < index) {
+                readBlock(loadedUpTo + 1);
+                loadedUpTo++;
+            }
+        } else if (advanced) {
+            hits++;
+        }
+
+        adjustReservation();
+        schedulePrefetch();
+
+        ByteBuffer block = slots[slot(index)].duplicate();
+        block.position(0);
+        return block;
+    }
+
+    /**
+     * @return The number of requested blocks that were already loaded
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return The number of requested blocks that had to be read synchronously
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return The current read-ahead window (in blocks)
+     */
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return The number of blocks of the window that are reserved from the budget
+     */
+    public synchronized int getReservedBlocks() {
+        return reservedBlocks;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        prefetcher.release((long) reservedBlocks * blockSize);
+        reservedBlocks = 0;
+
+        if (LOG.isVerbose())
+            LOG.logVerbose("Closing block source. Hits: " + hits + ", misses: " + misses);
+
+        // A running prefetch read holds no lock, so only close the channel once it is done
+        if (!loading)
+            closeChannel();
+    }
+
+    /**
+     * Updates the request (ACK) interval estimate, and the target window
+     * @param now The time of the request
+     */
+    private void requestReceived(long now) {
+        if (lastRequestNanos != 0) {
+            long interval = now - lastRequestNanos;
+            requestIntervalNanos = requestIntervalNanos == 0 ? interval : requestIntervalNanos + EWMA_WEIGHT * (interval - requestIntervalNanos);
+        }
+        lastRequestNanos = now;
+
+        if (requestIntervalNanos <= 0 || readNanos <= 0)
+            return;
+
+        // The number of blocks consumed while one block is read, plus some slack
+        int needed = (int) Math.min(slots.length - retainedBlocks, Math.ceil(readNanos / requestIntervalNanos) + MIN_WINDOW);
+
+        if (needed > window)
+            window = needed;
+        else if (needed < window)
+            window--;
+    }
+
+    /**
+     * Grows or shrinks the budget reservation to the target window
+     */
+    private void adjustReservation() {
+        if (prefetcher.isUnderPressure())
+            window = Math.max(MIN_WINDOW, window / 2);
+
+        if (window > reservedBlocks) {
+            long granted = prefetcher.reserve((long) (window - reservedBlocks) * blockSize);
+            reservedBlocks += (int) (granted / blockSize);
+            prefetcher.release(granted % blockSize);
+        } else if (window < reservedBlocks) {
+            prefetcher.release((long) (reservedBlocks - window) * blockSize);
+            reservedBlocks = window;
+        }
+    }
+
+    /**
+     * @return The last block index the prefetcher may load
+     */
+    private long getPrefetchLimit() {
+        return Math.min(blockCount - 1, cursor + Math.min(reservedBlocks, slots.length - retainedBlocks));
+    }
+
+    /**
+     * Starts a prefetch task if blocks within the window are missing
+     */
+    private void schedulePrefetch() {
+        if (prefetchScheduled || closed || prefetchFailure != null || loadedUpTo >= getPrefetchLimit())
+            return;
+
+        prefetchScheduled = true;
+        prefetcher.submit(this::prefetch);
+    }
+
+    /**
+     * Prefetch task. Loads blocks until the window is full. Reads are done without holding the lock,
+     * into slots that are not visible to the sender yet.
+     */
+    private void prefetch() {
+        while (true) {
+            long block;
+
+            synchronized (this) {
+                if (closed || loadedUpTo >= getPrefetchLimit()) {
+                    prefetchScheduled = false;
+                    return;
+                }
+
+                block = loadedUpTo + 1;
+                loading = true;
+            }
+
+            IOException failure = null;
+            long start = System.nanoTime();
+
+            try {
+                readBlock(block);
+            } catch (IOException ioE) {
+                failure = ioE;
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (this) {
+                loading = false;
+                notifyAll();
+
+                if (closed) {
+                    prefetchScheduled = false;
+                    closeChannel();
+                    return;
+                }
+
+                if (failure != null) {
+                    // The sender reads the block synchronously, and gets the failure itself
+                    prefetchFailure = failure;
+                    LOG.logVerbose("Prefetch of block " + block + " failed: " + failure.getLocalizedMessage());
+                    prefetchScheduled = false;
+                    return;
+                }
+
+                loadedUpTo = block;
+                readNanos = readNanos == 0 ? elapsed : readNanos + EWMA_WEIGHT * (elapsed - readNanos);
+            }
+        }
+    }
+
+    /**
+     * Reads a block into its ring slot
+     * @param block The block index
+     * @throws IOException If the block could not be read
+     */
+    private void readBlock(long block) throws IOException {
+        int slot = slot(block);
+        if (slots[slot] == null)
+            slots[slot] = ByteBuffer.allocate(blockSize);
+
+        ByteBuffer buffer = slots[slot];
+        long position = startOffset + block * blockSize;
+        buffer.clear();
+        buffer.limit((int) Math.max(0, Math.min(blockSize, endOffset - position)));
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+
+        buffer.flip();
+    }
+
+    private int slot(long block) {
+        return (int) (block % slots.length);
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException ioE) {
+            LOG.logVerbose("Failed to close block source: " + ioE.getLocalizedMessage());
+        }
+    }
+}
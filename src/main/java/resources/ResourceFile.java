@@ -6,7 +6,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 /**
  * Wrapper class for File Object.
@@ -14,6 +22,12 @@ import java.nio.file.Path;
 public class ResourceFile extends File {
 
     private static final Logger LOG = new Logger("ResourceFile");
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    private static final int CHECKSUM_CACHE_SIZE = 64;
+
+    // Checksums of file prefixes ("path:length" -> file length, last modified, CRC-32). Every resumed transfer of
+    // a file checks the same prefix, and the server computes it before the session starts (off the event loop).
+    private static final Map<String, long[]> CHECKSUM_CACHE = Collections.synchronizedMap(new ChecksumCache());
 
     /**
      * Creates a resource file given the full path URI.
@@ -30,25 +44,173 @@ public class ResourceFile extends File {
      * @param data The bytes to write
      * @throws IOException
      */
-    public synchronized void writeBytesToFile(byte[] data) throws IOException {
-        LOG.logVerbose("Writing byte array to File. File:  " + getCanonicalPath());
+    public void writeBytesToFile(byte[] data) throws IOException {
+        writeBytesToFile(data, 0, data.length);
+    }
+
+    /**
+     * Writes part of an array to the file (The current implementation will not overwrite files)
+     * @param data   The array
+     * @param offset The index of the first byte to write
+     * @param length The number of bytes to write
+     * @throws IOException
+     */
+    public synchronized void writeBytesToFile(byte[] data, int offset, int length) throws IOException {
+        if(LOG.isVerbose())
+            LOG.logVerbose("Writing byte array to File. File:  " + getCanonicalPath());
 
         if(!exists() && !createNewFile()) {
             LOG.logVerbose("File does not exist and failed to be created. (" + getCanonicalPath() + ")");
             throw new IOException("Failed to create file (" + getCanonicalPath() + ")");
         }
 
-        if(getUsableSpace() < data.length) {
+        if(getUsableSpace() < length) {
             throw new IOException("Not enough usable space");
         }
 
         // Append block to file
         // Use try-with-resource (auto-closes the stream when done)
         try (FileOutputStream fileOutputStream = new FileOutputStream(this, true)) {
-            fileOutputStream.write(data);
+            fileOutputStream.write(data, offset, length);
+        }
+
+        if(LOG.isVerbose())
+            LOG.logVerbose("Successfully wrote data block to file (" + getCanonicalPath() + ")");
+    }
+
+    /**
+     * Writes bytes at a position of the file (blocks that are received out of order). The file grows
+     * as needed, and any gap before the position reads as zeros until it is written.
+     * @param position The offset of the first byte in the file
+     * @param data     The bytes to write
+     * @throws IOException
+     */
+    public synchronized void writeBytesAt(long position, byte[] data) throws IOException {
+        if(!exists() && !createNewFile()) {
+            LOG.logVerbose("File does not exist and failed to be created. (" + getCanonicalPath() + ")");
+            throw new IOException("Failed to create file (" + getCanonicalPath() + ")");
+        }
+
+        if(getUsableSpace() < data.length) {
+            throw new IOException("Not enough usable space");
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this, "rw")) {
+            randomAccessFile.seek(position);
+            randomAccessFile.write(data);
+        }
+    }
+
+    /**
+     * Reads bytes at a position of the file (ex: the header of a cached copy)
+     * @param position The offset of the first byte in the file
+     * @param length   The number of bytes to read
+     * @return The bytes read
+     * @throws IOException If the file could not be read, or ends before the last byte
+     */
+    public synchronized byte[] readBytesAt(long position, int length) throws IOException {
+        byte[] data = new byte[length];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this, "r")) {
+            randomAccessFile.seek(position);
+            randomAccessFile.readFully(data);
+        }
+        return data;
+    }
+
+    /**
+     * Computes the CRC-32 of the start of the file (ex: the bytes received before a transfer was interrupted)
+     * @param length The number of bytes to include
+     * @return The checksum of the first length bytes
+     * @throws IOException If the file could not be read, or is shorter than length
+     */
+    public synchronized long checksum(long length) throws IOException {
+        long fileLength = length();
+        if (length > fileLength)
+            throw new IOException("The file is shorter than " + length + " bytes (" + getCanonicalPath() + ")");
+
+        // The cached checksum is used while the file keeps its length and modification time
+        String key = getPath() + ":" + length;
+        long lastModified = lastModified();
+        long[] cached = CHECKSUM_CACHE.get(key);
+        if (cached != null && cached[0] == fileLength && cached[1] == lastModified)
+            return cached[2];
+
+        long checksum = computeChecksum(length);
+        CHECKSUM_CACHE.put(key, new long[] { fileLength, lastModified, checksum });
+        return checksum;
+    }
+
+    private long computeChecksum(long length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[(int) Math.min(CHECKSUM_BUFFER_SIZE, Math.max(1, length))];
+
+        try (FileInputStream fileInputStream = new FileInputStream(this)) {
+            long remaining = length;
+
+            while (remaining > 0) {
+                int read = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new IOException("The file is shorter than " + length + " bytes (" + getCanonicalPath() + ")");
+
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Sets the length of the file (creates the file if needed). A longer file is cut, a shorter file grows with zeros.
+     * @param length The new length of the file
+     * @throws IOException
+     */
+    public synchronized void truncate(long length) throws IOException {
+        if(!exists() && !createNewFile()) {
+            LOG.logVerbose("File does not exist and failed to be created. (" + getCanonicalPath() + ")");
+            throw new IOException("Failed to create file (" + getCanonicalPath() + ")");
         }
 
-        LOG.logVerbose("Successfully wrote data block to file (" + getCanonicalPath() + ")");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this, "rw")) {
+            randomAccessFile.setLength(length);
+        }
+    }
+
+    /**
+     * Grows the file to a length (ex: before blocks are written at their position by concurrent sessions).
+     * A longer file is not changed.
+     * @param length The length of the file
+     * @throws IOException
+     */
+    public synchronized void preallocate(long length) throws IOException {
+        if (length() < length)
+            truncate(length);
+    }
+
+    /**
+     * Moves this file over another file (ex: a completed partial file over the requested file)
+     * @param target The file to replace
+     * @throws IOException If the file could not be moved
+     */
+    public synchronized void moveTo(ResourceFile target) throws IOException {
+        if(LOG.isVerbose())
+            LOG.logVerbose("Moving file " + getCanonicalPath() + " to " + target.getCanonicalPath());
+
+        Files.move(toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Opens the file to write it from the start (ex: a cached copy of a stream). The file is created if needed.
+     * @return The stream of the file (to close once written)
+     * @throws IOException If the file could not be opened
+     */
+    public synchronized OutputStream openOutputStream() throws IOException {
+        if(!exists() && !createNewFile()) {
+            LOG.logVerbose("File does not exist and failed to be created. (" + getCanonicalPath() + ")");
+            throw new IOException("Failed to create file (" + getCanonicalPath() + ")");
+        }
+
+        return new FileOutputStream(this);
     }
 
     /**
@@ -57,7 +219,8 @@ public class ResourceFile extends File {
      * @throws IOException
      */
     public synchronized byte[] readFileToBytes() throws IOException {
-        LOG.logVerbose("Reading File to byte array. File:  " + getCanonicalPath());
+        if(LOG.isVerbose())
+            LOG.logVerbose("Reading File to byte array. File:  " + getCanonicalPath());
 
         // Try-with-resource to ensure stream gets closed
         try(FileInputStream fileInputStream = new FileInputStream(this))
@@ -66,7 +229,8 @@ public class ResourceFile extends File {
             byte[] fileBytes = new byte[(int) fileLength];
             fileInputStream.read(fileBytes, 0, (int) fileLength);
             fileInputStream.close();
-            LOG.logVerbose("Successfully read file. (" + getCanonicalPath() + ")");
+            if(LOG.isVerbose())
+                LOG.logVerbose("Successfully read file. (" + getCanonicalPath() + ")");
             return fileBytes;
         }
     }
@@ -96,4 +260,20 @@ public class ResourceFile extends File {
     public synchronized String readFileToString() throws IOException {
         return new String(readFileToBytes());
     }
+
+    /**
+     * The most recently used checksums, up to CHECKSUM_CACHE_SIZE (the least recently used one is removed)
+     */
+    private static class ChecksumCache extends LinkedHashMap<String, long[]> {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > CHECKSUM_CACHE_SIZE;
+        }
+    }
 }
@@ -13,7 +13,12 @@ import java.util.Map;
 public class ResourceManager {
 	private static final Logger LOG = new Logger("ResourceManager");
 	private static final String RESOURCE_DIR = "resources";
+	private static final String COMPRESSED_CACHE_DIR = ".compressed";
+	private static final String PARTIAL_FILE_SUFFIX = ".part";
+	private static final String COMPRESSED_FILE_SUFFIX = ".deflate";
+	private static final String CACHE_FILE_SUFFIX = ".tmp";
 	private Path directory;
+	private Path compressedDirectory;
 	private Map<Path, ResourceFile> resourceFileMap;
 
 	/**
@@ -23,6 +28,8 @@ public class ResourceManager {
 	public ResourceManager(String directoryName) throws IOException{
 		resourceFileMap = new HashMap<>();
 		directory = Paths.get(System.getProperty("user.dir"), RESOURCE_DIR, directoryName);
+		// Sidecars are kept outside of the resource directory, so they can never be read or written as resources
+		compressedDirectory = Paths.get(System.getProperty("user.dir"), RESOURCE_DIR, COMPRESSED_CACHE_DIR, directoryName);
 		LOG.logVerbose("Resource Manager created with directory " + getFullPath());
 
 		if(Files.notExists(directory) && !directory.toFile().mkdirs()) {
@@ -44,8 +51,9 @@ public class ResourceManager {
 		Path resourcePath = Paths.get(directory.toString(), fileName).normalize();
 
 		// Check to make sure the resource path is contained within
-		// the resource directory (ex: user didn't type '../' as file name)
-		return resourcePath.startsWith(directory);
+		// the resource directory (ex: user didn't type '../' as file name),
+		// and is not a cached sidecar (if the resource directory contains the cache directory)
+		return resourcePath.startsWith(directory) && !resourcePath.startsWith(compressedDirectory.getParent());
 	}
 
 	/**
@@ -75,4 +83,47 @@ public class ResourceManager {
 
 		return file;
     }
+
+	/**
+	 * Gets the partial file of a resource: the bytes of an interrupted transfer, kept to resume it
+	 * @param fileName The file name of the resource
+	 * @return The ResourceFile of the partial file ('fileName.part')
+	 * @throws ResourceException If the given filename resolves to a directory outside of the resource directory
+	 */
+	public synchronized ResourceFile getPartialFile(String fileName) throws ResourceException {
+		return getFile(fileName + PARTIAL_FILE_SUFFIX);
+	}
+
+	/**
+	 * Gets the compressed sidecar of a resource: the compressed stream of the file, sent instead of
+	 * compressing the file again while the file is unchanged. Sidecars are kept in a cache directory
+	 * outside of the resource directory (they are not resources).
+	 * @param fileName The file name of the resource
+	 * @return The ResourceFile of the sidecar ('fileName.deflate' in the cache directory)
+	 * @throws ResourceException If the given filename resolves to a directory outside of the resource directory
+	 */
+	public synchronized ResourceFile getCompressedFile(String fileName) throws ResourceException {
+		return getCompressedCacheEntry(fileName, COMPRESSED_FILE_SUFFIX);
+	}
+
+	/**
+	 * Gets the file a new compressed sidecar is written to, before it replaces the sidecar
+	 * @param fileName The file name of the resource
+	 * @return The ResourceFile of the new sidecar ('fileName.deflate.tmp' in the cache directory)
+	 * @throws ResourceException If the given filename resolves to a directory outside of the resource directory
+	 */
+	public synchronized ResourceFile getCompressedCacheFile(String fileName) throws ResourceException {
+		return getCompressedCacheEntry(fileName, COMPRESSED_FILE_SUFFIX + CACHE_FILE_SUFFIX);
+	}
+
+	private ResourceFile getCompressedCacheEntry(String fileName, String suffix) throws ResourceException {
+		if(!isValidResource(fileName))
+			throw new ResourceException("The given filename '" + fileName + "' resolves to outside the resource directory");
+
+		Path cachePath = Paths.get(compressedDirectory.toString(), fileName + suffix).normalize();
+		if(!cachePath.startsWith(compressedDirectory))
+			throw new ResourceException("The given filename '" + fileName + "' resolves to outside the cache directory");
+
+		return resourceFileMap.computeIfAbsent(cachePath, ResourceFile::new);
+	}
 }
@@ -0,0 +1,341 @@
+package resources;
+
+import logging.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Write-behind buffer for received blocks.
+ *
+ * Blocks are appended to a bounded in-memory queue, and written to the file by a shared I/O thread,
+ * so a receiving session can ACK a block without waiting for the disk. {@link #write(ByteBuffer, boolean)}
+ * never waits: it always queues the block, and returns False when the ACK of the block must be held back
+ * (the backpressure of the sender) until enough queued blocks are written:
+ * - the buffer is full: until there is room for another block,
+ * - the block could not be reserved from the WRITE_BEHIND subsystem of the {@link MemoryBudget}, or it is
+ *   the final block of the file: until the block is written.
+ * The listener ({@link #setListener(Runnable)}) is then called on the I/O thread, so the session sends the
+ * held ACK from its own thread. Sessions that run on their own thread can wait with {@link #awaitRelease()}.
+ *
+ * A failed write is reported by the next call to {@link #write(ByteBuffer, boolean)}, {@link #isHolding()}
+ * or {@link #awaitRelease()}, with the same messages as {@link ResourceFile#writeBytesToFile(byte[])}
+ * (so the session sends the same DISK_FULL / ACCESS_VIOLATION errors). The listener is called as well.
+ */
+public class WriteBehindSink implements Closeable {
+    private static final Logger LOG = new Logger("WriteBehindSink");
+    private static volatile ExecutorService executor;
+
+    private final ResourceFile file;
+    private final long capacity;
+    private final Queue<PendingBlock> pending;
+    private FileChannel channel;
+    private Runnable listener;
+    private long bufferedBytes;
+    private long reservedBytes;
+    private long queuedBytes;
+    private long writtenBytes;
+    private long releaseBytes;
+    private boolean holding;
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * A queued block, and whether its memory was reserved from the budget
+     */
+    private static final class PendingBlock {
+        private final ByteBuffer data;
+        private final boolean reserved;
+
+        private PendingBlock(ByteBuffer data, boolean reserved) {
+            this.data = data;
+            this.reserved = reserved;
+        }
+    }
+
+    /**
+     * @param file     The file to append the blocks to
+     * @param capacity The maximum number of buffered bytes (at least one block is always accepted)
+     */
+    public WriteBehindSink(ResourceFile file, long capacity) {
+        this.file = file;
+        this.capacity = capacity;
+        this.pending = new ArrayDeque<>();
+    }
+
+    /**
+     * @param listener Called (on the I/O thread) when a held ACK can be sent, or a write failed
+     */
+    public synchronized void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a block to be appended to the file. Never waits for the disk.
+     * @param block The block (from position to limit). Must not be modified afterwards.
+     * @param last  True if this is the final block of the file (it must be written before it is acknowledged)
+     * @return True if the block can be acknowledged now, False to hold its ACK until the listener is called
+     * @throws IOException If a previous write failed, or the file could not be opened
+     */
+    public synchronized boolean write(ByteBuffer block, boolean last) throws IOException {
+        checkOpen();
+
+        // Open the file on the session thread, so permission errors are reported right away
+        if (channel == null)
+            channel = openChannel();
+
+        // Without memory for the block, it is still queued (the session already holds it), but the sender
+        // waits until it is written
+        int length = block.remaining();
+        boolean reserved = MemoryBudget.GLOBAL_BUDGET.tryReserve(MemoryBudget.Subsystem.WRITE_BEHIND, length);
+
+        pending.add(new PendingBlock(block, reserved));
+        bufferedBytes += length;
+        queuedBytes += length;
+        if (reserved)
+            reservedBytes += length;
+
+        if (!flushing) {
+            flushing = true;
+            getExecutor().execute(this::flush);
+        }
+
+        // Until this block is written, or there is room for another block (at least one block is always queued)
+        long release = last || !reserved ? queuedBytes : Math.min(queuedBytes, queuedBytes - capacity + length);
+        if (writtenBytes >= release)
+            return true;
+
+        releaseBytes = release;
+        holding = true;
+        return false;
+    }
+
+    /**
+     * @return True while the ACK of the last block must still be held back
+     * @throws IOException If a write failed
+     */
+    public synchronized boolean isHolding() throws IOException {
+        checkOpen();
+        return holding;
+    }
+
+    /**
+     * Waits until the held ACK can be sent (for sessions that run on their own thread)
+     * @throws IOException If a write failed
+     */
+    public synchronized void awaitRelease() throws IOException {
+        while (holding && failure == null)
+            await();
+
+        checkOpen();
+    }
+
+    /**
+     * Waits until all queued blocks are written
+     * @throws IOException If a write failed
+     */
+    public synchronized void sync() throws IOException {
+        while (flushing && failure == null)
+            await();
+
+        checkOpen();
+    }
+
+    /**
+     * @return The number of bytes that are queued and not written yet
+     */
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Discards the queued blocks (ex: the session failed), and closes the file
+     */
+    public synchronized void abort() {
+        discardPending();
+        close();
+    }
+
+    /**
+     * Waits for the queued blocks to be written, and closes the file
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+
+        try {
+            while (flushing)
+                wait();
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+        }
+
+        closed = true;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioE) {
+                LOG.logVerbose("Failed to close file: " + ioE.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes queued blocks until the queue is empty (runs on the I/O thread)
+     */
+    private void flush() {
+        while (true) {
+            PendingBlock block;
+
+            synchronized (this) {
+                block = pending.peek();
+                if (block == null || failure != null) {
+                    flushing = false;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            int length = block.data.remaining();
+            Runnable released = null;
+            boolean done;
+
+            try {
+                writeBlock(block.data);
+            } catch (IOException ioE) {
+                LOG.logQuiet("Failed to write buffered block: " + ioE.getLocalizedMessage());
+
+                synchronized (this) {
+                    failure = ioE;
+                    discardPending();
+                    flushing = false;
+                    released = listener;
+                    notifyAll();
+                }
+
+                // (the session reports the failure)
+                if (released != null)
+                    released.run();
+                return;
+            }
+
+            synchronized (this) {
+                // The queue may have been discarded by abort() during the write
+                if (pending.peek() == block) {
+                    pending.poll();
+                    bufferedBytes -= length;
+                    writtenBytes += length;
+                    if (block.reserved) {
+                        reservedBytes -= length;
+                        MemoryBudget.GLOBAL_BUDGET.release(MemoryBudget.Subsystem.WRITE_BEHIND, length);
+                    }
+                }
+
+                if (holding && writtenBytes >= releaseBytes) {
+                    holding = false;
+                    released = listener;
+                }
+
+                // (stop in the same step, so the session can close the file as soon as it is released)
+                done = pending.isEmpty();
+                if (done)
+                    flushing = false;
+                notifyAll();
+            }
+
+            if (released != null)
+                released.run();
+            if (done)
+                return;
+        }
+    }
+
+    /**
+     * Appends a block to the file
+     * @param block The block to write
+     * @throws IOException With the messages of the stream based writes (for DISK_FULL / ACCESS_VIOLATION)
+     */
+    private void writeBlock(ByteBuffer block) throws IOException {
+        try {
+            if (file.getUsableSpace() < block.remaining())
+                throw new IOException("Not enough usable space");
+
+            while (block.hasRemaining())
+                channel.write(block);
+        } catch (IOException ioE) {
+            String message = String.valueOf(ioE.getMessage()).toLowerCase();
+            throw message.contains("no space left") ? new IOException("Not enough usable space", ioE) : ioE;
+        }
+    }
+
+    /**
+     * Drops the queued blocks, and releases their memory
+     */
+    private void discardPending() {
+        MemoryBudget.GLOBAL_BUDGET.release(MemoryBudget.Subsystem.WRITE_BEHIND, reservedBytes);
+        pending.clear();
+        bufferedBytes = 0;
+        reservedBytes = 0;
+    }
+
+    private FileChannel openChannel() throws IOException {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (AccessDeniedException aDE) {
+            // Use the same message as the stream based writes, so the session reports an ACCESS_VIOLATION
+            throw new IOException("Permission denied (" + aDE.getFile() + ")", aDE);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null)
+            throw failure;
+
+        if (closed)
+            throw new IOException("The write-behind buffer is closed");
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException iE) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for buffered blocks to be written");
+        }
+    }
+
+    /**
+     * @return The shared write-behind executor (created on first use)
+     */
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (WriteBehindSink.class) {
+                if (executor == null) {
+                    AtomicInteger threadId = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(Math.max(1, GLOBAL_CONFIG.WRITE_BEHIND_THREADS), task -> {
+                        Thread thread = new Thread(task, "WriteBehind-" + threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+
+        return executor;
+    }
+}
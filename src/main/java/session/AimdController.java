@@ -0,0 +1,60 @@
+package session;
+
+/**
+ * Additive increase, multiplicative decrease (the Reno congestion window, RFC 5681, counted in blocks).
+ *
+ * The window starts at 1 and grows by one block per acknowledged block (slow start) up to the slow
+ * start threshold, then by one block per window (congestion avoidance). A gap halves the window;
+ * a timeout halves the threshold and restarts from a window of 1.
+ */
+public class AimdController implements CongestionController {
+    private static final double MIN_THRESHOLD = 2;
+
+    private final int maxWindow;
+    private double window;
+    private double slowStartThreshold;
+
+    /**
+     * @param maxWindow The maximum window, in blocks
+     */
+    public AimdController(int maxWindow) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.window = 1;
+        this.slowStartThreshold = this.maxWindow;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) window;
+    }
+
+    @Override
+    public int getMaxWindow() {
+        return maxWindow;
+    }
+
+    @Override
+    public void onAck(int ackedBlocks, long smoothedRttNanos, long now) {
+        for (int i = 0; i < ackedBlocks && window < maxWindow; i++)
+            window += window < slowStartThreshold ? 1 : 1 / window;
+
+        window = Math.min(window, maxWindow);
+    }
+
+    @Override
+    public void onLoss(long now) {
+        slowStartThreshold = Math.max(window / 2, MIN_THRESHOLD);
+        window = Math.min(slowStartThreshold, maxWindow);
+    }
+
+    @Override
+    public void onTimeout(long now) {
+        slowStartThreshold = Math.max(window / 2, MIN_THRESHOLD);
+        window = 1;
+    }
+
+    @Override
+    public String toString() {
+        return AIMD + "(" + maxWindow + ")";
+    }
+}
@@ -0,0 +1,107 @@
+package session;
+
+import formats.RequestMessage;
+import logging.Logger;
+import socket.TFTPDatagramSocket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link TFTPSession} on the calling thread with a blocking socket.
+ * The socket timeout is set to the time remaining until the deadline of the session.
+ */
+public class BlockingSessionDriver {
+    private static final Logger LOG = new Logger("BlockingSessionDriver");
+    private final TFTPSession session;
+    private final TFTPDatagramSocket socket;
+    private int currentTimeoutMs;
+
+    /**
+     * @param session The session to run
+     * @param socket  The socket to send / receive the session packets on
+     */
+    public BlockingSessionDriver(TFTPSession session, TFTPDatagramSocket socket) {
+        this.session = session;
+        this.socket = socket;
+        this.currentTimeoutMs = -1;
+    }
+
+    /**
+     * Runs the session until it is complete
+     * @param requestMessage The Initial request message
+     * @param destAdr        The socket to send the initial request to.
+     * @return True if the session ran successfully, False otherwise
+     */
+    public boolean run(RequestMessage requestMessage, SocketAddress destAdr) {
+        SessionStep step = send(session.start(requestMessage, destAdr, System.nanoTime()));
+
+        while (!step.isComplete()) {
+            long deadline = step.getDeadline();
+
+            try {
+                setTimeout(deadline - System.nanoTime());
+                DatagramPacket packet = socket.receive();
+
+                if (packet == null)
+                    throw new SocketException("No packet was received");
+
+                ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+                step = session.onPacket(buffer, packet.getSocketAddress(), System.nanoTime());
+
+            } catch (SocketTimeoutException sTE) {
+                // The socket timeout is the time left until the deadline, so the deadline has passed
+                step = session.onTimer(Math.max(System.nanoTime(), deadline));
+            } catch (IOException ioE) {
+                step = session.onIOException(ioE, System.nanoTime());
+            }
+
+            step = send(step);
+        }
+
+        return session.getSessionSuccess();
+    }
+
+    /**
+     * Sends the messages of a step
+     * @param step The step to send
+     * @return The step to continue with (a new step if sending failed)
+     */
+    private SessionStep send(SessionStep step) {
+        for (int i = 0; i < step.getMessageCount(); i++) {
+            try {
+                socket.sendMessage(step.getMessage(i), step.getDestination(i));
+            } catch (IOException ioE) {
+                if (step.isComplete()) {
+                    // Occurs when sending the final (ERROR) message. Do nothing here other than log.
+                    LOG.logQuiet("Failed to send ERROR message. IOException: " + ioE.getLocalizedMessage());
+                    return step;
+                }
+
+                return send(session.onIOException(ioE, System.nanoTime()));
+            }
+        }
+
+        return step;
+    }
+
+    /**
+     * Sets the socket timeout (only if it changed)
+     * @param remainingNanos The time remaining until the deadline
+     * @throws SocketException
+     */
+    private void setTimeout(long remainingNanos) throws SocketException {
+        // A timeout of 0 means 'infinite', so always wait at least 1ms
+        int timeoutMs = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+
+        if (timeoutMs != currentTimeoutMs) {
+            socket.setSoTimeout(timeoutMs);
+            currentTimeoutMs = timeoutMs;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package session;
+
+/**
+ * Decides how many DATA blocks a {@link TransmitSession} may have in flight (its congestion window).
+ *
+ * The session reports acknowledged blocks, losses detected from a gap (a duplicate ACK) and timeouts;
+ * the controller grows or cuts the window accordingly. Every session has its own controller, so the
+ * policy can be chosen per session. The window is always between 1 and the maximum window.
+ */
+public interface CongestionController {
+    String FIXED = "fixed";
+    String AIMD = "aimd";
+    String CUBIC = "cubic";
+
+    /**
+     * @return The number of blocks that may be sent ahead of the last acknowledged block
+     */
+    int getWindow();
+
+    /**
+     * @return The largest window this controller can open (sizes the buffers of the session)
+     */
+    int getMaxWindow();
+
+    /**
+     * Called when an ACK acknowledges new blocks
+     * @param ackedBlocks      The number of newly acknowledged blocks
+     * @param smoothedRttNanos The smoothed RTT of the session, or -1 if it was not measured yet
+     * @param now              The current time
+     */
+    void onAck(int ackedBlocks, long smoothedRttNanos, long now);
+
+    /**
+     * Called when the receiver reports a gap (once per window of data)
+     * @param now The current time
+     */
+    void onLoss(long now);
+
+    /**
+     * Called when the retransmission timer expires
+     * @param now The current time
+     */
+    void onTimeout(long now);
+
+    /**
+     * @param policy    The name of the policy (FIXED, AIMD or CUBIC)
+     * @param maxWindow The maximum window (the window of the FIXED policy)
+     * @return A new controller for one session
+     * @throws IllegalArgumentException If the policy is unknown
+     */
+    static CongestionController create(String policy, int maxWindow) {
+        switch (policy == null ? FIXED : policy.toLowerCase()) {
+            case FIXED:
+                return new FixedWindowController(maxWindow);
+            case AIMD:
+                return new AimdController(maxWindow);
+            case CUBIC:
+                return new CubicController(maxWindow);
+            default:
+                throw new IllegalArgumentException("Unknown congestion control policy: " + policy);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CUBIC congestion window (RFC 8312, counted in blocks).
+ *
+ * After a loss, the window grows along a cubic function of the time since the loss: quickly back towards
+ * the window where the loss happened (W_max), flat around it, then faster again to probe for more. The
+ * growth depends on time rather than on the RTT, so short and long RTT sessions converge to the same
+ * window. The window never grows slower than an AIMD window would (the TCP friendly region). A loss cuts
+ * the window by BETA; a timeout restarts slow start from a window of 1.
+ */
+public class CubicController implements CongestionController {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    private static final double MIN_THRESHOLD = 2;
+
+    // Additive increase of the TCP friendly window per window of acknowledged blocks
+    private static final double FRIENDLY_INCREASE = 3 * (1 - BETA) / (1 + BETA);
+
+    private final int maxWindow;
+    private double window;
+    private double slowStartThreshold;
+    private double lastMaxWindow;
+    private double originWindow;
+    private double friendlyWindow;
+    private double k;
+    private long epochStartNanos;
+    private boolean epochStarted;
+
+    /**
+     * @param maxWindow The maximum window, in blocks
+     */
+    public CubicController(int maxWindow) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.window = 1;
+        this.slowStartThreshold = this.maxWindow;
+    }
+
+    @Override
+    public int getWindow() {
+        return (int) window;
+    }
+
+    @Override
+    public int getMaxWindow() {
+        return maxWindow;
+    }
+
+    @Override
+    public void onAck(int ackedBlocks, long smoothedRttNanos, long now) {
+        if (window < slowStartThreshold) {
+            window = Math.min(window + ackedBlocks, maxWindow);
+            return;
+        }
+
+        if (!epochStarted) {
+            epochStarted = true;
+            epochStartNanos = now;
+            friendlyWindow = window;
+
+            if (window < lastMaxWindow) {
+                k = Math.cbrt((lastMaxWindow - window) / C);
+                originWindow = lastMaxWindow;
+            } else {
+                k = 0;
+                originWindow = window;
+            }
+        }
+
+        // The window one RTT from now on the cubic curve
+        double t = (now - epochStartNanos + Math.max(0, smoothedRttNanos)) / (double) TimeUnit.SECONDS.toNanos(1);
+        double target = Math.min(originWindow + C * Math.pow(t - k, 3), 1.5 * window);
+
+        if (target > window)
+            window += (target - window) / window * ackedBlocks;
+        else
+            window += 0.01 * ackedBlocks / window;
+
+        friendlyWindow += FRIENDLY_INCREASE * ackedBlocks / window;
+        window = Math.min(Math.max(window, friendlyWindow), maxWindow);
+    }
+
+    @Override
+    public void onLoss(long now) {
+        // Fast convergence: release bandwidth to newer flows when the window keeps shrinking
+        lastMaxWindow = window < lastMaxWindow ? window * (1 + BETA) / 2 : window;
+
+        slowStartThreshold = Math.max(window * BETA, MIN_THRESHOLD);
+        window = Math.min(slowStartThreshold, maxWindow);
+        epochStarted = false;
+    }
+
+    @Override
+    public void onTimeout(long now) {
+        onLoss(now);
+        window = 1;
+    }
+
+    @Override
+    public String toString() {
+        return CUBIC + "(" + maxWindow + ")";
+    }
+}
@@ -0,0 +1,42 @@
+package session;
+
+/**
+ * A window that never changes (no congestion control). A window of 1 is plain lock-step TFTP.
+ */
+public class FixedWindowController implements CongestionController {
+    private final int window;
+
+    /**
+     * @param window The window, in blocks
+     */
+    public FixedWindowController(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public int getMaxWindow() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int ackedBlocks, long smoothedRttNanos, long now) {
+    }
+
+    @Override
+    public void onLoss(long now) {
+    }
+
+    @Override
+    public void onTimeout(long now) {
+    }
+
+    @Override
+    public String toString() {
+        return FIXED + "(" + window + ")";
+    }
+}
@@ -0,0 +1,143 @@
+package session;
+
+import formats.Message.MessageType;
+import formats.MulticastOption;
+import formats.RequestMessage;
+import logging.Logger;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * The multicast groups of the running {@link MulticastTransmitSession}s, by file name.
+ *
+ * Each session sending a file to a group uses its own port (MULTICAST_PORT and up, at most MULTICAST_GROUPS
+ * at once) of the MULTICAST_ADDRESS group. A multicast read of a file that is already being sent joins the
+ * running session instead of starting a new one. Multicast is disabled when MULTICAST_ADDRESS is empty.
+ */
+public class MulticastGroups {
+    private static final Logger LOG = new Logger("MulticastGroups");
+    public static final MulticastGroups GLOBAL_MULTICAST_GROUPS = new MulticastGroups(getConfiguredAddress(),
+            GLOBAL_CONFIG.MULTICAST_PORT, GLOBAL_CONFIG.MULTICAST_GROUPS);
+
+    private final InetAddress address;
+    private final int firstPort;
+    private final int portCount;
+    private final BitSet usedPorts;
+    private final Map<String, MulticastTransmitSession> sessions;
+
+    /**
+     * @param address   The multicast group address, or null to disable multicast
+     * @param firstPort The first group port
+     * @param portCount The number of group ports (groups that can run at once)
+     */
+    public MulticastGroups(InetAddress address, int firstPort, int portCount) {
+        if (address != null && !(address instanceof Inet4Address && address.isMulticastAddress()))
+            throw new IllegalArgumentException("Not an IPv4 multicast address: " + address);
+
+        this.address = address;
+        this.firstPort = firstPort;
+        this.portCount = Math.max(0, Math.min(portCount, 65536 - firstPort));
+        this.usedPorts = new BitSet(this.portCount);
+        this.sessions = new HashMap<>();
+    }
+
+    /**
+     * @return The MULTICAST_ADDRESS group, or null if multicast is disabled (or the address is invalid)
+     */
+    private static InetAddress getConfiguredAddress() {
+        if (GLOBAL_CONFIG.MULTICAST_ADDRESS.isEmpty())
+            return null;
+
+        try {
+            InetAddress address = InetAddress.getByName(GLOBAL_CONFIG.MULTICAST_ADDRESS);
+            if (address instanceof Inet4Address && address.isMulticastAddress())
+                return address;
+        } catch (UnknownHostException uHE) {
+            // Logged below
+        }
+
+        LOG.logQuiet("MULTICAST_ADDRESS is not an IPv4 multicast group address (" + GLOBAL_CONFIG.MULTICAST_ADDRESS + "). Multicast is disabled.");
+        return null;
+    }
+
+    /**
+     * @return True if multicast reads are served
+     */
+    public boolean isEnabled() {
+        return address != null && portCount > 0;
+    }
+
+    /**
+     * @param request A request
+     * @return True if the request is an octet read that asks for multicast (clients write blocks at their
+     * position as they arrive, so netascii files, which are translated in order, are sent by unicast)
+     */
+    public static boolean isRequested(RequestMessage request) {
+        return request.getMessageType() == MessageType.RRQ && request.getMode() == RequestMessage.MessageMode.OCTET
+                && request.getOption(MulticastOption.NAME) != null;
+    }
+
+    /**
+     * Adds a client to the session already sending the requested file to a group (if any)
+     * @param request The multicast read request of the client
+     * @param client  The address of the client
+     * @return True if the client joined a running session, False if the request needs its own session
+     */
+    public boolean join(RequestMessage request, SocketAddress client) {
+        MulticastTransmitSession session;
+        synchronized (this) {
+            session = sessions.get(request.getFileName());
+        }
+
+        // The session lock is never taken while holding the registry lock (the session closes its group on completion)
+        return session != null && session.addMember(request, client);
+    }
+
+    /**
+     * Allocates a group for a session sending a file
+     * @param fileName The file sent to the group
+     * @param session  The session
+     * @return The group address and port, or null if the file already has a group or all ports are in use
+     */
+    synchronized InetSocketAddress open(String fileName, MulticastTransmitSession session) {
+        if (!isEnabled() || sessions.containsKey(fileName))
+            return null;
+
+        int port = usedPorts.nextClearBit(0);
+        if (port >= portCount)
+            return null;
+
+        usedPorts.set(port);
+        sessions.put(fileName, session);
+        return new InetSocketAddress(address, firstPort + port);
+    }
+
+    /**
+     * Releases the group of a completed session
+     * @param fileName The file sent to the group
+     * @param session  The session
+     * @param group    The group of the session
+     */
+    synchronized void close(String fileName, MulticastTransmitSession session, InetSocketAddress group) {
+        if (sessions.get(fileName) == session)
+            sessions.remove(fileName);
+
+        usedPorts.clear(group.getPort() - firstPort);
+    }
+
+    /**
+     * @return The number of groups in use
+     */
+    public synchronized int getGroupCount() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,210 @@
+package session;
+
+import exceptions.InvalidPacketException;
+import exceptions.SessionException;
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message;
+import formats.MulticastOption;
+import formats.OptionAckMessage;
+import logging.Logger;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A 'MulticastReceiveSession' is the client side of a multicast read (RFC 2090).
+ *
+ * The request asks for the multicast option. If the server acknowledges it, the driver joins the group of the
+ * OACK ({@link #getMulticastGroup()}), and DATA blocks arrive from the group (or from the server, for gaps).
+ * Blocks are written at their position as they arrive, in any order. The master client acknowledges the last
+ * block of the contiguous blocks it has after each block. Other clients only listen, until they have the whole
+ * file (they then acknowledge the last block and leave the group), or until an OACK makes them the master.
+ *
+ * If the server does not acknowledge the multicast option, the session is a unicast {@link ReceiveSession}.
+ */
+public class MulticastReceiveSession extends ReceiveSession {
+
+    private static final Logger LOG = new Logger("MulticastReceiveSession");
+    private MulticastOption multicast;
+    private BitSet receivedBlocks;
+    private long contiguousIndex;
+    private long finalIndex;
+
+    /**
+     * Creates a new Session given a Session Handler
+     * @param sessionHandler The session handler that will handle errors.
+     */
+    public MulticastReceiveSession(ISessionHandler sessionHandler) {
+        super(sessionHandler);
+        this.contiguousIndex = -1;
+        this.finalIndex = -1;
+    }
+
+    /**
+     * @param options The request options of the client
+     * @return The request options with the multicast option
+     */
+    public static Map<String, String> getRequestOptions(Map<String, String> options) {
+        Map<String, String> multicastOptions = new LinkedHashMap<>(options);
+        multicastOptions.put(MulticastOption.NAME, "");
+        return multicastOptions;
+    }
+
+    /**
+     * @return The group to receive blocks from, or null if the session is not multicast (or already has the whole file)
+     */
+    public synchronized InetSocketAddress getMulticastGroup() {
+        return multicast != null && !isFileComplete() ? multicast.getGroup() : null;
+    }
+
+    /**
+     * @return The address group packets are sent from (the server). Group packets from other sources are not for this session.
+     */
+    public synchronized SocketAddress getGroupSender() {
+        return getCurrentDestination();
+    }
+
+    /**
+     * @return True if the client is the master client
+     */
+    public synchronized boolean isMaster() {
+        return multicast != null && multicast.isMaster();
+    }
+
+    /**
+     * @return True once every block up to the last one was received
+     */
+    private boolean isFileComplete() {
+        return finalIndex >= 0 && contiguousIndex == finalIndex;
+    }
+
+    /**
+     * The server acknowledged the options of the RRQ: joins the group if multicast was acknowledged
+     */
+    @Override
+    protected synchronized void optionsAcknowledged() throws IOException, SessionException {
+        if (getOptionAck().getOption(MulticastOption.NAME) == null && multicast == null) {
+            super.optionsAcknowledged();
+            return;
+        }
+
+        multicastAcknowledged();
+    }
+
+    /**
+     * An OACK during the transfer: the server made this client the master
+     */
+    @Override
+    protected synchronized void optionAckRepeated() throws IOException, InvalidPacketException, SessionException {
+        if (multicast == null) {
+            super.optionAckRepeated();
+            return;
+        }
+
+        multicastAcknowledged();
+    }
+
+    /**
+     * Applies the multicast option of the last OACK (a group, and the role of the client)
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void multicastAcknowledged() throws IOException, SessionException {
+        OptionAckMessage optionAck = getOptionAck();
+        MulticastOption option;
+
+        try {
+            String value = optionAck.getOption(MulticastOption.NAME);
+            if (value == null)
+                throw new InvalidPacketException("The multicast option is missing");
+
+            option = MulticastOption.parse(value);
+        } catch (InvalidPacketException iPE) {
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: " + iPE.getLocalizedMessage()));
+            return;
+        }
+
+        if (multicast == null) {
+            LOG.logQuiet("Receiving from multicast group " + option.getGroup() + (option.isMaster() ? " (master client)" : ""));
+            receivedBlocks = new BitSet();
+        } else if (option.isMaster() && !multicast.isMaster()) {
+            LOG.logVerbose("Promoted to master client");
+        }
+
+        multicast = option;
+
+        if (isFileComplete())
+            sendFinalAck();
+        else if (option.isMaster())
+            sendMessage(new AckMessage(getTransferOptions().getBlockNumber(contiguousIndex)));
+        else
+            keepRetransmitDeadline();
+    }
+
+    @Override
+    protected synchronized void messageReceived(Message message) throws SessionException, IOException {
+        if (multicast == null) {
+            super.messageReceived(message);
+            return;
+        }
+
+        DataMessage dataMessage = (DataMessage) message;
+
+        // Multicast files have at most 65535 blocks, so block numbers never wrap around
+        long index = dataMessage.getBlockNum() - 1;
+        if (index < 0 || (finalIndex >= 0 && index > finalIndex)) {
+            keepRetransmitDeadline();
+            return;
+        }
+
+        if (receivedBlocks.get((int) index)) {
+            Metrics.GLOBAL_METRICS.duplicateData();
+        } else {
+            getResourceFile().writeBytesAt(index * getBlockSize(), dataMessage.getData());
+            receivedBlocks.set((int) index);
+
+            if (dataMessage.isFinalBlock())
+                finalIndex = index;
+
+            while (receivedBlocks.get((int) (contiguousIndex + 1)))
+                contiguousIndex++;
+        }
+
+        if (isFileComplete())
+            sendFinalAck();
+        else if (multicast.isMaster())
+            sendMessage(new AckMessage(getTransferOptions().getBlockNumber(contiguousIndex)));
+    }
+
+    /**
+     * Acknowledges the last block (any client, once it has the whole file). The session completes on the next timeout.
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void sendFinalAck() throws IOException, SessionException {
+        LOG.logVerbose("Received all " + (finalIndex + 1) + " blocks. Acknowledging the last block");
+        sendMessage(new AckMessage(getTransferOptions().getBlockNumber(finalIndex)));
+        setSessionCompleteOnTimeout();
+    }
+
+    /**
+     * Only the master client acknowledges blocks again after a timeout. Other clients keep waiting for the group.
+     */
+    @Override
+    protected synchronized void retransmit() throws IOException, SessionException {
+        if (multicast == null) {
+            super.retransmit();
+            return;
+        }
+
+        if (multicast.isMaster())
+            sendMessage(new AckMessage(getTransferOptions().getBlockNumber(contiguousIndex)), true);
+    }
+}
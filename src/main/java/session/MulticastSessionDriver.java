@@ -0,0 +1,290 @@
+package session;
+
+import formats.DataMessage;
+import formats.Message;
+import formats.RequestMessage;
+import logging.Logger;
+import socket.DataFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Runs a multicast session on the calling thread, with non-blocking channels and a selector.
+ *
+ * The session channel (bound to an ephemeral port, the TID) sends to clients and to multicast groups through
+ * the multicast interface. For a {@link MulticastReceiveSession}, the driver also joins the group of the session
+ * once it is acknowledged (and leaves it once the session has the whole file): packets of the group channel are
+ * handled by the session like packets of the server, and other sources are ignored.
+ */
+public class MulticastSessionDriver implements Closeable {
+    private static final Logger LOG = new Logger("MulticastSessionDriver");
+    private final TFTPSession session;
+    private final NetworkInterface networkInterface;
+    private final Selector selector;
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer;
+    private DatagramChannel groupChannel;
+    private MembershipKey membership;
+    private InetSocketAddress joinedGroup;
+    private DataFrame dataFrame;
+    private long bytesSent;
+
+    /**
+     * @param session          The session to run
+     * @param networkInterface The interface of the multicast groups, or null for the default interface
+     * @throws IOException If the session channel could not be opened
+     */
+    public MulticastSessionDriver(TFTPSession session, NetworkInterface networkInterface) throws IOException {
+        this.session = session;
+        this.networkInterface = networkInterface;
+        this.receiveBuffer = ByteBuffer.allocate(Message.MAX_NEGOTIATED_PACKET_SIZE + 1);
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+
+        try {
+            channel.configureBlocking(false);
+            if (networkInterface != null)
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.bind(null);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ioE) {
+            close();
+            throw ioE;
+        }
+    }
+
+    /**
+     * @return The MULTICAST_INTERFACE network interface, or null to use the default interface
+     * @throws SocketException If the interface does not exist
+     */
+    public static NetworkInterface getConfiguredInterface() throws SocketException {
+        if (GLOBAL_CONFIG.MULTICAST_INTERFACE.isEmpty())
+            return null;
+
+        NetworkInterface networkInterface = NetworkInterface.getByName(GLOBAL_CONFIG.MULTICAST_INTERFACE);
+        if (networkInterface == null)
+            throw new SocketException("Unknown MULTICAST_INTERFACE: " + GLOBAL_CONFIG.MULTICAST_INTERFACE);
+
+        return networkInterface;
+    }
+
+    /**
+     * @return The local port of the session channel
+     * @throws IOException
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * @return The number of bytes sent by the session (all datagrams, to clients and groups)
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Runs the session until it is complete
+     * @param requestMessage The Initial request message
+     * @param destAdr        The socket to send the initial request to (the client, for the server)
+     * @return True if the session ran successfully, False otherwise
+     */
+    public boolean run(RequestMessage requestMessage, SocketAddress destAdr) {
+        SessionStep step = send(session.start(requestMessage, destAdr, System.nanoTime()));
+
+        while (!step.isComplete()) {
+            try {
+                updateMembership();
+
+                long remainingNanos = step.getDeadline() - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    step = send(session.onTimer(Math.max(System.nanoTime(), step.getDeadline())));
+                    continue;
+                }
+
+                // A timeout of 0 means 'infinite', so always wait at least 1ms
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1)));
+                selector.selectedKeys().clear();
+
+                step = receive(channel, step, false);
+                if (groupChannel != null)
+                    step = receive(groupChannel, step, true);
+            } catch (IOException ioE) {
+                step = send(session.onIOException(ioE, System.nanoTime()));
+            }
+        }
+
+        leaveGroup();
+        return session.getSessionSuccess();
+    }
+
+    /**
+     * Handles the pending packets of a channel
+     * @param channel The channel
+     * @param step    The current step
+     * @param group   True for the group channel (only packets of the group sender are handled)
+     * @return The step to continue with
+     * @throws IOException If the receive failed
+     */
+    private SessionStep receive(DatagramChannel channel, SessionStep step, boolean group) throws IOException {
+        while (!step.isComplete()) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+
+            if (source == null)
+                break;
+
+            if (group && !source.equals(((MulticastReceiveSession) session).getGroupSender()))
+                continue;
+
+            receiveBuffer.flip();
+            step = send(session.onPacket(receiveBuffer, source, System.nanoTime()));
+        }
+
+        return step;
+    }
+
+    /**
+     * Joins the group of a multicast client session, or leaves it once the session no longer needs it
+     * @throws IOException If the group could not be joined
+     */
+    private void updateMembership() throws IOException {
+        if (!(session instanceof MulticastReceiveSession))
+            return;
+
+        InetSocketAddress group = ((MulticastReceiveSession) session).getMulticastGroup();
+        if (group == null ? joinedGroup == null : group.equals(joinedGroup))
+            return;
+
+        leaveGroup();
+        if (group == null)
+            return;
+
+        NetworkInterface groupInterface = networkInterface != null ? networkInterface : getDefaultInterface();
+
+        // Other clients on this host listen to the same group port
+        groupChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        groupChannel.configureBlocking(false);
+        groupChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        groupChannel.bind(new InetSocketAddress(group.getPort()));
+        membership = groupChannel.join(group.getAddress(), groupInterface);
+        groupChannel.register(selector, SelectionKey.OP_READ);
+        joinedGroup = group;
+
+        LOG.logVerbose(() -> "Joined multicast group " + group + " on " + groupInterface.getName());
+    }
+
+    /**
+     * @return The first multicast interface that is up (not the loopback interface, unless it is the only one)
+     * @throws IOException If no interface supports multicast
+     */
+    private static NetworkInterface getDefaultInterface() throws IOException {
+        NetworkInterface loopback = null;
+
+        for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!candidate.isUp() || !candidate.supportsMulticast())
+                continue;
+
+            if (!candidate.isLoopback())
+                return candidate;
+
+            loopback = candidate;
+        }
+
+        if (loopback == null)
+            throw new SocketException("No network interface supports multicast");
+
+        return loopback;
+    }
+
+    /**
+     * Leaves the joined group (if any)
+     */
+    private void leaveGroup() {
+        if (groupChannel == null)
+            return;
+
+        LOG.logVerbose(() -> "Leaving multicast group " + joinedGroup);
+        membership.drop();
+
+        try {
+            groupChannel.close();
+        } catch (IOException ioE) {
+            LOG.logVerbose("Failed to close group channel: " + ioE.getLocalizedMessage());
+        }
+
+        groupChannel = null;
+        membership = null;
+        joinedGroup = null;
+    }
+
+    /**
+     * Sends the messages of a step
+     * @param step The step to send
+     * @return The step to continue with (a new step if sending failed)
+     */
+    private SessionStep send(SessionStep step) {
+        for (int i = 0; i < step.getMessageCount(); i++) {
+            try {
+                bytesSent += channel.send(toBuffer(step.getMessage(i)), step.getDestination(i));
+            } catch (IOException ioE) {
+                if (step.isComplete()) {
+                    // Occurs when sending the final (ERROR) message. Do nothing here other than log.
+                    LOG.logQuiet("Failed to send ERROR message. IOException: " + ioE.getLocalizedMessage());
+                    return step;
+                }
+
+                return send(session.onIOException(ioE, System.nanoTime()));
+            }
+        }
+
+        return step;
+    }
+
+    /**
+     * @param message The message to encode
+     * @return The datagram of the message. DATA messages are framed in a reusable frame.
+     * @throws IOException
+     */
+    private ByteBuffer toBuffer(Message message) throws IOException {
+        if (message instanceof DataMessage) {
+            if (dataFrame == null)
+                dataFrame = new DataFrame();
+
+            return dataFrame.set((DataMessage) message).toBuffer();
+        }
+
+        return ByteBuffer.wrap(message.toByteArray());
+    }
+
+    /**
+     * Leaves the group, and closes the channels
+     */
+    @Override
+    public void close() {
+        leaveGroup();
+
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException ioE) {
+            LOG.logVerbose("Failed to close session channel: " + ioE.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package session;
+
+import exceptions.InvalidPacketException;
+import exceptions.SessionException;
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message;
+import formats.MulticastOption;
+import formats.OptionAckMessage;
+import formats.RequestMessage;
+import formats.TransferOptions;
+import logging.Logger;
+import metrics.Metrics;
+import resources.BlockSource;
+import resources.FileBlockSource;
+import resources.ResourceFile;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * A 'MulticastTransmitSession' sends a file to a multicast group (RFC 2090), for many clients reading it at once.
+ *
+ * The server side of a RRQ with the multicast option gets a group from {@link MulticastGroups}, and answers
+ * with an OACK that names the group and makes the client the master client. Each block is sent to the group once.
+ * Only the master client acknowledges blocks, so the window (set by the {@link CongestionController}) follows
+ * the master. Blocks that were already sent to the group (the gaps of the master) are sent again to the master only.
+ *
+ * Clients reading the same file later join the running session ({@link #addMember(RequestMessage, SocketAddress)}):
+ * they get an OACK with mc = 0 and listen to the group. Every client acknowledges the last block once it has
+ * the whole file, and leaves. When the master leaves (or stops responding), the next client is promoted to master
+ * with an OACK with mc = 1. It acknowledges the blocks it already has, and its gaps are filled.
+ *
+ * Block numbers must not wrap around, so only files of up to 65535 blocks (and reads with the same block size
+ * as the group) are multicast. Other requests are served like a unicast {@link TransmitSession}.
+ */
+public class MulticastTransmitSession extends TransmitSession {
+
+    private static final Logger LOG = new Logger("MulticastTransmitSession");
+    private MulticastGroups groups;
+    private InetSocketAddress group;
+    private BlockSource groupBlocks;
+    private long groupBlockCount;
+    private final Map<SocketAddress, Map<String, String>> members;
+    private final Set<SocketAddress> finishedMembers;
+    private final Queue<Map.Entry<SocketAddress, Map<String, String>>> joiningMembers;
+    private long nextGroupIndex;
+    private long masterAckedIndex;
+    private long cursor;
+    private boolean masterAckExpected;
+    private int masterDuplicateAcks;
+    private int masterTimeouts;
+    private int completedMembers;
+    private int droppedMembers;
+
+    /**
+     * Creates a MulticastTransmitSession with the given handler, using the MULTICAST_ADDRESS groups
+     * @param sessionHandler The session handler used to handle errors in the session
+     */
+    public MulticastTransmitSession(ISessionHandler sessionHandler) {
+        super(sessionHandler);
+        this.groups = MulticastGroups.GLOBAL_MULTICAST_GROUPS;
+        this.members = new LinkedHashMap<>();
+        this.finishedMembers = new HashSet<>();
+        this.joiningMembers = new ArrayDeque<>();
+    }
+
+    /**
+     * Sets the groups this session gets its group from. Must be called before the session is started.
+     * @param groups The multicast groups
+     */
+    public synchronized void setMulticastGroups(MulticastGroups groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * @return The multicast group of the session, or null if the file is sent by unicast
+     */
+    public synchronized InetSocketAddress getMulticastGroup() {
+        return group;
+    }
+
+    /**
+     * @return The number of clients that received the whole file so far
+     */
+    public synchronized int getCompletedMemberCount() {
+        return completedMembers;
+    }
+
+    /**
+     * Adds a client reading the file of this session. It gets its OACK on the next event of the session.
+     * @param request The multicast read request of the client
+     * @param client  The address of the client
+     * @return False if the session cannot take the client (not multicast, complete, or another block size)
+     */
+    public synchronized boolean addMember(RequestMessage request, SocketAddress client) {
+        if (group == null || isSessionComplete() || !MulticastGroups.isRequested(request))
+            return false;
+
+        Map<String, String> acceptedOptions = new LinkedHashMap<>();
+        TransferOptions options = TransferOptions.negotiate(request, GLOBAL_CONFIG.MAX_BLOCK_SIZE, getTransferOptions().getRollover(), acceptedOptions);
+        if (options.getBlockSize() != getBlockSize())
+            return false;
+
+        joiningMembers.add(new AbstractMap.SimpleImmutableEntry<>(client, acceptedOptions));
+        return true;
+    }
+
+    @Override
+    protected void initialize() throws IOException, SessionException {
+        if (!MulticastGroups.isRequested(getSessionRequest()) || !openGroup()) {
+            super.initialize();
+            return;
+        }
+
+        SocketAddress master = getCurrentDestination();
+        LOG.logQuiet("Multicast Read Request received. Sending " + groupBlockCount + " DATA blocks to " + group);
+
+        members.put(master, getAcceptedOptions());
+        this.masterAckedIndex = -1;
+        this.masterAckExpected = true;
+        sendOptionAck(master, false);
+    }
+
+    /**
+     * Gets a group for the file, if it can be multicast
+     * @return False if the file must be sent by unicast
+     * @throws IOException
+     * @throws SessionException
+     */
+    private boolean openGroup() throws IOException, SessionException {
+        RequestMessage sessionRequest = getSessionRequest();
+        ResourceFile resourceFile = getResourceFile();
+
+        if (!resourceFile.canRead())
+            sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.ACCESS_VIOLATION, "Could not read file '" + sessionRequest.getFileName() + "'"));
+
+        // Sets the block size of the session (the options are acknowledged with the multicast option)
+        negotiateOptions();
+
+        long blockCount = resourceFile.length() / getBlockSize() + 1;
+        if (blockCount > DataMessage.MAX_BLOCK_NUM) {
+            LOG.logQuiet("The file has more than " + DataMessage.MAX_BLOCK_NUM + " blocks. Sending it by unicast.");
+            return false;
+        }
+
+        InetSocketAddress openedGroup = groups.open(sessionRequest.getFileName(), this);
+        if (openedGroup == null) {
+            LOG.logQuiet("No multicast group is available. Sending the file by unicast.");
+            return false;
+        }
+
+        try {
+            BlockSource loaded = TransmitSession.loadBlockSource(resourceFile, getBlockSize());
+            this.groupBlocks = loaded != null ? loaded : new FileBlockSource(resourceFile.toPath(), getBlockSize(), getCongestionController().getMaxWindow() + 2);
+        } catch (IOException ioE) {
+            groups.close(sessionRequest.getFileName(), this, openedGroup);
+            throw ioE;
+        }
+
+        this.group = openedGroup;
+        this.groupBlockCount = blockCount;
+        setTransferSize(resourceFile.length());
+        return true;
+    }
+
+    /**
+     * @return The options accepted for the session request (without the multicast option)
+     */
+    private Map<String, String> getAcceptedOptions() {
+        Map<String, String> acceptedOptions = new LinkedHashMap<>();
+        TransferOptions.negotiate(getSessionRequest(), GLOBAL_CONFIG.MAX_BLOCK_SIZE, getTransferOptions().getRollover(), acceptedOptions);
+        return acceptedOptions;
+    }
+
+    /**
+     * Sends the OACK of a client, with its role
+     * @param client     The client
+     * @param retransmit True if the OACK was sent before
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void sendOptionAck(SocketAddress client, boolean retransmit) throws IOException, SessionException {
+        Map<String, String> options = new LinkedHashMap<>(members.get(client));
+        options.put(MulticastOption.NAME, new MulticastOption(group, client.equals(getMaster())).toString());
+        sendMessage(new OptionAckMessage(options), client, retransmit);
+    }
+
+    /**
+     * @return The master client (null if there are no clients left)
+     */
+    private SocketAddress getMaster() {
+        Iterator<SocketAddress> iterator = members.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Sends an OACK to the clients that joined since the last event
+     */
+    @Override
+    protected void eventStarted() throws IOException, SessionException {
+        Map.Entry<SocketAddress, Map<String, String>> joining;
+
+        while ((joining = joiningMembers.poll()) != null) {
+            SocketAddress client = joining.getKey();
+            finishedMembers.remove(client);
+
+            if (!members.containsKey(client)) {
+                LOG.logQuiet("Client " + client + " joined the multicast group " + group);
+                members.put(client, joining.getValue());
+            }
+
+            // A client that is already a member repeated its request (the OACK was lost)
+            sendOptionAck(client, false);
+
+            if (client.equals(getMaster()))
+                masterAckExpected = true;
+        }
+    }
+
+    @Override
+    protected boolean isPeer(SocketAddress source) {
+        if (group == null)
+            return super.isPeer(source);
+
+        // Clients that already left may repeat their last ACK
+        return members.containsKey(source) || finishedMembers.contains(source);
+    }
+
+    @Override
+    protected void messageReceived(Message message) throws IOException, InvalidPacketException, SessionException {
+        if (group == null) {
+            super.messageReceived(message);
+            return;
+        }
+
+        SocketAddress source = getPacketSource();
+        long index = ((AckMessage) message).getBlockNum() - 1;
+
+        if (index < -1 || index >= groupBlockCount || !members.containsKey(source)) {
+            keepRetransmitDeadline();
+            return;
+        }
+
+        if (!source.equals(getMaster())) {
+            // Other clients only acknowledge the last block, once they have the whole file
+            if (index == groupBlockCount - 1)
+                memberCompleted(source);
+            else
+                keepRetransmitDeadline();
+            return;
+        }
+
+        if (masterAckExpected) {
+            // The first ACK of a master: the blocks it already has
+            masterAckExpected = false;
+            masterAckedIndex = index;
+            cursor = index + 1;
+            masterDuplicateAcks = 0;
+        } else if (index < masterAckedIndex) {
+            Metrics.GLOBAL_METRICS.duplicateAck();
+            keepRetransmitDeadline();
+            return;
+        } else if (index == masterAckedIndex) {
+            Metrics.GLOBAL_METRICS.duplicateAck();
+
+            // The master stores blocks out of order, so only the first missing block is sent again
+            if (++masterDuplicateAcks == 1 && index + 1 < groupBlockCount) {
+                getCongestionController().onLoss(getCurrentNanos());
+                sendBlock(index + 1);
+            } else {
+                keepRetransmitDeadline();
+            }
+            return;
+        } else {
+            RttEstimator rttEstimator = getRttEstimator();
+            getCongestionController().onAck((int) (index - masterAckedIndex), rttEstimator.hasEstimate() ? rttEstimator.getSmoothedRttNanos() : -1, getCurrentNanos());
+            masterAckedIndex = index;
+            masterDuplicateAcks = 0;
+            cursor = Math.max(cursor, index + 1);
+        }
+
+        masterTimeouts = 0;
+
+        if (masterAckedIndex == groupBlockCount - 1) {
+            memberCompleted(source);
+            return;
+        }
+
+        fillWindow();
+    }
+
+    /**
+     * Sends blocks until the window of the master is full
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void fillWindow() throws IOException, SessionException {
+        while (cursor < groupBlockCount && cursor - masterAckedIndex <= getCongestionController().getWindow())
+            sendBlock(cursor++);
+    }
+
+    /**
+     * Sends a block to the group the first time, and to the master afterwards
+     * @param index The index of the block
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void sendBlock(long index) throws IOException, SessionException {
+        TransferOptions transferOptions = getTransferOptions();
+        DataMessage data = new DataMessage(transferOptions.getBlockNumber(index), groupBlocks.getBlock(index), transferOptions.getBlockSize());
+
+        if (index >= nextGroupIndex) {
+            nextGroupIndex = index + 1;
+            sendMessage(data, group, false);
+        } else {
+            sendMessage(data, getMaster(), true);
+        }
+    }
+
+    /**
+     * A client has the whole file: it leaves the group, and the next client becomes the master
+     * @param client The client
+     * @throws SessionException If no client received the file
+     */
+    private void memberCompleted(SocketAddress client) throws IOException, SessionException {
+        boolean master = client.equals(getMaster());
+        members.remove(client);
+        finishedMembers.add(client);
+        completedMembers++;
+        LOG.logQuiet("Client " + client + " received the file (" + members.size() + " client(s) left)");
+
+        if (master)
+            promoteMaster();
+    }
+
+    /**
+     * Makes the next client the master (or completes the session if no client is left)
+     * @throws IOException
+     * @throws SessionException If no client received the file
+     */
+    private void promoteMaster() throws IOException, SessionException {
+        SocketAddress master = getMaster();
+
+        if (master == null) {
+            if (completedMembers == 0) {
+                LOG.logQuiet("No client received the file. Stopping the session");
+                throw new SessionException();
+            }
+
+            LOG.logQuiet("Successfully completed multicast transmit session (" + completedMembers + " client(s), " + droppedMembers + " dropped)");
+            LOG.logQuiet("---- End File Transaction ---");
+            setSessionComplete();
+            return;
+        }
+
+        LOG.logVerbose(() -> "Client " + master + " is the new master client");
+        masterAckExpected = true;
+        masterTimeouts = 0;
+        resetRetransmitAttempts();
+        sendOptionAck(master, false);
+    }
+
+    @Override
+    protected void retransmit() throws IOException, SessionException {
+        if (group == null) {
+            super.retransmit();
+            return;
+        }
+
+        SocketAddress master = getMaster();
+
+        // A master that stopped responding is dropped, so the other clients are not held back
+        if (++masterTimeouts >= GLOBAL_CONFIG.MAX_TRANSMIT_ATTEMPTS) {
+            LOG.logQuiet("The master client " + master + " stopped responding. Dropping it from the group");
+            members.remove(master);
+            droppedMembers++;
+            promoteMaster();
+            return;
+        }
+
+        if (masterAckExpected) {
+            sendOptionAck(master, true);
+            return;
+        }
+
+        getCongestionController().onTimeout(getCurrentNanos());
+        masterDuplicateAcks = 0;
+        cursor = masterAckedIndex + 1;
+        fillWindow();
+    }
+
+    @Override
+    protected void sessionFinished() {
+        if (group != null) {
+            groups.close(getSessionRequest().getFileName(), this, group);
+            groupBlocks.close();
+        }
+
+        super.sessionFinished();
+    }
+}
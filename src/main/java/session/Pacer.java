@@ -0,0 +1,59 @@
+package session;
+
+/**
+ * Spreads the packets of one session over time.
+ *
+ * Consecutive packets are at least one interval apart (the session picks the interval from its target
+ * rate, ex: the RTT divided by the window), and every packet also reserves its departure on the shared
+ * {@link PacingClock}. A packet that is due within the current tick leaves immediately; later packets
+ * are held back until their tick.
+ */
+public class Pacer {
+    private final PacingClock clock;
+    private long nextDepartureNanos;
+    private long reservedDepartureNanos;
+    private boolean reserved;
+    private boolean started;
+
+    /**
+     * @param clock The shared pacing clock
+     */
+    public Pacer(PacingClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Reserves the departure of the next packet (once, until it is sent or the reservation is cancelled)
+     * @param now           The current time
+     * @param bytes         The size of the packet
+     * @param intervalNanos The minimum time between this packet and the next
+     * @return The time at which the packet may be sent. The packet may be sent right away if this is not after now.
+     */
+    public long getDeparture(long now, int bytes, long intervalNanos) {
+        if (!reserved) {
+            long earliest = started && nextDepartureNanos - now > 0 ? nextDepartureNanos : now;
+            reservedDepartureNanos = clock.reserve(bytes, earliest);
+            nextDepartureNanos = reservedDepartureNanos + Math.max(0, intervalNanos);
+            reserved = true;
+            started = true;
+        }
+
+        // Release the packets of a tick together
+        return reservedDepartureNanos - now <= 0 ? now : clock.toTick(reservedDepartureNanos);
+    }
+
+    /**
+     * Marks the reserved packet as sent
+     */
+    public void sent() {
+        reserved = false;
+    }
+
+    /**
+     * Drops the reservation and the spacing (ex: the session goes back to retransmit)
+     */
+    public void reset() {
+        reserved = false;
+        started = false;
+    }
+}
@@ -0,0 +1,73 @@
+package session;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * The clock shared by all paced senders.
+ *
+ * Departure times are released on clock ticks: the packets of all sessions that are due within the same
+ * tick are sent together, so drivers wake up once per tick instead of once per packet.
+ *
+ * The clock also enforces an optional ceiling on the aggregate egress rate. Every paced packet reserves
+ * its transmission time (bytes / ceiling) on a shared virtual time line, so the packets of all sessions
+ * are spread out to the ceiling. Up to one tick of idle time can be used as a burst.
+ */
+public class PacingClock {
+    public static final PacingClock GLOBAL_PACING_CLOCK = new PacingClock(TimeUnit.MICROSECONDS.toNanos(GLOBAL_CONFIG.PACING_TICK_US),
+            GLOBAL_CONFIG.PACING_EGRESS_BYTES_PER_SEC);
+
+    private final long tickNanos;
+    private final double nanosPerByte;
+    private final AtomicLong virtualTime;
+
+    /**
+     * @param tickNanos            The release granularity of paced packets
+     * @param egressBytesPerSecond The maximum aggregate rate of paced packets (0 for no ceiling)
+     */
+    public PacingClock(long tickNanos, long egressBytesPerSecond) {
+        this.tickNanos = Math.max(1, tickNanos);
+        this.nanosPerByte = egressBytesPerSecond > 0 ? (double) TimeUnit.SECONDS.toNanos(1) / egressBytesPerSecond : 0;
+        this.virtualTime = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * Reserves the transmission of a packet
+     * @param bytes    The size of the packet
+     * @param earliest The earliest departure time wanted by the session
+     * @return The departure time of the packet (at or after earliest)
+     */
+    public long reserve(int bytes, long earliest) {
+        if (nanosPerByte == 0)
+            return earliest;
+
+        long cost = (long) (bytes * nanosPerByte);
+
+        while (true) {
+            long current = virtualTime.get();
+
+            // An idle clock only keeps one tick of credit
+            long start = current == Long.MIN_VALUE || current - (earliest - tickNanos) < 0 ? earliest - tickNanos : current;
+
+            if (virtualTime.compareAndSet(current, start + cost))
+                return start - earliest > 0 ? start : earliest;
+        }
+    }
+
+    /**
+     * @param departure A departure time
+     * @return The tick at which a packet departing at that time is released (at or after the departure)
+     */
+    public long toTick(long departure) {
+        return Math.floorDiv(departure + tickNanos - 1, tickNanos) * tickNanos;
+    }
+
+    /**
+     * @return The release granularity
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+}
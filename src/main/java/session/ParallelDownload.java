@@ -0,0 +1,196 @@
+package session;
+
+import exceptions.SessionException;
+import formats.ErrorMessage;
+import formats.Message.MessageType;
+import formats.RangeOption;
+import formats.RequestMessage;
+import logging.Logger;
+import resources.ResourceFile;
+import resources.ResourceManager;
+import socket.TFTPDatagramSocket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Reads a file with several concurrent sessions (PARALLEL_STREAMS), so a lock-step transfer over a long path
+ * is not limited to one block per RTT.
+ *
+ * Each {@link ReceiveSession} requests one segment of the file with the range option ({@link RangeOption}),
+ * and runs on its own thread and socket. The file is created before the sessions start, and is allocated to
+ * its whole size by the first acknowledged range; the sessions write their blocks at their position.
+ *
+ * A server that does not support ranges sends the whole file: the session of the first segment reads it,
+ * and the other sessions stop.
+ */
+public class ParallelDownload implements ISessionHandler {
+    private static final Logger LOG = new Logger("ParallelDownload");
+    private final ResourceManager resourceManager;
+    private final int streams;
+    private final List<ReceiveSession> sessions;
+
+    /**
+     * @param resourceManager The resource manager of the client
+     * @param streams         The number of concurrent sessions (segments of the file)
+     */
+    public ParallelDownload(ResourceManager resourceManager, int streams) {
+        this.resourceManager = resourceManager;
+        this.streams = Math.max(1, Math.min(RangeOption.MAX_SEGMENTS, streams));
+        this.sessions = new ArrayList<>();
+    }
+
+    /**
+     * @param options The other request options
+     * @param index   The segment of the session
+     * @param count   The number of segments
+     * @return The request options of the session of a segment
+     */
+    public static Map<String, String> getRequestOptions(Map<String, String> options, int index, int count) {
+        Map<String, String> requestOptions = new LinkedHashMap<>(options);
+        requestOptions.put(RangeOption.NAME, RangeOption.segment(index, count));
+        return requestOptions;
+    }
+
+    /**
+     * Runs the sessions of all segments, and waits until they are complete
+     * @param request       The read request (octet mode), with the options of every session
+     * @param serverAddress The server to read from
+     * @return True if the whole file was received
+     */
+    public boolean run(RequestMessage request, SocketAddress serverAddress) {
+        String fileName = request.getFileName();
+        ResourceFile file;
+
+        try {
+            file = resourceManager.getFile(fileName);
+            if (file.exists()) {
+                LOG.logQuiet("The file " + fileName + " already exists and will not be overwritten. No session will be started with the server.");
+                return false;
+            }
+
+            file.createNewFile();
+        } catch (IOException ioE) {
+            LOG.logQuiet("Failed to create the file " + fileName + ": " + ioE.getLocalizedMessage());
+            return false;
+        }
+
+        LOG.logQuiet("Reading " + fileName + " with " + streams + " concurrent sessions");
+        Logger.LogLevel logLevel = Logger.getThreadLogLevel();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < streams; i++) {
+            RequestMessage segmentRequest = new RequestMessage(MessageType.RRQ, fileName, request.getMode(), getRequestOptions(request.getOptions(), i, streams));
+            ReceiveSession session = new ReceiveSession(this);
+            sessions.add(session);
+
+            Thread thread = new Thread(() -> {
+                Logger.setThreadLogLevel(logLevel);
+                try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                    new BlockingSessionDriver(session, socket).run(segmentRequest, serverAddress);
+                } catch (IOException ioE) {
+                    LOG.logQuiet("Failed to open a session socket: " + ioE.getLocalizedMessage());
+                }
+            }, "ParallelDownload-" + i);
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+                LOG.logQuiet("Interrupted while waiting for the sessions");
+                return false;
+            }
+        }
+
+        boolean success = isComplete();
+        if (!success && GLOBAL_CONFIG.CLIENT_DELETE_ON_FAILURE) {
+            LOG.logQuiet("Deleting the incomplete (corrupt) resource file.");
+            file.delete();
+        }
+
+        LOG.logQuiet("Read complete. Success: " + success);
+        return success;
+    }
+
+    /**
+     * @return True if all segments were received, or if the first session received the whole file
+     */
+    private boolean isComplete() {
+        ReceiveSession first = sessions.get(0);
+        if (first.getSessionSuccess() && first.getRange() == null)
+            return true;
+
+        for (ReceiveSession session : sessions) {
+            if (!session.getSessionSuccess() || session.getRange() == null)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The sessions of the segments (once the download was run)
+     */
+    public List<ReceiveSession> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    @Override
+    public ResourceManager getSessionResourceManager() {
+        return resourceManager;
+    }
+
+    /**
+     * Every session has its own socket
+     * @return null
+     */
+    @Override
+    public TFTPDatagramSocket getSessionTFTPSocket() {
+        return null;
+    }
+
+    /**
+     * The file is created before the sessions start, so it exists for every session. Other errors are raised.
+     * @param session The TFTPSession where the error occurred.
+     * @param message The ERROR message representing the error that occurred.
+     * @throws IOException
+     * @throws SessionException
+     */
+    @Override
+    public void sessionErrorOccurred(TFTPSession session, ErrorMessage message) throws IOException, SessionException {
+        switch (message.getErrorType()) {
+            case FILE_EXISTS:
+                break;
+            case FILE_NOT_FOUND:
+                // The file was removed by another program
+                session.getResourceFile().createNewFile();
+                break;
+            default:
+                LOG.logVerbose("Error Occurred: " + message.getMessage());
+                session.raiseError(message);
+                break;
+        }
+    }
+
+    @Override
+    public void sessionErrorReceived(TFTPSession session, ErrorMessage message) {
+        LOG.logQuiet("The following ERROR was received from the server: " + message.getMessage());
+    }
+
+    @Override
+    public void sessionCompleted(TFTPSession session) {
+        LOG.logVerbose(() -> "Session of " + session.getSessionRequest().getOption(RangeOption.NAME) + " complete. Success: " + session.getSessionSuccess());
+    }
+}
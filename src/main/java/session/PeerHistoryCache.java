@@ -0,0 +1,187 @@
+package session;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Remembers what previous sessions learned about each peer host: the smoothed RTT and its variation,
+ * the packet loss rate and the last window and block size that completed a transfer.
+ *
+ * Entries are keyed by the peer address (without the port, since every session uses a new TID) and
+ * expire after a TTL. The cache is bounded: when it is full, the least recently updated entry among
+ * a small sample is evicted, so updates never scan or lock the whole cache.
+ */
+public class PeerHistoryCache {
+    private static final int EVICTION_SAMPLES = 8;
+
+    // Weight of a new session in the loss rate of the peer
+    private static final double LOSS_WEIGHT = 0.25;
+
+    public static final PeerHistoryCache GLOBAL_PEER_HISTORY = new PeerHistoryCache(GLOBAL_CONFIG.PEER_HISTORY_SIZE,
+            TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.PEER_HISTORY_TTL_MS));
+
+    /**
+     * The history of a peer. Immutable, so it can be shared by sessions.
+     */
+    public static final class PeerHistory {
+        private final long smoothedRttNanos;
+        private final long rttVarianceNanos;
+        private final double lossRate;
+        private final int windowSize;
+        private final int blockSize;
+        private final long updatedNanos;
+
+        private PeerHistory(long smoothedRttNanos, long rttVarianceNanos, double lossRate, int windowSize, int blockSize, long updatedNanos) {
+            this.smoothedRttNanos = smoothedRttNanos;
+            this.rttVarianceNanos = rttVarianceNanos;
+            this.lossRate = lossRate;
+            this.windowSize = windowSize;
+            this.blockSize = blockSize;
+            this.updatedNanos = updatedNanos;
+        }
+
+        public long getSmoothedRttNanos() {
+            return smoothedRttNanos;
+        }
+
+        public long getRttVarianceNanos() {
+            return rttVarianceNanos;
+        }
+
+        /**
+         * @return The fraction of sent packets that were retransmitted (smoothed over sessions)
+         */
+        public double getLossRate() {
+            return lossRate;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        @Override
+        public String toString() {
+            return "srtt=" + TimeUnit.NANOSECONDS.toMicros(smoothedRttNanos) + "us rttvar=" + TimeUnit.NANOSECONDS.toMicros(rttVarianceNanos)
+                    + "us loss=" + String.format("%.3f", lossRate) + " window=" + windowSize + " blksize=" + blockSize;
+        }
+    }
+
+    private final Map<InetAddress, PeerHistory> entries;
+    private final int capacity;
+    private final long ttlNanos;
+
+    /**
+     * @param capacity The maximum number of peers remembered
+     * @param ttlNanos The time after which the history of a peer is forgotten
+     */
+    public PeerHistoryCache(int capacity, long ttlNanos) {
+        this.entries = new ConcurrentHashMap<>();
+        this.capacity = Math.max(0, capacity);
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * @param peer The peer socket address
+     * @param now  The current time
+     * @return The history of the peer host, or null if it is unknown or expired
+     */
+    public PeerHistory get(SocketAddress peer, long now) {
+        InetAddress address = toAddress(peer);
+        if (address == null)
+            return null;
+
+        PeerHistory history = entries.get(address);
+        if (history != null && isExpired(history, now)) {
+            entries.remove(address, history);
+            return null;
+        }
+
+        return history;
+    }
+
+    /**
+     * Records the results of a completed session. The loss rate is smoothed with the previous history.
+     * @param peer             The peer socket address
+     * @param smoothedRttNanos The smoothed RTT of the session
+     * @param rttVarianceNanos The RTT variation of the session
+     * @param lossRate         The fraction of packets retransmitted by the session
+     * @param windowSize       The window (in blocks) used by the session
+     * @param blockSize        The block size used by the session
+     * @param now              The current time
+     */
+    public void update(SocketAddress peer, long smoothedRttNanos, long rttVarianceNanos, double lossRate, int windowSize, int blockSize, long now) {
+        InetAddress address = toAddress(peer);
+        if (address == null || capacity == 0 || smoothedRttNanos < 0)
+            return;
+
+        entries.compute(address, (key, previous) -> {
+            double loss = previous == null || isExpired(previous, now) ? lossRate : previous.lossRate + LOSS_WEIGHT * (lossRate - previous.lossRate);
+            return new PeerHistory(smoothedRttNanos, rttVarianceNanos, loss, windowSize, blockSize, now);
+        });
+
+        if (entries.size() > capacity)
+            evict(now);
+    }
+
+    /**
+     * @return The number of peers remembered (including expired entries that were not removed yet)
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forgets all peers
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes entries until the cache is within its capacity. Expired entries are removed first,
+     * otherwise the oldest of a few sampled entries.
+     * @param now The current time
+     */
+    private void evict(long now) {
+        while (entries.size() > capacity) {
+            Map.Entry<InetAddress, PeerHistory> oldest = null;
+            Iterator<Map.Entry<InetAddress, PeerHistory>> iterator = entries.entrySet().iterator();
+
+            for (int i = 0; i < EVICTION_SAMPLES && iterator.hasNext(); i++) {
+                Map.Entry<InetAddress, PeerHistory> entry = iterator.next();
+
+                if (isExpired(entry.getValue(), now)) {
+                    oldest = entry;
+                    break;
+                }
+
+                if (oldest == null || entry.getValue().updatedNanos - oldest.getValue().updatedNanos < 0)
+                    oldest = entry;
+            }
+
+            if (oldest == null)
+                return;
+
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    private boolean isExpired(PeerHistory history, long now) {
+        return now - history.updatedNanos > ttlNanos;
+    }
+
+    private static InetAddress toAddress(SocketAddress peer) {
+        return peer instanceof InetSocketAddress ? ((InetSocketAddress) peer).getAddress() : null;
+    }
+}
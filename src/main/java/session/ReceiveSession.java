@@ -1,17 +1,33 @@
 package session;
 
+import exceptions.InvalidPacketException;
 import exceptions.SessionException;
 import formats.AckMessage;
+import formats.CompressOption;
 import formats.DataMessage;
 import formats.ErrorMessage;
 import formats.Message;
 import formats.Message.MessageType;
+import formats.OptionAckMessage;
+import formats.RangeOption;
 import formats.RequestMessage;
+import formats.ResumeOption;
+import formats.TransferOptions;
 import logging.Logger;
+import metrics.Metrics;
+import resources.NetasciiDecoder;
 import resources.ResourceFile;
+import resources.ResourceManager;
+import resources.WriteBehindSink;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import static formats.Message.MessageType.DATA;
 import static resources.Configuration.GLOBAL_CONFIG;
@@ -23,13 +39,40 @@ import static resources.Configuration.GLOBAL_CONFIG;
  *
  * This Occurs when the Client sends a RRQ, and when the Server receives a WRQ.
  * Both the Client and Server would be receiving entities in this situation.
+ *
+ * Blocks are counted with a 64 bit index, so files of any size are received: block numbers are mapped to
+ * the nearest index of the last acknowledged block ({@link TransferOptions#getBlockIndex(int, long)}), which
+ * keeps duplicate detection working across the wrap of the 16 bit block numbers.
+ *
+ * In netascii mode, blocks are translated to local text as they are written ({@link NetasciiDecoder}).
+ * The blocks of a compressed transfer ({@link CompressOption}) are decompressed as they are written (before the
+ * netascii translation).
+ *
+ * A resumed transfer ({@link ResumeOption}) writes the blocks to the partial file of the requested file, after
+ * the bytes that were already received. The partial file replaces the requested file once the final block is
+ * written, and it is kept when the session fails (the requested file stays empty, and is removed), so the next
+ * transfer only sends the missing bytes.
+ *
+ * A ranged read ({@link RangeOption}, see {@link ParallelDownload}) writes the blocks at their position in the
+ * requested file, which is allocated to the size of the file first, so concurrent sessions fill the same file.
  */
 public class ReceiveSession extends TFTPSession {
 
     private static final Logger LOG = new Logger("ReceiveSession");
     private static final MessageType INCOMING_MESSAGE_TYPE = DATA;
-    private int lastBlockAcked;
+    private long lastIndexAcked;
     private int lastBlockReceivedCount;
+    private WriteBehindSink writeBehind;
+    private DataMessage heldAck;
+    private long heldAckIndex;
+    private NetasciiDecoder decoder;
+    private ByteBuffer decodeBuffer;
+    private Inflater inflater;
+    private byte[] inflateBuffer;
+    private ResourceFile writeFile;
+    private long resumeOffset;
+    private RangeOption range;
+    private long rangeWritten;
 
     /**
      * Creates a new Session given a Session Handler
@@ -37,6 +80,25 @@ public class ReceiveSession extends TFTPSession {
      */
     public ReceiveSession(ISessionHandler sessionHandler) {
         super(sessionHandler, INCOMING_MESSAGE_TYPE);
+        this.lastIndexAcked = -1;
+    }
+
+    /**
+     * Adds the resume option to the options of a read request (RESUME): the length and checksum of the partial
+     * file of a previous read of the file, if any
+     * @param resourceManager The resource manager of the client
+     * @param fileName        The requested file
+     * @param options         The other request options
+     * @return The options of the request
+     * @throws IOException If the partial file could not be read
+     */
+    public static Map<String, String> getRequestOptions(ResourceManager resourceManager, String fileName, Map<String, String> options) throws IOException {
+        ResourceFile partialFile = resourceManager.getPartialFile(fileName);
+        long length = partialFile.exists() ? partialFile.length() : 0;
+
+        Map<String, String> requestOptions = new LinkedHashMap<>(options);
+        requestOptions.put(ResumeOption.NAME, new ResumeOption(length, length > 0 ? partialFile.checksum(length) : 0).toString());
+        return requestOptions;
     }
 
     /**
@@ -61,20 +123,45 @@ public class ReceiveSession extends TFTPSession {
         // It is safe to assume that the message passed in will be of type DataMessage
         DataMessage dataMessage = (DataMessage) message;
 
-        if (lastBlockAcked == DataMessage.MAX_BLOCK_NUM && dataMessage.getBlockNum() == 1) {
-        	    // Looping
-        } else if (dataMessage.getBlockNum() < lastBlockAcked) {
-            LOG.logVerbose("Received DATA with old block: " + dataMessage.getBlockNum() + ". Ignoring DATA block");
+        if (heldAck != null) {
+            // The disk is behind: blocks are not accepted until the held ACK is sent (the sender sends them again)
+            LOG.logVerbose(() -> "Waiting for buffered blocks to be written. Ignoring DATA block " + dataMessage.getBlockNum());
+            keepRetransmitDeadline();
             return;
         }
 
-        if (dataMessage.getBlockNum() == lastBlockAcked) {
-            LOG.logVerbose("Received Retransmitted DATA with block: " + dataMessage.getBlockNum());
-            sendAckForData(dataMessage);
+        // Distance from the last acknowledged block (block numbers wrap around, indexes do not)
+        TransferOptions transferOptions = getTransferOptions();
+        long index = transferOptions.getBlockIndex(dataMessage.getBlockNum(), lastIndexAcked);
+        long distance = index - lastIndexAcked;
+
+        if (distance == 0) {
+            LOG.logVerbose(() -> "Received Retransmitted DATA with block: " + dataMessage.getBlockNum());
+            Metrics.GLOBAL_METRICS.duplicateData();
+            sendAckForData(dataMessage, index);
             return;
         }
 
-        ResourceFile resourceFile = getResourceFile();
+        if (distance < 0) {
+            LOG.logVerbose(() -> "Received DATA with old block: " + dataMessage.getBlockNum() + ". Ignoring DATA block");
+            Metrics.GLOBAL_METRICS.duplicateData();
+            return;
+        }
+
+        if (distance > 1) {
+            // A block of the window was lost. Blocks are only written in order, so ACK the last block again
+            // (the sender goes back to the missing block)
+            int lastBlockAcked = transferOptions.getBlockNumber(lastIndexAcked);
+            LOG.logVerbose(() -> "Received DATA block " + dataMessage.getBlockNum() + " out of order. Acknowledging block " + lastBlockAcked + " again");
+            sendMessage(new AckMessage(lastBlockAcked));
+            return;
+        }
+
+        // The first block of the transfer decides which file is written (and from which offset)
+        if (writeFile == null)
+            openWriteFile();
+
+        ResourceFile resourceFile = writeFile;
 
         // Check to see if there is enough usable space
         int numBytesToWrite = dataMessage.getDataSize();
@@ -92,28 +179,246 @@ public class ReceiveSession extends TFTPSession {
             sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.ACCESS_VIOLATION, "Write permissions denied on file: " + getSessionRequest().getFileName()));
         }
 
-        // Write block to file
-        resourceFile.writeBytesToFile(dataMessage.getData());
+        // Compressed blocks are decompressed, and netascii blocks translated to local text (in order, a CR LF
+        // pair may span two blocks)
+        ByteBuffer localData = decodeBlock(dataMessage);
+
+        if (range != null) {
+            // Other sessions write the other ranges of the file
+            writeRange(resourceFile, dataMessage.getData());
+        } else if (GLOBAL_CONFIG.WRITE_BEHIND_BYTES > 0) {
+            // Queue the block, and let the I/O thread write it
+            if (writeBehind == null) {
+                writeBehind = new WriteBehindSink(resourceFile, GLOBAL_CONFIG.WRITE_BEHIND_BYTES);
+                writeBehind.setListener(this::requestWakeup);
+            }
+
+            // (the sink keeps queued blocks, so the reused netascii buffer is copied)
+            ByteBuffer block = localData == null ? dataMessage.getPayload()
+                    : localData == decodeBuffer ? ByteBuffer.wrap(Arrays.copyOf(localData.array(), localData.limit())) : localData;
+
+            // The buffer is full (or the final ACK must confirm the whole file): the ACK is held back until the
+            // blocks are written, which the sink reports by waking the session
+            if (!writeBehind.write(block, dataMessage.isFinalBlock())) {
+                if (isWakeupEnabled()) {
+                    heldAck = dataMessage;
+                    heldAckIndex = index;
+                    return;
+                }
+
+                // (the session runs on its own thread, so it waits for the disk)
+                writeBehind.awaitRelease();
+            }
+        } else {
+            // Write block to file
+            if (localData != null)
+                resourceFile.writeBytesToFile(localData.array(), localData.arrayOffset() + localData.position(), localData.remaining());
+            else
+                resourceFile.writeBytesToFile(dataMessage.getData());
+        }
+
+        acknowledgeWritten(dataMessage, index);
+    }
+
+    /**
+     * Sends the ACK of a written block (and completes the file after the final block)
+     * @param dataMessage The written block
+     * @param index       The block index of the DATA message
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void acknowledgeWritten(DataMessage dataMessage, long index) throws IOException, SessionException {
+        if (dataMessage.isFinalBlock())
+            completeWriteFile();
 
         // Send ack if write was successful
-        sendAckForData(dataMessage);
+        sendAckForData(dataMessage, index);
+    }
+
+    /**
+     * Sends the ACK held back for the write-behind buffer, once its blocks are written (or reports the failed write)
+     */
+    @Override
+    protected synchronized void wakeupReceived() throws IOException, SessionException {
+        if (heldAck == null || writeBehind.isHolding()) {
+            keepRetransmitDeadline();
+            return;
+        }
+
+        DataMessage dataMessage = heldAck;
+        heldAck = null;
+        acknowledgeWritten(dataMessage, heldAckIndex);
+    }
+
+    /**
+     * Opens the file the blocks are written to: the requested file, or the partial file of a resumed transfer
+     * (cut to the acknowledged offset, or emptied if the transfer starts from the first byte)
+     * @throws IOException
+     * @throws SessionException If the session reads a segment of the file that the server did not acknowledge
+     */
+    private void openWriteFile() throws IOException, SessionException {
+        if (isRangeRequested() && range == null)
+            checkUnrangedRead();
+
+        if (range != null || !isResumeRequested()) {
+            writeFile = getResourceFile();
+            return;
+        }
+
+        writeFile = getPartialFile();
+        if (!writeFile.exists() || writeFile.length() != resumeOffset)
+            writeFile.truncate(resumeOffset);
+
+        if (resumeOffset > 0)
+            LOG.logQuiet("Resuming the transfer after " + resumeOffset + " bytes of '" + writeFile.getName() + "'");
+    }
+
+    /**
+     * Writes a block of a ranged read at its position in the file
+     * @param resourceFile The requested file
+     * @param data         The block
+     * @throws IOException
+     * @throws SessionException If the block is beyond the acknowledged range
+     */
+    private void writeRange(ResourceFile resourceFile, byte[] data) throws IOException, SessionException {
+        if (rangeWritten + data.length > range.getLength())
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.ILLEGAL_OPERATION, "The DATA block is beyond the range " + range));
+
+        resourceFile.writeBytesAt(range.getOffset() + rangeWritten, data);
+        rangeWritten += data.length;
+    }
+
+    /**
+     * A server that does not support ranges sends the whole file: only the session of the first segment reads it
+     * @throws IOException
+     * @throws SessionException If the session reads another segment (it stops with an OPTION_NEGOTIATION error)
+     */
+    private void checkUnrangedRead() throws IOException, SessionException {
+        try {
+            if (RangeOption.getSegmentIndex(getSessionRequest().getOption(RangeOption.NAME)) == 0) {
+                LOG.logQuiet("The server does not support ranges. Reading the whole file.");
+                return;
+            }
+        } catch (InvalidPacketException iPE) {
+            // Not a segment, stop as well
+        }
+
+        raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: the range was not acknowledged"));
+    }
+
+    /**
+     * @return The range of the file acknowledged by the server, or null if the session reads the whole file
+     */
+    public synchronized RangeOption getRange() {
+        return range;
+    }
+
+    /**
+     * Replaces the requested file with the completed partial file (resumed transfers), before the final ACK
+     * @throws IOException If the partial file could not be moved
+     */
+    private void completeWriteFile() throws IOException {
+        ResourceFile resourceFile = getResourceFile();
+        if (writeFile == resourceFile)
+            return;
+
+        // The final block was written, only the file remains open
+        if (writeBehind != null)
+            writeBehind.close();
+
+        writeFile.moveTo(resourceFile);
+        writeFile = resourceFile;
+    }
+
+    /**
+     * @param dataMessage The next DATA block of the file
+     * @return The local bytes of the block (valid until the next block), or null if the block is written as is
+     * @throws IOException
+     * @throws SessionException If the compressed stream is invalid
+     */
+    private ByteBuffer decodeBlock(DataMessage dataMessage) throws IOException, SessionException {
+        if (inflater == null)
+            return isNetascii() ? decodeNetascii(dataMessage.getPayload(), dataMessage.isFinalBlock()) : null;
+
+        ByteBuffer inflated = ByteBuffer.wrap(inflate(dataMessage));
+        return isNetascii() ? decodeNetascii(inflated, dataMessage.isFinalBlock()) : inflated;
+    }
+
+    /**
+     * Decompresses a block of a compressed transfer. The stream must end with the final block.
+     * @param dataMessage The next DATA block of the compressed stream
+     * @return The decompressed bytes of the block
+     * @throws IOException
+     * @throws SessionException If the compressed stream is invalid (ILLEGAL_OPERATION error)
+     */
+    private byte[] inflate(DataMessage dataMessage) throws IOException, SessionException {
+        if (inflateBuffer == null)
+            inflateBuffer = new byte[getBlockSize() * 4];
+
+        inflater.setInput(dataMessage.getData());
+        int length = 0;
+
+        try {
+            while (!inflater.finished()) {
+                if (length == inflateBuffer.length)
+                    inflateBuffer = Arrays.copyOf(inflateBuffer, length * 2);
+
+                int inflated = inflater.inflate(inflateBuffer, length, inflateBuffer.length - length);
+                length += inflated;
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+            }
+        } catch (DataFormatException dFE) {
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.ILLEGAL_OPERATION, "Invalid compressed DATA block " + dataMessage.getBlockNum() + ": " + dFE.getLocalizedMessage()));
+        }
+
+        if (inflater.finished() != dataMessage.isFinalBlock())
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.ILLEGAL_OPERATION, "The compressed stream does not end with the final DATA block (block " + dataMessage.getBlockNum() + ")"));
+
+        return Arrays.copyOf(inflateBuffer, length);
+    }
+
+    /**
+     * Translates a netascii block to local text. A CR at the end of the block is held until the next block.
+     * @param payload    The next netascii bytes of the file
+     * @param finalBlock True if these are the last bytes of the file
+     * @return The local bytes of the block, in the decode buffer of the session (overwritten by the next block)
+     */
+    private ByteBuffer decodeNetascii(ByteBuffer payload, boolean finalBlock) {
+        if (decoder == null)
+            decoder = new NetasciiDecoder();
+
+        // Decompressed blocks are longer than the block size
+        if (decodeBuffer == null || decodeBuffer.capacity() < payload.remaining() + 1)
+            decodeBuffer = ByteBuffer.allocate(Math.max(getBlockSize(), payload.remaining()) + 1);
+
+        decodeBuffer.clear();
+        decoder.decode(payload, decodeBuffer);
+        if (finalBlock)
+            decoder.finish(decodeBuffer);
+
+        decodeBuffer.flip();
+        return decodeBuffer;
     }
 
     /**
      * Sends ACK block for DATA
      * @param dataMessage The DATA message to Acknowledge.
+     * @param index       The block index of the DATA message
      * @throws IOException
      * @throws SessionException
      */
-    private synchronized void sendAckForData(DataMessage dataMessage) throws IOException, SessionException {
+    private synchronized void sendAckForData(DataMessage dataMessage, long index) throws IOException, SessionException {
         // Send ACK for data
         AckMessage ackMsg = new AckMessage(dataMessage.getBlockNum());
         sendMessage(ackMsg);
 
         // Set the last block acknowledged
-        this.lastBlockAcked = dataMessage.getBlockNum();
+        this.lastIndexAcked = index;
 
-        LOG.logVerbose("Sent Ack for block: " + ackMsg.getBlockNum());
+        if (LOG.isVerbose())
+            LOG.logVerbose("Sent Ack for block: " + ackMsg.getBlockNum());
 
         // Check if this was the last block
         if (dataMessage.isFinalBlock()) {
@@ -142,6 +447,116 @@ public class ReceiveSession extends TFTPSession {
         }
     }
 
+    /**
+     * The server acknowledged the options of the RRQ. ACK 0 starts the transfer (again, if the OACK was repeated).
+     */
+    @Override
+    protected synchronized void optionsAcknowledged() throws IOException, SessionException {
+        if (isRangeRequested() && !acknowledgeRange())
+            checkUnrangedRead();
+
+        // The server resumes the read after the whole partial file
+        String resume = getOptionAck().getOption(ResumeOption.NAME);
+        if (resume != null && isResumeRequested()) {
+            try {
+                ResumeOption requested = ResumeOption.parse(getSessionRequest().getOption(ResumeOption.NAME));
+                ResumeOption acknowledged = ResumeOption.parse(resume);
+
+                if (acknowledged.getOffset() != requested.getOffset() || acknowledged.getChecksum() != requested.getChecksum())
+                    throw new InvalidPacketException("The acknowledged resume option " + resume + " does not match the partial file");
+
+                resumeOffset = acknowledged.getOffset();
+            } catch (InvalidPacketException iPE) {
+                raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: " + iPE.getLocalizedMessage()));
+            }
+        }
+
+        String compress = getOptionAck().getOption(CompressOption.NAME);
+        if (compress != null && isCompressionRequested())
+            acknowledgeCompression(compress);
+
+        LOG.logVerbose("Sending OACK ACK");
+        sendMessage(new AckMessage(0));
+    }
+
+    /**
+     * The server sends the file compressed
+     * @param value The acknowledged compress option
+     * @throws IOException
+     * @throws SessionException If the algorithm is not supported, or the read also resumes (OPTION_NEGOTIATION error)
+     */
+    private void acknowledgeCompression(String value) throws IOException, SessionException {
+        if (!CompressOption.DEFLATE.equalsIgnoreCase(value) || resumeOffset > 0)
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: invalid compress option '" + value + "'"));
+
+        inflater = new Inflater();
+        LOG.logQuiet("Receiving the file compressed");
+    }
+
+    /**
+     * Applies the acknowledged range: the file is allocated to its whole size, for the blocks of all ranges
+     * @return True if the server acknowledged the range
+     * @throws IOException
+     * @throws SessionException If the range is invalid (OPTION_NEGOTIATION error)
+     */
+    private boolean acknowledgeRange() throws IOException, SessionException {
+        String value = getOptionAck().getOption(RangeOption.NAME);
+        if (value == null)
+            return false;
+
+        try {
+            range = RangeOption.parse(value);
+        } catch (InvalidPacketException iPE) {
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: " + iPE.getLocalizedMessage()));
+        }
+
+        setTransferSize(range.getLength());
+        getResourceFile().preallocate(range.getFileSize());
+        LOG.logVerbose(() -> "Reading the range " + range + " of the file");
+        return true;
+    }
+
+    /**
+     * Writes out (or discards, if the session failed) the blocks still in the write-behind buffer
+     */
+    @Override
+    protected synchronized void sessionFinished() {
+        if (inflater != null)
+            inflater.end();
+
+        if (writeBehind != null) {
+            if (getSessionSuccess())
+                writeBehind.close();
+            else
+                writeBehind.abort();
+        }
+
+        if (!getSessionSuccess() && isResumeRequested())
+            keepPartialFile();
+    }
+
+    /**
+     * Keeps the partial file of a failed resumed transfer, and removes the requested file (still empty), so the
+     * transfer can be requested again. The partial file is removed if the sender rejected it (it does not
+     * match the file of the sender).
+     */
+    private void keepPartialFile() {
+        try {
+            ResourceFile resourceFile = getResourceFile();
+            if (resourceFile != null && writeFile != resourceFile && resourceFile.exists() && resourceFile.length() == 0)
+                resourceFile.delete();
+
+            if (getFailureType() == ErrorMessage.ErrorType.OPTION_NEGOTIATION) {
+                LOG.logQuiet("The partial file was rejected. Removing it.");
+                getPartialFile().delete();
+            } else if (writeFile != null && writeFile != resourceFile) {
+                LOG.logQuiet("Keeping " + writeFile.length() + " received bytes in '" + writeFile.getName() + "' to resume the transfer");
+            }
+        } catch (IOException ioE) {
+            LOG.logQuiet("Failed to keep the partial file: " + ioE.getLocalizedMessage());
+        }
+    }
+
     /**
      * Initialize a Receive Session. Based on the session request message, we can determine if
      * we need to send the request message OR if we need to ACK the request message.
@@ -164,19 +579,36 @@ public class ReceiveSession extends TFTPSession {
 
             LOG.logVerbose("Sending Read Request");
             // Since we are on the client side, we need to first send out the request
-            sendMessage(sessionRequest);
-
-            // Update socket address on the next receive
-            // (since it will be the address from the new server worker)
-            setShouldUpdateSocketAddress();
+            sendRequest();
 
         } else if (requestType.equals(MessageType.WRQ)) {
 
-            LOG.logVerbose("Sending WRQ ACK");
             // Since we are on the server side, we have already received the request
-            // We need to send back a WRQ ACK
-            AckMessage wrqAck = new AckMessage(0);
-            sendMessage(wrqAck);
+            // We need to send back a WRQ ACK (or an OACK, if options were accepted)
+            OptionAckMessage optionAck = negotiateOptions();
+
+            // Offer the bytes of an interrupted write (the client checks them against its file)
+            ResourceFile partialFile = isResumeRequested() ? getPartialFile() : null;
+            if (partialFile != null && partialFile.exists() && partialFile.length() > 0) {
+                resumeOffset = partialFile.length();
+                ResumeOption offer = new ResumeOption(resumeOffset, partialFile.checksum(resumeOffset));
+                LOG.logVerbose(() -> "Offering to resume the write: " + offer);
+                optionAck = addOption(optionAck, ResumeOption.NAME, offer.toString());
+            } else if (isCompressionRequested()) {
+                // The client only asks if its file compresses well
+                inflater = new Inflater();
+                LOG.logVerbose("Receiving the file compressed");
+                optionAck = addOption(optionAck, CompressOption.NAME, CompressOption.DEFLATE);
+            }
+
+            if (optionAck != null) {
+                LOG.logVerbose("Sending WRQ OACK");
+                sendMessage(optionAck);
+            } else {
+                LOG.logVerbose("Sending WRQ ACK");
+                AckMessage wrqAck = new AckMessage(0);
+                sendMessage(wrqAck);
+            }
         }
     }
 }
@@ -0,0 +1,115 @@
+package session;
+
+/**
+ * Retransmission timeout estimator (RFC 6298).
+ *
+ * Keeps the smoothed round trip time (SRTT) and its variation (RTTVAR) of a session, and derives the
+ * retransmission timeout: RTO = SRTT + max(G, 4 * RTTVAR), bounded by a minimum and a maximum.
+ * Every timeout doubles the RTO (exponential backoff) until the next sample is taken. Samples must
+ * only be taken for messages that were not retransmitted (Karn's algorithm).
+ */
+public class RttEstimator {
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+    private final long granularityNanos;
+
+    private double smoothedRttNanos;
+    private double rttVarianceNanos;
+    private boolean hasEstimate;
+    private long timeoutNanos;
+
+    /**
+     * @param initialTimeoutNanos The timeout used until the first sample
+     * @param minTimeoutNanos     The lower bound of the timeout
+     * @param maxTimeoutNanos     The upper bound of the timeout (also bounds the backoff)
+     * @param granularityNanos    The clock granularity (the smallest variation term)
+     */
+    public RttEstimator(long initialTimeoutNanos, long minTimeoutNanos, long maxTimeoutNanos, long granularityNanos) {
+        this.minTimeoutNanos = Math.max(0, minTimeoutNanos);
+        this.maxTimeoutNanos = Math.max(this.minTimeoutNanos, maxTimeoutNanos);
+        this.granularityNanos = Math.max(0, granularityNanos);
+        this.timeoutNanos = clamp(initialTimeoutNanos);
+    }
+
+    /**
+     * Starts from a previous estimate (ex: from the history of the peer), as if it had been sampled
+     * @param smoothedRttNanos The smoothed round trip time
+     * @param rttVarianceNanos The round trip time variation
+     */
+    public void seed(long smoothedRttNanos, long rttVarianceNanos) {
+        if (smoothedRttNanos < 0)
+            return;
+
+        this.smoothedRttNanos = smoothedRttNanos;
+        this.rttVarianceNanos = Math.max(0, rttVarianceNanos);
+        this.hasEstimate = true;
+        updateTimeout();
+    }
+
+    /**
+     * Adds a round trip time measurement. Also ends any backoff.
+     * @param rttNanos The time between sending a message (not a retransmission) and receiving its response
+     */
+    public void addSample(long rttNanos) {
+        if (rttNanos < 0)
+            return;
+
+        if (!hasEstimate) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2.0;
+            hasEstimate = true;
+        } else {
+            rttVarianceNanos = (1 - BETA) * rttVarianceNanos + BETA * Math.abs(smoothedRttNanos - rttNanos);
+            smoothedRttNanos = (1 - ALPHA) * smoothedRttNanos + ALPHA * rttNanos;
+        }
+
+        updateTimeout();
+    }
+
+    /**
+     * Doubles the timeout after a retransmission (up to the maximum)
+     */
+    public void backoff() {
+        timeoutNanos = timeoutNanos > maxTimeoutNanos / 2 ? maxTimeoutNanos : clamp(timeoutNanos * 2);
+    }
+
+    /**
+     * @return The current retransmission timeout
+     */
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * @return True if the estimate comes from samples (or a seed), False if the initial timeout is used
+     */
+    public boolean hasEstimate() {
+        return hasEstimate;
+    }
+
+    /**
+     * @return The smoothed round trip time (0 without an estimate)
+     */
+    public long getSmoothedRttNanos() {
+        return (long) smoothedRttNanos;
+    }
+
+    /**
+     * @return The round trip time variation (0 without an estimate)
+     */
+    public long getRttVarianceNanos() {
+        return (long) rttVarianceNanos;
+    }
+
+    private void updateTimeout() {
+        timeoutNanos = clamp((long) (smoothedRttNanos + Math.max(granularityNanos, K * rttVarianceNanos)));
+    }
+
+    private long clamp(long nanos) {
+        return Math.max(minTimeoutNanos, Math.min(maxTimeoutNanos, nanos));
+    }
+}
@@ -0,0 +1,86 @@
+package session;
+
+import formats.Message;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a {@link TFTPSession} state machine call: the messages the driver must send (in order),
+ * the time at which the driver must call {@link TFTPSession#onTimer(long)} if no packet is received, and
+ * whether the session is complete.
+ *
+ * Each session re-uses a single step, so a step is only valid until the next call on its session.
+ */
+public class SessionStep {
+    private final List<Message> messages;
+    private final List<SocketAddress> destinations;
+    private long deadline;
+    private boolean complete;
+
+    SessionStep() {
+        this.messages = new ArrayList<>(2);
+        this.destinations = new ArrayList<>(2);
+    }
+
+    /**
+     * Clears the step before a state machine call
+     */
+    void reset() {
+        messages.clear();
+        destinations.clear();
+        deadline = 0;
+        complete = false;
+    }
+
+    void addMessage(Message message, SocketAddress destination) {
+        messages.add(message);
+        destinations.add(destination);
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * @return The number of messages to send
+     */
+    public int getMessageCount() {
+        return messages.size();
+    }
+
+    /**
+     * @param index The index of the message (0 to getMessageCount() - 1)
+     * @return The message to send
+     */
+    public Message getMessage(int index) {
+        return messages.get(index);
+    }
+
+    /**
+     * @param index The index of the message (0 to getMessageCount() - 1)
+     * @return The address to send the message to
+     */
+    public SocketAddress getDestination(int index) {
+        return destinations.get(index);
+    }
+
+    /**
+     * @return The time (same clock as the state machine calls) of the next timeout
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return True if the session is complete. No further calls should be made on the session.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+}
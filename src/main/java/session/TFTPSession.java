@@ -3,28 +3,64 @@ package session;
 import exceptions.InvalidPacketException;
 import exceptions.ResourceException;
 import exceptions.SessionException;
+import formats.DataMessage;
+import formats.CompressOption;
 import formats.ErrorMessage;
 import formats.Message;
 import formats.Message.MessageType;
+import formats.OptionAckMessage;
+import formats.RangeOption;
 import formats.RequestMessage;
+import formats.ResumeOption;
+import formats.TransferOptions;
 import logging.Logger;
+import metrics.Metrics;
+import metrics.TransferClass;
 import resources.Configuration;
 import resources.ResourceFile;
-import socket.TFTPDatagramSocket;
+import trace.PacketTrace;
+import trace.TraceFile;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * The protocol core of a TFTP Session, implemented as a state machine.
+ *
+ * The session does not perform any I/O. A driver starts it with {@link #start(RequestMessage, SocketAddress, long)},
+ * then feeds it received packets ({@link #onPacket(ByteBuffer, SocketAddress, long)}) and expired deadlines
+ * ({@link #onTimer(long)}). Each call returns a {@link SessionStep} with the messages to send, the next
+ * deadline and whether the session is complete. {@link #runSession(RequestMessage, SocketAddress)} runs the
+ * session on the calling thread with a {@link BlockingSessionDriver}.
+ *
+ * With ADAPTIVE_TIMEOUT, the retransmit deadline follows the measured RTT of the session ({@link RttEstimator}),
+ * starting from the history of the peer in the {@link PeerHistoryCache}. Successful sessions update the history.
+ *
+ * The block size and block numbering are {@link TransferOptions}, negotiated with the options of the request:
+ * the server answers a request with options with an OACK ({@link #negotiateOptions()}), and the client applies
+ * the OACK before the transfer starts ({@link #optionsAcknowledged()}).
+ *
+ * With RESUME, an interrupted octet transfer continues from the bytes kept in the partial file of the receiver
+ * ({@link ResumeOption}), and a read can be split into concurrent sessions that read a range of the file each
+ * ({@link RangeOption}).
+ *
+ * With COMPRESSION, the DATA blocks of a file that compresses well are a compressed stream of the file
+ * ({@link CompressOption}), so the transfer takes fewer packets.
+ */
 public abstract class TFTPSession {
 
     private static final Logger LOG = new Logger("TFTPSession");
     protected ISessionHandler sessionHandler;
-    private TFTPDatagramSocket socket;
     private RequestMessage sessionRequest;
     private SocketAddress currentDestAdr;
+    private boolean sessionStarted;
     private boolean sessionComplete;
     private boolean sessionCompleteOnTimeout;
     private boolean sessionSuccess;
@@ -32,6 +68,40 @@ public abstract class TFTPSession {
     private MessageType incomingMessageType;
     private Message lastMessageSent;
     private boolean shouldUpdateSocketAddress;
+    private int numTimeouts;
+    private long timeoutNanos;
+    private long currentNanos;
+    private final SessionStep step;
+    private final PacketTrace trace;
+    private long sessionStartNanos;
+    private long lastSendNanos;
+    private long retransmitDeadline;
+    private long pacingDeadline;
+    private boolean keepRetransmitDeadline;
+    private boolean firstByteRecorded;
+    private ErrorMessage.ErrorType failureType;
+    private final RttEstimator rttEstimator;
+    private PeerHistoryCache peerHistoryCache;
+    private PeerHistoryCache.PeerHistory peerHistory;
+    private boolean resumeEnabled;
+    private boolean compressionEnabled;
+    private long packetsSent;
+    private long packetsRetransmitted;
+    private long transferSize;
+    private long bytesTransferred;
+    private TransferOptions transferOptions;
+    private boolean optionAckExpected;
+    private boolean optionsAcked;
+    private OptionAckMessage optionAck;
+    private SocketAddress packetSource;
+    private volatile Runnable wakeupListener;
+
+    /**
+     * Functional interface for the protocol actions run by {@link #process(long, SessionAction)}
+     */
+    private interface SessionAction {
+        void run() throws IOException, InvalidPacketException, SessionException;
+    }
 
     /**
      * Initializes a TFTP Session Object with a SessionHandler and the incoming message type.
@@ -40,12 +110,126 @@ public abstract class TFTPSession {
      */
     protected TFTPSession(ISessionHandler sessionHandler, MessageType incomingMessageType) {
         this.sessionHandler = sessionHandler;
-        this.socket = sessionHandler.getSessionTFTPSocket();
         this.sessionComplete = false;
         this.sessionCompleteOnTimeout = false;
         this.sessionSuccess = false;
         this.shouldUpdateSocketAddress = false;
         this.incomingMessageType = incomingMessageType;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Configuration.GLOBAL_CONFIG.SOCKET_TIMEOUT_MS);
+        this.transferSize = -1;
+        this.step = new SessionStep();
+        this.trace = new PacketTrace(Configuration.GLOBAL_CONFIG.TRACE_RECORDS);
+
+        // The adaptive timeout never exceeds the configured timeout
+        this.rttEstimator = new RttEstimator(timeoutNanos, TimeUnit.MILLISECONDS.toNanos(Configuration.GLOBAL_CONFIG.MIN_TIMEOUT_MS),
+                timeoutNanos, TimeUnit.MILLISECONDS.toNanos(1));
+        this.peerHistoryCache = Configuration.GLOBAL_CONFIG.ADAPTIVE_TIMEOUT ? PeerHistoryCache.GLOBAL_PEER_HISTORY : null;
+        this.resumeEnabled = Configuration.GLOBAL_CONFIG.RESUME;
+        this.compressionEnabled = Configuration.GLOBAL_CONFIG.COMPRESSION;
+        this.transferOptions = new TransferOptions(TransferOptions.DEFAULT_BLOCK_SIZE, getDefaultRollover());
+    }
+
+    /**
+     * @return The request options of a client, from BLOCK_SIZE and BLOCK_NUMBER_ROLLOVER (only the options
+     * that differ from the defaults, so a default client sends plain requests)
+     */
+    public static Map<String, String> getConfiguredRequestOptions() {
+        int blockSize = Math.max(TransferOptions.MIN_BLOCK_SIZE, Math.min(TransferOptions.MAX_BLOCK_SIZE, Configuration.GLOBAL_CONFIG.BLOCK_SIZE));
+        return new TransferOptions(blockSize, getDefaultRollover()).toRequestOptions();
+    }
+
+    /**
+     * @return The request mode of a client, from TRANSFER_MODE (the default mode if it is not a valid mode)
+     */
+    public static RequestMessage.MessageMode getConfiguredRequestMode() {
+        RequestMessage.MessageMode mode = RequestMessage.MessageMode.getModeEnum(Configuration.GLOBAL_CONFIG.TRANSFER_MODE);
+        return mode != null ? mode : RequestMessage.DEFAULT_MODE;
+    }
+
+    /**
+     * @return True if the data of the session is translated to and from netascii (the request mode)
+     */
+    protected final boolean isNetascii() {
+        return sessionRequest.getMode() == RequestMessage.MessageMode.NET_ASCII;
+    }
+
+    /**
+     * @return The block number after 65535 when it is not negotiated (BLOCK_NUMBER_ROLLOVER)
+     */
+    private static int getDefaultRollover() {
+        return Configuration.GLOBAL_CONFIG.BLOCK_NUMBER_ROLLOVER == 0 ? 0 : 1;
+    }
+
+    /**
+     * Sets the peer history used by this session. Must be called before the session is started.
+     * @param peerHistoryCache The cache to seed the adaptive timeout from (and to update), or null
+     *                         to use the fixed SOCKET_TIMEOUT_MS
+     */
+    public synchronized void setPeerHistoryCache(PeerHistoryCache peerHistoryCache) {
+        this.peerHistoryCache = peerHistoryCache;
+    }
+
+    /**
+     * Enables or disables resumed transfers for this session (RESUME by default). Must be called before the session is started.
+     * @param resumeEnabled True to resume transfers from partial files, when the request asks for it
+     */
+    public synchronized void setResumeEnabled(boolean resumeEnabled) {
+        this.resumeEnabled = resumeEnabled;
+    }
+
+    /**
+     * Enables or disables compressed transfers for this session (COMPRESSION by default). Must be called before the session is started.
+     * @param compressionEnabled True to compress (or decompress) the file, when the request asks for it
+     */
+    public synchronized void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * @return True if the request asks for a resumed transfer, and the session resumes it (octet mode only,
+     * the offsets of a netascii file differ on both sides)
+     */
+    protected synchronized final boolean isResumeRequested() {
+        return resumeEnabled && sessionRequest.getOption(ResumeOption.NAME) != null && !isNetascii();
+    }
+
+    /**
+     * @return True if the request is a read of a range of the file (octet mode only)
+     */
+    protected synchronized final boolean isRangeRequested() {
+        return sessionRequest.getMessageType() == MessageType.RRQ && sessionRequest.getOption(RangeOption.NAME) != null && !isNetascii();
+    }
+
+    /**
+     * @return True if the request asks for a compressed transfer with a supported algorithm, and the session
+     * compresses it (not for ranges, which are offsets of the file)
+     */
+    protected synchronized final boolean isCompressionRequested() {
+        return compressionEnabled && CompressOption.accept(sessionRequest.getOption(CompressOption.NAME)) != null && !isRangeRequested();
+    }
+
+    /**
+     * @return The partial file of the requested file (the bytes of an interrupted transfer)
+     * @throws ResourceException If the partial file is outside of the resource directory
+     */
+    protected synchronized final ResourceFile getPartialFile() throws ResourceException {
+        return sessionHandler.getSessionResourceManager().getPartialFile(sessionRequest.getFileName());
+    }
+
+    /**
+     * @return The compressed sidecar of the requested file
+     * @throws ResourceException If the requested file is outside of the resource directory
+     */
+    protected synchronized final ResourceFile getCompressedFile() throws ResourceException {
+        return sessionHandler.getSessionResourceManager().getCompressedFile(sessionRequest.getFileName());
+    }
+
+    /**
+     * @return The file a new compressed sidecar of the requested file is written to
+     * @throws ResourceException If the file is outside of the resource directory
+     */
+    protected synchronized final ResourceFile getCompressedCacheFile() throws ResourceException {
+        return sessionHandler.getSessionResourceManager().getCompressedCacheFile(sessionRequest.getFileName());
     }
 
     /**
@@ -57,39 +241,192 @@ public abstract class TFTPSession {
     }
 
     /**
-     * Runs the TFTPSession.
+     * @return True if the session has completed (successfully or not)
+     */
+    public synchronized boolean isSessionComplete() {
+        return sessionComplete;
+    }
+
+    /**
+     * Runs the TFTPSession on the calling thread, using the socket of the session handler.
      * @param requestMessage The Initial request message
      * @param destAdr        The socket to send the initial request to.
      * @return True if the session ran successfully, False otherwise
      */
     public synchronized boolean runSession(RequestMessage requestMessage, SocketAddress destAdr) {
+        return new BlockingSessionDriver(this, sessionHandler.getSessionTFTPSocket()).run(requestMessage, destAdr);
+    }
+
+    /**
+     * Starts the session: resolves the resource file, notifies the handler and runs {@link #initialize()}.
+     * @param requestMessage The Initial request message
+     * @param destAdr        The socket to send the initial request to.
+     * @param now            The current time (System.nanoTime() or a simulated clock)
+     * @return The messages to send and the next deadline
+     */
+    public synchronized SessionStep start(RequestMessage requestMessage, SocketAddress destAdr, long now) {
 
         // Set current destination
         this.currentDestAdr = destAdr;
         this.sessionRequest = requestMessage;
+        this.sessionStarted = true;
+        this.sessionStartNanos = now;
+        trace.start(destAdr);
+        Metrics.GLOBAL_METRICS.sessionStarted();
 
-        try {
-            try {
-                this.resourceFile = sessionHandler.getSessionResourceManager().getFile(sessionRequest.getFileName());
+        if (peerHistoryCache != null) {
+            this.peerHistory = peerHistoryCache.get(destAdr, now);
 
-                LOG.logQuiet("---- Beginning TFTP Session ----");
+            if (peerHistory != null) {
+                rttEstimator.seed(peerHistory.getSmoothedRttNanos(), peerHistory.getRttVarianceNanos());
+                LOG.logVerbose(() -> "Using peer history: " + peerHistory);
+            }
+        }
 
-                // Check if the file already exists. If so, notify handlers. It is up to the handler to determine
-                // if the session should be stopped
-                if (resourceFile.exists() && resourceFile.isFile())
-                    sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.FILE_EXISTS, "File (" + requestMessage.getFileName() + ") already exists."));
-                else
-                    sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.FILE_NOT_FOUND, "File (" + requestMessage.getFileName() + ") does not exist or is not a file."));
+        return process(now, () -> {
+            this.resourceFile = sessionHandler.getSessionResourceManager().getFile(sessionRequest.getFileName());
 
-                // Run the template method to initialize the session.
-                initialize();
+            LOG.logQuiet("---- Beginning TFTP Session ----");
 
-                // Run the session
-                while (!sessionComplete) {
-                    run();
-                }
+            // Check if the file already exists. If so, notify handlers. It is up to the handler to determine
+            // if the session should be stopped
+            if (resourceFile.exists() && resourceFile.isFile())
+                sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.FILE_EXISTS, "File (" + requestMessage.getFileName() + ") already exists."));
+            else
+                sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.FILE_NOT_FOUND, "File (" + requestMessage.getFileName() + ") does not exist or is not a file."));
+
+            // Run the template method to initialize the session.
+            initialize();
+        });
+    }
+
+    /**
+     * Handles a received packet and delegates the handling of the message to the
+     * template method {@link #messageReceived(Message)}.
+     * @param buffer The packet contents (from position to limit). Not retained after the call.
+     * @param source The address the packet was received from
+     * @param now    The current time
+     * @return The messages to send and the next deadline
+     */
+    public synchronized SessionStep onPacket(ByteBuffer buffer, SocketAddress source, long now) {
+        return process(now, () -> packetReceived(buffer, source));
+    }
+
+    /**
+     * Handles an expired deadline. Before the retransmit deadline, this releases paced messages
+     * (see {@link #setPacingDeadline(long)}). Otherwise no packet was received in time: retransmits,
+     * or completes the session if it was waiting for a final timeout.
+     * @param now The current time
+     * @return The messages to send and the next deadline
+     */
+    public synchronized SessionStep onTimer(long now) {
+        boolean pacing = pacingDeadline != 0 && now - retransmitDeadline < 0;
+        pacingDeadline = 0;
+
+        if (pacing)
+            return process(now, this::pacingTimerExpired, false);
+
+        return process(now, this::timeoutOccurred);
+    }
+
+    /**
+     * Handles an I/O failure of the driver (when sending or receiving packets).
+     * Socket failures stop the session without an ERROR, other failures send a NOT_DEFINED ERROR.
+     * @param cause The failure
+     * @param now   The current time
+     * @return The messages to send and the next deadline
+     */
+    public synchronized SessionStep onIOException(IOException cause, long now) {
+        return process(now, () -> {
+            throw cause;
+        });
+    }
+
+    /**
+     * Handles a wakeup requested by the session ({@link #requestWakeup()}), ex: the disk caught up with the
+     * buffered blocks of the session, which can now send the ACK it held back.
+     * @param now The current time
+     * @return The messages to send and the next deadline
+     */
+    public synchronized SessionStep onWakeup(long now) {
+        return process(now, this::wakeupReceived);
+    }
 
-                this.sessionSuccess = true;
+    /**
+     * Lets the session wait for work done on other threads without blocking its driver: the session calls the
+     * listener (from any thread) when it should be woken with {@link #onWakeup(long)}. Set by drivers that
+     * run many sessions on one thread. Without a listener, the session waits on the thread of its driver.
+     * @param wakeupListener The wakeup listener
+     */
+    public void setWakeupListener(Runnable wakeupListener) {
+        this.wakeupListener = wakeupListener;
+    }
+
+    /**
+     * @return True if the driver of the session wakes it (see {@link #setWakeupListener(Runnable)})
+     */
+    protected final boolean isWakeupEnabled() {
+        return wakeupListener != null;
+    }
+
+    /**
+     * Asks the driver to wake the session (from any thread)
+     */
+    protected final void requestWakeup() {
+        Runnable listener = wakeupListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Stops the session without an ERROR (ex: its driver is shut down, or failed while running it). The handler
+     * is notified like for any failed session, so the resources of the session are released.
+     * @param now The current time
+     */
+    public synchronized void abort(long now) {
+        if (sessionComplete)
+            return;
+
+        if (!sessionStarted) {
+            // Nothing was opened yet, only the handler holds resources for the session
+            sessionComplete = true;
+            sessionHandler.sessionCompleted(this);
+            return;
+        }
+
+        onIOException(new SocketException("The session was aborted"), now);
+    }
+
+    /**
+     * Runs a protocol action and maps its exceptions to session errors (or session failure).
+     * Completes the session if the action completed or failed it.
+     * @param now    The current time
+     * @param action The action to run
+     * @return The step of the action
+     */
+    private SessionStep process(long now, SessionAction action) {
+        return process(now, action, true);
+    }
+
+    /**
+     * @param restartTimer False to keep the current retransmit deadline (ex: when releasing paced messages)
+     */
+    private SessionStep process(long now, SessionAction action, boolean restartTimer) {
+        step.reset();
+        currentNanos = now;
+        keepRetransmitDeadline = false;
+
+        if (sessionComplete || !sessionStarted) {
+            step.setComplete(sessionComplete);
+            return step;
+        }
+
+        boolean sessionFailed = false;
+
+        try {
+            try {
+                eventStarted();
+                action.run();
 
             } catch (SocketException | SocketTimeoutException sE) {
                 // SocketExceptions should be handled differently from IOExceptions
@@ -102,13 +439,13 @@ public abstract class TFTPSession {
                 LOG.logVerbose("A Resource Exception has Occurred: " + rE);
                 throw new SessionException();
             } catch (IOException ioE) {
+                String ioMessage = String.valueOf(ioE.getLocalizedMessage()).toLowerCase();
 
-                if (ioE.getLocalizedMessage().toLowerCase().contains("access is denied") ||
-                        ioE.getLocalizedMessage().toLowerCase().contains("permission denied")) {
+                if (ioMessage.contains("access is denied") || ioMessage.contains("permission denied")) {
                     LOG.logQuiet("You do not have permissions to access this file");
                     ErrorMessage errMsg = new ErrorMessage(ErrorMessage.ErrorType.ACCESS_VIOLATION, "You do not have the correct permissions for this file");
                     sessionHandler.sessionErrorOccurred(this, errMsg);
-                } else if (ioE.getMessage().toLowerCase().contains("not enough usable space")) {
+                } else if (ioMessage.contains("not enough usable space")) {
                     LOG.logQuiet("Not enough usable disk space");
                     ErrorMessage diskFullMessage = new ErrorMessage(ErrorMessage.ErrorType.DISK_FULL, "Not enough free space on disk");
                     sessionHandler.sessionErrorOccurred(this, diskFullMessage);
@@ -128,107 +465,151 @@ public abstract class TFTPSession {
             }
 
         } catch (IOException sE) {
-            // Occurs when sending on the socket during a previous exception. Do nothing here other than log.
-            LOG.logQuiet("Failed to send ERROR message. IOException: " + sE.getLocalizedMessage());
+            // Occurs when the handler fails while handling a previous exception. Do nothing here other than log.
+            LOG.logQuiet("Failed to handle session error. IOException: " + sE.getLocalizedMessage());
+            sessionFailed = true;
         } catch (SessionException sSE) {
             // Do nothing. The session has failed to complete successfully.
-        } finally {
-            setSessionComplete();
+            sessionFailed = true;
         }
 
-        if (sessionSuccess)
+        if (sessionFailed || sessionComplete)
+            completeSession(!sessionFailed);
+
+        step.setComplete(sessionComplete);
+        if (restartTimer && !keepRetransmitDeadline)
+            retransmitDeadline = now + getRetransmitTimeoutNanos();
+
+        step.setDeadline(pacingDeadline != 0 && pacingDeadline - retransmitDeadline < 0 ? pacingDeadline : retransmitDeadline);
+        return step;
+    }
+
+    /**
+     * @return The time to wait for a response. The final (dally) timeout is half again the configured
+     * timeout, since it must outlast the retransmit timeout of the peer (at most the configured timeout).
+     */
+    private long getRetransmitTimeoutNanos() {
+        if (sessionCompleteOnTimeout)
+            return timeoutNanos + timeoutNanos / 2;
+
+        if (peerHistoryCache == null)
+            return timeoutNanos;
+
+        return rttEstimator.getTimeoutNanos();
+    }
+
+    /**
+     * Marks the session as complete, and notifies the handler
+     * @param success True if the session completed successfully
+     */
+    private void completeSession(boolean success) {
+        this.sessionComplete = true;
+        this.sessionSuccess = success;
+
+        if (sessionSuccess) {
             LOG.logQuiet("The TFTP Session has completed successfully.");
-        else
+            Metrics.GLOBAL_METRICS.sessionCompleted(currentNanos - sessionStartNanos, getTransferClass());
+        } else {
             LOG.logQuiet("The TFTP Session Failed.");
+            Metrics.GLOBAL_METRICS.sessionFailed(failureType);
+            dumpTrace();
+        }
+        trace.close();
+        sessionFinished();
+
+        if (sessionSuccess && peerHistoryCache != null && rttEstimator.hasEstimate()) {
+            double lossRate = packetsSent == 0 ? 0 : (double) packetsRetransmitted / packetsSent;
+            peerHistoryCache.update(currentDestAdr, rttEstimator.getSmoothedRttNanos(), rttEstimator.getRttVarianceNanos(),
+                    lossRate, getWindowSize(), getBlockSize(), currentNanos);
+        }
 
         // Call session complete callback
         sessionHandler.sessionCompleted(this);
 
         LOG.logQuiet("---- End TFTP Session ----");
-        return sessionSuccess;
     }
 
     /**
-     * Runs one iteration of the Session (Receives a message and delegates the handling to the
-     * template method {@link #messageReceived(Message)}). Properly handles all Exceptions.
+     * Handles a received packet
      * @throws InvalidPacketException
      * @throws IOException
      * @throws SessionException
      */
-    private synchronized void run() throws InvalidPacketException, IOException, SessionException {
-
-        // Initialize packet to null so we can check for receive failure
-        DatagramPacket packet = null;
-        int numRetries = 0;
+    private void packetReceived(ByteBuffer buffer, SocketAddress source) throws InvalidPacketException, IOException, SessionException {
 
-        // Number of retransmit attempts
-        while (numRetries++ < Configuration.GLOBAL_CONFIG.MAX_TRANSMIT_ATTEMPTS) {
+        // Any received packet restarts the retransmit attempts
+        numTimeouts = 0;
 
-            // Log number of attempts
-            if(numRetries > 1)
-                LOG.logVerbose("Waiting for Response from destination. Attempt # " + numRetries);
+        byte[] data;
+        int offset;
+        int length = buffer.remaining();
 
-            try {
-                // After initialize, we expect a message to be received
-                // Wait for Message
-                packet = socket.receive();
-                break;
-            } catch (SocketTimeoutException stE) {
-                if(sessionCompleteOnTimeout) {
-                    LOG.logVerbose("Session Success On Timeout");
-                    // Handles the case where the last ACK may be lost.
-                    // This ensures that a packet has not been retransmitted, therefore the packet was not lost.
-                    setSessionComplete();
-                    return;
-                }
-                else {
-                    LOG.logVerbose("Failed to receive a response from the destination (Timed Out). Sending last message");
-                    resendLastMessage();
-                }
-            }
-        }
-
-        // Check to see if receive was successful
-        if (packet == null) {
-            LOG.logQuiet("Failed to receive a response from the destination. Stopping the session");
-            throw new SessionException();
+        if (buffer.hasArray()) {
+            data = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            data = new byte[length];
+            offset = 0;
+            buffer.duplicate().get(data);
         }
 
         // Check to see if we should update the socket on receive
         // (used by the client to connect to the server worker port)
         if(shouldUpdateSocketAddress)
         {
-            LOG.logVerbose("Updating socket address to: " + packet.getSocketAddress());
-            this.currentDestAdr = packet.getSocketAddress();
+            LOG.logVerbose("Updating socket address to: " + source);
+            this.currentDestAdr = source;
             this.shouldUpdateSocketAddress = false;
+            trace.setPeer(currentDestAdr);
         }
-        else if (!this.currentDestAdr.equals(packet.getSocketAddress()))
+        else if (!isPeer(source))
         {
+            trace.recordReceived(data, offset, length, PacketTrace.FLAG_INVALID_TID);
             LOG.logQuiet("Received a Packet from an Invalid Destination. Sending Error.");
             LOG.logVerbose("Valid Destination: " + currentDestAdr);
-            LOG.logVerbose("Invalid Destination: " + packet.getSocketAddress());
+            LOG.logVerbose("Invalid Destination: " + source);
 
             // Otherwise, if the socket is not the expected socket, send an error message
             // But, do not stop the session.
             ErrorMessage errorMessage = new ErrorMessage(ErrorMessage.ErrorType.UNKNOWN_TRANSFER_ID, "The previous packet was sent to the wrong destination");
-            sendError(errorMessage,packet.getSocketAddress());
+            sendError(errorMessage, source);
             return;
         }
 
-        Message receivedMessage = Message.parseGenericMessage(packet);
+        trace.recordReceived(data, offset, length, (byte) 0);
+        packetSource = source;
 
-        LOG.logVerbose("Received Message: ");
-        LOG.logVerbose(receivedMessage);
+        // Only parse the packet region of the buffer
+        if (offset != 0 || length != data.length)
+            data = Arrays.copyOfRange(data, offset, offset + length);
+
+        Message receivedMessage = Message.parseGenericMessage(data, transferOptions);
+        recordReceived(receivedMessage);
+
+        if (LOG.isVerbose()) {
+            LOG.logVerbose("Received Message: ");
+            LOG.logVerbose(receivedMessage);
+        }
 
         // Handle incoming error message (if applicable)
         if (receivedMessage.getMessageType().equals(MessageType.ERROR)) {
 
             // Handle error Received and stop the session
-            sessionHandler.sessionErrorReceived(this, ErrorMessage.parseMessage(packet));
+            ErrorMessage errorMessage = (ErrorMessage) receivedMessage;
+            failureType = errorMessage.getErrorType();
+            sessionHandler.sessionErrorReceived(this, errorMessage);
             LOG.logVerbose("An Error Message was received. Stopping session.");
             throw new SessionException();
         }
 
+        if (receivedMessage.getMessageType().equals(MessageType.OACK)) {
+            optionAckReceived((OptionAckMessage) receivedMessage);
+            return;
+        }
+
+        // Any other response of the peer means that the options were not acknowledged (or already were)
+        optionAckExpected = false;
+
         // Ensure we are receiving the correct message type (according to the implementation)
         if (!receivedMessage.getMessageType().equals(incomingMessageType))
             throw new InvalidPacketException("Expected " + incomingMessageType + " (or ERROR). Actual: " + receivedMessage.getMessageType());
@@ -238,24 +619,184 @@ public abstract class TFTPSession {
     }
 
     /**
-     * Resends last sent message (for lost/delayed messages)
+     * Handles an OACK (the client, before the first DATA or ACK of the transfer): applies the acknowledged
+     * options and lets the subclass start the transfer. A repeated OACK (the answer to it was lost) is handed
+     * to the subclass again. An OACK that does not match the request fails the session with an
+     * OPTION_NEGOTIATION error.
+     * @throws InvalidPacketException If the session did not send a request
      * @throws IOException
      * @throws SessionException
      */
-    private synchronized void resendLastMessage() throws IOException, SessionException {
+    private void optionAckReceived(OptionAckMessage optionAck) throws InvalidPacketException, IOException, SessionException {
+        if (!optionAckExpected) {
+            if (!optionsAcked)
+                throw new InvalidPacketException("Unexpected OACK. The session did not request options.");
+
+            // The transfer is already running
+            this.optionAck = optionAck;
+            optionAckRepeated();
+            return;
+        }
+
+        this.optionAck = optionAck;
+
+        if (!optionsAcked) {
+            try {
+                transferOptions = TransferOptions.acknowledge(sessionRequest, optionAck, getDefaultRollover());
+            } catch (InvalidPacketException iPE) {
+                raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: " + iPE.getLocalizedMessage()));
+            }
+
+            optionsAcked = true;
+            LOG.logVerbose(() -> "Options acknowledged: " + transferOptions);
+        }
+
+        optionsAcknowledged();
+    }
+
+    /**
+     * Handles a receive timeout
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void timeoutOccurred() throws IOException, SessionException {
+        trace.recordTimeout();
+        Metrics.GLOBAL_METRICS.timeout();
+
+        if(sessionCompleteOnTimeout) {
+            LOG.logVerbose("Session Success On Timeout");
+            // Handles the case where the last ACK may be lost.
+            // This ensures that a packet has not been retransmitted, therefore the packet was not lost.
+            setSessionComplete();
+            return;
+        }
+
+        LOG.logVerbose("Failed to receive a response from the destination (Timed Out). Retransmitting");
+        retransmit();
+        rttEstimator.backoff();
+
+        // Number of retransmit attempts
+        if (++numTimeouts >= Configuration.GLOBAL_CONFIG.MAX_TRANSMIT_ATTEMPTS) {
+            LOG.logQuiet("Failed to receive a response from the destination. Stopping the session");
+            throw new SessionException();
+        }
+
+        LOG.logVerbose("Waiting for Response from destination. Attempt # " + (numTimeouts + 1));
+    }
+
+    /**
+     * Resends last sent message (for lost/delayed messages)
+     */
+    private void resendLastMessage() {
         if (lastMessageSent == null)
             return;
 
         LOG.logVerbose("Attempting to re-transmit last message");
-        sendMessage(lastMessageSent);
+        recordSent(lastMessageSent, true);
+        step.addMessage(lastMessageSent, currentDestAdr);
+    }
+
+    /**
+     * Records a sent message in the packet trace and the metrics
+     * @param message    The message being sent
+     * @param retransmit True if the message is a retransmission
+     */
+    private void recordSent(Message message, boolean retransmit) {
+        trace.recordSent(message, retransmit);
+
+        MessageType type = message.getMessageType();
+        int payloadBytes = type == MessageType.DATA ? ((DataMessage) message).getDataSize() : 0;
+        Metrics.GLOBAL_METRICS.packetSent(type, payloadBytes, retransmit);
+
+        if (type == MessageType.DATA && !retransmit)
+            bytesTransferred += payloadBytes;
+
+        if (type != MessageType.ERROR) {
+            packetsSent++;
+            if (retransmit)
+                packetsRetransmitted++;
+
+            // Retransmitted messages are not sampled, since the response would be ambiguous (Karn's algorithm)
+            lastSendNanos = retransmit ? 0 : currentNanos;
+        }
+
+        if (type == MessageType.DATA && !firstByteRecorded) {
+            firstByteRecorded = true;
+            Metrics.GLOBAL_METRICS.timeToFirstByte(currentNanos - sessionStartNanos);
+        }
+    }
+
+    /**
+     * Records a received message (from the current destination) in the metrics
+     * @param message The received message
+     */
+    private void recordReceived(Message message) {
+        MessageType type = message.getMessageType();
+        int payloadBytes = type == MessageType.DATA ? ((DataMessage) message).getDataSize() : 0;
+        Metrics.GLOBAL_METRICS.packetReceived(type, payloadBytes);
+        bytesTransferred += payloadBytes;
+
+        if (type == incomingMessageType || type == MessageType.OACK) {
+            long rttNanos = measureRtt(message);
+            if (rttNanos >= 0) {
+                Metrics.GLOBAL_METRICS.blockRtt(rttNanos);
+                rttEstimator.addSample(rttNanos);
+            }
+            lastSendNanos = 0;
+        }
+
+        if (type == MessageType.DATA && !firstByteRecorded) {
+            firstByteRecorded = true;
+            Metrics.GLOBAL_METRICS.timeToFirstByte(currentNanos - sessionStartNanos);
+        }
     }
 
     /**
-     * Sends a Message to the destination.
+     * Writes the packet trace of this session to the configured trace file (if any)
+     */
+    private void dumpTrace() {
+        if (!trace.isEnabled())
+            return;
+
+        try {
+            TraceFile traceFile = TraceFile.getDefault();
+            if (traceFile != null) {
+                traceFile.write(trace, TraceFile.REASON_FAILED);
+                traceFile.force();
+                LOG.logVerbose(() -> "Packet trace written for session #" + trace.getSessionId());
+            }
+        } catch (IOException ioE) {
+            LOG.logQuiet("Failed to write packet trace: " + ioE.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Queues a Message to be sent to the destination.
      * @param message The Message Object to send. If type is ERROR, equivalent to call to {@link #raiseError(ErrorMessage)}
      * @throws IOException
      */
     protected synchronized final void sendMessage(Message message) throws IOException, SessionException {
+        sendMessage(message, false);
+    }
+
+    /**
+     * Queues a Message to be sent to the destination.
+     * @param message    The Message Object to send. If type is ERROR, equivalent to call to {@link #raiseError(ErrorMessage)}
+     * @param retransmit True if the message was sent before (it is then not used for RTT samples)
+     * @throws IOException
+     */
+    protected synchronized final void sendMessage(Message message, boolean retransmit) throws IOException, SessionException {
+        sendMessage(message, currentDestAdr, retransmit);
+    }
+
+    /**
+     * Queues a Message to be sent to another destination than the peer (ex: a multicast group).
+     * @param message     The Message Object to send. If type is ERROR, equivalent to call to {@link #raiseError(ErrorMessage)}
+     * @param destination The address to send the message to
+     * @param retransmit  True if the message was sent before (it is then not used for RTT samples)
+     * @throws IOException
+     */
+    protected synchronized final void sendMessage(Message message, SocketAddress destination, boolean retransmit) throws IOException, SessionException {
 
         // Any ERROR messages passed in will be passed to raiseError
         if (message.getMessageType().equals(MessageType.ERROR)) {
@@ -264,7 +805,84 @@ public abstract class TFTPSession {
         }
 
         lastMessageSent = message;
-        socket.sendMessage(message, currentDestAdr);
+        recordSent(message, retransmit);
+        step.addMessage(message, destination);
+    }
+
+    /**
+     * Sends the session request (the client), with its options. The response comes from the server worker,
+     * so the destination is updated on the next receive.
+     * @throws IOException
+     * @throws SessionException
+     */
+    protected synchronized final void sendRequest() throws IOException, SessionException {
+        sendMessage(sessionRequest);
+        optionAckExpected = !sessionRequest.getOptions().isEmpty();
+
+        // Update socket address on the next receive
+        // (since it will be the address from the new server worker)
+        setShouldUpdateSocketAddress();
+    }
+
+    /**
+     * Accepts the options of the session request (the server), within MAX_BLOCK_SIZE. The session uses the
+     * accepted options from now on.
+     * @return The OACK to send instead of the first response, or null if no option was accepted
+     */
+    protected synchronized final OptionAckMessage negotiateOptions() {
+        Map<String, String> acceptedOptions = new LinkedHashMap<>();
+        transferOptions = TransferOptions.negotiate(sessionRequest, Configuration.GLOBAL_CONFIG.MAX_BLOCK_SIZE, getDefaultRollover(), acceptedOptions);
+
+        if (acceptedOptions.isEmpty())
+            return null;
+
+        LOG.logVerbose(() -> "Accepted options: " + acceptedOptions);
+        return new OptionAckMessage(acceptedOptions);
+    }
+
+    /**
+     * Adds an option that the session accepted itself (ex: resume) to the OACK of {@link #negotiateOptions()}
+     * @param optionAck The negotiated OACK, or null if no option was accepted
+     * @param name      The option name
+     * @param value     The acknowledged value
+     * @return The OACK with the option
+     */
+    protected static OptionAckMessage addOption(OptionAckMessage optionAck, String name, String value) {
+        Map<String, String> options = optionAck == null ? new LinkedHashMap<>() : new LinkedHashMap<>(optionAck.getOptions());
+        options.put(name, value);
+        return new OptionAckMessage(options);
+    }
+
+    /**
+     * Asks the driver to call {@link #pacingTimerExpired()} at the given time (if it is before the
+     * retransmit deadline). Used to hold back messages until their pacing departure time.
+     * @param deadline The time to release the next paced message
+     */
+    protected synchronized final void setPacingDeadline(long deadline) {
+        this.pacingDeadline = deadline == 0 ? 1 : deadline;
+    }
+
+    /**
+     * Restarts the retransmit attempts (ex: after switching to another peer, which gets all attempts again)
+     */
+    protected synchronized final void resetRetransmitAttempts() {
+        this.numTimeouts = 0;
+    }
+
+    /**
+     * Keeps the current retransmit deadline after the packet being handled (by default, every packet
+     * restarts it). A packet that does not make progress (ex: an ignored duplicate) must not postpone
+     * the retransmission, or a peer repeating it would hold the session forever.
+     */
+    protected synchronized final void keepRetransmitDeadline() {
+        this.keepRetransmitDeadline = true;
+    }
+
+    /**
+     * @return The time of the current state machine call
+     */
+    protected synchronized final long getCurrentNanos() {
+        return currentNanos;
     }
 
     /**
@@ -283,6 +901,34 @@ public abstract class TFTPSession {
         this.sessionCompleteOnTimeout = true;
     }
 
+    /**
+     * @return The address the session sends to (the peer)
+     */
+    protected synchronized final SocketAddress getCurrentDestination() {
+        return currentDestAdr;
+    }
+
+    /**
+     * @return The source of the packet being handled
+     */
+    protected synchronized final SocketAddress getPacketSource() {
+        return packetSource;
+    }
+
+    /**
+     * @return The last OACK received by the session (null if none)
+     */
+    protected synchronized final OptionAckMessage getOptionAck() {
+        return optionAck;
+    }
+
+    /**
+     * @return The type of the ERROR that failed the session (sent or received), or null
+     */
+    protected synchronized final ErrorMessage.ErrorType getFailureType() {
+        return failureType;
+    }
+
     /**
      * @return The initial session request message
      */
@@ -309,7 +955,9 @@ public abstract class TFTPSession {
         LOG.logVerbose("Stopping Session. Sending Session Error:");
         LOG.logVerbose(errMsg);
 
-        socket.sendMessage(errMsg, currentDestAdr);
+        failureType = errMsg.getErrorType();
+        recordSent(errMsg, false);
+        step.addMessage(errMsg, currentDestAdr);
         throw new SessionException();
     }
 
@@ -324,7 +972,8 @@ public abstract class TFTPSession {
         LOG.logVerbose("Sending Error message:");
         LOG.logVerbose(errMsg);
 
-        socket.sendMessage(errMsg, socketAddress);
+        recordSent(errMsg, false);
+        step.addMessage(errMsg, socketAddress);
     }
 
     /**
@@ -360,4 +1009,156 @@ public abstract class TFTPSession {
      */
     protected abstract void messageReceived(Message message) throws IOException, InvalidPacketException, SessionException;
 
+    /**
+     * Allows subclasses to start the transfer once the server acknowledged the options of the request
+     * (the transfer options are set). Called again if the server repeats the OACK before the transfer started.
+     * @throws IOException
+     * @throws SessionException
+     */
+    protected void optionsAcknowledged() throws IOException, SessionException {
+    }
+
+    /**
+     * Allows subclasses to handle an OACK received once the transfer is running ({@link #getOptionAck()}).
+     * By default, the OACK is a late duplicate and is ignored.
+     * @throws IOException
+     * @throws InvalidPacketException
+     * @throws SessionException
+     */
+    protected void optionAckRepeated() throws IOException, InvalidPacketException, SessionException {
+        LOG.logVerbose("Received a duplicate OACK. Ignoring OACK");
+        keepRetransmitDeadline();
+    }
+
+    /**
+     * Allows subclasses to act on changes made outside of the session (ex: by other threads) before
+     * each packet or deadline is handled.
+     * @throws IOException
+     * @throws SessionException
+     */
+    protected void eventStarted() throws IOException, SessionException {
+    }
+
+    /**
+     * Allows subclasses to decide which sources belong to the session. By default, only the peer
+     * (packets from other sources get an UNKNOWN_TRANSFER_ID error).
+     * @param source The source of a received packet
+     * @return True if the packet is handled by the session
+     */
+    protected boolean isPeer(SocketAddress source) {
+        return currentDestAdr.equals(source);
+    }
+
+    /**
+     * Allows subclasses to release resources (open files, buffers) once the session has completed
+     * (successfully or not). Called before the handler is notified.
+     */
+    protected void sessionFinished() {
+    }
+
+    /**
+     * Allows subclasses to finish the work they waited for on another thread (see {@link #requestWakeup()}).
+     * By default, nothing is sent, so the retransmit deadline is kept.
+     * @throws IOException
+     * @throws SessionException
+     */
+    protected void wakeupReceived() throws IOException, SessionException {
+        keepRetransmitDeadline();
+    }
+
+    /**
+     * Allows subclasses to send the messages they held back for pacing.
+     * Called when the deadline set by {@link #setPacingDeadline(long)} has passed.
+     * @throws IOException
+     * @throws SessionException
+     */
+    protected void pacingTimerExpired() throws IOException, SessionException {
+    }
+
+    /**
+     * Retransmits after a timeout. By default, resends the last message sent.
+     * @throws IOException
+     * @throws SessionException
+     */
+    protected void retransmit() throws IOException, SessionException {
+        resendLastMessage();
+    }
+
+    /**
+     * Measures the round trip time from a received message (of the incoming message type). By default,
+     * the time since the last message was sent, unless it was a retransmission (Karn's algorithm).
+     * @param message The received message
+     * @return The round trip time, or -1 if it cannot be measured
+     */
+    protected long measureRtt(Message message) {
+        return lastSendNanos != 0 ? currentNanos - lastSendNanos : -1;
+    }
+
+    /**
+     * @return The history of the peer when the session started (null if unknown, or if adaptive timeouts are off)
+     */
+    protected synchronized PeerHistoryCache.PeerHistory getPeerHistory() {
+        return peerHistory;
+    }
+
+    /**
+     * @return The number of blocks sent before waiting for an ACK (recorded in the peer history)
+     */
+    public int getWindowSize() {
+        return 1;
+    }
+
+    /**
+     * @return The size of a full DATA block (recorded in the peer history)
+     */
+    public int getBlockSize() {
+        return getTransferOptions().getBlockSize();
+    }
+
+    /**
+     * @return The block size and block numbering of the session (negotiated once the session started)
+     */
+    public synchronized TransferOptions getTransferOptions() {
+        return transferOptions;
+    }
+
+    /**
+     * Sets the size of the file being transferred, once it is known
+     * @param transferSize The size in bytes
+     */
+    protected synchronized final void setTransferSize(long transferSize) {
+        this.transferSize = transferSize;
+    }
+
+    /**
+     * @return The size of the file being transferred, or -1 if it is not known (ex: receiving a file)
+     */
+    public synchronized long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * @return The number of DATA bytes sent or received so far
+     */
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * A transfer is SMALL if its size is at most SCHEDULER_SMALL_TRANSFER_BYTES. If the size is not known,
+     * it is SMALL until that many bytes were transferred.
+     * @return The size class of the transfer
+     */
+    public synchronized TransferClass getTransferClass() {
+        long size = transferSize >= 0 ? transferSize : bytesTransferred;
+        return size <= Configuration.GLOBAL_CONFIG.SCHEDULER_SMALL_TRANSFER_BYTES ? TransferClass.SMALL : TransferClass.BULK;
+    }
+
+    /**
+     * @return The current retransmission timeout estimate of the session
+     */
+    public synchronized RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
 }
@@ -3,29 +3,89 @@ package session;
 import exceptions.InvalidPacketException;
 import exceptions.SessionException;
 import formats.AckMessage;
+import formats.CompressOption;
 import formats.DataMessage;
 import formats.ErrorMessage;
 import formats.Message;
 import formats.Message.MessageType;
+import formats.OptionAckMessage;
+import formats.RangeOption;
 import formats.RequestMessage;
+import formats.ResumeOption;
+import formats.TransferOptions;
 import logging.Logger;
+import metrics.Metrics;
+import resources.BlockPrefetcher;
+import resources.BlockSource;
+import resources.ByteArrayBlockSource;
+import resources.DeflateBlockSource;
+import resources.PrefetchingBlockSource;
+import resources.Configuration;
+import resources.MemoryBudget;
+import resources.NetasciiBlockSource;
 import resources.ResourceFile;
 
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static formats.Message.MessageType.*;
 import static formats.Message.MessageType.ACK;
 import static formats.Message.MessageType.RRQ;
 
+/**
+ * A 'TransmitSession' sends DATA blocks and receives ACKs (the server on a RRQ, the client on a WRQ).
+ *
+ * Up to a window of blocks is sent ahead of the last acknowledged block (a sliding window over
+ * per-block ACKs, so any receiver works). An ACK acknowledges all blocks up to its block number.
+ * Losses go back to the first unacknowledged block: on a timeout, or on the first duplicate ACK of a
+ * block (a receiver re-ACKs its last block when it sees a gap). Later duplicates are ignored, so a
+ * delayed ACK never doubles the traffic (Sorcerer's Apprentice).
+ *
+ * The window is set by a {@link CongestionController} (CONGESTION_CONTROL, up to WINDOW_SIZE blocks):
+ * it is told about newly acknowledged blocks, gaps (at most once per window of data, since every block
+ * sent after a lost one triggers the same duplicate ACK) and timeouts.
+ *
+ * With PACING, the blocks of a window are spread over the RTT by a {@link Pacer} on the shared
+ * {@link PacingClock}, instead of being sent back-to-back.
+ *
+ * Blocks are counted with 64 bit indexes, and only mapped to (wrapping) block numbers on the wire, with the
+ * negotiated block size and rollover ({@link TransferOptions}). Files larger than PREFETCH_THRESHOLD_BYTES
+ * are streamed, so files of any size are sent. In netascii mode, blocks are translated as they are sent
+ * ({@link NetasciiBlockSource}), so the number of blocks is only known once the final block was sent.
+ *
+ * A resumed transfer ({@link ResumeOption}) starts at the offset of the partial file of the receiver: block 0
+ * of the session is the block at that offset, and the bytes before it are never read. A ranged read
+ * ({@link RangeOption}) sends the blocks of one segment of the file the same way.
+ *
+ * A compressed transfer ({@link CompressOption}) sends the blocks of a compressed stream of the file
+ * ({@link DeflateBlockSource}), compressed as blocks are sent. The file is only compressed if its first
+ * COMPRESSION_PROBE_BYTES compress to at least COMPRESSION_MIN_RATIO, otherwise it is sent as is. With
+ * COMPRESSION_CACHE, the server keeps the compressed stream of a read in a sidecar of the file, and sends the
+ * sidecar to the next reads (until the file changes).
+ */
 public class TransmitSession extends TFTPSession {
 
     private static final Logger LOG = new Logger("TransmitSession");
     private static final MessageType INCOMING_MESSAGE_TYPE = ACK;
-    private List<DataMessage> messageList;
-    private DataMessage currentData;
-    private int expectedAckBlockNumber;
+    private static final long MAX_LOADED_FILE_BYTES = Integer.MAX_VALUE - 8;
+    private static final int COMPRESSION_PROBE_BYTES = 64 * 1024;
+    private BlockSource blockSource;
+    private long ackedIndex;
+    private long nextBlockIndex;
+    private long highestSentIndex;
+    private boolean transferStarted;
+    private int duplicateAcks;
+    private long recoveryIndex;
+    private CongestionController congestionController;
+    private long[] sendTimes;
+    private Pacer pacer;
+    private long startOffset;
+    private long sendLength;
+    private boolean resumeRejected;
+    private boolean compressed;
+    private ResourceFile compressedFile;
 
     /**
      * Creates a TransmitSession with the given handler
@@ -33,6 +93,44 @@ public class TransmitSession extends TFTPSession {
      */
     public TransmitSession(ISessionHandler sessionHandler) {
         super(sessionHandler, INCOMING_MESSAGE_TYPE);
+        setCongestionController(CongestionController.create(Configuration.GLOBAL_CONFIG.CONGESTION_CONTROL, Configuration.GLOBAL_CONFIG.WINDOW_SIZE));
+        this.ackedIndex = -1;
+        this.highestSentIndex = -1;
+        this.recoveryIndex = -1;
+        this.sendLength = Long.MAX_VALUE;
+        this.pacer = Configuration.GLOBAL_CONFIG.PACING ? new Pacer(PacingClock.GLOBAL_PACING_CLOCK) : null;
+    }
+
+    /**
+     * Adds the resume option to the options of a write request (RESUME): the server answers with the partial
+     * file of a previous write, if any
+     * @param options The other request options
+     * @return The options of the request
+     */
+    public static Map<String, String> getRequestOptions(Map<String, String> options) {
+        Map<String, String> requestOptions = new LinkedHashMap<>(options);
+        requestOptions.put(ResumeOption.NAME, "");
+        return requestOptions;
+    }
+
+    /**
+     * Estimates if a file is worth compressing: it has more than one block, and its first COMPRESSION_PROBE_BYTES
+     * compress to at least COMPRESSION_MIN_RATIO
+     * @param resourceFile The file to transmit
+     * @param blockSize    The block size of the transfer
+     * @return True if the file should be sent compressed
+     * @throws IOException If the file could not be read
+     */
+    public static boolean isCompressible(ResourceFile resourceFile, int blockSize) throws IOException {
+        // A single block is sent either way
+        if (resourceFile.length() < blockSize)
+            return false;
+
+        try (BlockSource probe = openBlockSource(resourceFile, COMPRESSION_PROBE_BYTES, 1, 0, COMPRESSION_PROBE_BYTES)) {
+            double ratio = DeflateBlockSource.estimateRatio(probe, COMPRESSION_PROBE_BYTES, Configuration.GLOBAL_CONFIG.COMPRESSION_LEVEL);
+            LOG.logVerbose(() -> String.format("The file compresses %.1f times", ratio));
+            return ratio >= Configuration.GLOBAL_CONFIG.COMPRESSION_MIN_RATIO;
+        }
     }
 
     /**
@@ -44,6 +142,39 @@ public class TransmitSession extends TFTPSession {
         this.runSession(requestMessage, destAdr);
     }
 
+    /**
+     * @return True if the server offered to resume a write from a partial file that does not match the file
+     * (the server removes it, so the file is sent from the start by the next write)
+     */
+    public synchronized boolean isResumeRejected() {
+        return resumeRejected;
+    }
+
+    /**
+     * Sets a fixed window for this session (no congestion control). Must be called before the session is started.
+     * @param window The maximum number of unacknowledged blocks
+     */
+    public synchronized void setWindowSize(int window) {
+        setCongestionController(new FixedWindowController(window));
+    }
+
+    /**
+     * Sets the congestion controller of this session. Must be called before the session is started.
+     * @param congestionController The controller of the window (CONGESTION_CONTROL by default)
+     */
+    public synchronized void setCongestionController(CongestionController congestionController) {
+        this.congestionController = congestionController;
+        this.sendTimes = new long[congestionController.getMaxWindow() + 1];
+    }
+
+    /**
+     * Sets the pacing clock of this session. Must be called before the session is started.
+     * @param clock The clock to pace DATA blocks with, or null to send windows back-to-back
+     */
+    public synchronized void setPacingClock(PacingClock clock) {
+        this.pacer = clock == null ? null : new Pacer(clock);
+    }
+
     /**
      * Handles a Message received by the session.
      * @param message The message that was received.
@@ -57,20 +188,55 @@ public class TransmitSession extends TFTPSession {
         // It is safe to assume that the message passed in will be of type AckMessage
         AckMessage ackMessage = (AckMessage) message;
 
-        if (ackMessage.getBlockNum() < expectedAckBlockNumber - 1) {
-            LOG.logVerbose("Received ACK with block: " + ackMessage.getBlockNum() + ". Ignoring ACK block");
+        // The ACK of the WRQ or of the OACK (block 0) starts the transfer
+        if (!transferStarted) {
+            if (ackMessage.getBlockNum() == 0)
+                startTransfer();
             return;
         }
-        else if (ackMessage.getBlockNum() == expectedAckBlockNumber - 1)
+
+        long acked = getAckedIndex(ackMessage.getBlockNum());
+
+        if (acked < 0)
+        {
+            LOG.logVerbose(() -> "Received ACK with block: " + ackMessage.getBlockNum() + ". Ignoring ACK block");
+            Metrics.GLOBAL_METRICS.duplicateAck();
+            keepRetransmitDeadline();
+        }
+        else if (acked == ackedIndex)
         {
-            LOG.logVerbose("Received ACK for Block: " + ackMessage.getBlockNum() + ". Retransmitting current DATA.");
-            sendCurrentData();
+            Metrics.GLOBAL_METRICS.duplicateAck();
+
+            // Only the first duplicate signals a loss
+            if (++duplicateAcks == 1) {
+                LOG.logVerbose(() -> "Received duplicate ACK for Block: " + ackMessage.getBlockNum() + ". Retransmitting from the next DATA block.");
+
+                // The window is cut once per window of data
+                if (ackedIndex >= recoveryIndex) {
+                    congestionController.onLoss(getCurrentNanos());
+                    recoveryIndex = highestSentIndex;
+                }
+
+                goBack();
+            } else {
+                // Later duplicates do not postpone the timeout (in case the retransmission was lost too)
+                keepRetransmitDeadline();
+            }
         }
-        else if (ackMessage.getBlockNum() == expectedAckBlockNumber) {
-            LOG.logVerbose("Received ACK for DATA block: " + ackMessage.getBlockNum() + ". Sending next data block.");
+        else
+        {
+            if (LOG.isVerbose())
+                LOG.logVerbose("Received ACK for DATA block: " + ackMessage.getBlockNum() + ". Sending next data block.");
+
+            RttEstimator rttEstimator = getRttEstimator();
+            congestionController.onAck((int) (acked - ackedIndex), rttEstimator.hasEstimate() ? rttEstimator.getSmoothedRttNanos() : -1, getCurrentNanos());
 
-            // Check to see if message list is empty
-            if(messageList.size() == 0)
+            ackedIndex = acked;
+            duplicateAcks = 0;
+            nextBlockIndex = Math.max(nextBlockIndex, ackedIndex + 1);
+
+            // Check to see if all blocks were sent
+            if (ackedIndex >= blockSource.getBlockCount() - 1)
             {
                 LOG.logVerbose("Received ACK for last DATA block. Ending session.");
                 LOG.logQuiet("Successfully completed transmit session");
@@ -80,43 +246,304 @@ public class TransmitSession extends TFTPSession {
                 return;
             }
 
-            sendNextData();
+            fillWindow();
+        }
+    }
+
+    /**
+     * The server acknowledged the options of the WRQ: the transfer starts with the acknowledged block size.
+     * A repeated OACK is a duplicate once the transfer started.
+     */
+    @Override
+    protected void optionsAcknowledged() throws IOException, SessionException {
+        if (transferStarted) {
+            Metrics.GLOBAL_METRICS.duplicateAck();
+            keepRetransmitDeadline();
+            return;
         }
+
+        String resume = getOptionAck().getOption(ResumeOption.NAME);
+        if (resume != null && isResumeRequested())
+            checkResumeOffer(resume);
+
+        String compress = getOptionAck().getOption(CompressOption.NAME);
+        if (compress != null && isCompressionRequested())
+            checkCompression(compress);
+
+        startTransfer();
     }
 
     /**
-     * Sends next data message in message list.
+     * The server accepted a compressed write
+     * @param value The acknowledged compress option
+     * @throws IOException
+     * @throws SessionException If the algorithm is not supported, or the write also resumes (OPTION_NEGOTIATION error)
+     */
+    private void checkCompression(String value) throws IOException, SessionException {
+        if (!CompressOption.DEFLATE.equalsIgnoreCase(value) || startOffset > 0)
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: invalid compress option '" + value + "'"));
+
+        compressed = true;
+        LOG.logQuiet("Sending the file compressed");
+    }
+
+    /**
+     * Accepts the compress option of a read request if the file compresses well. The compressed sidecar of the
+     * file is sent if it was compressed from the current file (same length and modification time).
+     * @param resourceFile The requested file
+     * @return True to send the file compressed
+     * @throws IOException If the file could not be read
+     */
+    private boolean acceptCompression(ResourceFile resourceFile) throws IOException {
+        // (the sidecar is a compressed copy of the local file, not of its netascii translation)
+        ResourceFile sidecar = isNetascii() ? null : getCompressedFile();
+        if (sidecar != null && sidecar.exists() && DeflateBlockSource.isSidecarOf(sidecar, resourceFile)) {
+            LOG.logVerbose(() -> "Sending the compressed sidecar '" + sidecar.getName() + "'");
+            compressedFile = sidecar;
+            compressed = true;
+            setTransferSize(sidecar.length() - DeflateBlockSource.SIDECAR_HEADER_LENGTH);
+            return true;
+        }
+
+        if (!isCompressible(resourceFile, getBlockSize())) {
+            LOG.logVerbose("The file does not compress well. Sending it as is.");
+            return false;
+        }
+
+        compressed = true;
+        return true;
+    }
+
+    /**
+     * Checks the partial file offered by the server against the start of the file, and resumes the write after it
+     * @param value The acknowledged resume option
+     * @throws IOException
+     * @throws SessionException If the partial file does not match (the session fails with an OPTION_NEGOTIATION error)
+     */
+    private void checkResumeOffer(String value) throws IOException, SessionException {
+        ResourceFile resourceFile = getResourceFile();
+
+        try {
+            ResumeOption offer = ResumeOption.parse(value);
+
+            if (offer.getOffset() > resourceFile.length() || resourceFile.checksum(offer.getOffset()) != offer.getChecksum()) {
+                resumeRejected = true;
+                throw new InvalidPacketException("The partial file of the server (" + offer.getOffset() + " bytes) does not match the file");
+            }
+
+            startOffset = offer.getOffset();
+            setTransferSize(resourceFile.length() - startOffset);
+            LOG.logQuiet("Resuming the write after " + startOffset + " bytes");
+        } catch (InvalidPacketException iPE) {
+            raiseError(new ErrorMessage(ErrorMessage.ErrorType.OPTION_NEGOTIATION, "Option negotiation failed: " + iPE.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Accepts the range option of a read request: the byte range of the requested segment of the file
+     * @param resourceFile The requested file
+     * @return The acknowledged range, or null to send the whole file
+     */
+    private RangeOption acceptRange(ResourceFile resourceFile) {
+        try {
+            return RangeOption.grant(getSessionRequest().getOption(RangeOption.NAME), resourceFile.length(), getBlockSize());
+        } catch (InvalidPacketException iPE) {
+            // Like any unsupported option value, it is not acknowledged
+            LOG.logVerbose(() -> "Ignoring the range option: " + iPE.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Accepts the resume option of a read request if the file starts with the bytes of the partial file of the client
+     * @param resourceFile The requested file
+     * @return The acknowledged resume option, or null to send the whole file
+     * @throws IOException If the file could not be read
+     */
+    private ResumeOption acceptResume(ResourceFile resourceFile) throws IOException {
+        try {
+            ResumeOption requested = ResumeOption.parse(getSessionRequest().getOption(ResumeOption.NAME));
+
+            if (requested.getOffset() == 0 || requested.getOffset() > resourceFile.length())
+                return null;
+
+            if (resourceFile.checksum(requested.getOffset()) != requested.getChecksum()) {
+                LOG.logQuiet("The partial file of the client does not match the file. Sending the whole file.");
+                return null;
+            }
+
+            return requested;
+        } catch (InvalidPacketException iPE) {
+            // Like any unsupported option value, it is not acknowledged
+            LOG.logVerbose(() -> "Ignoring the resume option: " + iPE.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the blocks of the file with the block size of the session, and sends the first window
      * @throws IOException
      * @throws SessionException
      */
-    private void sendNextData() throws IOException, SessionException
+    private void startTransfer() throws IOException, SessionException
     {
-        if(messageList.size() == 0)
-        {
-            LOG.logVerbose("Could not send next data. Message list is empty.");
-            return;
+        // Open the blocks of the file (large files are streamed with read-ahead)
+        int window = congestionController.getMaxWindow();
+        if (compressedFile != null) {
+            // The sidecar is the compressed stream (after its header)
+            this.blockSource = openBlockSource(compressedFile, getBlockSize(), window, DeflateBlockSource.SIDECAR_HEADER_LENGTH, Long.MAX_VALUE);
+        } else if (compressed) {
+            // The file is compressed as it is sent, so the compressed blocks of the window are retained instead
+            this.blockSource = openCompressedBlockSource(window);
+        } else if (isNetascii()) {
+            // The file is translated as it is sent, so the translated blocks of the window are retained instead
+            this.blockSource = new NetasciiBlockSource(openBlockSource(getResourceFile(), getBlockSize(), 1, 0, Long.MAX_VALUE), getBlockSize(), window);
+        } else {
+            this.blockSource = openBlockSource(getResourceFile(), getBlockSize(), window, startOffset, sendLength);
+        }
+        this.nextBlockIndex = 0;
+
+        // This is just a sanity check. This should never occur.
+        // Even File Size = 0 should result in at least 1 DATA block (with 0 bytes of data)
+        if(this.blockSource.getBlockCount() == 0) {
+            LOG.logVerbose("There are no DATA blocks to transmit. This should not happen.");
+            throw new SessionException();
+        }
+
+        if (compressed && compressedFile == null)
+            LOG.logVerbose("Opened the file as compressed DATA blocks of " + getBlockSize() + " bytes");
+        else if (isNetascii() && !compressed)
+            LOG.logVerbose("Opened the file as netascii DATA blocks of " + getBlockSize() + " bytes");
+        else
+            LOG.logVerbose("Opened " + this.blockSource.getBlockCount() + " DATA blocks of " + getBlockSize() + " bytes");
+
+        transferStarted = true;
+        fillWindow();
+    }
+
+    /**
+     * Maps the block number of an ACK to the index of the block it acknowledges
+     * @param blockNum The ACK block number
+     * @return The block index (ackedIndex for a duplicate), or -1 if the ACK is older or was never sent
+     */
+    private long getAckedIndex(int blockNum) {
+        TransferOptions transferOptions = getTransferOptions();
+        long offset = Math.floorMod(blockNum - transferOptions.getBlockNumber(ackedIndex), transferOptions.getSequenceSpace());
+        return offset <= highestSentIndex - ackedIndex ? ackedIndex + offset : -1;
+    }
+
+    /**
+     * Sends blocks until the window is full (or the next block is held back by the pacer)
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void fillWindow() throws IOException, SessionException
+    {
+        while (nextBlockIndex < blockSource.getBlockCount() && nextBlockIndex - ackedIndex <= congestionController.getWindow()) {
+            if (pacer != null) {
+                long now = getCurrentNanos();
+                long departure = pacer.getDeparture(now, getBlockSize(), getPacingInterval());
+
+                if (departure - now > 0) {
+                    setPacingDeadline(departure);
+                    return;
+                }
+
+                pacer.sent();
+            }
+
+            sendBlock(nextBlockIndex++);
         }
+    }
+
+    /**
+     * @return The time between two blocks: the window is spread over the smoothed RTT
+     */
+    private long getPacingInterval() {
+        RttEstimator rttEstimator = getRttEstimator();
+        return rttEstimator.hasEstimate() ? rttEstimator.getSmoothedRttNanos() / congestionController.getWindow() : 0;
+    }
+
+    /**
+     * Goes back to the first unacknowledged block, and sends it right away
+     * @throws IOException
+     * @throws SessionException
+     */
+    private void goBack() throws IOException, SessionException
+    {
+        if (pacer != null)
+            pacer.reset();
 
-        // Remove next block of data & send it
-        currentData = messageList.remove(0);
+        nextBlockIndex = ackedIndex + 1;
+        if (nextBlockIndex < blockSource.getBlockCount())
+            sendBlock(nextBlockIndex++);
 
-        sendCurrentData();
+        fillWindow();
     }
 
     /**
-     * Sends current data message
+     * Sends a data block of the file.
+     * @param index The index of the block
      * @throws IOException
      * @throws SessionException
      */
-    private void sendCurrentData() throws IOException, SessionException
+    private void sendBlock(long index) throws IOException, SessionException
     {
-        if(currentData == null) {
-            LOG.logVerbose("Attempted to send current data (null)");
+        boolean retransmit = index <= highestSentIndex;
+        TransferOptions transferOptions = getTransferOptions();
+        DataMessage data = new DataMessage(transferOptions.getBlockNumber(index), blockSource.getBlock(index), transferOptions.getBlockSize());
+
+        // Retransmitted blocks are not sampled (Karn's algorithm)
+        sendTimes[(int) (index % sendTimes.length)] = retransmit ? 0 : getCurrentNanos();
+        highestSentIndex = Math.max(highestSentIndex, index);
+
+        sendMessage(data, retransmit);
+    }
+
+    @Override
+    protected void pacingTimerExpired() throws IOException, SessionException {
+        fillWindow();
+    }
+
+    @Override
+    protected void retransmit() throws IOException, SessionException {
+        if (!transferStarted) {
+            super.retransmit();
             return;
         }
 
-        expectedAckBlockNumber = currentData.getBlockNum();
-        sendMessage(currentData);
+        congestionController.onTimeout(getCurrentNanos());
+        recoveryIndex = highestSentIndex;
+        duplicateAcks = 0;
+        goBack();
+    }
+
+    /**
+     * Measures the RTT from the send time of the acknowledged block
+     */
+    @Override
+    protected long measureRtt(Message message) {
+        if (!transferStarted)
+            return super.measureRtt(message);
+
+        long acked = getAckedIndex(((AckMessage) message).getBlockNum());
+        if (acked <= ackedIndex)
+            return -1;
+
+        long sendTime = sendTimes[(int) (acked % sendTimes.length)];
+        return sendTime != 0 ? getCurrentNanos() - sendTime : -1;
+    }
+
+    @Override
+    public int getWindowSize() {
+        return congestionController.getWindow();
+    }
+
+    /**
+     * @return The congestion controller of this session
+     */
+    public CongestionController getCongestionController() {
+        return congestionController;
     }
 
     /**
@@ -141,37 +568,143 @@ public class TransmitSession extends TFTPSession {
         if(!resourceFile.canRead())
             sessionHandler.sessionErrorOccurred(this, new ErrorMessage(ErrorMessage.ErrorType.ACCESS_VIOLATION, "Could not read file '" + sessionRequest.getFileName() + "'"));
 
-        // Parse Data Message list from file
-        this.messageList = DataMessage.createDataMessageSequence(resourceFile.readFileToBytes());
-
-
-        // This is just a sanity check. This should never occur.
-        // Even File Size = 0 should result in at least 1 DATA block (with 0 bytes of data)
-        if(this.messageList.size() == 0) {
-            LOG.logVerbose("There are no DATA blocks to transmit. This should not happen.");
-            throw new SessionException();
-        }
-
-        LOG.logVerbose("Loaded " + this.messageList.size() + " DATA blocks");
+        setTransferSize(resourceFile.length());
 
         // If we are on the server side (RRQ), we will send the first data block
+        // (or an OACK, and wait for its ACK, if options were accepted)
         if(requestType.equals(RRQ))
         {
-            LOG.logQuiet("Read Request received. Sending first DATA block");
-            sendNextData();
+            OptionAckMessage optionAck = negotiateOptions();
+
+            // Only the bytes of the requested segment, or after the partial file of the client, are sent
+            RangeOption range = isRangeRequested() ? acceptRange(resourceFile) : null;
+            ResumeOption resume = range == null && isResumeRequested() ? acceptResume(resourceFile) : null;
+
+            if (range != null) {
+                startOffset = range.getOffset();
+                sendLength = range.getLength();
+                setTransferSize(sendLength);
+                LOG.logQuiet("Sending the range " + range + " of the file");
+                optionAck = addOption(optionAck, RangeOption.NAME, range.toString());
+            } else if (resume != null) {
+                startOffset = resume.getOffset();
+                setTransferSize(resourceFile.length() - startOffset);
+                LOG.logQuiet("Resuming the read after " + startOffset + " bytes");
+                optionAck = addOption(optionAck, ResumeOption.NAME, resume.toString());
+            } else if (isCompressionRequested() && acceptCompression(resourceFile)) {
+                LOG.logQuiet("Sending the file compressed");
+                optionAck = addOption(optionAck, CompressOption.NAME, CompressOption.DEFLATE);
+            }
+
+            if (optionAck != null) {
+                LOG.logQuiet("Read Request received. Sending OACK");
+                sendMessage(optionAck);
+            } else {
+                LOG.logQuiet("Read Request received. Sending first DATA block");
+                startTransfer();
+            }
         }
         else if (requestType.equals(WRQ))
         {
             // Since we are on the Client side, we need to send the request
-            // And expect a WRQ ACK
+            // And expect a WRQ ACK (or an OACK)
             LOG.logQuiet("Sending Write Request");
-            sendMessage(sessionRequest);
+            sendRequest();
+        }
+    }
+
+    /**
+     * Opens the file as a compressed stream (of its netascii translation, in netascii mode). With COMPRESSION_CACHE,
+     * the server also writes the stream to a new sidecar, unless another read of the file is writing it.
+     * @param window The number of blocks that may be requested again
+     * @return The compressed blocks of the file
+     * @throws IOException
+     */
+    private BlockSource openCompressedBlockSource(int window) throws IOException {
+        // (the sidecar records the file it is compressed from, so a change during the transfer invalidates it)
+        ResourceFile resourceFile = getResourceFile();
+        long fileLength = resourceFile.length();
+        long fileModified = resourceFile.lastModified();
+
+        BlockSource fileSource = openBlockSource(resourceFile, getBlockSize(), 1, 0, Long.MAX_VALUE);
+        if (isNetascii())
+            fileSource = new NetasciiBlockSource(fileSource, getBlockSize(), 1);
 
-            // Update socket address on the next receive
-            // (since it will be the address from the new server worker)
-            setShouldUpdateSocketAddress();
+        DeflateBlockSource compressedSource = new DeflateBlockSource(fileSource, getBlockSize(), window, Configuration.GLOBAL_CONFIG.COMPRESSION_LEVEL);
 
-            expectedAckBlockNumber = 0;
+        if (Configuration.GLOBAL_CONFIG.COMPRESSION_CACHE && !isNetascii() && getSessionRequest().getMessageType() == RRQ) {
+            ResourceFile cacheFile = getCompressedCacheFile();
+            if (cacheFile.createNewFile())
+                compressedSource.cacheTo(cacheFile, getCompressedFile(), fileLength, fileModified);
         }
+
+        return compressedSource;
+    }
+
+    /**
+     * Files of at least PREFETCH_THRESHOLD_BYTES are streamed from disk with an asynchronous
+     * read-ahead window. Smaller files are loaded into memory at once, unless the memory budget
+     * cannot hold them (then they are streamed as well). Files that do not fit in an array are always streamed.
+     * @param resourceFile The file to transmit
+     * @param blockSize    The size of a block
+     * @param window       The number of blocks that may be requested again
+     * @param offset       The offset of the first block in the file (a resumed transfer, or a range)
+     * @param length       The number of bytes to send from the offset (Long.MAX_VALUE for the rest of the file)
+     * @return The block source of the file
+     * @throws IOException
+     */
+    private static BlockSource openBlockSource(ResourceFile resourceFile, int blockSize, int window, long offset, long length) throws IOException {
+        BlockSource loaded = loadBlockSource(resourceFile, blockSize, offset, length);
+        if (loaded != null)
+            return loaded;
+
+        long streamed = Math.min(length, resourceFile.length() - offset);
+        LOG.logVerbose(() -> "Streaming " + streamed + " bytes with read-ahead");
+        return new PrefetchingBlockSource(resourceFile.toPath(), blockSize, BlockPrefetcher.GLOBAL_PREFETCHER,
+                Configuration.GLOBAL_CONFIG.PREFETCH_MAX_BLOCKS, window, offset, length);
+    }
+
+    /**
+     * Loads a file smaller than PREFETCH_THRESHOLD_BYTES into memory, if the memory budget can hold it
+     * @param resourceFile The file to transmit
+     * @param blockSize    The size of a block
+     * @return The blocks of the loaded file, or null if the file must be read from disk
+     * @throws IOException
+     */
+    static BlockSource loadBlockSource(ResourceFile resourceFile, int blockSize) throws IOException {
+        return loadBlockSource(resourceFile, blockSize, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Loads a file smaller than PREFETCH_THRESHOLD_BYTES into memory, if the memory budget can hold it
+     * @param resourceFile The file to transmit
+     * @param blockSize    The size of a block
+     * @param offset       The offset of the first block in the file
+     * @param sendLength   The number of bytes to send from the offset (up to the end of the file)
+     * @return The blocks of the loaded file, or null if the file must be read from disk
+     * @throws IOException
+     */
+    private static BlockSource loadBlockSource(ResourceFile resourceFile, int blockSize, long offset, long sendLength) throws IOException {
+        long length = resourceFile.length();
+
+        if (length < Configuration.GLOBAL_CONFIG.PREFETCH_THRESHOLD_BYTES && length <= MAX_LOADED_FILE_BYTES
+                && MemoryBudget.GLOBAL_BUDGET.tryReserve(MemoryBudget.Subsystem.FILE_BUFFERS, length)) {
+            try {
+                byte[] data = resourceFile.readFileToBytes();
+                int end = (int) Math.min(data.length, offset + Math.min(sendLength, data.length));
+                return new ByteArrayBlockSource(data, (int) offset, end - (int) offset, blockSize).releaseOnClose(MemoryBudget.GLOBAL_BUDGET, length);
+            } catch (IOException ioE) {
+                MemoryBudget.GLOBAL_BUDGET.release(MemoryBudget.Subsystem.FILE_BUFFERS, length);
+                throw ioE;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void sessionFinished() {
+        if (blockSource != null)
+            blockSource.close();
     }
 }
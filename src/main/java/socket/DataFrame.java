@@ -0,0 +1,149 @@
+package socket;
+
+import formats.DataMessage;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A reusable, per-session send frame for DATA messages.
+ *
+ * The 4 byte DATA header and the payload come from different places (the header is generated,
+ * the payload is a slice of cached or mapped file data). Instead of concatenating them into a
+ * fresh array on every send (see {@link formats.Message#toByteArray()}), the frame keeps a small
+ * header buffer and a reference to the payload slice:
+ * - {@link #writeTo(GatheringByteChannel)} writes both buffers as one datagram (gathering write)
+ * - {@link #toPacket(SocketAddress)} fills a reusable packet buffer for classic DatagramSockets
+ * - {@link #toBuffer()} exposes the same packet buffer for unconnected (non-blocking) channels
+ *
+ * Retransmitting the same DataMessage re-uses the already encoded buffers.
+ */
+public class DataFrame {
+
+    private final ByteBuffer header;
+    private final ByteBuffer[] buffers;
+    private byte[] packetBuffer;
+    private DatagramPacket packet;
+    private ByteBuffer packetView;
+    private DataMessage currentMessage;
+    private boolean packetFilled;
+
+    public DataFrame() {
+        this.header = ByteBuffer.allocate(DataMessage.HEADER_SIZE);
+        this.buffers = new ByteBuffer[]{header, null};
+        this.packetBuffer = new byte[DataMessage.HEADER_SIZE + DataMessage.MAX_BLOCK_SIZE];
+    }
+
+    /**
+     * Sets the message held by the frame. Setting the same message again (i.e. a retransmit)
+     * does not re-encode anything.
+     * @param message The DATA message to frame
+     * @return This frame
+     */
+    public DataFrame set(DataMessage message) {
+        if (message != currentMessage) {
+            currentMessage = message;
+            packetFilled = false;
+
+            header.clear();
+            message.writeHeader(header);
+            header.flip();
+            buffers[1] = message.getPayload();
+        }
+
+        // Rewind so that the frame can be written again
+        header.rewind();
+        buffers[1].rewind();
+        return this;
+    }
+
+    /**
+     * @return The message currently held by this frame
+     */
+    public DataMessage getMessage() {
+        return currentMessage;
+    }
+
+    /**
+     * @return The total size of the framed datagram
+     */
+    public int length() {
+        return header.limit() + buffers[1].limit();
+    }
+
+    /**
+     * Writes the header and payload as one datagram with a gathering write (no concatenation).
+     * The channel must be connected (a DatagramChannel only supports gathering writes when connected).
+     * @param channel The channel to write to
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        header.rewind();
+        buffers[1].rewind();
+        return channel.write(buffers);
+    }
+
+    /**
+     * Fills (only once per message) the reusable packet buffer with the header and payload.
+     * Used for sockets that do not support gathering writes.
+     * @param socketAddress The destination of the packet
+     * @return The reusable DatagramPacket
+     */
+    public DatagramPacket toPacket(SocketAddress socketAddress) {
+        int length = fillPacketBuffer();
+
+        if (packet == null)
+            packet = new DatagramPacket(packetBuffer, length, socketAddress);
+        else {
+            packet.setData(packetBuffer, 0, length);
+            packet.setSocketAddress(socketAddress);
+        }
+
+        return packet;
+    }
+
+    /**
+     * Fills (only once per message) the reusable packet buffer, for channels that send to an
+     * explicit address (DatagramChannel#send), where gathering writes are not available.
+     * @return A reusable buffer over the framed datagram (position 0, limit = datagram length)
+     */
+    public ByteBuffer toBuffer() {
+        int length = fillPacketBuffer();
+
+        if (packetView == null || packetView.array() != packetBuffer)
+            packetView = ByteBuffer.wrap(packetBuffer);
+
+        packetView.limit(length).position(0);
+        return packetView;
+    }
+
+    /**
+     * Copies the header and payload into the packet buffer, unless it already holds the current message
+     * @return The length of the framed datagram
+     */
+    private int fillPacketBuffer() {
+        int length = length();
+
+        if (!packetFilled) {
+            // Grow the packet buffer if required (ex: for larger negotiated block sizes)
+            if (packetBuffer.length < length) {
+                packetBuffer = new byte[length];
+                packet = null;
+            }
+
+            header.rewind();
+            header.get(packetBuffer, 0, header.limit());
+
+            ByteBuffer payload = buffers[1];
+            payload.rewind();
+            payload.get(packetBuffer, header.limit(), payload.limit());
+            packetFilled = true;
+        }
+
+        return length;
+    }
+}
@@ -1,5 +1,6 @@
 package socket;
 
+import formats.DataMessage;
 import formats.Message;
 import logging.Logger;
 import resources.Configuration;
@@ -16,6 +17,8 @@ import java.util.Arrays;
 
 public class TFTPDatagramSocket extends DatagramSocket {
     public final static Logger LOG = new Logger("TFTPDatagramSocket");
+    private DataFrame dataFrame;
+    private byte[] receiveBuffer;
 
     public TFTPDatagramSocket() throws SocketException {
         super();
@@ -39,16 +42,15 @@ public class TFTPDatagramSocket extends DatagramSocket {
             // Increase # of attempts
             transmitAttempts++;
 
-            if(transmitAttempts > 1)
-                LOG.logVerbose("Message Transmit Attempt #" + transmitAttempts);
+            DatagramPacket packet = toPacket(msg, socketAddress);
 
-            byte[] data = msg.toByteArray();
-            DatagramPacket packet = new DatagramPacket(data, data.length, socketAddress);
-            LOG.logVerbose("Sending Message to " + socketAddress);
-            LOG.logVerbose("===== Packet Information ====");
-            LOG.logVerbose(packet);
-            LOG.logVerbose("===== End Packet Information ====");
-            LOG.logVerbose(System.lineSeparator());
+            // Guard all verbose logging with one check, so nothing is built when verbose is disabled
+            if (LOG.isVerbose()) {
+                if (transmitAttempts > 1)
+                    LOG.logVerbose("Message Transmit Attempt #" + transmitAttempts);
+
+                logPacket("Sending Message to " + socketAddress, packet);
+            }
 
             try {
                 send(packet);
@@ -65,6 +67,27 @@ public class TFTPDatagramSocket extends DatagramSocket {
 
     }
 
+    /**
+     * Creates the packet for a message. DATA messages are framed in a reusable per-socket
+     * DataFrame (header + payload slice), so no intermediate byte arrays are created, and
+     * retransmits of the same message re-use the already framed packet.
+     * @param msg           The message to send
+     * @param socketAddress The destination of the packet
+     * @return The packet to send
+     * @throws IOException
+     */
+    private DatagramPacket toPacket(Message msg, SocketAddress socketAddress) throws IOException {
+        if (msg instanceof DataMessage) {
+            if (dataFrame == null)
+                dataFrame = new DataFrame();
+
+            return dataFrame.set((DataMessage) msg).toPacket(socketAddress);
+        }
+
+        byte[] data = msg.toByteArray();
+        return new DatagramPacket(data, data.length, socketAddress);
+    }
+
     /**
      * Takes a packet with pre-existing data and forwards it to another host
      * @param clientPacket The packet to forward
@@ -76,8 +99,10 @@ public class TFTPDatagramSocket extends DatagramSocket {
         clientPacket.setAddress(address);
         clientPacket.setPort(port);
 
-        LOG.logVerbose("Forwarding packet to address: " + address + ", Port: " + port);
-        LOG.logVerbose(clientPacket);
+        if (LOG.isVerbose()) {
+            LOG.logVerbose("Forwarding packet to address: " + address + ", Port: " + port);
+            LOG.logVerbose(clientPacket);
+        }
         send(clientPacket);
     }
 
@@ -86,25 +111,42 @@ public class TFTPDatagramSocket extends DatagramSocket {
     }
 
     /**
-     * Receives a TFTP message over the socket
+     * Receives a TFTP message over the socket. The buffer fits the largest negotiated DATA block
+     * (it is only allocated once, and the returned packet holds a trimmed copy).
      * @throws IOException
      */
     public DatagramPacket receive() throws IOException {
-        DatagramPacket packet = new DatagramPacket(new byte[Message.MAX_PACKET_SIZE + 1], Message.MAX_PACKET_SIZE + 1);
-        super.receive(packet);
+        DatagramPacket packet;
 
-        // Trim and set byte array
-        byte[] trimmedData = Arrays.copyOf(packet.getData(), packet.getLength());
-        packet.setData(trimmedData);
+        synchronized (this) {
+            if (receiveBuffer == null)
+                receiveBuffer = new byte[Message.MAX_NEGOTIATED_PACKET_SIZE + 1];
 
-        LOG.logVerbose("Received Packet from " + packet.getSocketAddress());
+            packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            super.receive(packet);
+
+            // Trim and set byte array
+            byte[] trimmedData = Arrays.copyOf(packet.getData(), packet.getLength());
+            packet.setData(trimmedData);
+        }
+
+        if (LOG.isVerbose())
+            logPacket("Received Packet from " + packet.getSocketAddress(), packet);
+
+        return packet;
+    }
+
+    /**
+     * Logs the packet information to verbose output (callers should check that verbose is enabled first)
+     * @param description The description of the packet
+     * @param packet      The packet to log
+     */
+    private void logPacket(String description, DatagramPacket packet) {
+        LOG.logVerbose(description);
         LOG.logVerbose("===== Packet Information ====");
         LOG.logVerbose(packet);
         LOG.logVerbose("===== End Packet Information ====");
         LOG.logVerbose(System.lineSeparator());
-
-
-        return packet;
     }
 }
 
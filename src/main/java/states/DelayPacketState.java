@@ -4,10 +4,14 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
 
 import socket.TFTPDatagramSocket;
 import util.ErrorChecker;
 
+/**
+ * Delays the matching packets without holding up the relay (see {@link #forwardLater(DatagramPacket, long)}).
+ */
 public class DelayPacketState extends ForwardState {
 	public static final String MODE = "DELAY";
 	public static final int DEFAULT_DELAY = 1000;
@@ -40,15 +44,11 @@ public class DelayPacketState extends ForwardState {
 
 	@Override
 	protected void forwardPacket(DatagramPacket packet) throws IOException {
-		if (checker.check(packet)) {
+		if (check(checker, packet)) {
 			LOG.logQuiet("Delaying packet by " + delayInMilliseconds + " ms.");
 			LOG.logVerbose(packet);
-			try {
-				Thread.sleep(delayInMilliseconds);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			LOG.logQuiet("Continuing to forward packet.");
+			forwardLater(packet, TimeUnit.MILLISECONDS.toNanos(delayInMilliseconds));
+			return;
 		}
 		super.forwardPacket(packet);
 	}
@@ -6,9 +6,6 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.SocketException;
 
-import exceptions.InvalidPacketException;
-import formats.Message;
-import formats.Message.MessageType;
 import socket.TFTPDatagramSocket;
 import util.ErrorChecker;
 
@@ -37,19 +34,11 @@ public class DuplicateState extends ForwardState {
 	@Override
 	protected void forwardPacket(DatagramPacket packet) throws IOException {
 		super.forwardPacket(new DatagramPacket(packet.getData(), packet.getLength(), packet.getSocketAddress()));
-		if(checker.check(packet)) {
+		if(check(checker, packet)) {
 			LOG.logQuiet("Duplicating packet.");
 			LOG.logVerbose(packet);
-			MessageType type = null;
-			try {
-				type = Message.getMessageType(packet.getData());
-			} catch (InvalidPacketException e) {
-				e.printStackTrace();
-			}
-			if(type == MessageType.RRQ || type == MessageType.WRQ) 
-				super.forwardRequest(packet, serverAddress);
-			else
-				super.forwardPacket(packet);
+			// (a request is forwarded to the server port again, until the server answered it)
+			super.forwardPacket(packet);
 		}
 	}
 }
@@ -36,7 +36,7 @@ public class ExtendPacketState extends ForwardState {
 	
 	@Override
 	protected void forwardPacket(DatagramPacket packet) throws IOException {
-		if(checker.check(packet)) {
+		if(check(checker, packet)) {
 			LOG.logQuiet("Extending packet to more than 512 bytes.");
 			LOG.logVerbose(packet);
 
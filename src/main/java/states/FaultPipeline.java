@@ -0,0 +1,149 @@
+package states;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import logging.Logger;
+import util.ErrorChecker;
+
+/**
+ * A chain of fault stages that runs on every packet the relay forwards (after the error mode of the state), in the
+ * order the stages were added (ex: filter, loss, delay, dup, corrupt), then forwards the packet.
+ *
+ * The stages can be changed at any time while the relay runs: a change replaces the chain, and each packet runs
+ * the chain it entered (a delayed packet finishes the chain it started), so no packet is dropped by a change.
+ * The pipeline (and its delay line) is kept when the error mode changes.
+ */
+public class FaultPipeline {
+	private static final Logger LOG = new Logger("ErrorSimulator");
+	// An idle timer thread ends after this time (a new one is started by the next delayed packet)
+	private static final long DELAY_THREAD_KEEP_ALIVE_MS = 1000;
+
+	private volatile FaultStage[] stages = new FaultStage[0];
+	private final ScheduledThreadPoolExecutor delayLine;
+
+	public FaultPipeline() {
+		delayLine = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "SimulatorDelay");
+			thread.setDaemon(true);
+			return thread;
+		});
+		delayLine.setKeepAliveTime(DELAY_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+		delayLine.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * A packet task of the delay line
+	 */
+	interface PacketTask {
+		void run() throws IOException;
+	}
+
+	/**
+	 * The rest of the chain of a packet
+	 */
+	public static final class Chain {
+		private final FaultPipeline pipeline;
+		private final FaultStage[] stages;
+		private final int index;
+		private final ForwardState state;
+
+		private Chain(FaultPipeline pipeline, FaultStage[] stages, int index, ForwardState state) {
+			this.pipeline = pipeline;
+			this.stages = stages;
+			this.index = index;
+			this.state = state;
+		}
+
+		/**
+		 * Passes a packet to the next stage (or forwards it after the last stage)
+		 */
+		public void next(DatagramPacket packet) throws IOException {
+			if (index < stages.length)
+				stages[index].process(packet, new Chain(pipeline, stages, index + 1, state));
+			else
+				state.relay(packet);
+		}
+
+		/**
+		 * Passes a packet to the next stage once a delay elapsed (the relay keeps forwarding other packets)
+		 */
+		public void nextLater(DatagramPacket packet, long delayNanos) {
+			pipeline.schedule(() -> next(packet), delayNanos);
+		}
+
+		/**
+		 * Forwards a packet without the remaining stages
+		 */
+		public void skip(DatagramPacket packet) throws IOException {
+			state.relay(packet);
+		}
+
+		/**
+		 * @see ForwardState#check(ErrorChecker, DatagramPacket)
+		 */
+		boolean check(ErrorChecker checker, DatagramPacket packet) {
+			return state.check(checker, packet);
+		}
+	}
+
+	/**
+	 * Runs the current chain on a packet
+	 * @param state The state that relays the packet
+	 */
+	void process(ForwardState state, DatagramPacket packet) throws IOException {
+		new Chain(this, stages, 0, state).next(packet);
+	}
+
+	/**
+	 * Runs a task once a delay elapsed, on the timer thread. The delayed tasks are kept in a queue ordered by
+	 * release time (the same release time keeps the order of the tasks), so any number of packets can be delayed.
+	 */
+	void schedule(PacketTask task, long delayNanos) {
+		delayLine.schedule(() -> {
+			try {
+				task.run();
+			} catch (IOException ioE) {
+				LOG.logQuiet("Failed to forward a delayed packet: " + ioE.getLocalizedMessage());
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return The number of delayed packets
+	 */
+	public int getDelayedCount() {
+		return delayLine.getQueue().size();
+	}
+
+	public synchronized void add(FaultStage stage) {
+		FaultStage[] chain = Arrays.copyOf(stages, stages.length + 1);
+		chain[stages.length] = stage;
+		stages = chain;
+	}
+
+	/**
+	 * @param index The index of the stage (from 0)
+	 * @return The removed stage
+	 * @throws IndexOutOfBoundsException If there is no such stage
+	 */
+	public synchronized FaultStage remove(int index) {
+		List<FaultStage> chain = new ArrayList<>(Arrays.asList(stages));
+		FaultStage stage = chain.remove(index);
+		stages = chain.toArray(new FaultStage[0]);
+		return stage;
+	}
+
+	public synchronized void clear() {
+		stages = new FaultStage[0];
+	}
+
+	public List<FaultStage> getStages() {
+		return Arrays.asList(stages.clone());
+	}
+}
@@ -0,0 +1,162 @@
+package states;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import util.ErrorChecker;
+
+/**
+ * A stage of the {@link FaultPipeline}. A stage applies its fault to the packets its matcher selects: the packets
+ * of a message type (and block numbers) that the {@link ErrorChecker} accepts, or any packet without a checker,
+ * with a probability. The other packets go on to the next stage as is.
+ */
+public abstract class FaultStage {
+	private final String name;
+	private final ErrorChecker checker;
+	private final double probability;
+	private final String description;
+	private final Random random;
+
+	/**
+	 * @param name        The name of the stage (ex: loss)
+	 * @param checker     The packets the stage applies to, or null for any packet
+	 * @param probability The probability of applying the fault to a selected packet (from 0 to 1)
+	 * @param description The matcher of the stage (ex: "ack 7")
+	 */
+	protected FaultStage(String name, ErrorChecker checker, double probability, String description) {
+		this.name = name;
+		this.checker = checker;
+		this.probability = Math.max(0, Math.min(1, probability));
+		this.description = description;
+		this.random = new Random();
+	}
+
+	/**
+	 * Applies the stage to a packet
+	 * @param packet The packet
+	 * @param next   The rest of the chain: the stage passes the packet on (any number of times, now or later),
+	 *               or drops it by not passing it on
+	 */
+	public abstract void process(DatagramPacket packet, FaultPipeline.Chain next) throws IOException;
+
+	/**
+	 * @return True if the fault applies to a packet
+	 */
+	protected boolean matches(DatagramPacket packet, FaultPipeline.Chain next) {
+		return (checker == null || next.check(checker, packet)) && (probability >= 1 || random.nextDouble() < probability);
+	}
+
+	protected Random getRandom() {
+		return random;
+	}
+
+	@Override
+	public String toString() {
+		return name + (probability < 1 ? " " + probability * 100 + "%" : "") + (description.isEmpty() ? "" : " " + description);
+	}
+
+	/**
+	 * Copies a packet (forwarding a packet changes its address, the copy keeps the source)
+	 */
+	protected static DatagramPacket copy(DatagramPacket packet) {
+		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+		return new DatagramPacket(data, data.length, packet.getSocketAddress());
+	}
+
+	/**
+	 * Only runs the next stages on the selected packets, the other packets are forwarded as is
+	 */
+	public static class Filter extends FaultStage {
+		public Filter(ErrorChecker checker, double probability, String description) {
+			super("filter", checker, probability, description);
+		}
+
+		@Override
+		public void process(DatagramPacket packet, FaultPipeline.Chain next) throws IOException {
+			if (matches(packet, next))
+				next.next(packet);
+			else
+				next.skip(packet);
+		}
+	}
+
+	/**
+	 * Drops the selected packets
+	 */
+	public static class Loss extends FaultStage {
+		public Loss(ErrorChecker checker, double probability, String description) {
+			super("loss", checker, probability, description);
+		}
+
+		@Override
+		public void process(DatagramPacket packet, FaultPipeline.Chain next) throws IOException {
+			if (matches(packet, next)) {
+				ForwardState.LOG.logQuiet("Dropping packet.");
+				return;
+			}
+			next.next(packet);
+		}
+	}
+
+	/**
+	 * Delays the selected packets (the relay keeps forwarding the others)
+	 */
+	public static class Delay extends FaultStage {
+		private final long delayInMilliseconds;
+
+		public Delay(long delayInMilliseconds, ErrorChecker checker, double probability, String description) {
+			super("delay", checker, probability, delayInMilliseconds + (description.isEmpty() ? "" : " " + description));
+			this.delayInMilliseconds = delayInMilliseconds;
+		}
+
+		@Override
+		public void process(DatagramPacket packet, FaultPipeline.Chain next) throws IOException {
+			if (matches(packet, next)) {
+				ForwardState.LOG.logQuiet("Delaying packet by " + delayInMilliseconds + " ms.");
+				next.nextLater(packet, TimeUnit.MILLISECONDS.toNanos(delayInMilliseconds));
+				return;
+			}
+			next.next(packet);
+		}
+	}
+
+	/**
+	 * Sends the selected packets twice
+	 */
+	public static class Duplicate extends FaultStage {
+		public Duplicate(ErrorChecker checker, double probability, String description) {
+			super("dup", checker, probability, description);
+		}
+
+		@Override
+		public void process(DatagramPacket packet, FaultPipeline.Chain next) throws IOException {
+			if (matches(packet, next)) {
+				ForwardState.LOG.logQuiet("Duplicating packet.");
+				next.next(copy(packet));
+			}
+			next.next(packet);
+		}
+	}
+
+	/**
+	 * Flips a random bit of the selected packets
+	 */
+	public static class Corrupt extends FaultStage {
+		public Corrupt(ErrorChecker checker, double probability, String description) {
+			super("corrupt", checker, probability, description);
+		}
+
+		@Override
+		public void process(DatagramPacket packet, FaultPipeline.Chain next) throws IOException {
+			if (matches(packet, next) && packet.getLength() > 0) {
+				ForwardState.LOG.logQuiet("Corrupting packet.");
+				int index = packet.getOffset() + getRandom().nextInt(packet.getLength());
+				packet.getData()[index] ^= 1 << getRandom().nextInt(8);
+			}
+			next.next(packet);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package states;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import formats.Message.MessageType;
+import util.ErrorChecker;
+
+/**
+ * The sessions relayed by the simulator: each flow maps a client (address and port) to the server worker of its
+ * session, like the table of a NAT. All flows share the simulator socket.
+ *
+ * The server only sees the simulator socket, so the first response of a worker cannot tell which request it answers.
+ * The requests of new flows are therefore forwarded one at a time (a handshake): the next request is held until the
+ * server answered the previous one (or it timed out), and an unknown port of the server is the worker of the flow
+ * in the handshake. Only the latest request of a held flow is kept.
+ *
+ * A repeated request of the flow in the handshake (a retransmission or duplicate) starts another worker, and so may
+ * a request whose handshake timed out: the answers of these workers are expected (stale), so the next handshake
+ * waits until they arrived (or the handshake timeout passed) and a stale worker is never bound to the next flow.
+ *
+ * Flows that did not relay a packet for the idle timeout are removed.
+ */
+class FlowTable {
+	// A server that did not answer a request by then is not waited on (the client retransmits it)
+	static final long HANDSHAKE_TIMEOUT_MS = 1000;
+
+	private final Map<InetSocketAddress, Flow> clientFlows = new ConcurrentHashMap<>();
+	private final Map<InetSocketAddress, Flow> workerFlows = new ConcurrentHashMap<>();
+	private final Deque<Flow> handshakes = new ArrayDeque<>();
+	private final long idleTimeout;
+	// The answers of workers that no flow waits for, expected until quietUntil (ms)
+	private int staleAnswers;
+	private long quietUntil;
+
+	/**
+	 * @param idleTimeout The time a flow is kept without relaying a packet (ms)
+	 */
+	FlowTable(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * A client and the server worker of its session
+	 */
+	static class Flow {
+		private final InetSocketAddress client;
+		private final Map<ErrorChecker, ErrorChecker> checkers = new IdentityHashMap<>();
+		private volatile InetSocketAddress worker;
+		private volatile long lastActive;
+		private DatagramPacket heldRequest;
+		private MessageType heldType;
+		private MessageType requestType;
+		// The requests forwarded to the server in the handshake
+		private int forwardedRequests;
+		private long handshakeStart;
+
+		private Flow(InetSocketAddress client, InetSocketAddress worker) {
+			this.client = client;
+			this.worker = worker;
+			this.lastActive = System.currentTimeMillis();
+		}
+
+		InetSocketAddress getClient() {
+			return client;
+		}
+
+		/**
+		 * @return The server worker of the session, or null until the server answered the request
+		 */
+		InetSocketAddress getWorker() {
+			return worker;
+		}
+
+		void touch() {
+			lastActive = System.currentTimeMillis();
+		}
+
+		/**
+		 * @param checker The checker of a state
+		 * @return The copy of the checker that counts the packets of this flow
+		 */
+		synchronized ErrorChecker getChecker(ErrorChecker checker) {
+			return checkers.computeIfAbsent(checker, ErrorChecker::copy);
+		}
+
+		@Override
+		public String toString() {
+			return client + " <-> " + (worker != null ? worker : "?");
+		}
+	}
+
+	int size() {
+		return clientFlows.size();
+	}
+
+	/**
+	 * @return The flow of a client or server worker, or null if the address has no flow yet
+	 */
+	Flow find(InetSocketAddress address) {
+		Flow flow = workerFlows.get(address);
+		return flow != null ? flow : clientFlows.get(address);
+	}
+
+	Flow getFlowFromClient(InetSocketAddress client) {
+		return clientFlows.get(client);
+	}
+
+	Flow getFlowFromWorker(InetSocketAddress worker) {
+		return workerFlows.get(worker);
+	}
+
+	/**
+	 * Adds the flow of a new client
+	 * @param worker The server worker of the session, or null if the request was not answered yet
+	 */
+	synchronized Flow open(InetSocketAddress client, InetSocketAddress worker) {
+		Flow flow = new Flow(client, worker);
+		Flow previous = clientFlows.put(client, flow);
+		if (previous != null)
+			remove(previous);
+		if (worker != null)
+			workerFlows.put(worker, flow);
+		return flow;
+	}
+
+	/**
+	 * Queues the request of a flow that has no worker yet
+	 * @param type The type of the request
+	 * @return True if the request can be forwarded now, false if it is held until the previous handshake ends
+	 */
+	synchronized boolean startHandshake(Flow flow, DatagramPacket request, MessageType type) {
+		if (!handshakes.contains(flow))
+			handshakes.add(flow);
+
+		long now = System.currentTimeMillis();
+		if (handshakes.peek() == flow && (flow.forwardedRequests > 0 || !isQuiet(now))) {
+			forward(flow, type, now);
+			return true;
+		}
+
+		flow.heldRequest = request;
+		flow.heldType = type;
+		return false;
+	}
+
+	private void forward(Flow flow, MessageType type, long now) {
+		flow.heldRequest = null;
+		flow.requestType = type;
+		flow.forwardedRequests++;
+		flow.handshakeStart = now;
+	}
+
+	/**
+	 * @return True while stale answers are expected
+	 */
+	private boolean isQuiet(long now) {
+		if (staleAnswers > 0 && now >= quietUntil)
+			staleAnswers = 0;
+		return staleAnswers > 0;
+	}
+
+	/**
+	 * Learns the worker of the flow in the handshake from an unknown port of the server
+	 * @param answerType The type of the first packet of the worker
+	 * @return The flow, or null if no forwarded request waits for such an answer
+	 */
+	synchronized Flow bindWorker(InetSocketAddress worker, MessageType answerType) {
+		Flow flow = handshakes.peek();
+		if (flow == null || flow.forwardedRequests == 0 || !answers(flow.requestType, answerType))
+			return null;
+
+		handshakes.poll();
+		expectStaleAnswers(flow.forwardedRequests - 1, flow.handshakeStart + HANDSHAKE_TIMEOUT_MS);
+		flow.forwardedRequests = 0;
+		flow.worker = worker;
+		flow.touch();
+		workerFlows.put(worker, flow);
+		return flow;
+	}
+
+	private void expectStaleAnswers(int count, long until) {
+		if (count == 0)
+			return;
+
+		staleAnswers += count;
+		quietUntil = Math.max(quietUntil, until);
+	}
+
+	/**
+	 * Counts the answer of a worker that was not bound to a flow
+	 */
+	synchronized void dropAnswer() {
+		if (staleAnswers > 0)
+			staleAnswers--;
+	}
+
+	/**
+	 * @return True if a packet of the type can be the first packet of the worker of a request
+	 */
+	private static boolean answers(MessageType requestType, MessageType answerType) {
+		if (answerType == MessageType.OACK || answerType == MessageType.ERROR)
+			return true;
+
+		return requestType == MessageType.RRQ ? answerType == MessageType.DATA : answerType == MessageType.ACK;
+	}
+
+	/**
+	 * Starts the handshake of the next held flow, once the previous one ended and its stale answers arrived
+	 * @return The request to forward, or null if there is none (or a handshake is running)
+	 */
+	synchronized DatagramPacket nextHandshake() {
+		Flow flow = handshakes.peek();
+		long now = System.currentTimeMillis();
+		if (flow == null || flow.forwardedRequests > 0 || flow.heldRequest == null || isQuiet(now))
+			return null;
+
+		DatagramPacket request = flow.heldRequest;
+		forward(flow, flow.heldType, now);
+		return request;
+	}
+
+	/**
+	 * Ends a handshake the server did not answer (the client retransmits its request), and removes the idle flows
+	 * @param now The current time (ms)
+	 */
+	synchronized void expire(long now) {
+		Flow handshake = handshakes.peek();
+		if (handshake != null && handshake.forwardedRequests > 0 && now - handshake.handshakeStart > HANDSHAKE_TIMEOUT_MS) {
+			handshakes.poll();
+			// The server may still answer late
+			expectStaleAnswers(handshake.forwardedRequests, now + HANDSHAKE_TIMEOUT_MS);
+			handshake.forwardedRequests = 0;
+		}
+
+		Iterator<Flow> iterator = clientFlows.values().iterator();
+		while (iterator.hasNext()) {
+			Flow flow = iterator.next();
+			if (now - flow.lastActive > idleTimeout) {
+				iterator.remove();
+				remove(flow);
+			}
+		}
+	}
+
+	private void remove(Flow flow) {
+		if (flow.worker != null)
+			workerFlows.remove(flow.worker, flow);
+		handshakes.remove(flow);
+	}
+}
@@ -9,9 +9,19 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
+import formats.ErrorMessage;
+import formats.ErrorMessage.ErrorType;
+import formats.Message.MessageType;
 import logging.Logger;
 import socket.TFTPDatagramSocket;
+import util.ErrorChecker;
 
+/**
+ * Relays the sessions of any number of clients to the server. Each client (address and port) has a flow, which
+ * learns the server worker of its session from the first response of the server (see {@link FlowTable}).
+ * The error modes apply to each flow: an {@link ErrorChecker} counts the packets of every flow separately.
+ * After the error mode, each packet runs the stages of the {@link FaultPipeline}.
+ */
 public class ForwardState extends State {
 	public static final String MODE = "NORMAL";
 	private static final int SOCKET_TIMEOUT = 1000;
@@ -19,14 +29,19 @@ public class ForwardState extends State {
 
 	private TFTPDatagramSocket connection;
 	protected InetAddress serverAddress;
+	private FlowTable flows;
 	private InetSocketAddress clientAddress;
 	protected int currentServerWorkerPort;
+	private long nextExpiry;
+	private FaultPipeline pipeline;
 	private boolean stopping;
 	
 	public ForwardState(TFTPDatagramSocket connection, InetAddress serverAddress) throws SocketException {
 		this.connection = connection;
 		this.connection.setSoTimeout(SOCKET_TIMEOUT);
 		this.serverAddress = serverAddress;
+		this.flows = new FlowTable(GLOBAL_CONFIG.SIMULATOR_FLOW_TIMEOUT_MS);
+		this.pipeline = new FaultPipeline();
 		this.stopping = false;
 	}
 
@@ -42,8 +57,10 @@ public class ForwardState extends State {
 		LOG.logVerbose("Waiting for request from client");
 		while (!connection.isClosed() && !stopping) {
 			try {
+				expireFlows();
 				incomingPacket = connection.receive();
-				forwardPacket(incomingPacket);				
+				if (learnWorker(incomingPacket))
+					forwardPacket(incomingPacket);
 			} catch (SocketException sE)
 			{
 				// Socket closed exception
@@ -69,58 +86,198 @@ public class ForwardState extends State {
 		connection.forwardPacket(incomingPacket, serverAddress, GLOBAL_CONFIG.SERVER_PORT);
 	}
 	protected void forwardPacket(DatagramPacket incomingPacket) throws IOException {
-		InetAddress incomingAddr = incomingPacket.getAddress();
-		int incomingPort = incomingPacket.getPort();
-		
-		// Check to see what the source IP is
-		// If the request is not from the current client AND not from the server worker,
-		// We have a new client (and will forward this ONE packet to server port 69)
-		if(!isFromClient(incomingAddr, incomingPort) && !isFromServerWorker(incomingAddr, incomingPort))
+		pipeline.process(this, incomingPacket);
+	}
+
+	/**
+	 * Forwards a packet once a delay elapsed, on the timer thread of the pipeline (the relay keeps forwarding the
+	 * other packets). The delayed packets are kept in a queue ordered by release time (the same release time keeps
+	 * the order of the packets), so any number of packets can be delayed at once.
+	 * @param packet     The received packet (the error mode already applied to it, the pipeline did not)
+	 * @param delayNanos The time to hold the packet
+	 */
+	protected void forwardLater(DatagramPacket packet, long delayNanos) {
+		FaultPipeline pipeline = this.pipeline;
+		pipeline.schedule(() -> pipeline.process(this, packet), delayNanos);
+	}
+
+	/**
+	 * Forwards a packet to the other side of its flow (after the error mode and the pipeline)
+	 */
+	void relay(DatagramPacket incomingPacket) throws IOException {
+		InetSocketAddress source = new InetSocketAddress(incomingPacket.getAddress(), incomingPacket.getPort());
+
+		// If the packet is from a server worker
+		// We are going to forward the packet to the client of its flow
+		FlowTable.Flow flow = flows.getFlowFromWorker(source);
+		if (flow != null)
+		{
+			flow.touch();
+			LOG.logQuiet("Received message from server. Forwarding to client.");
+			connection.forwardPacket(incomingPacket, flow.getClient());
+			return;
+		}
+
+		// If the packet is not from a known client
+		// We have a new client (and will forward its request to server port 69)
+		flow = flows.getFlowFromClient(source);
+		if (flow == null)
 		{
 			LOG.logQuiet("New Client Detected.");
-			clientAddress = new InetSocketAddress(incomingPacket.getAddress(), incomingPacket.getPort());
+			flow = flows.open(source, null);
+		}
+		flow.touch();
 
+		// If the server worker of the client is known
+		// We are going to forward the packet to the server worker
+		InetSocketAddress worker = flow.getWorker();
+		if (worker != null)
+		{
+			LOG.logQuiet("Received message from client. Forwarding to server.");
+			connection.forwardPacket(incomingPacket, worker.getAddress(), worker.getPort());
+		}
+		else if (flows.startHandshake(flow, incomingPacket, getType(incomingPacket)))
+		{
 			LOG.logQuiet("Forwarding initial request to server");
 			forwardRequest(incomingPacket, serverAddress);
+		}
+		else
+		{
+			LOG.logVerbose("Holding request of " + source + " until the server answered the forwarded request");
+		}
+	}
 
-			LOG.logVerbose("Waiting for initial response from server");
-			DatagramPacket serverResponsePacket = connection.receive();
-
-			// Now we learn the server workers PORT
-			currentServerWorkerPort = serverResponsePacket.getPort();
-			LOG.logVerbose("Received server response. Worker thread port: " + currentServerWorkerPort);
+	/**
+	 * Uses the per flow copy of a checker, so the packets of each session are counted separately
+	 * @param checker The checker of the error mode
+	 * @param packet  The received packet (before it is forwarded)
+	 * @return True if the error applies to the packet
+	 */
+	protected boolean check(ErrorChecker checker, DatagramPacket packet) {
+		InetSocketAddress source = new InetSocketAddress(packet.getAddress(), packet.getPort());
+		FlowTable.Flow flow = flows.getFlowFromWorker(source);
+		ErrorChecker.Side side = flow != null ? ErrorChecker.Side.SERVER : ErrorChecker.Side.CLIENT;
+		if (flow == null)
+			flow = flows.getFlowFromClient(source);
 
-			// Now forward the initial response back to client
-			LOG.logQuiet("Forwarding initial response to client");
-			forwardPacket(serverResponsePacket);
+		ErrorChecker flowChecker = flow != null ? flow.getChecker(checker) : checker.copy();
+		// (the stages after a delay check packets on the timer thread)
+		synchronized (flowChecker) {
+			return flowChecker.check(packet, side);
 		}
-		// If the packet is from the server worker
-		// We are going to forward the packet to the current client
-		else if(!isFromClient(incomingAddr, incomingPort) && isFromServerWorker(incomingAddr, incomingPort))
-		{
-			LOG.logQuiet("Received message from server. Forwarding to client.");
-			connection.forwardPacket(incomingPacket, clientAddress);
+	}
+
+	/**
+	 * The first response of a worker comes from an unknown port of the server: it belongs to the flow in the
+	 * handshake. The worker is learned when the packet is received, before any error mode applies to it.
+	 * An unknown port that answers no forwarded request (a late or second worker) is sent an error, so it stops.
+	 * @return False if the packet is dropped
+	 */
+	private boolean learnWorker(DatagramPacket packet) throws IOException {
+		InetSocketAddress source = new InetSocketAddress(packet.getAddress(), packet.getPort());
+		if (!packet.getAddress().equals(serverAddress) || flows.find(source) != null || isRequest(packet))
+			return true;
+
+		MessageType type = getType(packet);
+		FlowTable.Flow flow = flows.bindWorker(source, type);
+		if (flow == null) {
+			LOG.logVerbose("Dropping packet of unknown server port " + source.getPort() + ": it answers no forwarded request");
+			if (type != MessageType.ERROR)
+				connection.sendMessage(new ErrorMessage(ErrorType.UNKNOWN_TRANSFER_ID, "Unknown transfer ID"), source);
+			flows.dropAnswer();
+			forwardHeldRequests();
+			return false;
 		}
-		// If the packet is from the current client
-		// We are going to forward the packet to the server
-		else if(!isFromServerWorker(incomingAddr, incomingPort) && isFromClient(incomingAddr, incomingPort))
-		{
-			LOG.logQuiet("Received message from client. Forwarding to server.");
-			connection.forwardPacket(incomingPacket, serverAddress, currentServerWorkerPort);
+
+		LOG.logVerbose("Received server response. Worker thread port: " + source.getPort() + " (" + flow + ")");
+		forwardHeldRequests();
+		return true;
+	}
+
+	/**
+	 * Forwards the request of the next new client once the previous handshake ended
+	 */
+	private void forwardHeldRequests() throws IOException {
+		DatagramPacket request = flows.nextHandshake();
+		if (request != null) {
+			LOG.logQuiet("Forwarding initial request to server");
+			forwardRequest(request, serverAddress);
 		}
+	}
+
+	private void expireFlows() throws IOException {
+		long now = System.currentTimeMillis();
+		if (now < nextExpiry)
+			return;
+
+		nextExpiry = now + SOCKET_TIMEOUT;
+		flows.expire(now);
+		forwardHeldRequests();
+	}
 
+	private static boolean isRequest(DatagramPacket packet) {
+		MessageType type = getType(packet);
+		return type == MessageType.RRQ || type == MessageType.WRQ;
+	}
+
+	/**
+	 * @return The type of a packet, or null if its opcode is not valid
+	 */
+	private static MessageType getType(DatagramPacket packet) {
+		if (packet.getLength() < 2 || packet.getData()[packet.getOffset()] != 0)
+			return null;
+
+		return MessageType.getMessageType(packet.getData()[packet.getOffset() + 1]);
 	}
 	
+	/**
+	 * Stops relaying. The packets that are already delayed are still forwarded.
+	 */
 	public void stopState() {
 		this.stopping = true;
 	}
+
+	/**
+	 * Keeps relaying the flows of the previous state, through its pipeline (when the error mode changes)
+	 */
+	public void adopt(ForwardState previous) {
+		this.flows = previous.flows;
+		this.pipeline = previous.pipeline;
+	}
+
+	/**
+	 * @return The fault stages that run after the error mode
+	 */
+	public FaultPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * @return The number of clients with a flow
+	 */
+	public int getFlowCount() {
+		return flows.size();
+	}
+	
+	/**
+	 * Adds the flow of a client whose server worker is known
+	 * @param clientAddress The address and port of the client
+	 * @param workerPort    The port of the server worker
+	 */
+	public void openFlow(InetSocketAddress clientAddress, int workerPort) {
+		flows.open(clientAddress, new InetSocketAddress(serverAddress, workerPort));
+	}
 	
 	public void setServerWorkerPort(int port) {
 		this.currentServerWorkerPort = port;
+		if (clientAddress != null)
+			openFlow(clientAddress, port);
 	}
 	
 	public void setClientAddress(InetSocketAddress clientAddress) {
 		this.clientAddress = clientAddress;
+		if (currentServerWorkerPort > 0)
+			openFlow(clientAddress, currentServerWorkerPort);
 	}
 	
 	public TFTPDatagramSocket getConnection() {
@@ -130,26 +287,4 @@ public class ForwardState extends State {
 	public InetAddress getServerAddress() {
 		return this.serverAddress;
 	}
-	
-	/**
-	 * Checks to see if a request is coming from the current client.
-	 * @param addr The address to check
-	 * @param port The port to check
-	 * @return True if addr/port match current client
-	 */
-	private boolean isFromClient(InetAddress addr, int port)
-	{
-		return clientAddress != null && clientAddress.getAddress().equals(addr) && clientAddress.getPort() == port;
-	}
-
-	/**
-	 * Checks to see if a request is coming from the current server worker.
-	 * @param addr The address to check
-	 * @param port The port to check
-	 * @return True if addr/port match current server worker
-	 */
-	private boolean isFromServerWorker(InetAddress addr, int port)
-	{
-		return serverAddress != null && serverAddress.equals(addr) && currentServerWorkerPort == port;
-	}
 }
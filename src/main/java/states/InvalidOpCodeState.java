@@ -32,7 +32,7 @@ public class InvalidOpCodeState extends ForwardState{
 
     @Override
     protected void forwardPacket(DatagramPacket packet) throws IOException {
-        if (checker.check(packet)) {
+        if (check(checker, packet)) {
             LOG.logQuiet("Sending Invalid OpCode.");
             LOG.logVerbose(packet);
             byte [] data = packet.getData();
@@ -37,7 +37,7 @@ public class InvalidTIDState extends ForwardState{
 
     @Override
     protected void forwardPacket(DatagramPacket packet) throws IOException {
-        if (checker.check(packet)) {
+        if (check(checker, packet)) {
             LOG.logQuiet("Sending packet with invalid TID.");
             LOG.logVerbose(packet);
             if (invalidTIDSocket == null) invalidTIDSocket = new TFTPDatagramSocket();
@@ -32,7 +32,7 @@ public class LostPacketState extends ForwardState {
 
 	@Override
 	protected void forwardPacket(DatagramPacket packet) throws IOException {
-		if (checker.check(packet)) {
+		if (check(checker, packet)) {
 			LOG.logQuiet("Dropping packet.");
 			LOG.logVerbose(packet);
 			return;
@@ -0,0 +1,234 @@
+package states;
+
+/**
+ * The network conditions emulated by {@link NetemState}, like the netem queueing discipline of Linux.
+ *
+ * The command syntax is the netem syntax (percentages and milliseconds), any keyword can be left out:
+ * <pre>
+ * netem [loss PERCENT] [gemodel P R [1-H [1-K]]] [delay MS [JITTER_MS]] [reorder PERCENT]
+ *       [duplicate PERCENT] [rate BYTES_PER_SEC [BURST_BYTES]] [seed SEED]
+ * </pre>
+ * The setters are used to build a profile in code (ex: in tests). Probabilities are from 0 to 1.
+ */
+public class NetemProfile {
+	private double loss;
+	private boolean burstLoss;
+	private double enterBurst;
+	private double leaveBurst;
+	private double burstLossRate = 1;
+	private double gapLossRate;
+	private long delayNanos;
+	private long jitterNanos;
+	private double reorder;
+	private double duplicate;
+	private long rate;
+	private long burstBytes;
+	private long seed = System.nanoTime();
+
+	/**
+	 * Loses each packet independently
+	 * @param probability The probability of losing a packet
+	 */
+	public NetemProfile loss(double probability) {
+		this.loss = probability(probability);
+		return this;
+	}
+
+	/**
+	 * Loses packets in bursts (Gilbert-Elliott model): the link is in a good state (gaps) or a bad state (bursts),
+	 * and each state loses packets with its own probability. The state changes before each packet.
+	 * @param enterBurst    The probability of going from the good to the bad state (p)
+	 * @param leaveBurst    The probability of going from the bad to the good state (r)
+	 * @param burstLossRate The probability of losing a packet in the bad state (1-h)
+	 * @param gapLossRate   The probability of losing a packet in the good state (1-k)
+	 */
+	public NetemProfile burstLoss(double enterBurst, double leaveBurst, double burstLossRate, double gapLossRate) {
+		this.burstLoss = true;
+		this.enterBurst = probability(enterBurst);
+		this.leaveBurst = probability(leaveBurst);
+		this.burstLossRate = probability(burstLossRate);
+		this.gapLossRate = probability(gapLossRate);
+		return this;
+	}
+
+	/**
+	 * Delays each packet
+	 * @param delayNanos  The mean delay
+	 * @param jitterNanos The standard deviation of the delay (normal distribution, never below 0)
+	 */
+	public NetemProfile delay(long delayNanos, long jitterNanos) {
+		this.delayNanos = Math.max(0, delayNanos);
+		this.jitterNanos = Math.max(0, jitterNanos);
+		return this;
+	}
+
+	/**
+	 * Sends packets without the delay (so they overtake the delayed packets)
+	 * @param probability The probability of sending a packet at once
+	 */
+	public NetemProfile reorder(double probability) {
+		this.reorder = probability(probability);
+		return this;
+	}
+
+	/**
+	 * @param probability The probability of sending a packet twice
+	 */
+	public NetemProfile duplicate(double probability) {
+		this.duplicate = probability(probability);
+		return this;
+	}
+
+	/**
+	 * Caps the bandwidth with a token bucket: the packets wait for their bytes to be available
+	 * @param bytesPerSecond The rate of the bucket (0 for no cap)
+	 * @param burstBytes     The bytes that can be sent at once after an idle period (at least a packet)
+	 */
+	public NetemProfile rate(long bytesPerSecond, long burstBytes) {
+		this.rate = Math.max(0, bytesPerSecond);
+		this.burstBytes = Math.max(0, burstBytes);
+		return this;
+	}
+
+	/**
+	 * @param seed The seed of the random draws (the same seed and packets give the same conditions)
+	 */
+	public NetemProfile seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	public boolean isBurstLoss() {
+		return burstLoss;
+	}
+
+	public double getEnterBurst() {
+		return enterBurst;
+	}
+
+	public double getLeaveBurst() {
+		return leaveBurst;
+	}
+
+	public double getBurstLossRate() {
+		return burstLossRate;
+	}
+
+	public double getGapLossRate() {
+		return gapLossRate;
+	}
+
+	public long getDelayNanos() {
+		return delayNanos;
+	}
+
+	public long getJitterNanos() {
+		return jitterNanos;
+	}
+
+	public double getReorder() {
+		return reorder;
+	}
+
+	public double getDuplicate() {
+		return duplicate;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public long getBurstBytes() {
+		return burstBytes;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	private static double probability(double probability) {
+		return Math.max(0, Math.min(1, probability));
+	}
+
+	/**
+	 * Parses the arguments of the netem command
+	 * @param tokens The arguments (after the command)
+	 * @return The profile
+	 * @throws IllegalArgumentException If an argument is unknown or invalid
+	 */
+	public static NetemProfile parse(String[] tokens) {
+		NetemProfile profile = new NetemProfile();
+		int i = 0;
+
+		while (i < tokens.length) {
+			String keyword = tokens[i++].toLowerCase();
+			int count = countNumbers(tokens, i);
+
+			switch (keyword) {
+			case "loss":
+				requireNumbers(keyword, count, 1, 1);
+				profile.loss(percent(tokens[i]));
+				break;
+			case "gemodel":
+				requireNumbers(keyword, count, 2, 4);
+				profile.burstLoss(percent(tokens[i]), percent(tokens[i + 1]),
+						count > 2 ? percent(tokens[i + 2]) : 1,
+						count > 3 ? percent(tokens[i + 3]) : 0);
+				break;
+			case "delay":
+				requireNumbers(keyword, count, 1, 2);
+				profile.delay(millis(tokens[i]), count > 1 ? millis(tokens[i + 1]) : 0);
+				break;
+			case "reorder":
+				requireNumbers(keyword, count, 1, 1);
+				profile.reorder(percent(tokens[i]));
+				break;
+			case "duplicate":
+				requireNumbers(keyword, count, 1, 1);
+				profile.duplicate(percent(tokens[i]));
+				break;
+			case "rate":
+				requireNumbers(keyword, count, 1, 2);
+				profile.rate((long) Double.parseDouble(tokens[i]), count > 1 ? (long) Double.parseDouble(tokens[i + 1]) : 0);
+				break;
+			case "seed":
+				requireNumbers(keyword, count, 1, 1);
+				profile.seed(Long.parseLong(tokens[i]));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown netem option '" + keyword + "'");
+			}
+
+			i += count;
+		}
+
+		return profile;
+	}
+
+	/**
+	 * @return The number of numeric arguments from an index
+	 */
+	private static int countNumbers(String[] tokens, int index) {
+		int count = 0;
+		while (index + count < tokens.length && tokens[index + count].matches("-?[0-9.]+%?"))
+			count++;
+		return count;
+	}
+
+	private static void requireNumbers(String keyword, int count, int min, int max) {
+		if (count < min || count > max)
+			throw new IllegalArgumentException("'" + keyword + "' takes " + (min == max ? min : min + " to " + max) + " values");
+	}
+
+	private static double percent(String token) {
+		return Double.parseDouble(token.replace("%", "")) / 100;
+	}
+
+	private static long millis(String token) {
+		return (long) (Double.parseDouble(token) * 1000000);
+	}
+}
@@ -0,0 +1,151 @@
+package states;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Random;
+
+import socket.TFTPDatagramSocket;
+
+/**
+ * Emulates the statistical conditions of a network path (see {@link NetemProfile}), instead of targeting
+ * specific packets. Each DATA and ACK packet is, in order:
+ * lost (independently, or in bursts), duplicated, held by the token bucket of the bandwidth cap, and delayed
+ * (with jitter, unless it is reordered: sent without the delay). Like the random mode, requests, the ACK of a WRQ
+ * (block 0) and errors are always forwarded at once, so that every session can start and end.
+ *
+ * All random draws are made on the relay thread from the seed of the profile, so the same seed and packets give
+ * the same conditions. Delayed packets are released by the timer thread of the state.
+ */
+public class NetemState extends ForwardState {
+	public static final String MODE = "NETEM";
+
+	private final NetemProfile profile;
+	private final Random random;
+	private boolean inBurst;
+	private double tokens;
+	private long bucketTime;
+	private long lost;
+	private long duplicated;
+	private long reordered;
+
+	public NetemState(TFTPDatagramSocket socket, InetAddress serverAddress, NetemProfile profile) throws SocketException {
+		super(socket, serverAddress);
+		this.profile = profile;
+		this.random = new Random(profile.getSeed());
+		this.tokens = profile.getBurstBytes();
+		this.bucketTime = System.nanoTime();
+	}
+
+	@Override
+	public String getMode() {
+		return MODE;
+	}
+
+	public NetemProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return The number of lost packets
+	 */
+	public long getLostCount() {
+		return lost;
+	}
+
+	/**
+	 * @return The number of duplicated packets
+	 */
+	public long getDuplicatedCount() {
+		return duplicated;
+	}
+
+	/**
+	 * @return The number of packets sent without the delay
+	 */
+	public long getReorderedCount() {
+		return reordered;
+	}
+
+	@Override
+	protected void forwardPacket(DatagramPacket packet) throws IOException {
+		if (!RandomLossState.isLossy(packet)) {
+			super.forwardPacket(packet);
+			return;
+		}
+
+		if (isLost()) {
+			lost++;
+			LOG.logVerbose("Dropping packet.");
+			return;
+		}
+
+		if (random.nextDouble() < profile.getDuplicate()) {
+			duplicated++;
+			LOG.logVerbose("Duplicating packet.");
+			// (forwarding a packet changes its address, the copy keeps the source)
+			byte[] copy = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+			send(new DatagramPacket(copy, copy.length, packet.getSocketAddress()));
+		}
+
+		send(packet);
+	}
+
+	/**
+	 * @return True if the next packet is lost
+	 */
+	private boolean isLost() {
+		if (!profile.isBurstLoss())
+			return random.nextDouble() < profile.getLoss();
+
+		inBurst = inBurst ? random.nextDouble() >= profile.getLeaveBurst() : random.nextDouble() < profile.getEnterBurst();
+		return random.nextDouble() < (inBurst ? profile.getBurstLossRate() : profile.getGapLossRate());
+	}
+
+	/**
+	 * Holds a packet for the bandwidth cap and the delay
+	 */
+	private void send(DatagramPacket packet) throws IOException {
+		long now = System.nanoTime();
+		long wait = takeTokens(packet.getLength(), now);
+
+		if (profile.getDelayNanos() > 0 || profile.getJitterNanos() > 0) {
+			if (random.nextDouble() < profile.getReorder()) {
+				reordered++;
+			} else {
+				double jitter = profile.getJitterNanos() * random.nextGaussian();
+				wait += Math.max(0, (long) (profile.getDelayNanos() + jitter));
+			}
+		}
+
+		if (wait > 0)
+			forwardLater(packet, wait);
+		else
+			super.forwardPacket(packet);
+	}
+
+	/**
+	 * Takes the bytes of a packet from the token bucket
+	 * @return The time until the bucket has the bytes (0 if it has them now)
+	 */
+	private long takeTokens(int length, long now) {
+		if (profile.getRate() == 0)
+			return 0;
+
+		// The bucket is filled up to the time the previous packet left (which can be in the future)
+		long time = Math.max(now, bucketTime);
+		double capacity = Math.max(profile.getBurstBytes(), length);
+		tokens = Math.min(capacity, tokens + (time - bucketTime) * (double) profile.getRate() / 1e9);
+		bucketTime = time;
+
+		if (tokens < length) {
+			bucketTime += (long) Math.ceil((length - tokens) * 1e9 / profile.getRate());
+			tokens = length;
+		}
+
+		tokens -= length;
+		return bucketTime - now;
+	}
+}
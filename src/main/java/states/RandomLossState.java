@@ -0,0 +1,67 @@
+package states;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Random;
+
+import formats.Message.MessageType;
+import socket.TFTPDatagramSocket;
+
+public class RandomLossState extends ForwardState {
+	public static final String MODE = "RANDOM";
+
+	// The opcode and the block number
+	private static final int MIN_PACKET_LENGTH = 4;
+
+	private final double lossRate;
+	private final Random random;
+
+	/**
+	 * Drops DATA and ACK packets at random (independently of each other).
+	 * Requests, the ACK of a WRQ (block 0) and errors are always forwarded, so that every session
+	 * can start and end (a retransmitted request would reach the server worker of the session).
+	 * @param lossRate The probability of dropping a packet, from 0 to 1
+	 * @param seed     The seed of the random drops (the same seed drops the same packets)
+	 */
+	public RandomLossState(TFTPDatagramSocket socket, InetAddress serverAddress, double lossRate, long seed) throws SocketException {
+		super(socket, serverAddress);
+		this.lossRate = Math.max(0, Math.min(1, lossRate));
+		this.random = new Random(seed);
+	}
+
+	@Override
+	public String getMode() {
+		return MODE;
+	}
+
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	@Override
+	protected void forwardPacket(DatagramPacket packet) throws IOException {
+		if (isLossy(packet) && random.nextDouble() < lossRate) {
+			LOG.logQuiet("Dropping packet.");
+			LOG.logVerbose(packet);
+			return;
+		}
+		super.forwardPacket(packet);
+	}
+
+	/**
+	 * @return True for the DATA and ACK packets that can be lost (not the ACK of a WRQ)
+	 */
+	static boolean isLossy(DatagramPacket packet) {
+		if (packet.getLength() < MIN_PACKET_LENGTH)
+			return false;
+
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int opCode = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+		int blockNum = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+
+		return opCode == MessageType.DATA.getType() || (opCode == MessageType.ACK.getType() && blockNum != 0);
+	}
+}
@@ -3,14 +3,19 @@ package states;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.Map;
 
 import exceptions.SessionException;
 import formats.*;
 import formats.Message.MessageType;
+import formats.RequestMessage.MessageMode;
 import logging.Logger;
 import resources.ResourceFile;
 import resources.ResourceManager;
 import session.ISessionHandler;
+import session.MulticastReceiveSession;
+import session.MulticastSessionDriver;
+import session.ParallelDownload;
 import session.ReceiveSession;
 import session.TFTPSession;
 import socket.TFTPDatagramSocket;
@@ -24,6 +29,9 @@ public class ReadState extends State implements ISessionHandler {
     private SocketAddress serverAddress;
     private String filename;
 
+    // The level used for this read only (does not change the level of the whole JVM)
+    private Logger.LogLevel sessionLogLevel;
+
     private static final Logger LOG = new Logger("FTPClient - Read");
 
     public ReadState(SocketAddress serverAddress, ResourceManager resourceManager, String filename, boolean isVerbose) throws IOException {
@@ -39,26 +47,72 @@ public class ReadState extends State implements ISessionHandler {
         this.socket.setSoTimeout(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS);
         this.resourceManager = resourceManager;
 
-        if (isVerbose)
-            Logger.setLogLevel(Logger.LogLevel.VERBOSE);
-        else
-            Logger.setLogLevel(Logger.LogLevel.QUIET);
+        this.sessionLogLevel = isVerbose ? Logger.LogLevel.VERBOSE : Logger.LogLevel.QUIET;
     }
 
     @Override
     public State execute() {
 
         // Create the request message
-        RequestMessage initialReq = new RequestMessage(MessageType.RRQ, filename);
+        // (multicast reads are octet reads, blocks are written as they arrive from the group)
+        RequestMessage initialReq;
+        try {
+            initialReq = createRequest();
+        } catch (IOException ioE) {
+            LOG.logQuiet("Failed to read the partial file of '" + filename + "': " + ioE.getLocalizedMessage());
+            socket.close();
+            return new InputState();
+        }
 
-        // Create and run session
-        ReceiveSession rSession = new ReceiveSession(this, initialReq, serverAddress);
-        LOG.logQuiet("Session Success: " + rSession.getSessionSuccess());
+        Logger.setThreadLogLevel(sessionLogLevel);
+        try {
+            // Create and run session
+            if (GLOBAL_CONFIG.MULTICAST) {
+                // The blocks may arrive from a multicast group, so the session needs a driver that can join it
+                MulticastReceiveSession mSession = new MulticastReceiveSession(this);
+                try (MulticastSessionDriver driver = new MulticastSessionDriver(mSession, MulticastSessionDriver.getConfiguredInterface())) {
+                    driver.run(initialReq, serverAddress);
+                } catch (IOException ioE) {
+                    LOG.logQuiet("Failed to open the multicast session: " + ioE.getLocalizedMessage());
+                }
+                LOG.logQuiet("Session Success: " + mSession.getSessionSuccess());
+            } else if (GLOBAL_CONFIG.PARALLEL_STREAMS > 1 && initialReq.getMode() == MessageMode.OCTET) {
+                // Each session reads a segment of the file
+                boolean success = new ParallelDownload(resourceManager, GLOBAL_CONFIG.PARALLEL_STREAMS).run(initialReq, serverAddress);
+                LOG.logQuiet("Session Success: " + success);
+            } else {
+                ReceiveSession rSession = new ReceiveSession(this, initialReq, serverAddress);
+                LOG.logQuiet("Session Success: " + rSession.getSessionSuccess());
+            }
+        } finally {
+            Logger.setThreadLogLevel(null);
+        }
 
         socket.close();
         return new InputState();
     }
 
+    /**
+     * @return The read request, with the resume option of the partial file of a previous read (RESUME, octet reads),
+     * and the compress option (COMPRESSION, the server decides if the file is sent compressed)
+     * @throws IOException If the partial file could not be read
+     */
+    private RequestMessage createRequest() throws IOException {
+        if (GLOBAL_CONFIG.MULTICAST)
+            return new RequestMessage(MessageType.RRQ, filename, MessageMode.OCTET, MulticastReceiveSession.getRequestOptions(TFTPSession.getConfiguredRequestOptions()));
+
+        MessageMode mode = TFTPSession.getConfiguredRequestMode();
+        Map<String, String> options = TFTPSession.getConfiguredRequestOptions();
+        if (GLOBAL_CONFIG.COMPRESSION)
+            options = CompressOption.getRequestOptions(options);
+
+        // (parallel reads write the blocks at their position, not after a partial file)
+        if (GLOBAL_CONFIG.RESUME && mode == MessageMode.OCTET && GLOBAL_CONFIG.PARALLEL_STREAMS <= 1)
+            return new RequestMessage(MessageType.RRQ, filename, mode, ReceiveSession.getRequestOptions(resourceManager, filename, options));
+
+        return new RequestMessage(MessageType.RRQ, filename, mode, options);
+    }
+
     @Override
     public ResourceManager getSessionResourceManager() {
         return this.resourceManager;
@@ -132,6 +186,7 @@ public class ReadState extends State implements ISessionHandler {
 
         if(!session.getSessionSuccess() && GLOBAL_CONFIG.CLIENT_DELETE_ON_FAILURE)
         {
+            // With RESUME, the received bytes are in the partial file (kept by the session), the resource file is empty
             LOG.logQuiet("Deleting the incomplete (corrupt) resource file.");
 
             // Delete file on Error
@@ -1,12 +1,15 @@
 package states;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import exceptions.SessionException;
 import formats.*;
 import formats.Message.MessageType;
 import formats.RequestMessage;
 import logging.Logger;
+import resources.ResourceFile;
 import resources.ResourceManager;
 import session.ISessionHandler;
 import session.TFTPSession;
@@ -21,6 +24,9 @@ public class WriteState extends State implements ISessionHandler{
 	private SocketAddress serverAddress;
 	private String filename;
 
+	// The level used for this write only (does not change the level of the whole JVM)
+	private Logger.LogLevel sessionLogLevel;
+
     public WriteState(SocketAddress serverAddress, ResourceManager resourceManager, String filename, boolean isVerbose)throws IOException {
         this(serverAddress, resourceManager, filename, isVerbose, new TFTPDatagramSocket());
     }
@@ -33,10 +39,7 @@ public class WriteState extends State implements ISessionHandler{
         this.socket = socket;
         this.socket.setSoTimeout(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS);
         this.resourceManager = resourceManager;
-        if (isVerbose)
-            Logger.setLogLevel(Logger.LogLevel.VERBOSE);
-        else
-            Logger.setLogLevel(Logger.LogLevel.QUIET);
+        this.sessionLogLevel = isVerbose ? Logger.LogLevel.VERBOSE : Logger.LogLevel.QUIET;
     }
 
 	@Override
@@ -49,15 +52,49 @@ public class WriteState extends State implements ISessionHandler{
             return new InputState();
         }
 
-        // Create the request message
-        RequestMessage initialReq = new RequestMessage(MessageType.WRQ, filename);
-
-        // Create & Run Transmit Session
-        new TransmitSession(this, initialReq, serverAddress);
+        // Create the request message (asking for the partial file of a previous write, with RESUME)
+        RequestMessage.MessageMode mode = TFTPSession.getConfiguredRequestMode();
+        Map<String, String> options = TFTPSession.getConfiguredRequestOptions();
+        if (GLOBAL_CONFIG.RESUME && mode == RequestMessage.MessageMode.OCTET)
+            options = TransmitSession.getRequestOptions(options);
+        if (GLOBAL_CONFIG.COMPRESSION && isCompressible())
+            options = CompressOption.getRequestOptions(options);
+
+        RequestMessage initialReq = new RequestMessage(MessageType.WRQ, filename, mode, options);
+
+        Logger.setThreadLogLevel(sessionLogLevel);
+        try {
+            // Create & Run Transmit Session
+            TransmitSession session = new TransmitSession(this, initialReq, serverAddress);
+
+            if (session.isResumeRejected()) {
+                // Like a read, fall back to the whole file (the request cannot reject a single option of the OACK,
+                // so the write is requested again without resuming)
+                LOG.logQuiet("The partial file on the server does not match '" + filename + "'. Sending the whole file.");
+                Map<String, String> fullOptions = new LinkedHashMap<>(options);
+                fullOptions.remove(ResumeOption.NAME);
+                new TransmitSession(this, new RequestMessage(MessageType.WRQ, filename, mode, fullOptions), serverAddress);
+            }
+        } finally {
+            Logger.setThreadLogLevel(null);
+        }
 
         return new InputState();
     }
 
+    /**
+     * @return True if the file compresses well (the file is sent compressed if the server accepts it)
+     */
+    private boolean isCompressible() {
+        try {
+            ResourceFile file = resourceManager.getFile(filename);
+            return file.exists() && TransmitSession.isCompressible(file, GLOBAL_CONFIG.BLOCK_SIZE);
+        } catch (IOException ioE) {
+            LOG.logVerbose("Failed to read '" + filename + "', it will not be compressed: " + ioE.getLocalizedMessage());
+            return false;
+        }
+    }
+
     @Override
     public ResourceManager getSessionResourceManager() {
         return this.resourceManager;
@@ -0,0 +1,289 @@
+package trace;
+
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size binary record of the packets of a single session.
+ *
+ * Records are written into a ring (the oldest records are overwritten), so recording costs a few
+ * absolute puts per packet and never allocates. The ring is only written out to a {@link TraceFile}
+ * when the session fails, or on demand.
+ *
+ * Record layout (RECORD_SIZE bytes, big endian):
+ * <pre>
+ *   long  time    Nanoseconds since the session started
+ *   long  block   Block number (DATA / ACK) or error code (ERROR)
+ *   byte  direction
+ *   byte  flags
+ *   short opcode
+ *   int   length  Packet length in bytes
+ * </pre>
+ */
+public class PacketTrace {
+
+    public static final int RECORD_SIZE = 24;
+
+    // Record directions
+    public static final byte SENT = 0;
+    public static final byte RECEIVED = 1;
+    public static final byte TIMEOUT = 2;
+
+    // Record flags
+    public static final byte FLAG_RETRANSMIT = 0x01;
+    public static final byte FLAG_INVALID_TID = 0x02;
+
+    private static final AtomicLong nextSessionId = new AtomicLong(1);
+    private static final Set<PacketTrace> activeTraces = ConcurrentHashMap.newKeySet();
+
+    private final ByteBuffer records;
+    private final int capacity;
+    private final long sessionId;
+    private long recordCount;
+    private long startNanos;
+    private long startMillis;
+    private InetSocketAddress peer;
+
+    /**
+     * Creates a trace
+     * @param capacity The number of records kept by the ring. A capacity of 0 disables recording.
+     */
+    public PacketTrace(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.records = ByteBuffer.allocate(this.capacity * RECORD_SIZE);
+        this.sessionId = nextSessionId.getAndIncrement();
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return False if this trace does not record anything
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Starts recording a session. The trace is registered as active until {@link #close()} is called
+     * @param peerAddress The address of the session peer
+     */
+    public synchronized void start(SocketAddress peerAddress) {
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+        this.recordCount = 0;
+        setPeer(peerAddress);
+
+        if (isEnabled())
+            activeTraces.add(this);
+    }
+
+    /**
+     * Updates the peer address (ex: when the client learns the TID of the server worker)
+     * @param peerAddress The new peer address
+     */
+    public synchronized void setPeer(SocketAddress peerAddress) {
+        if (peerAddress instanceof InetSocketAddress)
+            this.peer = (InetSocketAddress) peerAddress;
+    }
+
+    /**
+     * Stops recording. The trace is no longer dumped by {@link #dumpActive(TraceFile)}
+     */
+    public void close() {
+        activeTraces.remove(this);
+    }
+
+    /**
+     * Adds a record to the ring
+     * @param direction SENT, RECEIVED or TIMEOUT
+     * @param flags     Record flags
+     * @param opcode    The TFTP opcode (0 if unknown)
+     * @param block     The block number or error code
+     * @param length    The packet length
+     */
+    public synchronized void record(byte direction, byte flags, int opcode, long block, int length) {
+        if (capacity == 0)
+            return;
+
+        int position = (int) (recordCount++ % capacity) * RECORD_SIZE;
+        records.putLong(position, System.nanoTime() - startNanos);
+        records.putLong(position + 8, block);
+        records.put(position + 16, direction);
+        records.put(position + 17, flags);
+        records.putShort(position + 18, (short) opcode);
+        records.putInt(position + 20, length);
+    }
+
+    /**
+     * Records a message that was sent
+     * @param message    The message
+     * @param retransmit True if the message is a retransmission
+     */
+    public void recordSent(Message message, boolean retransmit) {
+        if (capacity == 0)
+            return;
+
+        long block = 0;
+        int length;
+
+        if (message instanceof DataMessage) {
+            DataMessage dataMessage = (DataMessage) message;
+            block = dataMessage.getBlockNum();
+            length = DataMessage.HEADER_SIZE + dataMessage.getDataSize();
+        } else if (message instanceof AckMessage) {
+            block = ((AckMessage) message).getBlockNum();
+            length = 4;
+        } else {
+            if (message instanceof ErrorMessage)
+                block = ((ErrorMessage) message).getErrorType().getCode();
+
+            // Requests and errors are rare, so encoding them here is fine
+            try {
+                length = message.toByteArray().length;
+            } catch (IOException ioE) {
+                length = 0;
+            }
+        }
+
+        record(SENT, retransmit ? FLAG_RETRANSMIT : 0, message.getMessageType().getType(), block, length);
+    }
+
+    /**
+     * Records a received packet. The header is read from the raw packet, so this can
+     * be called before the packet is parsed (or if it fails to parse).
+     * @param packet The received packet
+     * @param flags  Record flags
+     */
+    public void recordReceived(DatagramPacket packet, byte flags) {
+        recordReceived(packet.getData(), packet.getOffset(), packet.getLength(), flags);
+    }
+
+    /**
+     * Records a received packet from its raw bytes
+     * @param data   The buffer holding the packet
+     * @param offset The offset of the packet in the buffer
+     * @param length The length of the packet
+     * @param flags  Record flags
+     */
+    public void recordReceived(byte[] data, int offset, int length, byte flags) {
+        if (capacity == 0)
+            return;
+
+        int opcode = 0;
+        long block = 0;
+
+        if (length >= 2)
+            opcode = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+
+        // DATA, ACK and ERROR carry a 16 bit block number / error code
+        if (length >= 4 && opcode >= Message.MessageType.DATA.getType() && opcode <= Message.MessageType.ERROR.getType())
+            block = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+
+        record(RECEIVED, flags, opcode, block, length);
+    }
+
+    /**
+     * Records a receive timeout
+     */
+    public void recordTimeout() {
+        record(TIMEOUT, (byte) 0, 0, 0, 0);
+    }
+
+    /**
+     * @return The unique (per process) id of the traced session
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return The number of records currently held by the ring
+     */
+    public synchronized int getRecordCount() {
+        return (int) Math.min(recordCount, capacity);
+    }
+
+    /**
+     * @return The number of records that were overwritten
+     */
+    public synchronized long getDroppedCount() {
+        return recordCount - getRecordCount();
+    }
+
+    synchronized long getStartMillis() {
+        return startMillis;
+    }
+
+    synchronized InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    /**
+     * Copies the most recent records (oldest first) into the destination buffer
+     * @param destination The buffer to write to
+     * @param maxRecords  The maximum number of records to copy
+     * @return The number of records copied
+     */
+    synchronized int writeRecords(ByteBuffer destination, int maxRecords) {
+        int count = Math.min(getRecordCount(), maxRecords);
+        long first = recordCount - count;
+
+        for (long i = first; i < recordCount; i++) {
+            int position = (int) (i % capacity) * RECORD_SIZE;
+            ByteBuffer record = records.duplicate();
+            record.limit(position + RECORD_SIZE).position(position);
+            destination.put(record);
+        }
+
+        return count;
+    }
+
+    @Override
+    public int hashCode() {
+        // Cheaper than the identity hash code (traces are added to the active set for every session)
+        return Long.hashCode(sessionId);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other;
+    }
+
+    /**
+     * @return The traces of all sessions that are currently running
+     */
+    public static Collection<PacketTrace> getActiveTraces() {
+        return new ArrayList<>(activeTraces);
+    }
+
+    /**
+     * Writes the traces of all running sessions
+     * @param traceFile The trace file to write to
+     * @return The number of traces written
+     * @throws IOException
+     */
+    public static int dumpActive(TraceFile traceFile) throws IOException {
+        int count = 0;
+
+        for (PacketTrace trace : getActiveTraces()) {
+            traceFile.write(trace, TraceFile.REASON_ON_DEMAND);
+            count++;
+        }
+
+        traceFile.force();
+        return count;
+    }
+}
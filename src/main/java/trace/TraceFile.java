@@ -0,0 +1,205 @@
+package trace;
+
+import logging.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+/**
+ * Rotating set of memory-mapped trace segments (base.0, base.1, ...).
+ *
+ * Each segment is a fixed-size file made of a file header followed by session dumps. Dumps are
+ * written directly into the mapped segment. When a dump does not fit, the next segment is truncated
+ * and reused, so the disk usage is bounded by fileSize * fileCount.
+ *
+ * File header (FILE_HEADER_SIZE bytes): int MAGIC, short VERSION, short RECORD_SIZE, long reserved
+ * Session header (SESSION_HEADER_SIZE bytes):
+ * <pre>
+ *   int   SESSION_MAGIC
+ *   int   record count
+ *   long  session start (epoch ms)
+ *   long  session id
+ *   byte  reason
+ *   byte  peer address length (4 or 16, 0 if unknown)
+ *   short peer port
+ *   byte[16] peer address
+ *   int   dropped record count
+ * </pre>
+ * followed by the records (see {@link PacketTrace}). The end of a segment is marked by a zeroed header.
+ */
+public class TraceFile implements Closeable {
+    private static final Logger LOG = new Logger("TraceFile");
+
+    public static final int MAGIC = 0x54465452;
+    public static final int SESSION_MAGIC = 0x53455353;
+    public static final short VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int SESSION_HEADER_SIZE = 48;
+
+    // Dump reasons
+    public static final byte REASON_FAILED = 1;
+    public static final byte REASON_ON_DEMAND = 2;
+
+    private static TraceFile defaultTraceFile;
+
+    private final Path basePath;
+    private final int fileSize;
+    private final int fileCount;
+    private int segmentIndex;
+    private MappedByteBuffer segment;
+
+    /**
+     * Opens a rotating trace file
+     * @param basePath  The path of the segments (without the segment index)
+     * @param fileSize  The size of each segment in bytes
+     * @param fileCount The number of segments to rotate through
+     * @throws IOException If the first segment could not be created
+     */
+    public TraceFile(Path basePath, int fileSize, int fileCount) throws IOException {
+        this.basePath = basePath;
+        this.fileSize = Math.max(fileSize, FILE_HEADER_SIZE + SESSION_HEADER_SIZE + PacketTrace.RECORD_SIZE);
+        this.fileCount = Math.max(1, fileCount);
+
+        if (basePath.getParent() != null)
+            Files.createDirectories(basePath.getParent());
+
+        // Start with the oldest (or missing) segment so that the most recent traces are kept
+        this.segmentIndex = findOldestSegment();
+        openSegment();
+    }
+
+    /**
+     * @param basePath The base path of the trace file
+     * @param index    The segment index
+     * @return The path of the segment
+     */
+    public static Path getSegmentPath(Path basePath, int index) {
+        return Paths.get(basePath.toString() + "." + index);
+    }
+
+    /**
+     * @return The trace file configured by TRACE_FILE, or null if trace dumps are disabled
+     * @throws IOException If the trace file could not be opened
+     */
+    public static synchronized TraceFile getDefault() throws IOException {
+        if (GLOBAL_CONFIG.TRACE_FILE == null || GLOBAL_CONFIG.TRACE_FILE.isEmpty())
+            return null;
+
+        if (defaultTraceFile == null) {
+            Path base = Paths.get(System.getProperty("user.dir")).resolve(GLOBAL_CONFIG.TRACE_FILE);
+            defaultTraceFile = new TraceFile(base, GLOBAL_CONFIG.TRACE_FILE_SIZE, GLOBAL_CONFIG.TRACE_FILE_COUNT);
+        }
+
+        return defaultTraceFile;
+    }
+
+    /**
+     * Writes the records of a trace as a session dump. If the trace has more records than a
+     * segment can hold, only the most recent records are written.
+     * @param trace  The trace to write
+     * @param reason The dump reason (REASON_FAILED or REASON_ON_DEMAND)
+     * @throws IOException If the next segment could not be opened
+     */
+    public synchronized void write(PacketTrace trace, byte reason) throws IOException {
+        int maxRecords = (fileSize - FILE_HEADER_SIZE - SESSION_HEADER_SIZE * 2) / PacketTrace.RECORD_SIZE;
+        int recordCount = Math.min(trace.getRecordCount(), maxRecords);
+
+        // Leave room for the zeroed end marker
+        if (segment.remaining() < SESSION_HEADER_SIZE * 2 + recordCount * PacketTrace.RECORD_SIZE)
+            rotate();
+
+        InetSocketAddress peer = trace.getPeer();
+        byte[] address = peer == null || peer.getAddress() == null ? new byte[0] : peer.getAddress().getAddress();
+        int headerPosition = segment.position();
+
+        segment.putInt(SESSION_MAGIC);
+        segment.putInt(0);
+        segment.putLong(trace.getStartMillis());
+        segment.putLong(trace.getSessionId());
+        segment.put(reason);
+        segment.put((byte) address.length);
+        segment.putShort((short) (peer == null ? 0 : peer.getPort()));
+        segment.put(address);
+        segment.position(segment.position() + 16 - address.length);
+        segment.putInt(0);
+
+        int written = trace.writeRecords(segment, recordCount);
+
+        // Fill in the counts last, so a partially written dump is never read as a complete one
+        segment.putInt(headerPosition + 44, (int) (trace.getDroppedCount() + trace.getRecordCount() - written));
+        segment.putInt(headerPosition + 4, written);
+    }
+
+    /**
+     * Forces written dumps to the storage device
+     */
+    public synchronized void force() {
+        segment.force();
+    }
+
+    /**
+     * Closes the current segment, then truncates and maps the next one
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        segment.force();
+        segmentIndex = (segmentIndex + 1) % fileCount;
+        openSegment();
+    }
+
+    /**
+     * Truncates and maps the current segment, then writes its header
+     * @throws IOException
+     */
+    private void openSegment() throws IOException {
+        Path path = getSegmentPath(basePath, segmentIndex);
+        LOG.logVerbose(() -> "Opening trace segment " + path);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The mapping stays valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putShort((short) PacketTrace.RECORD_SIZE);
+        segment.putLong(0);
+    }
+
+    /**
+     * @return The index of the segment that was modified the longest time ago (or does not exist)
+     */
+    private int findOldestSegment() {
+        int oldest = 0;
+        long oldestModified = Long.MAX_VALUE;
+
+        for (int i = 0; i < fileCount; i++) {
+            Path path = getSegmentPath(basePath, i);
+            if (Files.notExists(path))
+                return i;
+
+            long modified = path.toFile().lastModified();
+            if (modified < oldestModified) {
+                oldestModified = modified;
+                oldest = i;
+            }
+        }
+
+        return oldest;
+    }
+
+    @Override
+    public synchronized void close() {
+        segment.force();
+    }
+}
@@ -0,0 +1,80 @@
+package trace;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the session dumps of a trace segment written by {@link TraceFile}
+ */
+public class TraceReader {
+
+    /**
+     * Reads all session dumps of a segment
+     * @param segmentPath The path of the segment
+     * @return The sessions in the order they were written
+     * @throws IOException If the file can not be read or is not a trace segment
+     */
+    public static List<TraceSession> read(Path segmentPath) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segmentPath));
+
+        if (buffer.remaining() < TraceFile.FILE_HEADER_SIZE || buffer.getInt() != TraceFile.MAGIC)
+            throw new IOException("'" + segmentPath + "' is not a trace file");
+
+        short version = buffer.getShort();
+        short recordSize = buffer.getShort();
+        if (version != TraceFile.VERSION || recordSize != PacketTrace.RECORD_SIZE)
+            throw new IOException("Unsupported trace file version " + version + " (record size " + recordSize + ")");
+
+        buffer.position(TraceFile.FILE_HEADER_SIZE);
+        List<TraceSession> sessions = new ArrayList<>();
+
+        while (buffer.remaining() >= TraceFile.SESSION_HEADER_SIZE) {
+            int headerPosition = buffer.position();
+
+            // A zeroed header marks the end of the segment
+            if (buffer.getInt() != TraceFile.SESSION_MAGIC)
+                break;
+
+            int recordCount = buffer.getInt();
+            long startMillis = buffer.getLong();
+            long sessionId = buffer.getLong();
+            byte reason = buffer.get();
+            int addressLength = buffer.get();
+            int port = buffer.getShort() & 0xFFFF;
+            byte[] address = new byte[16];
+            buffer.get(address);
+            int droppedCount = buffer.getInt();
+
+            InetSocketAddress peer = null;
+            if (addressLength == 4 || addressLength == 16) {
+                byte[] peerAddress = new byte[addressLength];
+                System.arraycopy(address, 0, peerAddress, 0, addressLength);
+                peer = new InetSocketAddress(InetAddress.getByAddress(peerAddress), port);
+            }
+
+            if (buffer.remaining() < recordCount * PacketTrace.RECORD_SIZE)
+                throw new IOException("Truncated session dump at offset " + headerPosition);
+
+            List<TraceRecord> records = new ArrayList<>(recordCount);
+            for (int i = 0; i < recordCount; i++) {
+                long time = buffer.getLong();
+                long block = buffer.getLong();
+                byte direction = buffer.get();
+                byte flags = buffer.get();
+                int opcode = buffer.getShort() & 0xFFFF;
+                int length = buffer.getInt();
+                records.add(new TraceRecord(time, block, direction, flags, opcode, length));
+            }
+
+            sessions.add(new TraceSession(sessionId, startMillis, reason, peer, droppedCount, records));
+        }
+
+        return sessions;
+    }
+}
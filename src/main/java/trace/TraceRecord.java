@@ -0,0 +1,82 @@
+package trace;
+
+import formats.Message.MessageType;
+
+/**
+ * A decoded trace record (see {@link PacketTrace} for the binary layout)
+ */
+public class TraceRecord {
+    private final long timeNanos;
+    private final long block;
+    private final byte direction;
+    private final byte flags;
+    private final int opcode;
+    private final int length;
+
+    public TraceRecord(long timeNanos, long block, byte direction, byte flags, int opcode, int length) {
+        this.timeNanos = timeNanos;
+        this.block = block;
+        this.direction = direction;
+        this.flags = flags;
+        this.opcode = opcode;
+        this.length = length;
+    }
+
+    /**
+     * @return Nanoseconds since the start of the session
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    public long getBlock() {
+        return block;
+    }
+
+    public byte getDirection() {
+        return direction;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isRetransmit() {
+        return (flags & PacketTrace.FLAG_RETRANSMIT) != 0;
+    }
+
+    public boolean isInvalidTID() {
+        return (flags & PacketTrace.FLAG_INVALID_TID) != 0;
+    }
+
+    @Override
+    public String toString() {
+        String time = String.format("%10.3fms", timeNanos / 1e6);
+
+        if (direction == PacketTrace.TIMEOUT)
+            return time + " TIMEOUT";
+
+        MessageType type = MessageType.getMessageType(opcode);
+        StringBuilder builder = new StringBuilder(time)
+                .append(direction == PacketTrace.SENT ? " SENT     " : " RECEIVED ")
+                .append(type == null ? "OPCODE(" + opcode + ")" : type.name());
+
+        if (type == MessageType.DATA || type == MessageType.ACK)
+            builder.append(" #").append(block);
+        else if (type == MessageType.ERROR)
+            builder.append(" code ").append(block);
+
+        builder.append(" (").append(length).append(" bytes)");
+
+        if (isRetransmit())
+            builder.append(" [RETRANSMIT]");
+        if (isInvalidTID())
+            builder.append(" [INVALID TID]");
+
+        return builder.toString();
+    }
+}
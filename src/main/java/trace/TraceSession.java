@@ -0,0 +1,159 @@
+package trace;
+
+import formats.Message.MessageType;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A decoded session dump of a trace file
+ */
+public class TraceSession {
+    private final long sessionId;
+    private final long startMillis;
+    private final byte reason;
+    private final InetSocketAddress peer;
+    private final int droppedCount;
+    private final List<TraceRecord> records;
+
+    public TraceSession(long sessionId, long startMillis, byte reason, InetSocketAddress peer, int droppedCount, List<TraceRecord> records) {
+        this.sessionId = sessionId;
+        this.startMillis = startMillis;
+        this.reason = reason;
+        this.peer = peer;
+        this.droppedCount = droppedCount;
+        this.records = records;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public byte getReason() {
+        return reason;
+    }
+
+    /**
+     * @return The peer address, or null if it was unknown
+     */
+    public InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return The number of records that were lost (overwritten in the ring or truncated)
+     */
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    public List<TraceRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Calculates the round trip times of the session. A sample is the time between a sent packet and the
+     * received packet that answers it (DATA n -> ACK n, ACK n -> DATA n + 1, RRQ -> DATA 1, WRQ -> ACK 0).
+     * Packets that were retransmitted are not sampled, since the answer is ambiguous (Karn's algorithm).
+     * @return The RTT samples in nanoseconds, in the order they were measured
+     */
+    public long[] getRttSamples() {
+        Map<Long, Long> pending = new HashMap<>();
+        Set<Long> ambiguous = new HashSet<>();
+        List<Long> samples = new ArrayList<>();
+
+        for (TraceRecord record : records) {
+            if (record.getDirection() == PacketTrace.SENT) {
+                Long key = expectedResponse(record);
+                if (key == null)
+                    continue;
+
+                if (record.isRetransmit() || pending.containsKey(key))
+                    ambiguous.add(key);
+                else
+                    pending.put(key, record.getTimeNanos());
+
+            } else if (record.getDirection() == PacketTrace.RECEIVED && !record.isInvalidTID()) {
+                Long key = responseKey(record.getOpcode(), record.getBlock());
+                Long sentTime = pending.remove(key);
+
+                if (sentTime != null && !ambiguous.remove(key))
+                    samples.add(record.getTimeNanos() - sentTime);
+            }
+        }
+
+        return samples.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return The number of retransmitted packets
+     */
+    public int getRetransmitCount() {
+        return (int) records.stream().filter(TraceRecord::isRetransmit).count();
+    }
+
+    /**
+     * @return The number of receive timeouts
+     */
+    public int getTimeoutCount() {
+        return (int) records.stream().filter(r -> r.getDirection() == PacketTrace.TIMEOUT).count();
+    }
+
+    /**
+     * @return A summary of the RTT samples (count, min, mean, p50, p99, max in ms)
+     */
+    public String getRttSummary() {
+        long[] samples = getRttSamples();
+        if (samples.length == 0)
+            return "RTT: no samples";
+
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0);
+
+        return String.format("RTT: %d samples, min %.3fms, mean %.3fms, p50 %.3fms, p99 %.3fms, max %.3fms",
+                sorted.length, sorted[0] / 1e6, mean / 1e6, percentile(sorted, 0.50) / 1e6,
+                percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * @return The key of the packet expected in response to a sent record, or null if none is expected
+     */
+    private static Long expectedResponse(TraceRecord sent) {
+        MessageType type = MessageType.getMessageType(sent.getOpcode());
+        if (type == null)
+            return null;
+
+        switch (type) {
+            case RRQ:
+                return responseKey(MessageType.DATA.getType(), 1);
+            case WRQ:
+                return responseKey(MessageType.ACK.getType(), 0);
+            case DATA:
+                return responseKey(MessageType.ACK.getType(), sent.getBlock());
+            case ACK:
+                return responseKey(MessageType.DATA.getType(), (sent.getBlock() + 1) & 0xFFFF);
+            default:
+                return null;
+        }
+    }
+
+    private static Long responseKey(int opcode, long block) {
+        return ((long) opcode << 48) | (block & 0xFFFFFFFFFFFFL);
+    }
+}
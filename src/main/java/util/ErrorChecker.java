@@ -1,57 +1,262 @@
 package util;
 
 import java.net.DatagramPacket;
+import java.util.Random;
 
-import exceptions.InvalidPacketException;
-import formats.AckMessage;
-import formats.DataMessage;
-import formats.Message;
 import formats.Message.MessageType;
 
+/**
+ * Selects the packets an error applies to. The checker is compiled once from its expression (see
+ * {@link #compile(String[])}), then evaluates its predicates on the raw TFTP header of each packet (opcode and
+ * block number), without parsing or copying the packet.
+ *
+ * The predicates are evaluated in order: the packet type, block range, size and source side, then the block
+ * sequence (BLOCK_NUM [REPEAT_INTERVAL]), every-Nth and probability, which only count the packets that passed the
+ * previous predicates.
+ */
 public class ErrorChecker {
-	private MessageType type;
+	/**
+	 * The side that sent a packet
+	 */
+	public enum Side {
+		ANY,
+		CLIENT,
+		SERVER
+	}
+
+	private static final int ANY_OPCODE = -1;
+	private static final int BLOCK_OPCODES = 1 << MessageType.DATA.getType() | 1 << MessageType.ACK.getType();
+	private static final int MAX_BLOCK = 0xFFFF;
+
+	private final int opcodes;
+	private int minBlock = 0;
+	private int maxBlock = MAX_BLOCK;
+	private int minSize = 0;
+	private int maxSize = Integer.MAX_VALUE;
+	private Side side = Side.ANY;
+	private boolean sequence;
 	private int blockNum;
 	private int replicator;
+	private int every;
+	private int count;
+	private double probability = 1;
+	private Random random;
+
 	public ErrorChecker(MessageType type, int blockNum, int replicator) {
-		this.type = type;
+		this(1 << type.getType());
+		this.sequence = type == MessageType.DATA || type == MessageType.ACK;
 		this.blockNum = blockNum;
 		this.replicator = replicator;
 	}
-	
+
 	public ErrorChecker(MessageType type, int blockNum) {
 		this(type, blockNum, -1);
 	}
-	
+
 	public ErrorChecker(MessageType type) {
 		this(type, -1, -1);
 	}
-	
-	public boolean check(DatagramPacket packet) {
-		try {
-			if(Message.getMessageType(packet.getData()) != type) return false;
-			
-			int packetBlock = -1;
-			
-			switch(type) {
-			case RRQ:
-			case WRQ:
-			case ERROR:
-				return true;
-			case ACK:
-				packetBlock = AckMessage.parseMessage(packet.getData()).getBlockNum();
+
+	private ErrorChecker(int opcodes) {
+		this.opcodes = opcodes;
+	}
+
+	/**
+	 * Compiles a checker from its expression:
+	 * TYPE[,TYPE] [BLOCK_NUM [REPEAT_INTERVAL]] [block N[-M]] [every N] [from client|server] [size N[-M]] [PERCENT%]
+	 * where TYPE is rrq, wrq, data, ack, error, oack or any. The block predicates only select DATA and ACK packets
+	 * (they are ignored for a type without block numbers, ex: rrq 1).
+	 * @param tokens The expression
+	 * @return The checker
+	 * @throws IllegalArgumentException If the expression is invalid
+	 */
+	public static ErrorChecker compile(String[] tokens) {
+		if (tokens.length == 0 || tokens[0].isEmpty())
+			throw new IllegalArgumentException("Missing packet type");
+
+		ErrorChecker checker = new ErrorChecker(parseTypes(tokens[0]));
+		boolean hasBlocks = checker.opcodes == ANY_OPCODE || (checker.opcodes & BLOCK_OPCODES) != 0;
+		int index = 1;
+
+		if (index < tokens.length && isNumber(tokens[index])) {
+			checker.sequence = hasBlocks;
+			checker.blockNum = parseInt(tokens[index++], "block number");
+			checker.replicator = index < tokens.length && isNumber(tokens[index]) ? parseInt(tokens[index++], "repeat interval") : -1;
+		}
+
+		while (index < tokens.length) {
+			String token = tokens[index++].toLowerCase();
+			if (token.endsWith("%")) {
+				checker.setProbability(parseDouble(token.substring(0, token.length() - 1)) / 100);
+				continue;
+			}
+			if (index == tokens.length)
+				throw new IllegalArgumentException("'" + token + "' needs a value");
+
+			String value = tokens[index++];
+			switch (token) {
+			case "block":
+				int[] blocks = parseRange(value, "block");
+				if (hasBlocks) {
+					checker.minBlock = blocks[0];
+					checker.maxBlock = blocks[1];
+				}
+				break;
+			case "every":
+				checker.every = parseInt(value, "every");
+				if (checker.every < 1)
+					throw new IllegalArgumentException("'every' needs a positive count");
+				break;
+			case "from":
+				switch (value.toLowerCase()) {
+				case "client":
+					checker.side = Side.CLIENT;
+					break;
+				case "server":
+					checker.side = Side.SERVER;
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid side '" + value + "' (client or server)");
+				}
+				break;
+			case "size":
+				int[] sizes = parseRange(value, "size");
+				checker.minSize = sizes[0];
+				checker.maxSize = sizes[1];
 				break;
-			case DATA:
-				packetBlock = DataMessage.parseMessage(packet.getData()).getBlockNum();
+			case "prob":
+				checker.setProbability(parseDouble(value.replace("%", "")) / 100);
 				break;
+			default:
+				throw new IllegalArgumentException("Invalid predicate '" + tokens[index - 2] + "'");
 			}
-			
-			if (blockNum == packetBlock) {
-				blockNum += replicator;
-				return true;
-			}	
-		} catch (InvalidPacketException e) {
-			e.printStackTrace();
 		}
-		return false;
-	}	
+		return checker;
+	}
+
+	/**
+	 * @return A checker that counts packets from the start, like this checker did
+	 */
+	public ErrorChecker copy() {
+		ErrorChecker copy = new ErrorChecker(opcodes);
+		copy.minBlock = minBlock;
+		copy.maxBlock = maxBlock;
+		copy.minSize = minSize;
+		copy.maxSize = maxSize;
+		copy.side = side;
+		copy.sequence = sequence;
+		copy.blockNum = blockNum;
+		copy.replicator = replicator;
+		copy.every = every;
+		copy.count = count;
+		if (random != null)
+			copy.setProbability(probability);
+		return copy;
+	}
+
+	/**
+	 * Checks a packet of an unknown side (a checker with a side never selects it)
+	 */
+	public boolean check(DatagramPacket packet) {
+		return check(packet, Side.ANY);
+	}
+
+	/**
+	 * @param packet The packet
+	 * @param from   The side that sent the packet
+	 * @return True if the packet is selected
+	 */
+	public boolean check(DatagramPacket packet, Side from) {
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int length = packet.getLength();
+		if (length < 2)
+			return false;
+
+		int opcode = (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+		if (opcodes != ANY_OPCODE && (opcode > 31 || (opcodes & 1 << opcode) == 0))
+			return false;
+
+		if (sequence || minBlock > 0 || maxBlock < MAX_BLOCK) {
+			if (opcode > 31 || (BLOCK_OPCODES & 1 << opcode) == 0 || length < 4)
+				return false;
+			int block = (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+			if (block < minBlock || block > maxBlock)
+				return false;
+			if (sequence && block != blockNum)
+				return false;
+		}
+
+		if (length < minSize || length > maxSize)
+			return false;
+		if (side != Side.ANY && side != from)
+			return false;
+
+		if (sequence)
+			blockNum += replicator;
+		if (every > 0 && ++count % every != 0)
+			return false;
+		return random == null || random.nextDouble() < probability;
+	}
+
+	private void setProbability(double probability) {
+		if (probability < 0 || probability > 1)
+			throw new IllegalArgumentException("Invalid probability " + probability * 100 + "% (0% to 100%)");
+		this.probability = probability;
+		this.random = probability < 1 ? new Random() : null;
+	}
+
+	/**
+	 * @param types The packet types, separated by commas
+	 * @return The mask of the opcodes
+	 */
+	private static int parseTypes(String types) {
+		int opcodes = 0;
+		for (String type : types.split(",")) {
+			if (type.equalsIgnoreCase("any"))
+				return ANY_OPCODE;
+			MessageType messageType = null;
+			for (MessageType t : MessageType.values()) {
+				if (t.name().equalsIgnoreCase(type))
+					messageType = t;
+			}
+			if (messageType == null)
+				throw new IllegalArgumentException("Invalid MessageType '" + type + "'");
+			opcodes |= 1 << messageType.getType();
+		}
+		return opcodes;
+	}
+
+	private static boolean isNumber(String token) {
+		return token.matches("\\d+");
+	}
+
+	private static int parseInt(String token, String name) {
+		try {
+			return Integer.parseInt(token);
+		} catch (NumberFormatException nFE) {
+			throw new IllegalArgumentException("Invalid " + name + " '" + token + "'");
+		}
+	}
+
+	private static double parseDouble(String token) {
+		try {
+			return Double.parseDouble(token);
+		} catch (NumberFormatException nFE) {
+			throw new IllegalArgumentException("Invalid probability '" + token + "'");
+		}
+	}
+
+	/**
+	 * @param token N or N-M
+	 * @return The first and last value of the range
+	 */
+	private static int[] parseRange(String token, String name) {
+		int dash = token.indexOf('-');
+		int first = parseInt(dash < 0 ? token : token.substring(0, dash), name);
+		int last = dash < 0 ? first : parseInt(token.substring(dash + 1), name);
+		if (first < 0 || last < first)
+			throw new IllegalArgumentException("Invalid " + name + " range '" + token + "'");
+		return new int[] { first, last };
+	}
 }
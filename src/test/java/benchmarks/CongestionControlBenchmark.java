@@ -0,0 +1,191 @@
+package benchmarks;
+
+import exceptions.InvalidPacketException;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.LogAppender;
+import logging.Logger;
+import resources.MemoryResourceManager;
+import session.BlockingSessionDriver;
+import session.CongestionController;
+import session.FixedWindowController;
+import session.PeerHistoryCache;
+import session.ReceiveSession;
+import session.SimulatedSessionHandler;
+import session.TransmitSession;
+import socket.TFTPDatagramSocket;
+import states.RandomLossState;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Measures the goodput of uploads (a client TransmitSession, as in WriteState) for each congestion control
+ * policy, through the error simulator relay dropping DATA and ACK packets at random (RandomLossState).
+ * Everything runs over loopback in this JVM: a minimal server receives the WRQs and runs a ReceiveSession
+ * per request. The output is a table of goodput (KB/s) per loss rate, one column per policy, to plot
+ * (a * marks an average over the runs that did not fail).
+ *
+ * Sessions use adaptive timeouts (seeded by a warm-up transfer), otherwise a single loss costs SOCKET_TIMEOUT_MS.
+ *
+ * Run with: java -cp target/classes:target/test-classes benchmarks.CongestionControlBenchmark [fileSizeBytes] [maxWindow] [runs]
+ */
+public class CongestionControlBenchmark {
+
+    private static final int DEFAULT_FILE_SIZE = 512 * 1024;
+    private static final int DEFAULT_MAX_WINDOW = 32;
+    private static final int DEFAULT_RUNS = 3;
+    private static final double[] LOSS_RATES = {0, 0.005, 0.01, 0.02, 0.05};
+    private static final String FILENAME = "upload.bin";
+
+    private static final class Policy {
+        private final String name;
+        private final Supplier<CongestionController> factory;
+
+        private Policy(String name, Supplier<CongestionController> factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_SIZE;
+        int maxWindow = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_WINDOW;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RUNS;
+
+        // Session and relay logs would dominate the measurement
+        Logger.setAppender(new LogAppender() {
+            @Override
+            public void append(String entry) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+
+        Policy[] policies = {
+                new Policy("fixed(1)", () -> new FixedWindowController(1)),
+                new Policy("fixed(" + maxWindow + ")", () -> new FixedWindowController(maxWindow)),
+                new Policy("aimd(" + maxWindow + ")", () -> CongestionController.create(CongestionController.AIMD, maxWindow)),
+                new Policy("cubic(" + maxWindow + ")", () -> CongestionController.create(CongestionController.CUBIC, maxWindow)),
+        };
+
+        byte[] file = new byte[fileSize];
+        new Random(42).nextBytes(file);
+        MemoryResourceManager clientFiles = new MemoryResourceManager();
+        clientFiles.addFile(FILENAME, file);
+
+        PeerHistoryCache history = new PeerHistoryCache(16, TimeUnit.HOURS.toNanos(1));
+
+        try (TFTPDatagramSocket serverSocket = new TFTPDatagramSocket(0)) {
+            Thread server = new Thread(() -> serve(serverSocket, history), "BenchmarkServer");
+            server.setDaemon(true);
+            server.start();
+
+            // Learn the RTT of the loopback peer
+            upload(clientFiles, serverSocket.getLocalPort(), 0, new FixedWindowController(1), history);
+
+            System.out.println("File size: " + fileSize + " bytes, runs per point: " + runs + ", goodput in KB/s");
+            StringBuilder header = new StringBuilder(String.format("%-8s", "loss%"));
+            for (Policy policy : policies)
+                header.append(String.format("%14s", policy.name));
+            System.out.println(header);
+
+            for (double lossRate : LOSS_RATES) {
+                StringBuilder row = new StringBuilder(String.format("%-8.1f", lossRate * 100));
+
+                for (Policy policy : policies) {
+                    long totalNanos = 0;
+                    int failures = 0;
+
+                    for (int run = 0; run < runs; run++) {
+                        long elapsed = upload(clientFiles, serverSocket.getLocalPort(), lossRate, policy.factory.get(), history);
+                        if (elapsed < 0)
+                            failures++;
+                        else
+                            totalNanos += elapsed;
+                    }
+
+                    if (failures == runs)
+                        row.append(String.format("%14s", "failed"));
+                    else
+                        row.append(String.format("%14.0f", (double) fileSize * (runs - failures) / 1024 / (totalNanos / 1e9))
+                                + (failures > 0 ? "*" : ""));
+                }
+
+                System.out.println(row);
+            }
+        }
+    }
+
+    /**
+     * Uploads the file through a new relay
+     * @return The time until the last block was acknowledged (ns), or -1 if the upload failed
+     */
+    private static long upload(MemoryResourceManager clientFiles, int serverPort, double lossRate,
+                               CongestionController controller, PeerHistoryCache history) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        try (TFTPDatagramSocket relaySocket = new TFTPDatagramSocket(0);
+             TFTPDatagramSocket clientSocket = new TFTPDatagramSocket()) {
+            RandomLossState relay = new RandomLossState(relaySocket, loopback, lossRate, System.nanoTime()) {
+                @Override
+                protected void forwardRequest(DatagramPacket incomingPacket, InetAddress serverAddress) throws IOException {
+                    getConnection().forwardPacket(incomingPacket, serverAddress, serverPort);
+                }
+            };
+
+            Thread relayThread = new Thread(relay::execute, "BenchmarkRelay");
+            relayThread.setDaemon(true);
+            relayThread.start();
+
+            TransmitSession client = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+            client.setCongestionController(controller);
+            client.setPeerHistoryCache(history);
+
+            long start = System.nanoTime();
+            boolean success = new BlockingSessionDriver(client, clientSocket)
+                    .run(new RequestMessage(MessageType.WRQ, FILENAME), new InetSocketAddress(loopback, relaySocket.getLocalPort()));
+            long elapsed = System.nanoTime() - start;
+
+            relay.stopState();
+            return success ? elapsed : -1;
+        }
+    }
+
+    /**
+     * Receives the WRQs, and runs each upload on its own thread and socket (like the server)
+     */
+    private static void serve(TFTPDatagramSocket serverSocket, PeerHistoryCache history) {
+        while (!serverSocket.isClosed()) {
+            try {
+                DatagramPacket packet = serverSocket.receive();
+                RequestMessage request = RequestMessage.parseMessage(packet);
+                SocketAddress client = packet.getSocketAddress();
+
+                Thread worker = new Thread(() -> {
+                    try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                        ReceiveSession session = new ReceiveSession(new SimulatedSessionHandler(new MemoryResourceManager()));
+                        session.setPeerHistoryCache(history);
+                        new BlockingSessionDriver(session, socket).run(request, client);
+                    } catch (IOException ioE) {
+                        ioE.printStackTrace();
+                    }
+                }, "BenchmarkWorker");
+                worker.setDaemon(true);
+                worker.start();
+            } catch (InvalidPacketException iPE) {
+                // A late packet of a previous upload, relayed as a new client
+            } catch (IOException ioE) {
+                // Closed
+            }
+        }
+    }
+}
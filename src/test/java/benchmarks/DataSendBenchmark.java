@@ -0,0 +1,98 @@
+package benchmarks;
+
+import formats.DataMessage;
+import socket.DataFrame;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the original DATA send path ({@link formats.Message#toByteArray()} + a new DatagramPacket per send)
+ * against the reusable {@link DataFrame} path (header buffer + payload slice).
+ *
+ * Run with: java -cp target/classes:target/test-classes benchmarks.DataSendBenchmark [fileSizeBytes] [rounds]
+ */
+public class DataSendBenchmark {
+
+    private static final int DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_ROUNDS = 20;
+
+    public static void main(String[] args) throws IOException {
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_SIZE;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        byte[] file = new byte[fileSize];
+        new Random(42).nextBytes(file);
+        List<DataMessage> messages = DataMessage.createDataMessageSequence(file);
+
+        try (DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket sender = new DatagramSocket()) {
+            InetSocketAddress sinkAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), sink.getLocalPort());
+
+            System.out.println("Blocks per round: " + messages.size() + ", rounds: " + rounds);
+
+            // Encoding only (no socket), this isolates the allocation/copy cost
+            report("toByteArray (encode)", rounds, messages.size(), () -> {
+                long checksum = 0;
+                for (DataMessage message : messages) {
+                    byte[] data = message.toByteArray();
+                    checksum += new DatagramPacket(data, data.length, sinkAddress).getLength();
+                }
+                return checksum;
+            });
+
+            DataFrame frame = new DataFrame();
+            report("DataFrame (encode)", rounds, messages.size(), () -> {
+                long checksum = 0;
+                for (DataMessage message : messages)
+                    checksum += frame.set(message).toPacket(sinkAddress).getLength();
+                return checksum;
+            });
+
+            // Encoding + send over loopback (the sink is never read; the kernel drops overflow)
+            report("toByteArray (send)", rounds, messages.size(), () -> {
+                long checksum = 0;
+                for (DataMessage message : messages) {
+                    byte[] data = message.toByteArray();
+                    DatagramPacket packet = new DatagramPacket(data, data.length, sinkAddress);
+                    sender.send(packet);
+                    checksum += packet.getLength();
+                }
+                return checksum;
+            });
+
+            report("DataFrame (send)", rounds, messages.size(), () -> {
+                long checksum = 0;
+                for (DataMessage message : messages) {
+                    DatagramPacket packet = frame.set(message).toPacket(sinkAddress);
+                    sender.send(packet);
+                    checksum += packet.getLength();
+                }
+                return checksum;
+            });
+        }
+    }
+
+    /**
+     * Runs a warm-up round followed by the measured rounds and prints the average time per block
+     */
+    private static void report(String name, int rounds, int blocksPerRound, Round round) throws IOException {
+        long checksum = round.run();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            checksum += round.run();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-22s %8.1f ns/block (checksum %d)", name, (double) elapsed / ((long) rounds * blocksPerRound), checksum));
+    }
+
+    private interface Round {
+        long run() throws IOException;
+    }
+}
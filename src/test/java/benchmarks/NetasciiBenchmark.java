@@ -0,0 +1,130 @@
+package benchmarks;
+
+import resources.ByteArrayBlockSource;
+import resources.NetasciiBlockSource;
+import resources.NetasciiDecoder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares the blocks of an octet transfer (slices of the file) against the blocks of a netascii transfer
+ * ({@link NetasciiBlockSource} translating the file as blocks are requested), and the netascii decoder of the
+ * receiver. The file is text with a line end every 40 bytes on average (and a few bare CRs).
+ *
+ * Also prints the bytes allocated per round (when the JVM reports them): the translation itself allocates
+ * nothing once the buffers of the window exist.
+ *
+ * Run with: java -cp target/classes:target/test-classes benchmarks.NetasciiBenchmark [fileSizeBytes] [rounds]
+ */
+public class NetasciiBenchmark {
+
+    private static final int DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_ROUNDS = 20;
+    private static final int BLOCK_SIZE = 512;
+    private static final int WINDOW = 32;
+
+    public static void main(String[] args) throws IOException {
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_SIZE;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        byte[] file = new byte[fileSize];
+        Random random = new Random(42);
+        for (int i = 0; i < file.length; i++) {
+            int r = random.nextInt(40);
+            file[i] = r == 0 ? (byte) '\n' : r == 1 && random.nextInt(20) == 0 ? (byte) '\r' : (byte) (' ' + random.nextInt(95));
+        }
+
+        byte[] netascii = encodeAll(file);
+        System.out.println("File: " + fileSize + " bytes (" + netascii.length + " as netascii), rounds: " + rounds);
+
+        report("octet (send)", rounds, fileSize, () -> {
+            ByteArrayBlockSource source = new ByteArrayBlockSource(file, BLOCK_SIZE);
+            long checksum = 0;
+            for (long i = 0; i < source.getBlockCount(); i++)
+                checksum += source.getBlock(i).remaining();
+            return checksum;
+        });
+
+        report("netascii (send)", rounds, fileSize, () -> {
+            NetasciiBlockSource source = new NetasciiBlockSource(new ByteArrayBlockSource(file, BLOCK_SIZE), BLOCK_SIZE, WINDOW);
+            long checksum = 0;
+            for (long i = 0; i < source.getBlockCount(); i++)
+                checksum += source.getBlock(i).remaining();
+            return checksum;
+        });
+
+        ByteBuffer received = ByteBuffer.allocate(BLOCK_SIZE + 1);
+        report("octet (receive)", rounds, fileSize, () -> {
+            long checksum = 0;
+            for (int offset = 0; offset <= file.length; offset += BLOCK_SIZE) {
+                received.clear();
+                received.put(file, offset, Math.min(BLOCK_SIZE, file.length - offset));
+                checksum += received.position();
+            }
+            return checksum;
+        });
+
+        // Received payloads are read-only views of the packet
+        ByteBuffer payload = ByteBuffer.wrap(netascii).asReadOnlyBuffer();
+        report("netascii (receive)", rounds, fileSize, () -> {
+            NetasciiDecoder decoder = new NetasciiDecoder();
+            long checksum = 0;
+            for (int offset = 0; offset <= netascii.length; offset += BLOCK_SIZE) {
+                received.clear();
+                payload.limit(Math.min(offset + BLOCK_SIZE, netascii.length)).position(offset);
+                decoder.decode(payload, received);
+                checksum += received.position();
+            }
+            received.clear();
+            decoder.finish(received);
+            return checksum + received.position();
+        });
+    }
+
+    private static byte[] encodeAll(byte[] file) throws IOException {
+        NetasciiBlockSource source = new NetasciiBlockSource(new ByteArrayBlockSource(file, BLOCK_SIZE), BLOCK_SIZE, 1);
+        ByteBuffer encoded = ByteBuffer.allocate(file.length * 2 + 1);
+        for (long i = 0; i < source.getBlockCount(); i++)
+            encoded.put(source.getBlock(i));
+
+        byte[] netascii = new byte[encoded.position()];
+        encoded.flip();
+        encoded.get(netascii);
+        return netascii;
+    }
+
+    /**
+     * Runs a warm-up round followed by the measured rounds and prints the throughput, and the bytes allocated per round
+     */
+    private static void report(String name, int rounds, int fileSize, Round round) throws IOException {
+        long checksum = round.run();
+
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            checksum += round.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%-20s %8.1f MB/s %10s B/round (checksum %d)", name,
+                (double) fileSize * rounds / elapsed * 1000, allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / rounds), checksum));
+    }
+
+    /**
+     * @return The bytes allocated by this thread so far, or -1 if the JVM does not report them
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        return -1;
+    }
+
+    private interface Round {
+        long run() throws IOException;
+    }
+}
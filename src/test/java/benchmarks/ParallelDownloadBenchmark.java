@@ -0,0 +1,170 @@
+package benchmarks;
+
+import exceptions.InvalidPacketException;
+import formats.Message;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import formats.RequestMessage.MessageMode;
+import formats.TransferOptions;
+import logging.LogAppender;
+import logging.Logger;
+import resources.MemoryResourceManager;
+import session.BlockingSessionDriver;
+import session.ParallelDownload;
+import session.SimulatedSessionHandler;
+import session.TransmitSession;
+import socket.TFTPDatagramSocket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of lock-step reads split over 1, 4 and 16 concurrent sessions (ParallelDownload)
+ * on a path with a simulated delay. Everything runs over loopback in this JVM: a minimal server receives the
+ * RRQs and runs a TransmitSession per request, on a socket that holds every packet for the delay before
+ * sending it. A lock-step session sends one block per round trip, so the throughput should grow with the
+ * number of sessions.
+ *
+ * A read is timed until the last server session completes (the client sessions wait a timeout after the
+ * last block before they complete). The file must stay below PREFETCH_THRESHOLD_BYTES, since the server
+ * streams larger files from disk.
+ *
+ * Run with: java -cp target/classes:target/test-classes benchmarks.ParallelDownloadBenchmark [fileSizeBytes] [delayMs] [runs]
+ */
+public class ParallelDownloadBenchmark {
+
+    private static final int DEFAULT_FILE_SIZE = 768 * 1024;
+    private static final int DEFAULT_DELAY_MS = 20;
+    private static final int DEFAULT_RUNS = 2;
+    private static final int BLOCK_SIZE = 8192;
+    private static final int[] STREAMS = {1, 4, 16};
+    private static final String FILENAME = "download.bin";
+
+    public static void main(String[] args) throws Exception {
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_SIZE;
+        int delayMs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DELAY_MS;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RUNS;
+
+        // Session logs would dominate the measurement
+        Logger.setAppender(new LogAppender() {
+            @Override
+            public void append(String entry) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+
+        byte[] file = new byte[fileSize];
+        new Random(42).nextBytes(file);
+        MemoryResourceManager serverFiles = new MemoryResourceManager();
+        serverFiles.addFile(FILENAME, file);
+
+        ScheduledExecutorService delayLine = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "BenchmarkDelay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicLong lastCompletion = new AtomicLong();
+
+        try (TFTPDatagramSocket serverSocket = new TFTPDatagramSocket(0)) {
+            Thread server = new Thread(() -> serve(serverSocket, serverFiles, delayLine, delayMs, lastCompletion), "BenchmarkServer");
+            server.setDaemon(true);
+            server.start();
+
+            SocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            RequestMessage request = new RequestMessage(MessageType.RRQ, FILENAME, MessageMode.OCTET,
+                    new TransferOptions(BLOCK_SIZE, TransferOptions.DEFAULT_ROLLOVER).toRequestOptions());
+
+            System.out.println("File size: " + fileSize + " bytes, block size: " + BLOCK_SIZE + ", delay: " + delayMs
+                    + " ms, runs per point: " + runs);
+            System.out.println(String.format("%-10s%14s%14s", "streams", "time (ms)", "KB/s"));
+
+            for (int streams : STREAMS) {
+                long totalNanos = 0;
+
+                for (int run = 0; run < runs; run++) {
+                    MemoryResourceManager clientFiles = new MemoryResourceManager();
+                    ParallelDownload download = new ParallelDownload(clientFiles, streams);
+
+                    long start = System.nanoTime();
+                    if (!download.run(request, serverAddress))
+                        throw new IllegalStateException("The read with " + streams + " sessions failed");
+                    if (!Arrays.equals(file, clientFiles.getFile(FILENAME).readFileToBytes()))
+                        throw new IllegalStateException("The read with " + streams + " sessions is corrupt");
+
+                    totalNanos += lastCompletion.get() - start;
+                }
+
+                double seconds = totalNanos / 1e9 / runs;
+                System.out.println(String.format("%-10d%14.0f%14.0f", streams, seconds * 1000, fileSize / 1024 / seconds));
+            }
+        } finally {
+            delayLine.shutdownNow();
+        }
+    }
+
+    /**
+     * Receives the RRQs, and runs each read on its own thread and delayed socket (like the server)
+     */
+    private static void serve(TFTPDatagramSocket serverSocket, MemoryResourceManager serverFiles,
+                              ScheduledExecutorService delayLine, int delayMs, AtomicLong lastCompletion) {
+        while (!serverSocket.isClosed()) {
+            try {
+                DatagramPacket packet = serverSocket.receive();
+                RequestMessage request = RequestMessage.parseMessage(packet);
+                SocketAddress client = packet.getSocketAddress();
+
+                Thread worker = new Thread(() -> {
+                    try (TFTPDatagramSocket socket = new DelayedSocket(delayLine, delayMs)) {
+                        new BlockingSessionDriver(new TransmitSession(new SimulatedSessionHandler(serverFiles)), socket).run(request, client);
+                        lastCompletion.accumulateAndGet(System.nanoTime(), Math::max);
+                    } catch (IOException ioE) {
+                        ioE.printStackTrace();
+                    }
+                }, "BenchmarkWorker");
+                worker.setDaemon(true);
+                worker.start();
+            } catch (InvalidPacketException iPE) {
+                // Not a request
+            } catch (IOException ioE) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Sends every message after a delay (the round trip of the path)
+     */
+    private static final class DelayedSocket extends TFTPDatagramSocket {
+        private final ScheduledExecutorService delayLine;
+        private final int delayMs;
+
+        private DelayedSocket(ScheduledExecutorService delayLine, int delayMs) throws SocketException {
+            this.delayLine = delayLine;
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public void sendMessage(Message msg, SocketAddress socketAddress) {
+            delayLine.schedule(() -> {
+                try {
+                    super.sendMessage(msg, socketAddress);
+                } catch (IOException ioE) {
+                    // Closed before the delay elapsed
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.LogAppender;
+import logging.Logger;
+import resources.MemoryResourceManager;
+import session.LoopbackSessionDriver;
+import session.ReceiveSession;
+import session.SimulatedSessionHandler;
+import session.TransmitSession;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Runs complete simulated read sessions (client ReceiveSession against server TransmitSession) through
+ * the session state machines, without sockets, threads or real timeouts.
+ *
+ * Run with: java -cp target/classes:target/test-classes benchmarks.SessionStateMachineBenchmark [fileSizeBytes] [sessions]
+ */
+public class SessionStateMachineBenchmark {
+
+    private static final int DEFAULT_FILE_SIZE = 100;
+    private static final int DEFAULT_SESSIONS = 200_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_SIZE;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SESSIONS;
+
+        // Session logs would dominate the measurement
+        Logger.setAppender(new LogAppender() {
+            @Override
+            public void append(String entry) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+
+        byte[] file = new byte[fileSize];
+        new Random(42).nextBytes(file);
+        RequestMessage request = new RequestMessage(MessageType.RRQ, "file.bin");
+        System.out.println("File size: " + fileSize + " bytes, sessions per round: " + sessions);
+
+        // Files are kept in memory, and the client file is deleted after every session
+        MemoryResourceManager clientFiles = new MemoryResourceManager();
+        MemoryResourceManager serverFiles = new MemoryResourceManager();
+        serverFiles.addFile(request.getFileName(), file);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int successes = 0;
+
+            for (int i = 0; i < sessions; i++) {
+                if (runSession(clientFiles, serverFiles, request))
+                    successes++;
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Round %d: %,.0f sessions/s (%d/%d successful)%n", round + 1, sessions / seconds, successes, sessions);
+        }
+    }
+
+    private static boolean runSession(MemoryResourceManager clientFiles, MemoryResourceManager serverFiles, RequestMessage request) throws Exception {
+        ReceiveSession client = new ReceiveSession(new SimulatedSessionHandler(clientFiles));
+        TransmitSession server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+        boolean success = new LoopbackSessionDriver(client, server).run(request);
+
+        clientFiles.getFile(request.getFileName()).delete();
+        return success;
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import event.HashedTimingWheel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates the timers of many open sessions: every 'packet' re-arms the retransmit timer of a random
+ * session (cancel + schedule), and the wheel is advanced by one tick every few thousand packets.
+ *
+ * Run with: java -cp target/classes:target/test-classes benchmarks.TimingWheelBenchmark [sessions] [packets]
+ */
+public class TimingWheelBenchmark {
+
+    private static final int DEFAULT_SESSIONS = 50_000;
+    private static final int DEFAULT_PACKETS = 20_000_000;
+    private static final int PACKETS_PER_TICK = 5_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SESSIONS;
+        int packets = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PACKETS;
+
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(5000);
+        System.out.println("Sessions: " + sessions + ", packets per round: " + packets);
+
+        HashedTimingWheel<Integer> wheel = new HashedTimingWheel<>(tickNanos, 512, 0);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        HashedTimingWheel.Timeout<Integer>[] timers = new HashedTimingWheel.Timeout[sessions];
+        for (int i = 0; i < sessions; i++)
+            timers[i] = wheel.schedule(i, timeoutNanos);
+
+        Random random = new Random(42);
+        long now = 0;
+        long expired = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < packets; i++) {
+                wheel.schedule(timers[random.nextInt(sessions)], now + timeoutNanos);
+
+                if (i % PACKETS_PER_TICK == 0) {
+                    now += tickNanos;
+                    expired += wheel.advance(now, timeout -> wheel.schedule(timeout, timeout.getDeadline() + timeoutNanos));
+                }
+            }
+
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Round %d: %.1f M reschedules/s (%d timers, %d expired so far)%n",
+                    round + 1, packets * 1e3 / elapsed, wheel.size(), expired);
+        }
+    }
+}
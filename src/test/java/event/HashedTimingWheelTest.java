@@ -0,0 +1,117 @@
+package event;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HashedTimingWheelTest {
+    private static final long TICK = 1_000_000L;
+
+    private HashedTimingWheel<String> wheel;
+    private List<String> expired;
+
+    @Before
+    public void setUp() {
+        wheel = new HashedTimingWheel<>(TICK, 8, 0);
+        expired = new ArrayList<>();
+    }
+
+    private int advance(long now) {
+        return wheel.advance(now, timeout -> expired.add(timeout.getTask()));
+    }
+
+    /**
+     * Ensure timeouts never expire before their deadline, and expire on the first tick after it
+     */
+    @Test
+    public void testExpiresAfterDeadline() {
+        wheel.schedule("a", 5 * TICK + TICK / 2);
+        wheel.schedule("b", 3 * TICK);
+
+        Assert.assertEquals(0, advance(2 * TICK));
+        Assert.assertEquals(1, advance(3 * TICK));
+        Assert.assertEquals("b", expired.get(0));
+
+        Assert.assertEquals(0, advance(5 * TICK));
+        Assert.assertEquals(1, advance(6 * TICK));
+        Assert.assertEquals("a", expired.get(1));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Ensure cancelled timeouts do not expire
+     */
+    @Test
+    public void testCancel() {
+        HashedTimingWheel.Timeout<String> a = wheel.schedule("a", 2 * TICK);
+        HashedTimingWheel.Timeout<String> b = wheel.schedule("b", 2 * TICK);
+        wheel.schedule("c", 2 * TICK);
+
+        wheel.cancel(b);
+        wheel.cancel(b);
+        Assert.assertFalse(b.isScheduled());
+        Assert.assertTrue(a.isScheduled());
+        Assert.assertEquals(2, wheel.size());
+
+        advance(2 * TICK);
+        Assert.assertEquals(2, expired.size());
+        Assert.assertFalse(expired.contains("b"));
+    }
+
+    /**
+     * Ensure deadlines beyond one rotation of the wheel wait for the right round
+     */
+    @Test
+    public void testMultipleRounds() {
+        wheel.schedule("far", 100 * TICK);
+        wheel.schedule("near", 4 * TICK);
+
+        for (long t = 1; t < 100; t++)
+            advance(t * TICK);
+
+        Assert.assertEquals(1, expired.size());
+        Assert.assertEquals("near", expired.get(0));
+
+        advance(100 * TICK);
+        Assert.assertEquals("far", expired.get(1));
+    }
+
+    /**
+     * Ensure a large jump in time expires every due timeout once, and keeps the others
+     */
+    @Test
+    public void testLargeJump() {
+        for (int i = 1; i <= 50; i++)
+            wheel.schedule("t" + i, i * TICK);
+
+        Assert.assertEquals(30, advance(30 * TICK));
+        Assert.assertEquals(20, wheel.size());
+        Assert.assertEquals(20, advance(1000 * TICK));
+    }
+
+    /**
+     * Ensure the handler can reschedule the expired timeout (re-arming a retransmit timer)
+     */
+    @Test
+    public void testRescheduleFromHandler() {
+        HashedTimingWheel.Timeout<String> timeout = new HashedTimingWheel.Timeout<>("retransmit");
+        wheel.schedule(timeout, TICK);
+
+        int[] count = {0};
+        for (long t = 1; t <= 20; t++) {
+            long now = t * TICK;
+            wheel.advance(now, expiredTimeout -> {
+                count[0]++;
+                wheel.schedule(expiredTimeout, now + 4 * TICK);
+            });
+        }
+
+        // Expires at 1, 5, 9, 13 and 17
+        Assert.assertEquals(5, count[0]);
+        Assert.assertTrue(timeout.isScheduled());
+        Assert.assertEquals(21 * TICK, timeout.getDeadline());
+    }
+}
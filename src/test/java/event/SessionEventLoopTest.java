@@ -0,0 +1,215 @@
+package event;
+
+import formats.ErrorMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.QuietLogRule;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+import session.BlockingSessionDriver;
+import session.ReceiveSession;
+import session.SimulatedSessionHandler;
+import session.TFTPSession;
+import session.TransmitSession;
+import socket.TFTPDatagramSocket;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SessionEventLoopTest {
+    private static final int NUM_CLIENTS = 8;
+
+    private SessionEventLoop eventLoop;
+    private TFTPDatagramSocket serverSocket;
+    private MemoryResourceManager serverFiles;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        serverFiles = new MemoryResourceManager();
+        serverSocket = new TFTPDatagramSocket(0);
+        serverSocket.setSoTimeout(5000);
+        eventLoop = new SessionEventLoop("TestEventLoop", TimeUnit.MILLISECONDS.toNanos(5), 64, 0);
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventLoop.shutdown();
+        eventLoop.join();
+        serverSocket.close();
+    }
+
+    /**
+     * Receives a request on the 'well known' port and registers the server session with the loop
+     */
+    private void dispatchRequest(boolean read) throws Exception {
+        DatagramPacket packet = serverSocket.receive();
+        RequestMessage request = RequestMessage.parseMessage(packet);
+        SimulatedSessionHandler handler = new SimulatedSessionHandler(serverFiles);
+        TFTPSession session = read ? new TransmitSession(handler) : new ReceiveSession(handler);
+        eventLoop.register(session, request, packet.getSocketAddress());
+    }
+
+    /**
+     * Ensure concurrent writes are all received by sessions running on one loop thread
+     */
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        List<Thread> clients = new ArrayList<>();
+        List<byte[]> files = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+
+        for (int i = 0; i < NUM_CLIENTS; i++) {
+            byte[] file = new byte[512 * (i + 2) + i];
+            new Random(i).nextBytes(file);
+            files.add(file);
+
+            MemoryResourceManager clientFiles = new MemoryResourceManager();
+            clientFiles.addFile("file" + i, file);
+            RequestMessage request = new RequestMessage(MessageType.WRQ, "file" + i);
+
+            clients.add(new Thread(() -> {
+                try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                    TransmitSession session = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+                    if (!new BlockingSessionDriver(session, socket).run(request, serverAddress))
+                        failed.set(true);
+                } catch (Exception e) {
+                    failed.set(true);
+                }
+            }));
+        }
+
+        clients.forEach(Thread::start);
+        for (int i = 0; i < NUM_CLIENTS; i++)
+            dispatchRequest(false);
+
+        for (Thread client : clients)
+            client.join();
+
+        Assert.assertFalse(failed.get());
+        for (int i = 0; i < NUM_CLIENTS; i++)
+            Assert.assertArrayEquals(files.get(i), serverFiles.getFile("file" + i).readFileToBytes());
+
+        // The receiving sessions wait for their final timeout (in case the last ACK was lost)
+        Assert.assertEquals(NUM_CLIENTS, eventLoop.getSessionCount());
+    }
+
+    /**
+     * Ensure a session that fails on the loop sends its ERROR and releases its channel
+     */
+    @Test
+    public void testReadMissingFile() throws Exception {
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        MemoryResourceManager clientFiles = new MemoryResourceManager();
+        SimulatedSessionHandler clientHandler = new SimulatedSessionHandler(clientFiles);
+        boolean[] success = {true};
+
+        Thread client = new Thread(() -> {
+            try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                ReceiveSession session = new ReceiveSession(clientHandler);
+                success[0] = new BlockingSessionDriver(session, socket).run(new RequestMessage(MessageType.RRQ, "missing"), serverAddress);
+            } catch (Exception e) {
+                success[0] = true;
+            }
+        });
+
+        client.start();
+        dispatchRequest(true);
+        client.join();
+
+        Assert.assertFalse(success[0]);
+        Assert.assertNotNull(clientHandler.getErrorReceived());
+        Assert.assertEquals(ErrorMessage.ErrorType.FILE_NOT_FOUND, clientHandler.getErrorReceived().getErrorType());
+
+        eventLoop.awaitSessions();
+        Assert.assertEquals(0, eventLoop.getSessionCount());
+    }
+
+    /**
+     * Ensure a session that throws on the loop fails alone (with an ERROR), and the loop keeps serving sessions
+     */
+    @Test
+    public void testUnexpectedException() throws Exception {
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        byte[] file = new byte[1500];
+        new Random(7).nextBytes(file);
+        serverFiles.addFile("file", file);
+
+        MemoryResourceManager clientFiles = new MemoryResourceManager();
+        SimulatedSessionHandler clientHandler = new SimulatedSessionHandler(clientFiles);
+        boolean[] success = {true};
+
+        Thread client = new Thread(() -> {
+            try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                success[0] = new BlockingSessionDriver(new ReceiveSession(clientHandler), socket).run(new RequestMessage(MessageType.RRQ, "file"), serverAddress);
+            } catch (Exception e) {
+                success[0] = true;
+            }
+        });
+        client.start();
+
+        DatagramPacket packet = serverSocket.receive();
+        SimulatedSessionHandler serverHandler = new SimulatedSessionHandler(serverFiles);
+        TransmitSession failing = new TransmitSession(serverHandler) {
+            @Override
+            protected void initialize() {
+                throw new IllegalStateException("TEST EXCEPTION");
+            }
+        };
+        eventLoop.register(failing, RequestMessage.parseMessage(packet), packet.getSocketAddress());
+        client.join();
+
+        Assert.assertFalse(success[0]);
+        Assert.assertEquals(ErrorMessage.ErrorType.NOT_DEFINED, clientHandler.getErrorReceived().getErrorType());
+        Assert.assertTrue(serverHandler.isCompleted());
+
+        // The next session on the loop still runs
+        clientFiles = new MemoryResourceManager();
+        MemoryResourceManager nextFiles = clientFiles;
+        client = new Thread(() -> {
+            try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                success[0] = new BlockingSessionDriver(new ReceiveSession(new SimulatedSessionHandler(nextFiles)), socket).run(new RequestMessage(MessageType.RRQ, "file"), serverAddress);
+            } catch (Exception e) {
+                success[0] = false;
+            }
+        });
+        client.start();
+        dispatchRequest(true);
+        client.join();
+
+        Assert.assertTrue(success[0]);
+        Assert.assertArrayEquals(file, nextFiles.getFile("file").readFileToBytes());
+    }
+
+    /**
+     * Ensure the sessions still running when the loop stops are completed, so their handlers release them
+     */
+    @Test
+    public void testShutdownAbortsSessions() throws Exception {
+        SimulatedSessionHandler handler = new SimulatedSessionHandler(serverFiles);
+        eventLoop.register(new ReceiveSession(handler), new RequestMessage(MessageType.WRQ, "file"),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+
+        // The session sends its first ACK, and waits for DATA that never comes
+        serverSocket.receive();
+        eventLoop.shutdown();
+        eventLoop.join();
+
+        Assert.assertTrue(handler.isCompleted());
+        Assert.assertEquals(0, eventLoop.getSessionCount());
+    }
+}
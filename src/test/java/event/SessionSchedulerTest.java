@@ -0,0 +1,129 @@
+package event;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SessionSchedulerTest {
+    private static final int BLOCK_SIZE = 512;
+    private static final int QUANTUM = 8 * BLOCK_SIZE;
+
+    /**
+     * A simulated session
+     */
+    private static final class Job {
+        private final String peer;
+        private final boolean bulk;
+        private final long remaining;
+
+        private Job(String peer, boolean bulk, long remaining) {
+            this.peer = peer;
+            this.bulk = bulk;
+            this.remaining = remaining;
+        }
+    }
+
+    private static SessionScheduler<Job> createScheduler() {
+        return new SessionScheduler<>(new SessionScheduler.Classifier<Job>() {
+            @Override
+            public boolean isBulk(Job job) {
+                return job.bulk;
+            }
+
+            @Override
+            public long getPriority(Job job) {
+                return job.remaining;
+            }
+
+            @Override
+            public Object getFlow(Job job) {
+                return job.peer;
+            }
+
+            @Override
+            public int getCost(Job job) {
+                return BLOCK_SIZE;
+            }
+        }, QUANTUM);
+    }
+
+    /**
+     * Ensure small transfers are served before bulk transfers, shortest first
+     */
+    @Test
+    public void testShortestJobFirst() {
+        SessionScheduler<Job> scheduler = createScheduler();
+        Job bulk = new Job("a", true, 1L << 32);
+        Job medium = new Job("b", false, 5000);
+        Job tiny = new Job("c", false, 100);
+
+        scheduler.add(bulk);
+        scheduler.add(medium);
+        scheduler.add(tiny);
+
+        // Duplicates are ignored
+        scheduler.add(tiny);
+        Assert.assertEquals(3, scheduler.size());
+
+        Assert.assertSame(tiny, scheduler.poll());
+        Assert.assertSame(medium, scheduler.poll());
+        Assert.assertSame(bulk, scheduler.poll());
+        Assert.assertNull(scheduler.poll());
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    /**
+     * Ensure bulk peers get equal shares, whatever their number of sessions
+     */
+    @Test
+    public void testDeficitRoundRobinBetweenPeers() {
+        SessionScheduler<Job> scheduler = createScheduler();
+        Job[] jobs = {new Job("a", true, 0), new Job("a", true, 0), new Job("a", true, 0), new Job("b", true, 0)};
+        for (Job job : jobs)
+            scheduler.add(job);
+
+        Map<String, Integer> served = new HashMap<>();
+        Map<Job, Integer> servedByJob = new HashMap<>();
+
+        for (int i = 0; i < 1600; i++) {
+            Job job = scheduler.poll();
+            served.merge(job.peer, 1, Integer::sum);
+            servedByJob.merge(job, 1, Integer::sum);
+
+            // Every job always has more work
+            scheduler.add(job);
+        }
+
+        // Each peer gets half of the packets (within one quantum)
+        Assert.assertEquals(800, served.get("a"), QUANTUM / BLOCK_SIZE);
+        Assert.assertEquals(800, served.get("b"), QUANTUM / BLOCK_SIZE);
+
+        // Sessions of the same peer share its half
+        for (int i = 0; i < 3; i++)
+            Assert.assertEquals(800 / 3.0, servedByJob.get(jobs[i]), QUANTUM / BLOCK_SIZE);
+    }
+
+    /**
+     * Ensure a steady stream of small transfers does not starve bulk transfers
+     */
+    @Test
+    public void testBulkIsNotStarved() {
+        SessionScheduler<Job> scheduler = createScheduler();
+        Job bulk = new Job("a", true, 0);
+        Job small = new Job("b", false, 100);
+        scheduler.add(bulk);
+        scheduler.add(small);
+
+        int bulkServed = 0;
+        for (int i = 0; i < 900; i++) {
+            Job job = scheduler.poll();
+            if (job == bulk)
+                bulkServed++;
+            scheduler.add(job);
+        }
+
+        Assert.assertEquals(100, bulkServed);
+    }
+}
@@ -7,8 +7,12 @@ import org.junit.Test;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+import socket.DataFrame;
+
 import static org.junit.Assert.*;
 
 public class DataMessageTest {
@@ -153,4 +157,41 @@ public class DataMessageTest {
         MessageTestSuite.testInvalidParseData(data -> DataMessage.parseMessage(new DatagramPacket(data, data.length)), invalidParseData);
     }
 
+    /**
+     * Ensure a message backed by a payload slice refers to the slice (no copy) and is truncated properly
+     */
+    @Test
+    public void testPayloadSlice()
+    {
+        byte[] fileData = new byte[DataMessage.MAX_BLOCK_SIZE * 2];
+        (new Random()).nextBytes(fileData);
+
+        DataMessage dataMessage = new DataMessage(2, ByteBuffer.wrap(fileData, DataMessage.MAX_BLOCK_SIZE, DataMessage.MAX_BLOCK_SIZE));
+        assertEquals(DataMessage.MAX_BLOCK_SIZE, dataMessage.getDataSize());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(fileData, DataMessage.MAX_BLOCK_SIZE, fileData.length), dataMessage.getData()));
+
+        // Slices larger than the max block size are truncated
+        assertEquals(DataMessage.MAX_BLOCK_SIZE, new DataMessage(1, ByteBuffer.wrap(fileData)).getDataSize());
+    }
+
+    /**
+     * Ensure the framed (header + payload slice) packet is identical to the concatenated byte array,
+     * including when the frame is re-used for a retransmit or a smaller message
+     */
+    @Test
+    public void testDataFrame() throws IOException
+    {
+        InetSocketAddress address = new InetSocketAddress("localhost", 69);
+        DataFrame frame = new DataFrame();
+
+        for (DataMessage message : DataMessage.createDataMessageSequence(new byte[DataMessage.MAX_BLOCK_SIZE + 20])) {
+            // Send twice to simulate a retransmit
+            for (int i = 0; i < 2; i++) {
+                DatagramPacket packet = frame.set(message).toPacket(address);
+                byte[] framed = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                assertTrue(Arrays.equals(message.toByteArray(), framed));
+                assertEquals(address, packet.getSocketAddress());
+            }
+        }
+    }
 }
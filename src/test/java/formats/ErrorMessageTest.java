@@ -48,7 +48,7 @@ public class ErrorMessageTest {
         invalidParseData.add(new Pair<>("Packet length too short", new byte[0]));
         invalidParseData.add(new Pair<>("Packet length too short", new byte[]{ 0, 5 }));
         invalidParseData.add(new Pair<>("Packet length too short", new byte[]{ 0, 5, 0}));
-        invalidParseData.add(new Pair<>("Invalid error code. Error Code: 8", new byte[]{ 0, 5, 0, 8, 0}));
+        invalidParseData.add(new Pair<>("Invalid error code. Error Code: 9", new byte[]{ 0, 5, 0, 9, 0}));
         invalidParseData.add(new Pair<>("Invalid start byte. Expected 0. Actual: 1", new byte[] { 1, 5, 0, 0, 0 }));
         invalidParseData.add(new Pair<>("End of packet expected. Packet is too large.", new byte[] { 0, 5, 0, 2, 'a', 'b', 'c'}));
 
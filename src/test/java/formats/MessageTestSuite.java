@@ -23,7 +23,8 @@ import static org.junit.Assert.fail;
         AckMessageTest.class,
         DataMessageTest.class,
         ErrorMessageTest.class,
-        RequestMessageTest.class})
+        RequestMessageTest.class,
+        OptionAckMessageTest.class})
 public class MessageTestSuite {
 
 
@@ -0,0 +1,116 @@
+package formats;
+
+import exceptions.InvalidPacketException;
+import javafx.util.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static formats.Message.MessageType.OACK;
+import static org.junit.Assert.*;
+
+public class OptionAckMessageTest {
+
+    private Map<OptionAckMessage, byte[]> validParseData;
+    private List<Pair<String, byte[]>> invalidParseData;
+
+    /**
+     * Pre-test Setup (valid messages, parse data, etc)
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        validParseData = new HashMap<>();
+        invalidParseData = new ArrayList<>();
+
+        // Correct byte arrays that should have no issues
+        validParseData.put(new OptionAckMessage(options("blksize", "1428")), getValidMessageBytes("blksize", "1428"));
+        validParseData.put(new OptionAckMessage(options("blksize", "8", "rollover", "0")), getValidMessageBytes("blksize", "8", "rollover", "0"));
+        validParseData.put(new OptionAckMessage(options("x", "")), getValidMessageBytes("x", ""));
+
+        // Invalid raw data
+        invalidParseData.add(new Pair<>("Packet length too short", new byte[0]));
+        invalidParseData.add(new Pair<>("Packet length too short", new byte[] { 0, (byte) OACK.getType(), 'x', 0 }));
+        invalidParseData.add(new Pair<>("Invalid start byte. Expected 0. Actual: 1", new byte[] { 1, (byte) OACK.getType(), 'x', 0, 0 }));
+        invalidParseData.add(new Pair<>("Invalid message type. Must be OACK (6). Actual: ACK", new byte[] { 0, 4, 'x', 0, 0 }));
+        invalidParseData.add(new Pair<>("The options must be pairs of 0 terminated names and values", new byte[] { 0, (byte) OACK.getType(), 'x', 0, '1' }));
+        invalidParseData.add(new Pair<>("The options must be pairs of 0 terminated names and values", new byte[] { 0, (byte) OACK.getType(), 0, '1', 0 }));
+    }
+
+    /**
+     * Test Helper. Creates an ordered option map from name and value pairs
+     */
+    private static Map<String, String> options(String... namesAndValues)
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+            options.put(namesAndValues[i], namesAndValues[i + 1]);
+        return options;
+    }
+
+    /**
+     * Test Helper. Creates a proper OptionAckMessage byte array
+     * @param namesAndValues The option names and values
+     * @return valid byte array of message data
+     */
+    private byte[] getValidMessageBytes(String... namesAndValues) throws IOException
+    {
+        ByteArrayOutputStream bAOS = new ByteArrayOutputStream();
+        bAOS.write(0);
+        bAOS.write(OACK.getType());
+        for (String string : namesAndValues) {
+            bAOS.write(string.getBytes());
+            bAOS.write(0);
+        }
+        return bAOS.toByteArray();
+    }
+
+    /**
+     * Ensure option names are case insensitive, and an OACK needs an option
+     */
+    @Test
+    public void testOptions()
+    {
+        OptionAckMessage optionAck = new OptionAckMessage(options("BLKSIZE", "1024"));
+        assertEquals(OACK, optionAck.getMessageType());
+        assertEquals("1024", optionAck.getOption("blksize"));
+        assertEquals("1024", optionAck.getOption("BlkSize"));
+        assertNull(optionAck.getOption("rollover"));
+
+        try {
+            new OptionAckMessage(new HashMap<>());
+            fail("Expected an exception for an empty OACK");
+        } catch (RuntimeException rE) {
+            // Expected
+        }
+    }
+
+    /**
+     * Ensure valid raw byte array data gets parsed properly
+     */
+    @Test
+    public void testParseValidData() throws IOException, InvalidPacketException
+    {
+        MessageTestSuite.testValidParseData(OptionAckMessage::parseMessage, validParseData);
+        MessageTestSuite.testValidParseData(data -> OptionAckMessage.parseMessage(new DatagramPacket(data, data.length)), validParseData);
+        MessageTestSuite.testValidParseData(Message::parseGenericMessage, validParseData);
+    }
+
+    /**
+     * Ensure invalid raw byte array data throws InvalidPacketException
+     */
+    @Test
+    public void testParseInvalidData()
+    {
+        MessageTestSuite.testInvalidParseData(OptionAckMessage::parseMessage, invalidParseData);
+        MessageTestSuite.testInvalidParseData(data -> OptionAckMessage.parseMessage(new DatagramPacket(data, data.length)), invalidParseData);
+    }
+}
@@ -149,4 +149,41 @@ public class RequestMessageTest {
         MessageTestSuite.testInvalidParseData(data -> RequestMessage.parseMessage(new DatagramPacket(data, data.length)), invalidParseData);
     }
 
+    /**
+     * Ensure options after the mode are parsed in order (with case insensitive names), and written back
+     */
+    @Test
+    public void testOptions() throws IOException, InvalidPacketException
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("blksize", "1024");
+        options.put("rollover", "0");
+        RequestMessage request = new RequestMessage(RRQ, validFileName, options);
+
+        byte[] bytes = getRequestBytesWithOptions("BlkSize", "1024", "rollover", "0");
+        RequestMessage parsed = RequestMessage.parseMessage(bytes);
+        assertEquals(request, parsed);
+        assertEquals(new ArrayList<>(options.keySet()), new ArrayList<>(parsed.getOptions().keySet()));
+        assertEquals("1024", parsed.getOption("BLKSIZE"));
+        assertNotEquals(validRRQMessage, parsed);
+        assertTrue(validRRQMessage.getOptions().isEmpty());
+
+        // Names are written in lower case
+        assertArrayEquals(getRequestBytesWithOptions("blksize", "1024", "rollover", "0"), parsed.toByteArray());
+    }
+
+    /**
+     * Test Helper. Creates a RRQ byte array (default mode) followed by 0 terminated option names and values
+     */
+    private byte[] getRequestBytesWithOptions(String... namesAndValues) throws IOException
+    {
+        ByteArrayOutputStream bAOS = new ByteArrayOutputStream();
+        bAOS.write(getValidMessageBytes(RRQ, validFileName, RequestMessage.DEFAULT_MODE.getModeName()));
+        for (String string : namesAndValues) {
+            bAOS.write(string.getBytes());
+            bAOS.write(0);
+        }
+        return bAOS.toByteArray();
+    }
+
 }
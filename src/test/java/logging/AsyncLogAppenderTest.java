@@ -0,0 +1,182 @@
+package logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogAppenderTest {
+    private static final int NUM_THREADS = 4;
+    private static final int ENTRIES_PER_THREAD = 5000;
+
+    private PrintStream originalOut;
+    private ByteArrayOutputStream outStream;
+
+    // Restores the appender the tests replace
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() {
+        originalOut = System.out;
+        outStream = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outStream, true));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    /**
+     * Ensure entries from concurrent producers are all written (even when the ring overflows),
+     * and that entries of a single producer stay in order
+     */
+    @Test
+    public void testConcurrentAppend() throws InterruptedException {
+        // Use a small ring so that the synchronous overflow path is exercised as well
+        AsyncLogAppender appender = new AsyncLogAppender(64);
+        List<Thread> producers = new ArrayList<>();
+
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int producerId = t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < ENTRIES_PER_THREAD; i++)
+                    appender.append("P" + producerId + " " + i);
+            }));
+        }
+
+        producers.forEach(Thread::start);
+        for (Thread producer : producers)
+            producer.join();
+
+        appender.stop();
+
+        String[] lines = outStream.toString().split(System.lineSeparator());
+        assertEquals(NUM_THREADS * ENTRIES_PER_THREAD, lines.length);
+
+        // Every entry must be present exactly once
+        boolean[][] seen = new boolean[NUM_THREADS][ENTRIES_PER_THREAD];
+        for (String line : lines) {
+            String[] parts = line.substring(1).split(" ");
+            int producer = Integer.parseInt(parts[0]);
+            int entry = Integer.parseInt(parts[1]);
+            assertTrue("Duplicate entry: " + line, !seen[producer][entry]);
+            seen[producer][entry] = true;
+        }
+    }
+
+    /**
+     * Ensure the entries of each producer are written in the order it appended them, even when the
+     * ring overflows and entries are written synchronously
+     */
+    @Test
+    public void testPerProducerOrder() throws InterruptedException {
+        AsyncLogAppender appender = new AsyncLogAppender(16);
+        List<Thread> producers = new ArrayList<>();
+
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int producerId = t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < ENTRIES_PER_THREAD; i++)
+                    appender.append("P" + producerId + " " + i);
+            }));
+        }
+
+        producers.forEach(Thread::start);
+        for (Thread producer : producers)
+            producer.join();
+
+        appender.stop();
+
+        int[] next = new int[NUM_THREADS];
+        for (String line : outStream.toString().split(System.lineSeparator())) {
+            String[] parts = line.substring(1).split(" ");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals("Out of order entry: " + line, next[producer]++, Integer.parseInt(parts[1]));
+        }
+        for (int count : next)
+            assertEquals(ENTRIES_PER_THREAD, count);
+    }
+
+    /**
+     * Ensure replacing an asynchronous appender writes its entries and stops its thread
+     */
+    @Test
+    public void testReplacedAppenderIsStopped() {
+        AsyncLogAppender appender = new AsyncLogAppender();
+        Logger.setAppender(appender);
+        appender.append("buffered");
+
+        Logger.setAppender(new ConsoleAppender());
+        assertFalse(appender.isRunning());
+        assertEquals("buffered" + System.lineSeparator(), outStream.toString());
+
+        // Entries of threads that still use the replaced appender are not lost
+        appender.append("late");
+        assertEquals("buffered" + System.lineSeparator() + "late" + System.lineSeparator(), outStream.toString());
+    }
+
+    /**
+     * Ensure the entries appended while the appender is stopped are all written
+     */
+    @Test
+    public void testStopWhileAppending() throws InterruptedException {
+        AsyncLogAppender appender = new AsyncLogAppender();
+        List<Thread> producers = new ArrayList<>();
+
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int producerId = t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < ENTRIES_PER_THREAD; i++)
+                    appender.append("P" + producerId + " " + i);
+            }));
+        }
+
+        producers.forEach(Thread::start);
+        appender.stop();
+        for (Thread producer : producers)
+            producer.join();
+
+        assertEquals(NUM_THREADS * ENTRIES_PER_THREAD, outStream.toString().split(System.lineSeparator()).length);
+    }
+
+    /**
+     * Ensure flush waits for previously appended entries
+     */
+    @Test
+    public void testFlush() {
+        AsyncLogAppender appender = new AsyncLogAppender();
+        appender.append("first");
+        appender.append("second");
+        appender.flush();
+
+        assertEquals("first" + System.lineSeparator() + "second" + System.lineSeparator(), outStream.toString());
+        appender.stop();
+    }
+
+    /**
+     * Ensure disabled levels never build the log text
+     */
+    @Test
+    public void testLazyMessageNotBuiltWhenDisabled() {
+        Logger.LogLevel previous = Logger.getLogLevel();
+        Logger.setLogLevel(Logger.LogLevel.QUIET);
+
+        Logger logger = new Logger("Test");
+        logger.logVerbose(() -> {
+            throw new AssertionError("Verbose text should not be built in QUIET mode");
+        });
+
+        Logger.setLogLevel(previous);
+    }
+}
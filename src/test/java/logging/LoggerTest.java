@@ -0,0 +1,62 @@
+package logging;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerTest {
+
+    @After
+    public void tearDown() {
+        Logger.setLogLevel(Logger.LogLevel.QUIET);
+        Logger.clearComponentLogLevels();
+        Logger.setThreadLogLevel(null);
+    }
+
+    /**
+     * Ensure component levels override the global level and apply to child components
+     */
+    @Test
+    public void testComponentLevels() {
+        Logger.setLogLevel(Logger.LogLevel.QUIET);
+        Logger session = new Logger("TransmitSession");
+        Logger worker = new Logger("ServerWorker-12");
+        Logger socket = new Logger("TFTPDatagramSocket");
+
+        assertFalse(session.isVerbose());
+
+        Logger.setLogLevel("TransmitSession", Logger.LogLevel.VERBOSE);
+        Logger.setLogLevel("ServerWorker", Logger.LogLevel.VERBOSE);
+
+        assertTrue(session.isVerbose());
+        assertTrue(worker.isVerbose());
+        assertFalse(socket.isVerbose());
+
+        Logger.clearComponentLogLevels();
+        assertFalse(session.isVerbose());
+        assertFalse(worker.isVerbose());
+    }
+
+    /**
+     * Ensure the thread level only applies to the calling thread
+     */
+    @Test
+    public void testThreadLevel() throws InterruptedException {
+        Logger logger = new Logger("ReadState");
+        Logger.setThreadLogLevel(Logger.LogLevel.VERBOSE);
+        assertTrue(logger.isVerbose());
+
+        boolean[] otherThreadVerbose = new boolean[1];
+        Thread other = new Thread(() -> otherThreadVerbose[0] = logger.isVerbose());
+        other.start();
+        other.join();
+        assertFalse(otherThreadVerbose[0]);
+
+        Logger.setThreadLogLevel(null);
+        assertFalse(logger.isVerbose());
+        assertEquals(Logger.LogLevel.QUIET, logger.getEffectiveLevel());
+    }
+}
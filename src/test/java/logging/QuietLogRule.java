@@ -0,0 +1,29 @@
+package logging;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * Keeps log entries out of the test output: discards them during a test, and restores the previous appender after it
+ */
+public class QuietLogRule extends ExternalResource {
+    private LogAppender previousAppender;
+
+    @Override
+    protected void before() {
+        previousAppender = Logger.getAppender();
+        Logger.setAppender(new LogAppender() {
+            @Override
+            public void append(String entry) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+    }
+
+    @Override
+    protected void after() {
+        Logger.setAppender(previousAppender);
+    }
+}
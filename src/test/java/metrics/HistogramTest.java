@@ -0,0 +1,69 @@
+package metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    /**
+     * Ensure small values are counted exactly
+     */
+    @Test
+    public void testExactValues() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 50; i++)
+            histogram.record(i);
+
+        assertEquals(50, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(50, histogram.getMax());
+        assertEquals(25.5, histogram.getMean(), 0.0001);
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(50, histogram.getValueAtPercentile(100));
+    }
+
+    /**
+     * Ensure large values are reported within the precision of the histogram
+     */
+    @Test
+    public void testPrecision() {
+        long[] values = {100, 1000, 12345, 1000000, 987654321L, Long.MAX_VALUE / 3};
+
+        for (long value : values) {
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            histogram.record(value * 2 > 0 ? value * 2 : Long.MAX_VALUE);
+
+            long reported = histogram.getValueAtPercentile(50);
+            assertTrue("Value: " + value + " Reported: " + reported, reported >= value);
+            assertTrue("Value: " + value + " Reported: " + reported, reported <= value + value / 32);
+        }
+    }
+
+    /**
+     * Ensure bucket indexes are contiguous and increasing
+     */
+    @Test
+    public void testBucketIndexes() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = Histogram.indexOf(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(Histogram.highestValueAt(index) >= value);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testReset() {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
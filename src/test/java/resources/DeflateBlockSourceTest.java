@@ -0,0 +1,139 @@
+package resources;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.InflaterInputStream;
+
+public class DeflateBlockSourceTest {
+    private static final int BLOCK_SIZE = 64;
+
+    private static byte[] text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            text.append("option ").append(i % 7).append(" = enabled\n");
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Joins the blocks of a source
+     */
+    private static byte[] join(BlockSource source) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+
+        for (long i = 0; i < source.getBlockCount(); i++) {
+            ByteBuffer block = source.getBlock(i);
+            Assert.assertTrue(block.remaining() <= BLOCK_SIZE);
+            joined.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+        }
+
+        return joined.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            for (int read; (read = in.read(buffer)) > 0; )
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Ensure the blocks are a zlib stream of the file, which ends with a short block
+     */
+    @Test
+    public void testCompressedBlocks() throws IOException {
+        for (byte[] file : new byte[][] {new byte[0], text(1), text(500)}) {
+            DeflateBlockSource source = new DeflateBlockSource(new ByteArrayBlockSource(file, 7), BLOCK_SIZE, 1, 6);
+            byte[] compressed = join(source);
+
+            Assert.assertEquals(compressed.length / BLOCK_SIZE + 1, source.getBlockCount());
+            Assert.assertArrayEquals(file, inflate(compressed));
+            source.close();
+        }
+    }
+
+    /**
+     * Ensure the retained blocks can be requested again (retransmissions), and older blocks cannot
+     */
+    @Test
+    public void testRetainedBlocks() throws IOException {
+        byte[] file = new byte[2000];
+        new Random(46).nextBytes(file);
+        DeflateBlockSource source = new DeflateBlockSource(new ByteArrayBlockSource(file, BLOCK_SIZE), BLOCK_SIZE, 4, 6);
+        byte[] block3 = copy(source.getBlock(3));
+        source.getBlock(6);
+
+        Assert.assertArrayEquals(block3, copy(source.getBlock(3)));
+
+        try {
+            source.getBlock(2);
+            Assert.fail("Block 2 is no longer retained");
+        } catch (IOException ioE) {
+            // Expected
+        }
+
+        source.close();
+    }
+
+    private static byte[] copy(ByteBuffer block) {
+        byte[] copy = new byte[block.remaining()];
+        block.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Ensure text compresses well, and random bytes do not
+     */
+    @Test
+    public void testEstimateRatio() throws IOException {
+        byte[] random = new byte[8192];
+        new Random(45).nextBytes(random);
+
+        Assert.assertTrue(DeflateBlockSource.estimateRatio(new ByteArrayBlockSource(text(500), BLOCK_SIZE), 4096, 6) > 5);
+        Assert.assertTrue(DeflateBlockSource.estimateRatio(new ByteArrayBlockSource(random, BLOCK_SIZE), 4096, 6) < 1.1);
+    }
+
+    /**
+     * Ensure the cache file replaces the sidecar once the stream is complete, and is removed if the stream is not.
+     * The sidecar records the file it was compressed from, and only matches that file.
+     */
+    @Test
+    public void testCache() throws IOException {
+        byte[] file = text(500);
+        MemoryResourceFile localFile = new MemoryResourceFile("notes.txt", file);
+        MemoryResourceFile sidecar = new MemoryResourceFile("notes.txt.deflate", null);
+
+        MemoryResourceFile cacheFile = new MemoryResourceFile("notes.txt.deflate.tmp", null);
+        DeflateBlockSource source = new DeflateBlockSource(new ByteArrayBlockSource(file, BLOCK_SIZE), BLOCK_SIZE, 1, 6)
+                .cacheTo(cacheFile, sidecar, localFile.length(), localFile.lastModified());
+        source.getBlock(0);
+        source.close();
+
+        Assert.assertFalse(cacheFile.exists());
+        Assert.assertFalse(sidecar.exists());
+
+        source = new DeflateBlockSource(new ByteArrayBlockSource(file, BLOCK_SIZE), BLOCK_SIZE, 1, 6)
+                .cacheTo(cacheFile, sidecar, localFile.length(), localFile.lastModified());
+        byte[] compressed = join(source);
+        source.close();
+
+        Assert.assertFalse(cacheFile.exists());
+        Assert.assertEquals(DeflateBlockSource.SIDECAR_HEADER_LENGTH + compressed.length, sidecar.length());
+        Assert.assertArrayEquals(compressed, sidecar.readBytesAt(DeflateBlockSource.SIDECAR_HEADER_LENGTH, compressed.length));
+        Assert.assertTrue(DeflateBlockSource.isSidecarOf(sidecar, localFile));
+
+        // A sidecar without a header, or of another version of the file, does not match
+        Assert.assertFalse(DeflateBlockSource.isSidecarOf(new MemoryResourceFile("notes.txt.deflate", new byte[4]), localFile));
+        localFile.writeBytesAt(0, file);
+        Assert.assertFalse(DeflateBlockSource.isSidecarOf(sidecar, localFile));
+    }
+}
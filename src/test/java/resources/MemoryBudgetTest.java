@@ -0,0 +1,69 @@
+package resources;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static resources.MemoryBudget.Subsystem.*;
+
+public class MemoryBudgetTest {
+
+    /**
+     * Ensure partial reservations are capped by the limit, and all-or-nothing reservations fail
+     */
+    @Test
+    public void testReserve() {
+        MemoryBudget budget = new MemoryBudget(1000);
+
+        Assert.assertEquals(600, budget.reserve(PREFETCH, 600));
+        Assert.assertFalse(budget.tryReserve(FILE_BUFFERS, 500));
+        Assert.assertTrue(budget.tryReserve(FILE_BUFFERS, 300));
+        Assert.assertEquals(100, budget.reserve(WRITE_BEHIND, 500));
+        Assert.assertEquals(0, budget.reserve(SESSIONS, 1));
+
+        Assert.assertEquals(1000, budget.getUsedBytes());
+        Assert.assertEquals(300, budget.getUsedBytes(FILE_BUFFERS));
+        Assert.assertEquals(Long.valueOf(600), budget.getUsage().get("PREFETCH"));
+        Assert.assertTrue(budget.isUnderPressure());
+
+        budget.release(PREFETCH, 600);
+        Assert.assertEquals(400, budget.getUsedBytes());
+        Assert.assertFalse(budget.isUnderPressure());
+    }
+
+    /**
+     * Ensure a subsystem limit applies on top of the global limit
+     */
+    @Test
+    public void testSubsystemLimit() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.setSubsystemLimit(PREFETCH, 200);
+
+        Assert.assertEquals(200, budget.reserve(PREFETCH, 500));
+        Assert.assertEquals(0, budget.reserve(PREFETCH, 1));
+        Assert.assertTrue(budget.tryReserve(SESSIONS, 800));
+    }
+
+    /**
+     * Ensure a waiting reservation succeeds once memory is released, and times out otherwise
+     */
+    @Test
+    public void testWaitingReserve() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100);
+        Assert.assertTrue(budget.tryReserve(SESSIONS, 100));
+        Assert.assertFalse(budget.reserve(SESSIONS, 50, 20));
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException iE) {
+                return;
+            }
+            budget.release(SESSIONS, 100);
+        });
+        releaser.start();
+
+        Assert.assertTrue(budget.reserve(SESSIONS, 50, 5000));
+        releaser.join();
+        Assert.assertEquals(50, budget.getUsedBytes(SESSIONS));
+    }
+}
@@ -0,0 +1,171 @@
+package resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * ResourceFile kept in memory (for simulated sessions and benchmarks)
+ */
+public class MemoryResourceFile extends ResourceFile {
+    // Modification times are a counter, so a later change is always newer
+    private static final AtomicLong MODIFICATIONS = new AtomicLong();
+    private ByteArrayOutputStream contents;
+    private long modified;
+
+    /**
+     * @param name     The file name
+     * @param contents The file contents, or null if the file does not exist
+     */
+    public MemoryResourceFile(String name, byte[] contents) {
+        super(Paths.get(System.getProperty("java.io.tmpdir"), name));
+
+        if (contents != null) {
+            this.contents = new ByteArrayOutputStream(contents.length);
+            this.contents.write(contents, 0, contents.length);
+            this.modified = MODIFICATIONS.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void writeBytesToFile(byte[] data, int offset, int length) throws IOException {
+        if (contents == null)
+            createNewFile();
+
+        contents.write(data, offset, length);
+        modified = MODIFICATIONS.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void writeBytesAt(long position, byte[] data) throws IOException {
+        if (contents == null)
+            createNewFile();
+
+        byte[] current = contents.toByteArray();
+        int length = Math.max(current.length, (int) position + data.length);
+        byte[] updated = Arrays.copyOf(current, length);
+        System.arraycopy(data, 0, updated, (int) position, data.length);
+
+        contents = new ByteArrayOutputStream(length);
+        contents.write(updated, 0, length);
+        modified = MODIFICATIONS.incrementAndGet();
+    }
+
+    @Override
+    public synchronized byte[] readBytesAt(long position, int length) throws IOException {
+        if (contents == null || position + length > contents.size())
+            throw new IOException("File does not exist or is too short");
+
+        return Arrays.copyOfRange(contents.toByteArray(), (int) position, (int) position + length);
+    }
+
+    @Override
+    public synchronized byte[] readFileToBytes() throws IOException {
+        if (contents == null)
+            throw new IOException("File does not exist");
+
+        return contents.toByteArray();
+    }
+
+    @Override
+    public synchronized long checksum(long length) throws IOException {
+        if (length > length())
+            throw new IOException("The file is shorter than " + length + " bytes");
+
+        CRC32 crc = new CRC32();
+        crc.update(contents.toByteArray(), 0, (int) length);
+        return crc.getValue();
+    }
+
+    @Override
+    public synchronized void truncate(long length) {
+        byte[] current = contents == null ? new byte[0] : contents.toByteArray();
+        contents = new ByteArrayOutputStream((int) length);
+        contents.write(Arrays.copyOf(current, (int) length), 0, (int) length);
+        modified = MODIFICATIONS.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void moveTo(ResourceFile target) {
+        ((MemoryResourceFile) target).contents = contents;
+        ((MemoryResourceFile) target).modified = modified;
+        contents = null;
+    }
+
+    @Override
+    public synchronized boolean createNewFile() {
+        if (contents != null)
+            return false;
+
+        contents = new ByteArrayOutputStream();
+        modified = MODIFICATIONS.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public synchronized OutputStream openOutputStream() {
+        contents = new ByteArrayOutputStream();
+        modified = MODIFICATIONS.incrementAndGet();
+
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (MemoryResourceFile.this) {
+                    contents.write(b, off, len);
+                    modified = MODIFICATIONS.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized long lastModified() {
+        return contents == null ? 0 : modified;
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        return contents != null;
+    }
+
+    @Override
+    public boolean isFile() {
+        return exists();
+    }
+
+    @Override
+    public boolean canRead() {
+        return true;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return true;
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized long length() {
+        return contents == null ? 0 : contents.size();
+    }
+
+    @Override
+    public synchronized boolean delete() {
+        boolean existed = contents != null;
+        contents = null;
+        return existed;
+    }
+}
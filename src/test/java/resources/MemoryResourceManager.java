@@ -0,0 +1,53 @@
+package resources;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ResourceManager of MemoryResourceFiles (for simulated sessions and benchmarks)
+ */
+public class MemoryResourceManager extends ResourceManager {
+    private final Map<String, MemoryResourceFile> files;
+    private final Map<String, MemoryResourceFile> compressedFiles;
+
+    public MemoryResourceManager() throws IOException {
+        // The directory is never used, use one that exists in the project
+        super("client");
+        this.files = new HashMap<>();
+        this.compressedFiles = new HashMap<>();
+    }
+
+    /**
+     * Adds a file
+     * @param fileName The file name
+     * @param contents The file contents
+     * @return The created file
+     */
+    public synchronized MemoryResourceFile addFile(String fileName, byte[] contents) {
+        MemoryResourceFile file = new MemoryResourceFile(fileName, contents);
+        files.put(fileName, file);
+        return file;
+    }
+
+    @Override
+    public synchronized boolean isValidResource(String fileName) {
+        return true;
+    }
+
+    @Override
+    public synchronized MemoryResourceFile getFile(String fileName) {
+        return files.computeIfAbsent(fileName, name -> new MemoryResourceFile(name, null));
+    }
+
+    @Override
+    public synchronized MemoryResourceFile getCompressedFile(String fileName) {
+        // Sidecars are kept apart from the files, like the cache directory of the ResourceManager
+        return compressedFiles.computeIfAbsent(fileName + ".deflate", name -> new MemoryResourceFile(name, null));
+    }
+
+    @Override
+    public synchronized MemoryResourceFile getCompressedCacheFile(String fileName) {
+        return compressedFiles.computeIfAbsent(fileName + ".deflate.tmp", name -> new MemoryResourceFile(name, null));
+    }
+}
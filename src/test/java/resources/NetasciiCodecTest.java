@@ -0,0 +1,138 @@
+package resources;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class NetasciiCodecTest {
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes a file into blocks of the given size, and joins the blocks
+     */
+    private static byte[] encode(byte[] local, int blockSize) throws IOException {
+        ByteArrayBlockSource source = new ByteArrayBlockSource(local, 7);
+        NetasciiBlockSource netascii = new NetasciiBlockSource(source, blockSize, 1);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+        for (long i = 0; i < netascii.getBlockCount(); i++) {
+            ByteBuffer block = netascii.getBlock(i);
+            Assert.assertTrue(block.remaining() <= blockSize);
+            encoded.write(block.array(), block.arrayOffset(), block.remaining());
+        }
+
+        return encoded.toByteArray();
+    }
+
+    private static byte[] decode(byte[] netascii, int blockSize) {
+        NetasciiDecoder decoder = new NetasciiDecoder();
+        ByteBuffer local = ByteBuffer.allocate(netascii.length + 1);
+
+        for (int offset = 0; offset <= netascii.length; offset += blockSize) {
+            decoder.decode(ByteBuffer.wrap(netascii, offset, Math.min(blockSize, netascii.length - offset)), local);
+        }
+
+        decoder.finish(local);
+        local.flip();
+        byte[] decoded = new byte[local.remaining()];
+        local.get(decoded);
+        return decoded;
+    }
+
+    /**
+     * Ensure line feeds are sent as CR LF, and carriage returns as CR NUL
+     */
+    @Test
+    public void testEncode() throws IOException {
+        Assert.assertArrayEquals(bytes("a\r\nb\r\0c\r\0\r\n"), encode(bytes("a\nb\rc\r\n"), 512));
+        Assert.assertArrayEquals(bytes(""), encode(bytes(""), 512));
+        Assert.assertArrayEquals(bytes("\r\n\r\n"), encode(bytes("\n\n"), 512));
+    }
+
+    /**
+     * Ensure CR LF and CR NUL are translated back, and other bytes after a CR are kept
+     */
+    @Test
+    public void testDecode() {
+        Assert.assertArrayEquals(bytes("a\nb\rc\r\n"), decode(bytes("a\r\nb\r\0c\r\0\r\n"), 512));
+        Assert.assertArrayEquals(bytes("a\rb\r"), decode(bytes("a\rb\r"), 512));
+    }
+
+    /**
+     * Ensure pairs that span two blocks are translated, in both directions
+     */
+    @Test
+    public void testPairsAcrossBlocks() throws IOException {
+        // The CR of the pair is the last byte of the first block
+        byte[] encoded = encode(bytes("abc\ndef\rg"), 4);
+        Assert.assertArrayEquals(bytes("abc\r\ndef\r\0g"), encoded);
+        Assert.assertArrayEquals(bytes("abc\ndef\rg"), decode(encoded, 4));
+
+        // A full final block is followed by an empty block, also when it ends with a pair
+        Assert.assertArrayEquals(bytes("abc\r\n"), encode(bytes("abc\n"), 5));
+        Assert.assertEquals(2, countBlocks(bytes("abc\n"), 5));
+    }
+
+    private static long countBlocks(byte[] local, int blockSize) throws IOException {
+        NetasciiBlockSource netascii = new NetasciiBlockSource(new ByteArrayBlockSource(local, blockSize), blockSize, 1);
+        long count = 0;
+        while (count < netascii.getBlockCount())
+            netascii.getBlock(count++);
+        return count;
+    }
+
+    /**
+     * Ensure any file is restored by decoding its blocks, for all block sizes
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(764);
+        byte[] file = new byte[2000];
+
+        // Mostly line ends, so pairs fall on every position of a block
+        for (int i = 0; i < file.length; i++) {
+            int r = random.nextInt(4);
+            file[i] = r == 0 ? (byte) '\r' : r == 1 ? (byte) '\n' : (byte) random.nextInt(256);
+        }
+
+        for (int blockSize = 1; blockSize <= 17; blockSize++) {
+            byte[] encoded = encode(file, blockSize);
+            Assert.assertArrayEquals("Block size " + blockSize, file, decode(encoded, blockSize));
+        }
+    }
+
+    /**
+     * Ensure the blocks of the window can be requested again, and older blocks cannot
+     */
+    @Test
+    public void testRetainedBlocks() throws IOException {
+        NetasciiBlockSource netascii = new NetasciiBlockSource(new ByteArrayBlockSource(bytes("\n\n\n\n\n\n\n\n"), 8), 4, 2);
+
+        ByteBuffer first = netascii.getBlock(0);
+        ByteBuffer second = netascii.getBlock(1);
+        Assert.assertEquals(Long.MAX_VALUE, netascii.getBlockCount());
+        Assert.assertEquals(first, netascii.getBlock(0));
+        Assert.assertEquals(second, netascii.getBlock(1));
+
+        netascii.getBlock(2);
+        try {
+            netascii.getBlock(0);
+            Assert.fail("Expected the first block to be released");
+        } catch (IOException ioE) {
+            // Expected
+        }
+
+        // 16 bytes of CR LF pairs: 4 full blocks and an empty final block
+        netascii.getBlock(3);
+        Assert.assertEquals(0, netascii.getBlock(4).remaining());
+        Assert.assertEquals(5, netascii.getBlockCount());
+    }
+}
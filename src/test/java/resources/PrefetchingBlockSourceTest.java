@@ -0,0 +1,133 @@
+package resources;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PrefetchingBlockSourceTest {
+    private static final int BLOCK_SIZE = 512;
+
+    private Path file;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        // Not a multiple of the block size
+        contents = new byte[BLOCK_SIZE * 100 + 17];
+        new Random(1).nextBytes(contents);
+        file = Files.createTempFile("prefetch", ".bin");
+        Files.write(file, contents);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private void assertBlocks(BlockSource source, byte[] expected) throws IOException {
+        Assert.assertEquals(expected.length / BLOCK_SIZE + 1, source.getBlockCount());
+
+        for (long i = 0; i < source.getBlockCount(); i++) {
+            ByteBuffer block = source.getBlock(i);
+            int offset = (int) i * BLOCK_SIZE;
+            Assert.assertEquals(Math.min(BLOCK_SIZE, expected.length - offset), block.remaining());
+
+            for (int b = 0; b < block.remaining(); b++)
+                Assert.assertEquals(expected[offset + b], block.get(b));
+
+            // Retransmissions request the current block again
+            Assert.assertEquals(block, source.getBlock(i));
+        }
+    }
+
+    /**
+     * Ensure all blocks are streamed in order, and the budget is returned when the source is closed
+     */
+    @Test
+    public void testStreamsAllBlocks() throws IOException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(1, 1024 * 1024);
+        PrefetchingBlockSource source = new PrefetchingBlockSource(file, BLOCK_SIZE, prefetcher, 16);
+
+        assertBlocks(source, contents);
+        Assert.assertEquals(source.getBlockCount(), source.getHitCount() + source.getMissCount());
+        Assert.assertTrue(prefetcher.getReservedBytes() > 0);
+
+        source.close();
+        Assert.assertEquals(0, prefetcher.getReservedBytes());
+    }
+
+    /**
+     * Ensure a source with a start offset (a resumed transfer) streams the blocks after the offset, and a
+     * source with a length (a range of the file) stops at the end of the range
+     */
+    @Test
+    public void testStartOffset() throws IOException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(1, 1024 * 1024);
+        int offset = BLOCK_SIZE * 40 + 123;
+        PrefetchingBlockSource source = new PrefetchingBlockSource(file, BLOCK_SIZE, prefetcher, 16, 1, offset, Long.MAX_VALUE);
+        assertBlocks(source, Arrays.copyOfRange(contents, offset, contents.length));
+        source.close();
+
+        source = new PrefetchingBlockSource(file, BLOCK_SIZE, prefetcher, 16, 1, BLOCK_SIZE * 20, BLOCK_SIZE * 30);
+        assertBlocks(source, Arrays.copyOfRange(contents, BLOCK_SIZE * 20, BLOCK_SIZE * 50));
+        source.close();
+    }
+
+    /**
+     * Ensure blocks are still read (synchronously) when the budget does not allow any read-ahead
+     */
+    @Test
+    public void testNoBudget() throws IOException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(1, 0);
+        PrefetchingBlockSource source = new PrefetchingBlockSource(file, BLOCK_SIZE, prefetcher, 16);
+
+        assertBlocks(source, contents);
+        Assert.assertEquals(0, source.getReservedBlocks());
+        Assert.assertEquals(source.getBlockCount(), source.getMissCount());
+        source.close();
+    }
+
+    /**
+     * Ensure sessions share the budget: the window of a source is limited to what it could reserve
+     */
+    @Test
+    public void testSharedBudget() throws IOException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(1, BLOCK_SIZE * 3);
+        PrefetchingBlockSource first = new PrefetchingBlockSource(file, BLOCK_SIZE, prefetcher, 16);
+        PrefetchingBlockSource second = new PrefetchingBlockSource(file, BLOCK_SIZE, prefetcher, 16);
+
+        Assert.assertEquals(2, first.getReservedBlocks());
+        Assert.assertEquals(1, second.getReservedBlocks());
+        Assert.assertEquals(BLOCK_SIZE * 3, prefetcher.getReservedBytes());
+
+        assertBlocks(second, contents);
+        first.close();
+        second.close();
+        Assert.assertEquals(0, prefetcher.getReservedBytes());
+    }
+
+    /**
+     * Ensure a file that is a multiple of the block size ends with an empty block
+     */
+    @Test
+    public void testEmptyFinalBlock() throws IOException {
+        byte[] exact = new byte[BLOCK_SIZE * 4];
+        new Random(2).nextBytes(exact);
+        Files.write(file, exact);
+
+        PrefetchingBlockSource source = new PrefetchingBlockSource(file, BLOCK_SIZE, new BlockPrefetcher(1, 1024 * 1024), 4);
+        assertBlocks(source, exact);
+        Assert.assertEquals(0, source.getBlock(4).remaining());
+        source.close();
+
+        assertBlocks(new ByteArrayBlockSource(exact), exact);
+    }
+}
@@ -0,0 +1,68 @@
+package resources;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class ResourceFileTest {
+    private Path path;
+    private ResourceFile file;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("resourcefile", ".bin");
+        file = new ResourceFile(path);
+        contents = new byte[100000];
+        new Random(5).nextBytes(contents);
+        Files.write(path, contents);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private static long crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Ensure the checksum of a prefix is cached, and computed again once the file changed
+     */
+    @Test
+    public void testChecksumCache() throws IOException {
+        Assert.assertEquals(crc(contents, 60000), file.checksum(60000));
+        Assert.assertEquals(crc(contents, 60000), file.checksum(60000));
+
+        // Same length, other contents and modification time
+        contents[10] ^= 1;
+        Files.write(path, contents);
+        Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+        Assert.assertEquals(crc(contents, 60000), file.checksum(60000));
+
+        // Other length, same modification time
+        long lastModified = file.lastModified();
+        contents[20] ^= 1;
+        Files.write(path, Arrays.copyOf(contents, 80000));
+        Assert.assertTrue(file.setLastModified(lastModified));
+        Assert.assertEquals(crc(contents, 60000), file.checksum(60000));
+
+        try {
+            file.checksum(90000);
+            Assert.fail("Expected a file shorter than the prefix");
+        } catch (IOException ioE) {
+            // Expected
+        }
+    }
+}
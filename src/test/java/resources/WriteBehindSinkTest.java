@@ -0,0 +1,126 @@
+package resources;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindSinkTest {
+    private static final int BLOCK_SIZE = 512;
+
+    private Path path;
+    private ResourceFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("writebehind", ".bin");
+        Files.delete(path);
+        file = new ResourceFile(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Ensure blocks are written in order, and the buffer never holds more than its capacity
+     */
+    @Test
+    public void testWritesInOrder() throws IOException {
+        WriteBehindSink sink = new WriteBehindSink(file, BLOCK_SIZE * 4);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Random random = new Random(3);
+
+        for (int i = 0; i < 200; i++) {
+            byte[] block = new byte[i == 199 ? 100 : BLOCK_SIZE];
+            random.nextBytes(block);
+            expected.write(block);
+
+            if (!sink.write(ByteBuffer.wrap(block), i == 199))
+                sink.awaitRelease();
+            Assert.assertTrue(sink.getBufferedBytes() <= BLOCK_SIZE * 4);
+        }
+
+        Assert.assertEquals(0, sink.getBufferedBytes());
+        Assert.assertEquals(0, sink.getBufferedBytes());
+        Assert.assertArrayEquals(expected.toByteArray(), Files.readAllBytes(path));
+        sink.close();
+    }
+
+    /**
+     * Ensure a write never waits for the disk: a full buffer (or the final block) holds the ACK back, and the
+     * listener is called once the blocks are written
+     */
+    @Test
+    public void testHoldWithoutWaiting() throws Exception {
+        CountDownLatch disk = new CountDownLatch(1);
+        ResourceFile slowFile = new ResourceFile(path) {
+            @Override
+            public long getUsableSpace() {
+                // The I/O thread waits for the disk before each block
+                try {
+                    disk.await();
+                } catch (InterruptedException iE) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getUsableSpace();
+            }
+        };
+
+        Semaphore released = new Semaphore(0);
+        WriteBehindSink sink = new WriteBehindSink(slowFile, BLOCK_SIZE * 2);
+        sink.setListener(released::release);
+
+        Assert.assertTrue(sink.write(ByteBuffer.wrap(new byte[BLOCK_SIZE]), false));
+        Assert.assertFalse(sink.write(ByteBuffer.wrap(new byte[BLOCK_SIZE]), false));
+        Assert.assertTrue(sink.isHolding());
+        Assert.assertFalse(released.tryAcquire(50, TimeUnit.MILLISECONDS));
+
+        disk.countDown();
+        Assert.assertTrue(released.tryAcquire(5, TimeUnit.SECONDS));
+        Assert.assertFalse(sink.isHolding());
+
+        // The final block is acknowledged once it is written
+        if (!sink.write(ByteBuffer.wrap(new byte[100]), true))
+            Assert.assertTrue(released.tryAcquire(5, TimeUnit.SECONDS));
+        Assert.assertFalse(sink.isHolding());
+        Assert.assertEquals(BLOCK_SIZE * 2 + 100, Files.size(path));
+        sink.close();
+    }
+
+    /**
+     * Ensure an empty final block still creates the file
+     */
+    @Test
+    public void testEmptyFile() throws IOException {
+        WriteBehindSink sink = new WriteBehindSink(file, BLOCK_SIZE);
+        if (!sink.write(ByteBuffer.allocate(0), true))
+            sink.awaitRelease();
+        sink.close();
+
+        Assert.assertTrue(Files.exists(path));
+        Assert.assertEquals(0, Files.size(path));
+    }
+
+    /**
+     * Ensure writes fail once the buffer is closed
+     */
+    @Test(expected = IOException.class)
+    public void testWriteAfterAbort() throws IOException {
+        WriteBehindSink sink = new WriteBehindSink(file, BLOCK_SIZE);
+        sink.write(ByteBuffer.allocate(BLOCK_SIZE), false);
+        sink.abort();
+        sink.write(ByteBuffer.allocate(BLOCK_SIZE), false);
+    }
+}
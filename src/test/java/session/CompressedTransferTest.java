@@ -0,0 +1,208 @@
+package session;
+
+import formats.CompressOption;
+import formats.DataMessage;
+import formats.Message.MessageType;
+import formats.OptionAckMessage;
+import formats.RequestMessage;
+import formats.RequestMessage.MessageMode;
+import formats.TransferOptions;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.DeflateBlockSource;
+import resources.MemoryResourceManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class CompressedTransferTest {
+    private static final String FILENAME = "server.conf";
+    private static final int BLOCK_SIZE = 512;
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+    }
+
+    private static byte[] text(int lines, String value) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            text.append("interface eth").append(i % 4).append(" mtu ").append(value).append("\n");
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static RequestMessage request(MessageType type, MessageMode mode) {
+        return new RequestMessage(type, FILENAME, mode,
+                CompressOption.getRequestOptions(new TransferOptions(BLOCK_SIZE, TransferOptions.DEFAULT_ROLLOVER).toRequestOptions()));
+    }
+
+    private static <T extends TFTPSession> T compressing(T session) {
+        session.setCompressionEnabled(true);
+        return session;
+    }
+
+    /**
+     * Runs a read of the server file into a new client file, and returns the number of DATA packets that were sent
+     * @param compressed True if the server should acknowledge the compress option
+     */
+    private long read(MessageMode mode, boolean compressed) throws Exception {
+        clientFiles.getFile(FILENAME).delete();
+        AtomicLong packets = new AtomicLong();
+        AtomicReference<OptionAckMessage> optionAck = new AtomicReference<>();
+
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(compressing(new ReceiveSession(new SimulatedSessionHandler(clientFiles))),
+                compressing(new TransmitSession(new SimulatedSessionHandler(serverFiles))));
+        driver.setFilter((message, destination) -> {
+            if (message instanceof DataMessage)
+                packets.incrementAndGet();
+            if (message instanceof OptionAckMessage)
+                optionAck.set((OptionAckMessage) message);
+            return false;
+        });
+
+        Assert.assertTrue(driver.run(request(MessageType.RRQ, mode)));
+        // (no OACK at all without any accepted option)
+        Assert.assertEquals(compressed, optionAck.get() != null && optionAck.get().getOption(CompressOption.NAME) != null);
+        return packets.get();
+    }
+
+    /**
+     * Ensure a text file is read in fewer packets, and the client decompresses it
+     */
+    @Test
+    public void testCompressedRead() throws Exception {
+        byte[] file = text(2000, "9000");
+        serverFiles.addFile(FILENAME, file);
+
+        long packets = read(MessageMode.OCTET, true);
+
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertTrue("Sent " + packets + " packets", packets * 5 < file.length / BLOCK_SIZE);
+    }
+
+    /**
+     * Ensure the compressed stream of a read is cached in a sidecar, which is sent to the next reads until the
+     * file changes
+     */
+    @Test
+    public void testSidecar() throws Exception {
+        byte[] file = text(2000, "9000");
+        serverFiles.addFile(FILENAME, file);
+
+        long packets = read(MessageMode.OCTET, true);
+        byte[] sidecar = serverFiles.getCompressedFile(FILENAME).readFileToBytes();
+        Assert.assertEquals((sidecar.length - DeflateBlockSource.SIDECAR_HEADER_LENGTH) / BLOCK_SIZE + 1, packets);
+
+        // The sidecar is sent: an uncompressed (level 0) sidecar shows the file is not compressed again
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        stored.write(sidecar, 0, DeflateBlockSource.SIDECAR_HEADER_LENGTH);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(stored, new Deflater(Deflater.NO_COMPRESSION))) {
+            out.write(file);
+        }
+        try (OutputStream out = serverFiles.getCompressedFile(FILENAME).openOutputStream()) {
+            stored.writeTo(out);
+        }
+
+        Assert.assertEquals((stored.size() - DeflateBlockSource.SIDECAR_HEADER_LENGTH) / BLOCK_SIZE + 1, read(MessageMode.OCTET, true));
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+
+        // A changed file is compressed again
+        byte[] changed = text(2000, "1500");
+        serverFiles.getFile(FILENAME).writeBytesAt(0, changed);
+        read(MessageMode.OCTET, true);
+        Assert.assertArrayEquals(changed, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertFalse(serverFiles.getCompressedCacheFile(FILENAME).exists());
+    }
+
+    /**
+     * Ensure a resource named like a sidecar is never sent as the compressed stream of the file
+     */
+    @Test
+    public void testSidecarName() throws Exception {
+        byte[] file = text(2000, "9000");
+        serverFiles.addFile(FILENAME, file);
+        serverFiles.addFile(FILENAME + ".deflate", text(2000, "1500"));
+
+        read(MessageMode.OCTET, true);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertTrue(DeflateBlockSource.isSidecarOf(serverFiles.getCompressedFile(FILENAME), serverFiles.getFile(FILENAME)));
+    }
+
+    /**
+     * Ensure a file that does not compress well is sent as is
+     */
+    @Test
+    public void testIncompressibleRead() throws Exception {
+        byte[] file = new byte[20000];
+        new Random(45).nextBytes(file);
+        serverFiles.addFile(FILENAME, file);
+
+        Assert.assertEquals(file.length / BLOCK_SIZE + 1, read(MessageMode.OCTET, false));
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertFalse(serverFiles.getCompressedFile(FILENAME).exists());
+    }
+
+    /**
+     * Ensure a netascii read compresses the translated file, and the client decompresses and translates it back
+     */
+    @Test
+    public void testCompressedNetasciiRead() throws Exception {
+        byte[] file = text(2000, "9000\r");
+        serverFiles.addFile(FILENAME, file);
+
+        read(MessageMode.NET_ASCII, true);
+
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertFalse(serverFiles.getCompressedFile(FILENAME).exists());
+    }
+
+    /**
+     * Ensure a server without COMPRESSION sends the file as is
+     */
+    @Test
+    public void testCompressionDisabled() throws Exception {
+        byte[] file = text(200, "9000");
+        serverFiles.addFile(FILENAME, file);
+
+        TransmitSession server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(compressing(new ReceiveSession(new SimulatedSessionHandler(clientFiles))), server);
+        Assert.assertTrue(driver.run(request(MessageType.RRQ, MessageMode.OCTET)));
+
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertEquals(file.length, server.getBytesTransferred());
+    }
+
+    /**
+     * Ensure a write of a compressible file is sent compressed, and the server decompresses it
+     */
+    @Test
+    public void testCompressedWrite() throws Exception {
+        byte[] file = text(2000, "9000");
+        clientFiles.addFile(FILENAME, file);
+        Assert.assertTrue(TransmitSession.isCompressible(clientFiles.getFile(FILENAME), BLOCK_SIZE));
+
+        TransmitSession client = compressing(new TransmitSession(new SimulatedSessionHandler(clientFiles)));
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(client, compressing(new ReceiveSession(new SimulatedSessionHandler(serverFiles))));
+        Assert.assertTrue(driver.run(request(MessageType.WRQ, MessageMode.OCTET)));
+
+        Assert.assertArrayEquals(file, serverFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertTrue(client.getBytesTransferred() * 5 < file.length);
+        Assert.assertFalse(clientFiles.getCompressedFile(FILENAME).exists());
+    }
+}
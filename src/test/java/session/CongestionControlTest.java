@@ -0,0 +1,117 @@
+package session;
+
+import formats.DataMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class CongestionControlTest {
+    private static final String FILENAME = "file.bin";
+    private static final int MAX_WINDOW = 32;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    /**
+     * Ensure AIMD doubles the window per window in slow start, then grows by one block per window,
+     * halves on a gap and restarts from 1 on a timeout
+     */
+    @Test
+    public void testAimd() {
+        AimdController controller = new AimdController(MAX_WINDOW);
+        Assert.assertEquals(1, controller.getWindow());
+
+        // Slow start up to the maximum
+        for (int i = 0; i < 10; i++)
+            controller.onAck(controller.getWindow(), MS, 0);
+        Assert.assertEquals(MAX_WINDOW, controller.getWindow());
+
+        controller.onLoss(0);
+        Assert.assertEquals(MAX_WINDOW / 2, controller.getWindow());
+
+        // Congestion avoidance: about one block per window of ACKs
+        controller.onAck(MAX_WINDOW, MS, 0);
+        Assert.assertEquals(MAX_WINDOW / 2 + 1, controller.getWindow());
+
+        controller.onTimeout(0);
+        Assert.assertEquals(1, controller.getWindow());
+
+        // Slow start stops at half of the window of the timeout
+        for (int i = 0; i < 10; i++)
+            controller.onAck(controller.getWindow(), MS, 0);
+        Assert.assertTrue(controller.getWindow() < MAX_WINDOW);
+    }
+
+    /**
+     * Ensure CUBIC cuts the window by 30%, grows back to the window of the loss after K seconds, and
+     * probes beyond it
+     */
+    @Test
+    public void testCubic() {
+        long rtt = 100 * MS;
+        CubicController controller = new CubicController(10_000);
+        for (int i = 0; i < 10; i++)
+            controller.onAck(controller.getWindow(), rtt, 0);
+        Assert.assertEquals(1024, controller.getWindow());
+
+        long lossTime = TimeUnit.SECONDS.toNanos(1);
+        controller.onLoss(lossTime);
+        Assert.assertEquals(716, controller.getWindow());
+
+        // K = cbrt(1024 * 0.3 / 0.4) = 9.16s, the window is back near 1024 (the plateau)
+        long now = lossTime;
+        while (now - lossTime < TimeUnit.MILLISECONDS.toNanos(9160) - rtt) {
+            controller.onAck(controller.getWindow(), rtt, now);
+            now += rtt;
+        }
+        Assert.assertEquals(1024, controller.getWindow(), 10);
+
+        // Then grows beyond it
+        while (now - lossTime < TimeUnit.SECONDS.toNanos(15)) {
+            controller.onAck(controller.getWindow(), rtt, now);
+            now += rtt;
+        }
+        Assert.assertTrue(controller.getWindow() > 1100);
+
+        controller.onTimeout(now);
+        Assert.assertEquals(1, controller.getWindow());
+    }
+
+    /**
+     * Ensure transfers complete with every policy under loss, and the window of a clean transfer opens
+     */
+    @Test
+    public void testTransfersWithPolicies() throws Exception {
+        byte[] file = new byte[DataMessage.MAX_BLOCK_SIZE * 300 + 11];
+        new Random(1).nextBytes(file);
+
+        for (String policy : new String[]{CongestionController.FIXED, CongestionController.AIMD, CongestionController.CUBIC}) {
+            for (int lossPercent : new int[]{0, 10}) {
+                MemoryResourceManager clientFiles = new MemoryResourceManager();
+                MemoryResourceManager serverFiles = new MemoryResourceManager();
+                serverFiles.addFile(FILENAME, file);
+
+                TransmitSession server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+                server.setCongestionController(CongestionController.create(policy, MAX_WINDOW));
+
+                Random random = new Random(lossPercent);
+                LoopbackSessionDriver driver = new LoopbackSessionDriver(new ReceiveSession(new SimulatedSessionHandler(clientFiles)), server);
+                driver.setFilter((message, destination) -> random.nextInt(100) < lossPercent);
+
+                Assert.assertTrue(policy + lossPercent, driver.run(new RequestMessage(MessageType.RRQ, FILENAME)));
+                Assert.assertArrayEquals(policy, file, clientFiles.getFile(FILENAME).readFileToBytes());
+
+                if (lossPercent == 0)
+                    Assert.assertEquals(policy, MAX_WINDOW, server.getWindowSize());
+            }
+        }
+    }
+}
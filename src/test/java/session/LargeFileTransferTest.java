@@ -0,0 +1,284 @@
+package session;
+
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message.MessageType;
+import formats.OptionAckMessage;
+import formats.RequestMessage;
+import formats.TransferOptions;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceFile;
+import resources.MemoryResourceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static session.TestFiles.createFile;
+
+public class LargeFileTransferTest {
+    private static final String FILENAME = "file.bin";
+    private static final int SMALL_BLOCK_SIZE = 8;
+
+    // More blocks than block numbers: every block number is used, and the sequence wraps around once
+    private static final int WRAP_BLOCKS = DataMessage.MAX_BLOCK_NUM + 5000;
+
+    // The soak test transfers a file larger than 4 GB (-Dtftp.soak=true)
+    private static final String SOAK_PROPERTY = "tftp.soak";
+    private static final long SOAK_FILE_SIZE = (4L << 30) + 1234;
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+    }
+
+    /**
+     * Ensure block indexes map to block numbers with both rollovers, and back to the nearest index across the wrap
+     */
+    @Test
+    public void testBlockNumbering() {
+        TransferOptions rolloverToOne = new TransferOptions(TransferOptions.DEFAULT_BLOCK_SIZE, 1);
+        Assert.assertEquals(0, rolloverToOne.getBlockNumber(-1));
+        Assert.assertEquals(1, rolloverToOne.getBlockNumber(0));
+        Assert.assertEquals(65535, rolloverToOne.getBlockNumber(65534));
+        Assert.assertEquals(1, rolloverToOne.getBlockNumber(65535));
+        Assert.assertEquals(2, rolloverToOne.getBlockNumber(65536 + 65535));
+
+        TransferOptions rolloverToZero = new TransferOptions(TransferOptions.DEFAULT_BLOCK_SIZE, 0);
+        Assert.assertEquals(0, rolloverToZero.getBlockNumber(-1));
+        Assert.assertEquals(1, rolloverToZero.getBlockNumber(0));
+        Assert.assertEquals(65535, rolloverToZero.getBlockNumber(65534));
+        Assert.assertEquals(0, rolloverToZero.getBlockNumber(65535));
+        Assert.assertEquals(1, rolloverToZero.getBlockNumber(65536));
+
+        for (TransferOptions options : new TransferOptions[]{rolloverToOne, rolloverToZero}) {
+            long[] references = {-1, 0, 1000, 65530, 65540, 5L << 32};
+
+            for (long reference : references) {
+                for (long index = Math.max(0, reference - 30000); index < reference + 30000; index += 7)
+                    Assert.assertEquals(options + " " + reference, index, options.getBlockIndex(options.getBlockNumber(index), reference));
+            }
+        }
+
+        // Block 0 is only DATA with rollover to 0
+        Assert.assertFalse(rolloverToOne.isValidBlockNumber(0));
+        Assert.assertTrue(rolloverToZero.isValidBlockNumber(0));
+    }
+
+    /**
+     * Ensure reads and writes of more than 65535 blocks complete under loss with both rollovers
+     */
+    @Test
+    public void testBlockNumberWrap() throws Exception {
+        byte[] file = createFile(SMALL_BLOCK_SIZE * WRAP_BLOCKS + 3);
+
+        for (int rollover = 0; rollover <= 1; rollover++) {
+            TransferOptions expected = new TransferOptions(SMALL_BLOCK_SIZE, rollover);
+
+            for (MessageType type : new MessageType[]{MessageType.RRQ, MessageType.WRQ}) {
+                MemoryResourceManager clientFiles = new MemoryResourceManager();
+                MemoryResourceManager serverFiles = new MemoryResourceManager();
+                (type == MessageType.RRQ ? serverFiles : clientFiles).addFile(FILENAME, file);
+
+                TFTPSession client;
+                TFTPSession server;
+                if (type == MessageType.RRQ) {
+                    client = new ReceiveSession(new SimulatedSessionHandler(clientFiles));
+                    TransmitSession transmitter = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+                    transmitter.setWindowSize(16);
+                    server = transmitter;
+                } else {
+                    TransmitSession transmitter = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+                    transmitter.setWindowSize(16);
+                    client = transmitter;
+                    server = new ReceiveSession(new SimulatedSessionHandler(serverFiles));
+                }
+
+                Random random = new Random(rollover);
+                LoopbackSessionDriver driver = new LoopbackSessionDriver(client, server);
+                driver.setFilter((message, destination) -> random.nextInt(100) < 2);
+
+                String name = type + " rollover " + rollover;
+                Assert.assertTrue(name, driver.run(new RequestMessage(type, FILENAME, expected.toRequestOptions())));
+                Assert.assertEquals(name, expected, client.getTransferOptions());
+                Assert.assertEquals(name, expected, server.getTransferOptions());
+
+                MemoryResourceManager receiverFiles = type == MessageType.RRQ ? clientFiles : serverFiles;
+                Assert.assertArrayEquals(name, file, receiverFiles.getFile(FILENAME).readFileToBytes());
+            }
+        }
+    }
+
+    /**
+     * Ensure the server lowers a block size above MAX_BLOCK_SIZE, and ignores invalid options
+     */
+    @Test
+    public void testOptionNegotiation() throws Exception {
+        byte[] file = createFile(TransferOptions.MAX_BLOCK_SIZE * 3);
+        serverFiles.addFile(FILENAME, file);
+
+        RequestMessage request = new RequestMessage(MessageType.RRQ, FILENAME, Collections.singletonMap(TransferOptions.BLOCK_SIZE_OPTION, "100000"));
+        ReceiveSession client = new ReceiveSession(new SimulatedSessionHandler(clientFiles));
+        TransmitSession server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+
+        Assert.assertTrue(new LoopbackSessionDriver(client, server).run(request));
+        Assert.assertEquals(TransferOptions.MAX_BLOCK_SIZE, client.getBlockSize());
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+
+        // A request without valid options gets the first DATA block (no OACK)
+        request = new RequestMessage(MessageType.RRQ, FILENAME, Collections.singletonMap(TransferOptions.BLOCK_SIZE_OPTION, "4"));
+        server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+        SessionStep step = server.start(request, LoopbackSessionDriver.CLIENT_ADDRESS, 0);
+        Assert.assertEquals(MessageType.DATA, step.getMessage(0).getMessageType());
+        Assert.assertEquals(TransferOptions.DEFAULT_BLOCK_SIZE, server.getBlockSize());
+    }
+
+    /**
+     * Ensure the client fails the session with an OPTION_NEGOTIATION error if the OACK does not match the request
+     */
+    @Test
+    public void testInvalidOptionAck() throws Exception {
+        RequestMessage request = new RequestMessage(MessageType.RRQ, FILENAME, Collections.singletonMap(TransferOptions.BLOCK_SIZE_OPTION, "1024"));
+        ReceiveSession client = new ReceiveSession(new SimulatedSessionHandler(clientFiles));
+        client.start(request, LoopbackSessionDriver.SERVER_ADDRESS, 0);
+
+        OptionAckMessage optionAck = new OptionAckMessage(Collections.singletonMap(TransferOptions.BLOCK_SIZE_OPTION, "2048"));
+        SessionStep step = client.onPacket(ByteBuffer.wrap(optionAck.toByteArray()), LoopbackSessionDriver.WORKER_ADDRESS, 1);
+
+        Assert.assertTrue(step.isComplete());
+        Assert.assertFalse(client.getSessionSuccess());
+        Assert.assertEquals(ErrorMessage.ErrorType.OPTION_NEGOTIATION, ((ErrorMessage) step.getMessage(0)).getErrorType());
+    }
+
+    /**
+     * Ensure a file larger than 4 GB is read at the largest block size (the block numbers wrap around to 0).
+     * The file is sparse (with a marker every MB), and the client only checksums what it receives.
+     */
+    @Test
+    public void testSoakLargerThan4GB() throws Exception {
+        Assume.assumeTrue("Set -D" + SOAK_PROPERTY + "=true to run the soak test", Boolean.getBoolean(SOAK_PROPERTY));
+
+        DiskResourceFile source = new DiskResourceFile("soak-" + System.nanoTime() + ".bin");
+        try {
+            long expectedCrc = createSparseFile(source, SOAK_FILE_SIZE);
+            serverFiles = new MemoryResourceManager() {
+                @Override
+                public synchronized MemoryResourceFile getFile(String fileName) {
+                    return source;
+                }
+            };
+
+            ChecksumResourceFile sink = new ChecksumResourceFile(FILENAME);
+            clientFiles = new MemoryResourceManager() {
+                @Override
+                public synchronized MemoryResourceFile getFile(String fileName) {
+                    return sink;
+                }
+            };
+
+            TransferOptions options = new TransferOptions(TransferOptions.MAX_BLOCK_SIZE, 0);
+            ReceiveSession client = new ReceiveSession(new SimulatedSessionHandler(clientFiles));
+            TransmitSession server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+            server.setWindowSize(32);
+
+            Assert.assertTrue(new LoopbackSessionDriver(client, server).run(new RequestMessage(MessageType.RRQ, FILENAME, options.toRequestOptions())));
+            Assert.assertEquals(SOAK_FILE_SIZE, sink.length());
+            Assert.assertEquals(expectedCrc, sink.getCrc());
+        } finally {
+            Files.deleteIfExists(source.toPath());
+        }
+    }
+
+    /**
+     * Creates a sparse file with its position written every MB
+     * @return The CRC32 of the file
+     */
+    private static long createSparseFile(File file, long length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(length);
+            for (long position = 0; position + Long.BYTES <= length; position += 1 << 20) {
+                randomAccessFile.seek(position);
+                randomAccessFile.writeLong(position);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * A file on disk (in the temporary directory), for files too large to keep in memory
+     */
+    private static final class DiskResourceFile extends MemoryResourceFile {
+        DiskResourceFile(String name) {
+            super(name, null);
+        }
+
+        @Override
+        public boolean exists() {
+            return new File(getPath()).exists();
+        }
+
+        @Override
+        public long length() {
+            return new File(getPath()).length();
+        }
+    }
+
+    /**
+     * A received file that is only checksummed
+     */
+    private static final class ChecksumResourceFile extends MemoryResourceFile {
+        private final CRC32 crc = new CRC32();
+        private long length;
+
+        ChecksumResourceFile(String name) {
+            super(name, null);
+        }
+
+        @Override
+        public synchronized void writeBytesToFile(byte[] data, int offset, int length) throws IOException {
+            if (!exists())
+                createNewFile();
+
+            crc.update(data, offset, length);
+            this.length += length;
+        }
+
+        @Override
+        public synchronized long length() {
+            return length;
+        }
+
+        synchronized long getCrc() {
+            return crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package session;
+
+import exceptions.InvalidPacketException;
+import formats.Message;
+import formats.RequestMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Runs a client session against a server session in memory, with a simulated clock.
+ *
+ * Packets are delivered instantly (in order), and time only advances to the next session deadline
+ * when no packets are in flight, so timeouts cost nothing. A filter can drop packets to simulate loss.
+ */
+public class LoopbackSessionDriver {
+    public static final SocketAddress CLIENT_ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000);
+    public static final SocketAddress SERVER_ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 69);
+    public static final SocketAddress WORKER_ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5001);
+    private static final int MAX_EVENTS = 10_000_000;
+
+    /**
+     * Decides if a packet is lost
+     */
+    public interface PacketFilter {
+        boolean drop(Message message, SocketAddress destination);
+    }
+
+    private static final class Packet {
+        final byte[] data;
+        final SocketAddress source;
+        final SocketAddress destination;
+
+        Packet(byte[] data, SocketAddress source, SocketAddress destination) {
+            this.data = data;
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    private final TFTPSession client;
+    private final TFTPSession server;
+    private final Queue<Packet> inFlight;
+    private PacketFilter filter;
+    private long now;
+    private long clientDeadline;
+    private long serverDeadline;
+    private boolean serverStarted;
+    private int timerCount;
+
+    /**
+     * @param client The client session (sends the request)
+     * @param server The server session (started when the request is received)
+     */
+    public LoopbackSessionDriver(TFTPSession client, TFTPSession server) {
+        this.client = client;
+        this.server = server;
+        this.inFlight = new ArrayDeque<>();
+        this.filter = (message, destination) -> false;
+    }
+
+    public void setFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return The simulated time (ns)
+     */
+    public long getTime() {
+        return now;
+    }
+
+    /**
+     * Sets the simulated time (before the sessions are run)
+     * @param now The time (ns)
+     */
+    public void setTime(long now) {
+        this.now = now;
+    }
+
+    /**
+     * @return The number of expired deadlines
+     */
+    public int getTimerCount() {
+        return timerCount;
+    }
+
+    /**
+     * Runs both sessions until they are complete
+     * @param request The client request
+     * @return True if both sessions succeeded
+     * @throws IOException If a message could not be encoded
+     */
+    public boolean run(RequestMessage request) throws IOException, InvalidPacketException {
+        SessionStep step = client.start(request, SERVER_ADDRESS, now);
+        clientDeadline = step.getDeadline();
+        enqueue(step, CLIENT_ADDRESS);
+
+        for (int events = 0; events < MAX_EVENTS; events++) {
+            Packet packet = inFlight.poll();
+
+            if (packet != null) {
+                deliver(packet);
+                continue;
+            }
+
+            boolean clientWaiting = !client.isSessionComplete();
+            boolean serverWaiting = serverStarted && !server.isSessionComplete();
+
+            if (!clientWaiting && !serverWaiting)
+                break;
+
+            // Nothing in flight: advance the clock to the next deadline
+            timerCount++;
+            if (clientWaiting && (!serverWaiting || clientDeadline <= serverDeadline)) {
+                now = Math.max(now, clientDeadline);
+                step = client.onTimer(now);
+                clientDeadline = step.getDeadline();
+                enqueue(step, CLIENT_ADDRESS);
+            } else {
+                now = Math.max(now, serverDeadline);
+                step = server.onTimer(now);
+                serverDeadline = step.getDeadline();
+                enqueue(step, WORKER_ADDRESS);
+            }
+        }
+
+        return client.getSessionSuccess() && server.getSessionSuccess();
+    }
+
+    /**
+     * Delivers a packet to the session it is addressed to
+     */
+    private void deliver(Packet packet) throws IOException, InvalidPacketException {
+        SessionStep step;
+
+        if (packet.destination.equals(SERVER_ADDRESS)) {
+            // Request received by the server listener. Start the server session (like a ServerWorker)
+            if (serverStarted)
+                return;
+
+            serverStarted = true;
+            step = server.start((RequestMessage) Message.parseGenericMessage(packet.data), packet.source, now);
+            serverDeadline = step.getDeadline();
+            enqueue(step, WORKER_ADDRESS);
+        } else if (packet.destination.equals(WORKER_ADDRESS)) {
+            if (server.isSessionComplete())
+                return;
+
+            step = server.onPacket(ByteBuffer.wrap(packet.data), packet.source, now);
+            serverDeadline = step.getDeadline();
+            enqueue(step, WORKER_ADDRESS);
+        } else if (packet.destination.equals(CLIENT_ADDRESS)) {
+            if (client.isSessionComplete())
+                return;
+
+            step = client.onPacket(ByteBuffer.wrap(packet.data), packet.source, now);
+            clientDeadline = step.getDeadline();
+            enqueue(step, CLIENT_ADDRESS);
+        }
+    }
+
+    /**
+     * Queues the messages of a step (unless they are dropped by the filter)
+     */
+    private void enqueue(SessionStep step, SocketAddress source) throws IOException {
+        for (int i = 0; i < step.getMessageCount(); i++) {
+            Message message = step.getMessage(i);
+            SocketAddress destination = step.getDestination(i);
+
+            if (!filter.drop(message, destination))
+                inFlight.add(new Packet(message.toByteArray(), source, destination));
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package session;
+
+import exceptions.InvalidPacketException;
+import formats.Message.MessageType;
+import formats.MulticastOption;
+import formats.RequestMessage;
+import formats.RequestMessage.MessageMode;
+import formats.TransferOptions;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceFile;
+import resources.MemoryResourceManager;
+import socket.TFTPDatagramSocket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MulticastTransferTest {
+    private static final String FILENAME = "image.bin";
+    private static final InetSocketAddress GROUP = new InetSocketAddress("239.255.0.69", 17580);
+
+    private static final int SYNCHRONIZED_CLIENTS = 4;
+    private static final int FILE_BLOCKS = 400;
+    private static final long JOIN_TIMEOUT_MS = 60_000;
+
+    private MemoryResourceManager serverFiles;
+    private byte[] file;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        file = new byte[FILE_BLOCKS * TransferOptions.DEFAULT_BLOCK_SIZE + 100];
+        new Random(FILE_BLOCKS).nextBytes(file);
+        serverFiles = new MemoryResourceManager();
+        serverFiles.addFile(FILENAME, file);
+    }
+
+    private static RequestMessage multicastRequest(Map<String, String> options) {
+        return new RequestMessage(MessageType.RRQ, FILENAME, MessageMode.OCTET, MulticastReceiveSession.getRequestOptions(options));
+    }
+
+    /**
+     * Ensure the multicast option value is 'addr,port,mc' with a multicast group
+     */
+    @Test
+    public void testMulticastOption() throws InvalidPacketException {
+        MulticastOption option = MulticastOption.parse("239.255.0.69,1758,1");
+        Assert.assertEquals(new InetSocketAddress("239.255.0.69", 1758), option.getGroup());
+        Assert.assertTrue(option.isMaster());
+        Assert.assertEquals("239.255.0.69,1758,0", option.withMaster(false).toString());
+
+        String[] invalidValues = {"", "239.255.0.69,1758", "10.0.0.1,1758,1", "239.255.0.69,0,1", "239.255.0.69,x,1", "239.255.0.69,1758,2"};
+        for (String value : invalidValues) {
+            try {
+                MulticastOption.parse(value);
+                Assert.fail("Expected an exception for '" + value + "'");
+            } catch (InvalidPacketException iPE) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Ensure a multicast read is served by unicast when the server has no group, or the file has too many blocks
+     */
+    @Test
+    public void testUnicastFallback() throws Exception {
+        MulticastReceiveSession client = new MulticastReceiveSession(new SimulatedSessionHandler(new MemoryResourceManager()));
+        MulticastTransmitSession server = new MulticastTransmitSession(new SimulatedSessionHandler(serverFiles));
+        server.setMulticastGroups(new MulticastGroups(null, 0, 0));
+
+        Assert.assertTrue(new LoopbackSessionDriver(client, server).run(multicastRequest(Collections.emptyMap())));
+        Assert.assertNull(server.getMulticastGroup());
+        Assert.assertNull(client.getMulticastGroup());
+        Assert.assertArrayEquals(file, client.getResourceFile().readFileToBytes());
+
+        // 8 byte blocks: more blocks than block numbers
+        MemoryResourceManager clientFiles = new MemoryResourceManager();
+        byte[] largeFile = new byte[8 * 70_000];
+        serverFiles.addFile(FILENAME, largeFile);
+        MulticastGroups groups = new MulticastGroups(GROUP.getAddress(), GROUP.getPort(), 1);
+
+        client = new MulticastReceiveSession(new SimulatedSessionHandler(clientFiles));
+        server = new MulticastTransmitSession(new SimulatedSessionHandler(serverFiles));
+        server.setMulticastGroups(groups);
+        RequestMessage request = multicastRequest(new TransferOptions(8, TransferOptions.DEFAULT_ROLLOVER).toRequestOptions());
+
+        Assert.assertTrue(new LoopbackSessionDriver(client, server).run(request));
+        Assert.assertNull(server.getMulticastGroup());
+        Assert.assertEquals(8, client.getBlockSize());
+        Assert.assertArrayEquals(largeFile, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertEquals(0, groups.getGroupCount());
+    }
+
+    /**
+     * Ensure the master client gets every block by unicast when nothing sent to the group arrives
+     */
+    @Test
+    public void testGroupUnreachable() throws Exception {
+        MulticastGroups groups = new MulticastGroups(GROUP.getAddress(), GROUP.getPort(), 1);
+        MulticastReceiveSession client = new MulticastReceiveSession(new SimulatedSessionHandler(new MemoryResourceManager()));
+        MulticastTransmitSession server = new MulticastTransmitSession(new SimulatedSessionHandler(serverFiles));
+        server.setMulticastGroups(groups);
+        server.setWindowSize(8);
+
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(client, server);
+        driver.setFilter((message, destination) -> destination.equals(GROUP));
+
+        Assert.assertTrue(driver.run(multicastRequest(Collections.emptyMap())));
+        Assert.assertEquals(GROUP, server.getMulticastGroup());
+        Assert.assertEquals(1, server.getCompletedMemberCount());
+        Assert.assertArrayEquals(file, client.getResourceFile().readFileToBytes());
+        Assert.assertEquals(0, groups.getGroupCount());
+    }
+
+    /**
+     * Ensure clients booting at once, and a client joining halfway, all receive the file over loopback multicast,
+     * with the server sending little more than one copy of it
+     */
+    @Test
+    public void testLoopbackMulticast() throws Exception {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        Assume.assumeTrue("Multicast is not available on the loopback interface",
+                loopback != null && loopback.isUp());
+
+        MulticastGroups groups = new MulticastGroups(GROUP.getAddress(), GROUP.getPort(), 1);
+        AtomicLong serverBytesSent = new AtomicLong();
+        List<MulticastTransmitSession> serverSessions = Collections.synchronizedList(new ArrayList<>());
+
+        try (TFTPDatagramSocket listener = new TFTPDatagramSocket(0)) {
+            Thread server = new Thread(() -> serve(listener, groups, loopback, serverBytesSent, serverSessions), "MulticastServer");
+            server.setDaemon(true);
+            server.start();
+
+            SocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i <= SYNCHRONIZED_CLIENTS; i++)
+                clients.add(new Client(serverAddress, loopback));
+
+            for (int i = 0; i < SYNCHRONIZED_CLIENTS; i++)
+                clients.get(i).start();
+
+            // The last client joins once about a quarter of the file was sent
+            Client first = clients.get(0);
+            while (first.isAlive() && first.session.getBytesTransferred() < file.length / 4)
+                Thread.sleep(1);
+
+            Client late = clients.get(SYNCHRONIZED_CLIENTS);
+            late.start();
+
+            for (Client client : clients) {
+                client.join(JOIN_TIMEOUT_MS);
+                Assert.assertTrue(client.getName(), client.success);
+                Assert.assertArrayEquals(client.getName(), file, client.files.getFile(FILENAME).readFileToBytes());
+            }
+
+            // A single group session served every client
+            Assert.assertEquals(1, serverSessions.size());
+            Assert.assertEquals(clients.size(), serverSessions.get(0).getCompletedMemberCount());
+            Assert.assertTrue("Server sent " + serverBytesSent.get() + " bytes", serverBytesSent.get() < 2L * file.length);
+        }
+    }
+
+    /**
+     * A client reading the file with its own channel, writing blocks slowly (so the transfer is still running
+     * when the late client joins)
+     */
+    private final class Client extends Thread {
+        private final SocketAddress serverAddress;
+        private final NetworkInterface networkInterface;
+        private final MemoryResourceManager files;
+        private final MulticastReceiveSession session;
+        private volatile boolean success;
+
+        private Client(SocketAddress serverAddress, NetworkInterface networkInterface) throws IOException {
+            this.serverAddress = serverAddress;
+            this.networkInterface = networkInterface;
+            this.files = new MemoryResourceManager() {
+                private MemoryResourceFile slowFile;
+
+                @Override
+                public synchronized MemoryResourceFile getFile(String fileName) {
+                    if (slowFile == null)
+                        slowFile = new SlowResourceFile(fileName);
+                    return slowFile;
+                }
+            };
+            this.session = new MulticastReceiveSession(new SimulatedSessionHandler(files));
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (MulticastSessionDriver driver = new MulticastSessionDriver(session, networkInterface)) {
+                success = driver.run(multicastRequest(Collections.emptyMap()), serverAddress);
+            } catch (IOException ioE) {
+                ioE.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Receives the requests. Multicast reads join the running group session, or start one (like the server)
+     */
+    private void serve(TFTPDatagramSocket listener, MulticastGroups groups, NetworkInterface networkInterface,
+                       AtomicLong bytesSent, List<MulticastTransmitSession> sessions) {
+        while (!listener.isClosed()) {
+            try {
+                DatagramPacket packet = listener.receive();
+                RequestMessage request = RequestMessage.parseMessage(packet);
+                SocketAddress client = packet.getSocketAddress();
+
+                if (groups.join(request, client))
+                    continue;
+
+                MulticastTransmitSession session = new MulticastTransmitSession(new SimulatedSessionHandler(serverFiles));
+                session.setMulticastGroups(groups);
+                session.setWindowSize(8);
+                sessions.add(session);
+
+                Thread worker = new Thread(() -> {
+                    try (MulticastSessionDriver driver = new MulticastSessionDriver(session, networkInterface)) {
+                        driver.run(request, client);
+                        bytesSent.addAndGet(driver.getBytesSent());
+                    } catch (IOException ioE) {
+                        ioE.printStackTrace();
+                    }
+                }, "MulticastWorker");
+                worker.setDaemon(true);
+                worker.start();
+
+                // Let the group open before handling the next request, so it can join
+                while (session.getMulticastGroup() == null && worker.isAlive())
+                    Thread.sleep(1);
+            } catch (InvalidPacketException iPE) {
+                // Not a request
+            } catch (IOException | InterruptedException e) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * A received file that takes a millisecond to write each block
+     */
+    private static final class SlowResourceFile extends MemoryResourceFile {
+        SlowResourceFile(String name) {
+            super(name, null);
+        }
+
+        @Override
+        public void writeBytesAt(long position, byte[] data) throws IOException {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException iE) {
+                Thread.currentThread().interrupt();
+            }
+
+            super.writeBytesAt(position, data);
+        }
+    }
+}
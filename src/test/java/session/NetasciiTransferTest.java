@@ -0,0 +1,110 @@
+package session;
+
+import formats.DataMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import formats.RequestMessage.MessageMode;
+import formats.TransferOptions;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class NetasciiTransferTest {
+    private static final String FILENAME = "notes.txt";
+    private static final int BLOCK_SIZE = 8;
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+    }
+
+    private static RequestMessage request(MessageType type, MessageMode mode) {
+        return new RequestMessage(type, FILENAME, mode, new TransferOptions(BLOCK_SIZE, TransferOptions.DEFAULT_ROLLOVER).toRequestOptions());
+    }
+
+    /**
+     * Runs a transfer, and returns the DATA payloads that were sent (the last copy of each block)
+     */
+    private static byte[] transfer(TFTPSession client, TFTPSession server, RequestMessage request) throws Exception {
+        TreeMap<Integer, byte[]> blocks = new TreeMap<>();
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(client, server);
+        driver.setFilter((message, destination) -> {
+            if (message instanceof DataMessage)
+                blocks.put(((DataMessage) message).getBlockNum(), ((DataMessage) message).getData());
+            return false;
+        });
+
+        Assert.assertTrue(driver.run(request));
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (byte[] block : blocks.values())
+            wire.write(block);
+        return wire.toByteArray();
+    }
+
+    /**
+     * Ensure a netascii read sends line ends as CR LF (and CR as CR NUL), and the client restores the file,
+     * with pairs that span two blocks
+     */
+    @Test
+    public void testNetasciiRead() throws Exception {
+        byte[] file = "line 1\nline\r2\n\nend\r".getBytes(StandardCharsets.US_ASCII);
+        serverFiles.addFile(FILENAME, file);
+
+        byte[] wire = transfer(new ReceiveSession(new SimulatedSessionHandler(clientFiles)),
+                new TransmitSession(new SimulatedSessionHandler(serverFiles)), request(MessageType.RRQ, MessageMode.NET_ASCII));
+
+        Assert.assertArrayEquals(("line 1\r\nline\r\0" + "2\r\n\r\nend\r\0").getBytes(StandardCharsets.US_ASCII), wire);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+    }
+
+    /**
+     * Ensure an octet transfer sends the bytes of the file as is
+     */
+    @Test
+    public void testOctetRead() throws Exception {
+        byte[] file = "line 1\nline\r2\n".getBytes(StandardCharsets.US_ASCII);
+        serverFiles.addFile(FILENAME, file);
+
+        byte[] wire = transfer(new ReceiveSession(new SimulatedSessionHandler(clientFiles)),
+                new TransmitSession(new SimulatedSessionHandler(serverFiles)), request(MessageType.RRQ, MessageMode.OCTET));
+
+        Assert.assertArrayEquals(file, wire);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+    }
+
+    /**
+     * Ensure windowed netascii writes recover lost blocks (translated blocks of the window are sent again)
+     */
+    @Test
+    public void testNetasciiWriteWithLoss() throws Exception {
+        byte[] file = new byte[4000];
+        Random random = new Random(1350);
+        for (int i = 0; i < file.length; i++)
+            file[i] = random.nextInt(3) == 0 ? (byte) (random.nextBoolean() ? '\r' : '\n') : (byte) ('a' + random.nextInt(26));
+        clientFiles.addFile(FILENAME, file);
+
+        TransmitSession client = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+        client.setWindowSize(4);
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(client, new ReceiveSession(new SimulatedSessionHandler(serverFiles)));
+        driver.setFilter((message, destination) -> random.nextInt(10) == 0);
+
+        Assert.assertTrue(driver.run(request(MessageType.WRQ, MessageMode.NET_ASCII)));
+        Assert.assertArrayEquals(file, serverFiles.getFile(FILENAME).readFileToBytes());
+    }
+}
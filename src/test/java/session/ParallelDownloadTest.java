@@ -0,0 +1,182 @@
+package session;
+
+import exceptions.InvalidPacketException;
+import formats.DataMessage;
+import formats.Message.MessageType;
+import formats.RangeOption;
+import formats.RequestMessage;
+import formats.RequestMessage.MessageMode;
+import formats.TransferOptions;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+import socket.TFTPDatagramSocket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ParallelDownloadTest {
+    private static final String FILENAME = "image.bin";
+    private static final int BLOCK_SIZE = 64;
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+    private byte[] file;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+        file = new byte[5000];
+        new Random(2348).nextBytes(file);
+        serverFiles.addFile(FILENAME, file);
+    }
+
+    private static Map<String, String> blockSizeOptions() {
+        return new TransferOptions(BLOCK_SIZE, TransferOptions.DEFAULT_ROLLOVER).toRequestOptions();
+    }
+
+    /**
+     * Ensure the segments of a file are contiguous ranges that start on a block boundary and cover the file
+     */
+    @Test
+    public void testRangeOption() throws InvalidPacketException {
+        for (int count : new int[] {1, 3, 4, 16, 100}) {
+            long end = 0;
+
+            for (int i = 0; i < count; i++) {
+                RangeOption range = RangeOption.grant(RangeOption.segment(i, count), file.length, BLOCK_SIZE);
+                Assert.assertEquals(end, range.getOffset());
+                Assert.assertEquals(0, range.getOffset() % BLOCK_SIZE);
+                Assert.assertEquals(range.toString(), RangeOption.parse(range.toString()).toString());
+                end = range.getOffset() + range.getLength();
+            }
+
+            Assert.assertEquals(file.length, end);
+        }
+
+        for (String invalid : new String[] {"4/4", "-1/4", "0/0", "1", "a/b"}) {
+            try {
+                RangeOption.grant(invalid, file.length, BLOCK_SIZE);
+                Assert.fail("Expected an invalid segment: " + invalid);
+            } catch (InvalidPacketException iPE) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Ensure the sessions of all segments only send their range, and fill the file together
+     */
+    @Test
+    public void testRangedSessions() throws Exception {
+        int count = 4;
+
+        for (int i = count - 1; i >= 0; i--) {
+            RequestMessage request = new RequestMessage(MessageType.RRQ, FILENAME, MessageMode.OCTET,
+                    ParallelDownload.getRequestOptions(blockSizeOptions(), i, count));
+            // The download handles the file for all sessions
+            ReceiveSession client = new ReceiveSession(new ParallelDownload(clientFiles, count));
+            AtomicLong sent = new AtomicLong();
+
+            LoopbackSessionDriver driver = new LoopbackSessionDriver(client, new TransmitSession(new SimulatedSessionHandler(serverFiles)));
+            driver.setFilter((message, destination) -> {
+                if (message instanceof DataMessage)
+                    sent.addAndGet(((DataMessage) message).getDataSize());
+                return false;
+            });
+
+            Assert.assertTrue(driver.run(request));
+            Assert.assertEquals(client.getRange().getLength(), sent.get());
+            Assert.assertEquals(file.length, clientFiles.getFile(FILENAME).length());
+        }
+
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+    }
+
+    /**
+     * Ensure a parallel download over sockets receives the file
+     */
+    @Test
+    public void testParallelDownload() throws Exception {
+        try (TFTPDatagramSocket serverSocket = new TFTPDatagramSocket(0)) {
+            startServer(serverSocket, false);
+
+            ParallelDownload download = new ParallelDownload(clientFiles, 4);
+            Assert.assertTrue(download.run(new RequestMessage(MessageType.RRQ, FILENAME, MessageMode.OCTET, blockSizeOptions()),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())));
+
+            Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+            for (ReceiveSession session : download.getSessions())
+                Assert.assertNotNull(session.getRange());
+        }
+    }
+
+    /**
+     * Ensure a server without ranges sends the whole file to the first session only
+     */
+    @Test
+    public void testServerWithoutRanges() throws Exception {
+        try (TFTPDatagramSocket serverSocket = new TFTPDatagramSocket(0)) {
+            startServer(serverSocket, true);
+
+            ParallelDownload download = new ParallelDownload(clientFiles, 4);
+            Assert.assertTrue(download.run(new RequestMessage(MessageType.RRQ, FILENAME, MessageMode.OCTET, blockSizeOptions()),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())));
+
+            Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+            Assert.assertTrue(download.getSessions().get(0).getSessionSuccess());
+            Assert.assertFalse(download.getSessions().get(1).getSessionSuccess());
+        }
+    }
+
+    /**
+     * Receives the RRQs, and runs each read on its own thread and socket (like the server)
+     * @param ignoreRange True to remove the range option from the requests (a server without ranges)
+     */
+    private void startServer(TFTPDatagramSocket serverSocket, boolean ignoreRange) {
+        Thread server = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    DatagramPacket packet = serverSocket.receive();
+                    RequestMessage request = RequestMessage.parseMessage(packet);
+                    SocketAddress client = packet.getSocketAddress();
+
+                    if (ignoreRange) {
+                        Map<String, String> options = new LinkedHashMap<>(request.getOptions());
+                        options.remove(RangeOption.NAME);
+                        request = new RequestMessage(request.getMessageType(), request.getFileName(), request.getMode(), options);
+                    }
+
+                    RequestMessage workerRequest = request;
+                    Thread worker = new Thread(() -> {
+                        try (TFTPDatagramSocket socket = new TFTPDatagramSocket()) {
+                            new BlockingSessionDriver(new TransmitSession(new SimulatedSessionHandler(serverFiles)), socket).run(workerRequest, client);
+                        } catch (IOException ioE) {
+                            // Closed
+                        }
+                    }, "TestWorker");
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException | InvalidPacketException e) {
+                    // Closed
+                }
+            }
+        }, "TestServer");
+        server.setDaemon(true);
+        server.start();
+    }
+}
@@ -0,0 +1,101 @@
+package session;
+
+import formats.DataMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+
+public class PeerHistoryCacheTest {
+    private static final String FILENAME = "file.bin";
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    /**
+     * Ensure entries are keyed by host, expire after the TTL and the cache stays bounded
+     */
+    @Test
+    public void testExpiryAndCapacity() throws Exception {
+        PeerHistoryCache cache = new PeerHistoryCache(4, 1000 * MS);
+        InetSocketAddress peer = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000);
+
+        cache.update(peer, 20 * MS, 5 * MS, 0.1, 1, 512, 0);
+
+        // Any port of the same host shares the history
+        PeerHistoryCache.PeerHistory history = cache.get(new InetSocketAddress(InetAddress.getLoopbackAddress(), 6000), 10 * MS);
+        Assert.assertNotNull(history);
+        Assert.assertEquals(20 * MS, history.getSmoothedRttNanos());
+        Assert.assertEquals(0.1, history.getLossRate(), 1e-9);
+
+        // The loss rate is smoothed with the previous sessions
+        cache.update(peer, 20 * MS, 5 * MS, 0.5, 1, 512, 20 * MS);
+        Assert.assertEquals(0.2, cache.get(peer, 30 * MS).getLossRate(), 1e-9);
+
+        Assert.assertNull(cache.get(peer, 2000 * MS));
+        Assert.assertEquals(0, cache.size());
+
+        for (int i = 0; i < 20; i++)
+            cache.update(new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i}), 69), MS, 0, 0, 1, 512, i);
+        Assert.assertEquals(4, cache.size());
+    }
+
+    /**
+     * Ensure a session to a known peer starts from its history, so a loss is recovered
+     * after the learned timeout instead of the configured SOCKET_TIMEOUT_MS
+     */
+    @Test
+    public void testSessionSeededFromHistory() throws Exception {
+        PeerHistoryCache cache = new PeerHistoryCache(16, TimeUnit.MINUTES.toNanos(1));
+        byte[] file = new byte[DataMessage.MAX_BLOCK_SIZE * 4];
+
+        // First transfer (no loss) learns the RTT of the peer
+        MemoryResourceManager clientFiles = new MemoryResourceManager();
+        clientFiles.addFile(FILENAME, file);
+        TransmitSession client = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+        ReceiveSession server = new ReceiveSession(new SimulatedSessionHandler(new MemoryResourceManager()));
+        client.setPeerHistoryCache(cache);
+        server.setPeerHistoryCache(cache);
+
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(client, server);
+        driver.setTime(TimeUnit.SECONDS.toNanos(1));
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.WRQ, FILENAME)));
+        Assert.assertNotNull(cache.get(LoopbackSessionDriver.SERVER_ADDRESS, driver.getTime()));
+        Assert.assertEquals(0, cache.get(LoopbackSessionDriver.SERVER_ADDRESS, driver.getTime()).getLossRate(), 1e-9);
+
+        // Second transfer loses the first DATA #2
+        client = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+        server = new ReceiveSession(new SimulatedSessionHandler(new MemoryResourceManager()));
+        client.setPeerHistoryCache(cache);
+        server.setPeerHistoryCache(cache);
+
+        LoopbackSessionDriver lossyDriver = new LoopbackSessionDriver(client, server);
+        long start = driver.getTime();
+        long[] sent = new long[2];
+        int[] transmissions = new int[1];
+        lossyDriver.setTime(start);
+        lossyDriver.setFilter((message, destination) -> {
+            if (message instanceof DataMessage && ((DataMessage) message).getBlockNum() == 2)
+                sent[transmissions[0]++] = lossyDriver.getTime();
+            return transmissions[0] == 1 && message instanceof DataMessage && ((DataMessage) message).getBlockNum() == 2;
+        });
+
+        Assert.assertTrue(lossyDriver.run(new RequestMessage(MessageType.WRQ, FILENAME)));
+        Assert.assertNotNull(client.getPeerHistory());
+        Assert.assertEquals(2, transmissions[0]);
+
+        long recovery = sent[1] - sent[0];
+        Assert.assertTrue(recovery >= TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.MIN_TIMEOUT_MS));
+        Assert.assertTrue(recovery < TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS));
+    }
+}
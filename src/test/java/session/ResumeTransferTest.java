@@ -0,0 +1,187 @@
+package session;
+
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import formats.RequestMessage.MessageMode;
+import formats.TransferOptions;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResumeTransferTest {
+    private static final String FILENAME = "image.bin";
+    private static final String PARTIAL_FILENAME = FILENAME + ".part";
+    private static final int BLOCK_SIZE = 64;
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+    private byte[] file;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+        file = new byte[5000];
+        new Random(2347).nextBytes(file);
+    }
+
+    private static Map<String, String> blockSizeOptions() {
+        return new TransferOptions(BLOCK_SIZE, TransferOptions.DEFAULT_ROLLOVER).toRequestOptions();
+    }
+
+    private RequestMessage readRequest() throws Exception {
+        return new RequestMessage(MessageType.RRQ, FILENAME, MessageMode.OCTET, ReceiveSession.getRequestOptions(clientFiles, FILENAME, blockSizeOptions()));
+    }
+
+    private static RequestMessage writeRequest() {
+        return new RequestMessage(MessageType.WRQ, FILENAME, MessageMode.OCTET, TransmitSession.getRequestOptions(blockSizeOptions()));
+    }
+
+    private static <T extends TFTPSession> T resumable(T session) {
+        session.setResumeEnabled(true);
+        return session;
+    }
+
+    /**
+     * Runs a transfer, and returns the number of DATA bytes that were sent
+     */
+    private static long transfer(TFTPSession client, TFTPSession server, RequestMessage request, boolean success) throws Exception {
+        AtomicLong sent = new AtomicLong();
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(client, server);
+        driver.setFilter((message, destination) -> {
+            if (message instanceof DataMessage)
+                sent.addAndGet(((DataMessage) message).getDataSize());
+            return false;
+        });
+
+        Assert.assertEquals(success, driver.run(request));
+        return sent.get();
+    }
+
+    /**
+     * Ensure a read with a partial file only sends the missing bytes, and the partial file becomes the file
+     */
+    @Test
+    public void testResumedRead() throws Exception {
+        serverFiles.addFile(FILENAME, file);
+        clientFiles.addFile(PARTIAL_FILENAME, Arrays.copyOf(file, 3000));
+
+        long sent = transfer(resumable(new ReceiveSession(new SimulatedSessionHandler(clientFiles))),
+                resumable(new TransmitSession(new SimulatedSessionHandler(serverFiles))), readRequest(), true);
+
+        Assert.assertEquals(2000, sent);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertFalse(clientFiles.getFile(PARTIAL_FILENAME).exists());
+    }
+
+    /**
+     * Ensure a partial file that does not match the file of the server is replaced by the whole file
+     */
+    @Test
+    public void testMismatchedReadRestarts() throws Exception {
+        serverFiles.addFile(FILENAME, file);
+        byte[] partial = Arrays.copyOf(file, 3000);
+        partial[1234]++;
+        clientFiles.addFile(PARTIAL_FILENAME, partial);
+
+        long sent = transfer(resumable(new ReceiveSession(new SimulatedSessionHandler(clientFiles))),
+                resumable(new TransmitSession(new SimulatedSessionHandler(serverFiles))), readRequest(), true);
+
+        Assert.assertEquals(file.length, sent);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+    }
+
+    /**
+     * Ensure a failed read keeps the received bytes in the partial file (and no empty file), and the next
+     * read resumes after them
+     */
+    @Test
+    public void testInterruptedReadResumes() throws Exception {
+        serverFiles.addFile(FILENAME, file);
+
+        // The link dies after 10 blocks
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(resumable(new ReceiveSession(new SimulatedSessionHandler(clientFiles))),
+                resumable(new TransmitSession(new SimulatedSessionHandler(serverFiles))));
+        driver.setFilter((message, destination) -> message instanceof DataMessage && ((DataMessage) message).getBlockNum() > 10);
+        Assert.assertFalse(driver.run(readRequest()));
+
+        Assert.assertFalse(clientFiles.getFile(FILENAME).exists());
+        Assert.assertArrayEquals(Arrays.copyOf(file, 10 * BLOCK_SIZE), clientFiles.getFile(PARTIAL_FILENAME).readFileToBytes());
+
+        long sent = transfer(resumable(new ReceiveSession(new SimulatedSessionHandler(clientFiles))),
+                resumable(new TransmitSession(new SimulatedSessionHandler(serverFiles))), readRequest(), true);
+
+        Assert.assertEquals(file.length - 10 * BLOCK_SIZE, sent);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+    }
+
+    /**
+     * Ensure a server without RESUME ignores the option, and sends the whole file
+     */
+    @Test
+    public void testResumeDisabled() throws Exception {
+        serverFiles.addFile(FILENAME, file);
+        clientFiles.addFile(PARTIAL_FILENAME, Arrays.copyOf(file, 3000));
+
+        TransmitSession server = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+        server.setResumeEnabled(false);
+        long sent = transfer(resumable(new ReceiveSession(new SimulatedSessionHandler(clientFiles))), server, readRequest(), true);
+
+        Assert.assertEquals(file.length, sent);
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+    }
+
+    /**
+     * Ensure a write resumes after the partial file of the server
+     */
+    @Test
+    public void testResumedWrite() throws Exception {
+        clientFiles.addFile(FILENAME, file);
+        serverFiles.addFile(PARTIAL_FILENAME, Arrays.copyOf(file, 4321));
+
+        long sent = transfer(resumable(new TransmitSession(new SimulatedSessionHandler(clientFiles))),
+                resumable(new ReceiveSession(new SimulatedSessionHandler(serverFiles))), writeRequest(), true);
+
+        Assert.assertEquals(file.length - 4321, sent);
+        Assert.assertArrayEquals(file, serverFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertFalse(serverFiles.getFile(PARTIAL_FILENAME).exists());
+    }
+
+    /**
+     * Ensure the client rejects a partial file of the server that does not match its file, and the server
+     * removes it (and the empty file), so the next write starts over
+     */
+    @Test
+    public void testRejectedWrite() throws Exception {
+        clientFiles.addFile(FILENAME, file);
+        serverFiles.addFile(PARTIAL_FILENAME, new byte[1000]);
+
+        TransmitSession client = resumable(new TransmitSession(new SimulatedSessionHandler(clientFiles)));
+        SimulatedSessionHandler serverHandler = new SimulatedSessionHandler(serverFiles);
+        transfer(client, resumable(new ReceiveSession(serverHandler)), writeRequest(), false);
+
+        Assert.assertTrue(client.isResumeRejected());
+        Assert.assertEquals(ErrorMessage.ErrorType.OPTION_NEGOTIATION, serverHandler.getErrorReceived().getErrorType());
+        Assert.assertFalse(serverFiles.getFile(PARTIAL_FILENAME).exists());
+        Assert.assertFalse(serverFiles.getFile(FILENAME).exists());
+
+        long sent = transfer(resumable(new TransmitSession(new SimulatedSessionHandler(clientFiles))),
+                resumable(new ReceiveSession(new SimulatedSessionHandler(serverFiles))), writeRequest(), true);
+
+        Assert.assertEquals(file.length, sent);
+        Assert.assertArrayEquals(file, serverFiles.getFile(FILENAME).readFileToBytes());
+    }
+}
@@ -0,0 +1,41 @@
+package session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RttEstimatorTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Ensure the estimator follows RFC 6298 (first sample, smoothing, backoff and bounds)
+     */
+    @Test
+    public void testEstimator() {
+        RttEstimator estimator = new RttEstimator(1000 * MS, 50 * MS, 2000 * MS, MS);
+        Assert.assertFalse(estimator.hasEstimate());
+        Assert.assertEquals(1000 * MS, estimator.getTimeoutNanos());
+
+        // First sample: SRTT = R, RTTVAR = R / 2, RTO = SRTT + 4 * RTTVAR
+        estimator.addSample(100 * MS);
+        Assert.assertEquals(100 * MS, estimator.getSmoothedRttNanos());
+        Assert.assertEquals(50 * MS, estimator.getRttVarianceNanos());
+        Assert.assertEquals(300 * MS, estimator.getTimeoutNanos());
+
+        // A stable RTT converges towards SRTT, bounded by the minimum
+        for (int i = 0; i < 100; i++)
+            estimator.addSample(10 * MS);
+        Assert.assertEquals(50 * MS, estimator.getTimeoutNanos());
+
+        // Backoff doubles up to the maximum, and the next sample ends it
+        estimator.backoff();
+        Assert.assertEquals(100 * MS, estimator.getTimeoutNanos());
+        for (int i = 0; i < 10; i++)
+            estimator.backoff();
+        Assert.assertEquals(2000 * MS, estimator.getTimeoutNanos());
+
+        estimator.addSample(10 * MS);
+        Assert.assertEquals(50 * MS, estimator.getTimeoutNanos());
+    }
+}
@@ -0,0 +1,187 @@
+package session;
+
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static resources.Configuration.GLOBAL_CONFIG;
+import static session.TestFiles.createFile;
+
+public class SessionStateMachineTest {
+    private static final String FILENAME = "file.bin";
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+    private SimulatedSessionHandler clientHandler;
+    private SimulatedSessionHandler serverHandler;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+        clientHandler = new SimulatedSessionHandler(clientFiles);
+        serverHandler = new SimulatedSessionHandler(serverFiles);
+    }
+
+    /**
+     * Ensure a read completes between two state machines without any I/O
+     */
+    @Test
+    public void testReadTransfer() throws Exception {
+        byte[] file = createFile(DataMessage.MAX_BLOCK_SIZE * 10 + 100);
+        serverFiles.addFile(FILENAME, file);
+
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(new ReceiveSession(clientHandler), new TransmitSession(serverHandler));
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.RRQ, FILENAME)));
+
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertTrue(clientHandler.isCompleted());
+        Assert.assertTrue(serverHandler.isCompleted());
+
+        // Only the final timeout of the client (to make sure the last ACK was not lost)
+        Assert.assertEquals(1, driver.getTimerCount());
+    }
+
+    /**
+     * Ensure a write completes, and lost DATA is retransmitted after the deadline
+     */
+    @Test
+    public void testWriteTransferWithLoss() throws Exception {
+        byte[] file = createFile(DataMessage.MAX_BLOCK_SIZE * 4);
+        clientFiles.addFile(FILENAME, file);
+
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(new TransmitSession(clientHandler), new ReceiveSession(serverHandler));
+
+        // Drop the first transmission of DATA #2
+        boolean[] dropped = new boolean[1];
+        driver.setFilter((message, destination) -> {
+            if (!dropped[0] && message instanceof DataMessage && ((DataMessage) message).getBlockNum() == 2) {
+                dropped[0] = true;
+                return true;
+            }
+            return false;
+        });
+
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.WRQ, FILENAME)));
+        Assert.assertArrayEquals(file, serverFiles.getFile(FILENAME).readFileToBytes());
+
+        // The loss costs one deadline (at least the configured timeout)
+        Assert.assertTrue(driver.getTime() >= TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS));
+    }
+
+    /**
+     * Ensure the session retransmits on every deadline, then fails after the maximum attempts
+     */
+    @Test
+    public void testTimeoutFailure() throws Exception {
+        TransmitSession session = new TransmitSession(clientHandler);
+        clientFiles.addFile(FILENAME, createFile(10));
+
+        SessionStep step = session.start(new RequestMessage(MessageType.WRQ, FILENAME), LoopbackSessionDriver.SERVER_ADDRESS, 0);
+        Assert.assertEquals(1, step.getMessageCount());
+        Assert.assertEquals(MessageType.WRQ, step.getMessage(0).getMessageType());
+
+        for (int attempt = 1; attempt <= GLOBAL_CONFIG.MAX_TRANSMIT_ATTEMPTS; attempt++) {
+            Assert.assertFalse(step.isComplete());
+            step = session.onTimer(step.getDeadline());
+
+            // The request is retransmitted on every timeout
+            Assert.assertEquals(1, step.getMessageCount());
+            Assert.assertEquals(MessageType.WRQ, step.getMessage(0).getMessageType());
+        }
+
+        Assert.assertTrue(step.isComplete());
+        Assert.assertFalse(session.getSessionSuccess());
+    }
+
+    /**
+     * Ensure ignored duplicate ACKs do not postpone the retransmission: only the first duplicate of a block
+     * (which retransmits) restarts the deadline, so a receiver repeating its ACK cannot hold the session
+     */
+    @Test
+    public void testDuplicateAckKeepsDeadline() throws Exception {
+        TransmitSession session = new TransmitSession(serverHandler);
+        session.setWindowSize(1);
+        serverFiles.addFile(FILENAME, createFile(DataMessage.MAX_BLOCK_SIZE * 4));
+
+        SessionStep step = session.start(new RequestMessage(MessageType.RRQ, FILENAME), LoopbackSessionDriver.CLIENT_ADDRESS, 0);
+        Assert.assertEquals(1, ((DataMessage) step.getMessage(0)).getBlockNum());
+        step = session.onPacket(ByteBuffer.wrap(new AckMessage(1).toByteArray()), LoopbackSessionDriver.CLIENT_ADDRESS, 1);
+        Assert.assertEquals(2, ((DataMessage) step.getMessage(0)).getBlockNum());
+
+        // The first duplicate retransmits, and restarts the deadline
+        step = session.onPacket(ByteBuffer.wrap(new AckMessage(1).toByteArray()), LoopbackSessionDriver.CLIENT_ADDRESS, 2);
+        Assert.assertEquals(2, ((DataMessage) step.getMessage(0)).getBlockNum());
+        long deadline = step.getDeadline();
+
+        // A later duplicate and an old ACK are ignored
+        step = session.onPacket(ByteBuffer.wrap(new AckMessage(1).toByteArray()), LoopbackSessionDriver.CLIENT_ADDRESS, 3);
+        Assert.assertEquals(0, step.getMessageCount());
+        Assert.assertEquals(deadline, step.getDeadline());
+        step = session.onPacket(ByteBuffer.wrap(new AckMessage(0).toByteArray()), LoopbackSessionDriver.CLIENT_ADDRESS, 4);
+        Assert.assertEquals(0, step.getMessageCount());
+        Assert.assertEquals(deadline, step.getDeadline());
+    }
+
+    /**
+     * Ensure the receiver waits after its final ACK for longer than the retransmit timeout of the sender,
+     * so a lost final ACK is still answered when the sender retransmits the last block
+     */
+    @Test
+    public void testDallyOutlastsPeerTimeout() throws Exception {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(GLOBAL_CONFIG.SOCKET_TIMEOUT_MS);
+        ReceiveSession session = new ReceiveSession(clientHandler);
+        session.start(new RequestMessage(MessageType.RRQ, FILENAME), LoopbackSessionDriver.SERVER_ADDRESS, 0);
+
+        byte[] lastBlock = new DataMessage(1, new byte[10]).toByteArray();
+        SessionStep step = session.onPacket(ByteBuffer.wrap(lastBlock), LoopbackSessionDriver.WORKER_ADDRESS, 1);
+        Assert.assertEquals(new AckMessage(1), step.getMessage(0));
+        Assert.assertFalse(step.isComplete());
+        Assert.assertEquals(1 + timeout + timeout / 2, step.getDeadline());
+
+        // The retransmission of the sender (after its timeout) is acknowledged again
+        step = session.onPacket(ByteBuffer.wrap(lastBlock), LoopbackSessionDriver.WORKER_ADDRESS, 1 + timeout);
+        Assert.assertEquals(new AckMessage(1), step.getMessage(0));
+        Assert.assertFalse(step.isComplete());
+
+        step = session.onTimer(step.getDeadline());
+        Assert.assertTrue(step.isComplete());
+        Assert.assertTrue(session.getSessionSuccess());
+    }
+
+    /**
+     * Ensure packets from an unknown TID are answered with an ERROR without stopping the session
+     */
+    @Test
+    public void testUnknownTransferId() throws Exception {
+        ReceiveSession session = new ReceiveSession(serverHandler);
+        SessionStep step = session.start(new RequestMessage(MessageType.WRQ, FILENAME), LoopbackSessionDriver.CLIENT_ADDRESS, 0);
+        Assert.assertEquals(new AckMessage(0), step.getMessage(0));
+
+        byte[] data = new DataMessage(1, new byte[10]).toByteArray();
+        step = session.onPacket(ByteBuffer.wrap(data), LoopbackSessionDriver.SERVER_ADDRESS, 1);
+
+        Assert.assertFalse(step.isComplete());
+        Assert.assertEquals(1, step.getMessageCount());
+        Assert.assertEquals(LoopbackSessionDriver.SERVER_ADDRESS, step.getDestination(0));
+        Assert.assertEquals(ErrorMessage.ErrorType.UNKNOWN_TRANSFER_ID, ((ErrorMessage) step.getMessage(0)).getErrorType());
+
+        // The valid destination can continue the session
+        step = session.onPacket(ByteBuffer.wrap(data), LoopbackSessionDriver.CLIENT_ADDRESS, 2);
+        Assert.assertEquals(new AckMessage(1), step.getMessage(0));
+    }
+}
@@ -0,0 +1,76 @@
+package session;
+
+import exceptions.SessionException;
+import formats.ErrorMessage;
+import resources.ResourceManager;
+import socket.TFTPDatagramSocket;
+
+import java.io.IOException;
+
+/**
+ * Session handler for simulated sessions (no socket). Behaves like the client / server handlers:
+ * a receiving session creates missing files, and a transmitting session raises missing files.
+ */
+public class SimulatedSessionHandler implements ISessionHandler {
+    private final ResourceManager resourceManager;
+    private ErrorMessage errorReceived;
+    private boolean completed;
+
+    public SimulatedSessionHandler(ResourceManager resourceManager) {
+        this.resourceManager = resourceManager;
+    }
+
+    @Override
+    public ResourceManager getSessionResourceManager() {
+        return resourceManager;
+    }
+
+    @Override
+    public TFTPDatagramSocket getSessionTFTPSocket() {
+        return null;
+    }
+
+    @Override
+    public void sessionErrorOccurred(TFTPSession session, ErrorMessage message) throws IOException, SessionException {
+        switch (message.getErrorType()) {
+            case FILE_NOT_FOUND:
+                if (session instanceof ReceiveSession) {
+                    session.getResourceFile().createNewFile();
+                    return;
+                }
+                break;
+            case FILE_EXISTS:
+                if (session instanceof TransmitSession)
+                    return;
+                break;
+            default:
+                break;
+        }
+
+        session.raiseError(message);
+    }
+
+    @Override
+    public void sessionErrorReceived(TFTPSession session, ErrorMessage message) {
+        this.errorReceived = message;
+    }
+
+    @Override
+    public void sessionCompleted(TFTPSession session) {
+        this.completed = true;
+    }
+
+    /**
+     * @return The ERROR received by the session, or null
+     */
+    public ErrorMessage getErrorReceived() {
+        return errorReceived;
+    }
+
+    /**
+     * @return True if the session completed callback was called
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+}
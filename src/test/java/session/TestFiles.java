@@ -0,0 +1,22 @@
+package session;
+
+import java.util.Random;
+
+/**
+ * Content of the files transferred by the session tests
+ */
+public final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * @param length The length of the file
+     * @return Random content, the same for each length
+     */
+    public static byte[] createFile(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
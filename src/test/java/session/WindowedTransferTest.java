@@ -0,0 +1,176 @@
+package session;
+
+import formats.DataMessage;
+import formats.Message.MessageType;
+import formats.RequestMessage;
+import logging.QuietLogRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import resources.MemoryResourceManager;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static session.TestFiles.createFile;
+
+public class WindowedTransferTest {
+    private static final String FILENAME = "file.bin";
+    private static final int WINDOW = 8;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private MemoryResourceManager clientFiles;
+    private MemoryResourceManager serverFiles;
+
+    @Rule
+    public final QuietLogRule quietLog = new QuietLogRule();
+
+    @Before
+    public void setUp() throws Exception {
+        clientFiles = new MemoryResourceManager();
+        serverFiles = new MemoryResourceManager();
+    }
+
+    private TransmitSession createServerTransmitter() {
+        TransmitSession session = new TransmitSession(new SimulatedSessionHandler(serverFiles));
+        session.setWindowSize(WINDOW);
+        return session;
+    }
+
+    /**
+     * Ensure a read completes with a window, without timeouts
+     */
+    @Test
+    public void testWindowedRead() throws Exception {
+        byte[] file = createFile(DataMessage.MAX_BLOCK_SIZE * 50 + 7);
+        serverFiles.addFile(FILENAME, file);
+
+        TransmitSession server = createServerTransmitter();
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(new ReceiveSession(new SimulatedSessionHandler(clientFiles)), server);
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.RRQ, FILENAME)));
+
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+
+        // Only the final timeout of the client
+        Assert.assertEquals(1, driver.getTimerCount());
+    }
+
+    /**
+     * Ensure lost DATA and ACKs are recovered in both directions, and blocks are written in order
+     */
+    @Test
+    public void testWindowedTransfersWithLoss() throws Exception {
+        byte[] file = createFile(DataMessage.MAX_BLOCK_SIZE * 200 + 100);
+        serverFiles.addFile(FILENAME, file);
+        clientFiles.addFile("upload.bin", file);
+
+        Random random = new Random(42);
+        LoopbackSessionDriver.PacketFilter lossy = (message, destination) -> random.nextInt(10) == 0;
+
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(new ReceiveSession(new SimulatedSessionHandler(clientFiles)), createServerTransmitter());
+        driver.setFilter(lossy);
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.RRQ, FILENAME)));
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+
+        TransmitSession client = new TransmitSession(new SimulatedSessionHandler(clientFiles));
+        client.setWindowSize(WINDOW);
+        driver = new LoopbackSessionDriver(client, new ReceiveSession(new SimulatedSessionHandler(serverFiles)));
+        driver.setFilter(lossy);
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.WRQ, "upload.bin")));
+        Assert.assertArrayEquals(file, serverFiles.getFile("upload.bin").readFileToBytes());
+    }
+
+    /**
+     * Ensure a lost block of a window is recovered by the duplicate ACK of the receiver (no timeout)
+     */
+    @Test
+    public void testGapRecoveredByDuplicateAck() throws Exception {
+        byte[] file = createFile(DataMessage.MAX_BLOCK_SIZE * 20 + 1);
+        serverFiles.addFile(FILENAME, file);
+
+        boolean[] dropped = new boolean[1];
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(new ReceiveSession(new SimulatedSessionHandler(clientFiles)), createServerTransmitter());
+        driver.setFilter((message, destination) -> {
+            if (!dropped[0] && message instanceof DataMessage && ((DataMessage) message).getBlockNum() == 3) {
+                dropped[0] = true;
+                return true;
+            }
+            return false;
+        });
+
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.RRQ, FILENAME)));
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+        Assert.assertEquals(1, driver.getTimerCount());
+    }
+
+    /**
+     * Ensure the egress ceiling of the pacing clock spreads the blocks of all windows
+     */
+    @Test
+    public void testPacedTransferRespectsCeiling() throws Exception {
+        int blocks = 100;
+        byte[] file = createFile(DataMessage.MAX_BLOCK_SIZE * blocks);
+        serverFiles.addFile(FILENAME, file);
+
+        // One block per ms
+        TransmitSession server = createServerTransmitter();
+        server.setPacingClock(new PacingClock(MS, DataMessage.MAX_BLOCK_SIZE * 1000));
+
+        long[] lastDataTime = new long[1];
+        LoopbackSessionDriver driver = new LoopbackSessionDriver(new ReceiveSession(new SimulatedSessionHandler(clientFiles)), server);
+        driver.setTime(TimeUnit.SECONDS.toNanos(1));
+        driver.setFilter((message, destination) -> {
+            if (message instanceof DataMessage)
+                lastDataTime[0] = driver.getTime();
+            return false;
+        });
+
+        Assert.assertTrue(driver.run(new RequestMessage(MessageType.RRQ, FILENAME)));
+        Assert.assertArrayEquals(file, clientFiles.getFile(FILENAME).readFileToBytes());
+
+        long elapsed = lastDataTime[0] - TimeUnit.SECONDS.toNanos(1);
+        Assert.assertTrue("Elapsed: " + elapsed, elapsed >= (blocks - 2) * MS);
+        Assert.assertTrue("Elapsed: " + elapsed, elapsed <= (blocks + 2) * MS);
+    }
+
+    /**
+     * Ensure packets due within the same tick are released together, and the ceiling is shared
+     */
+    @Test
+    public void testPacingClock() {
+        PacingClock clock = new PacingClock(MS, 0);
+        Pacer pacer = new Pacer(clock);
+        long now = 10 * MS;
+
+        // Four packets a quarter tick apart: the first leaves now, the others on the next tick
+        Assert.assertEquals(now, pacer.getDeparture(now, 512, MS / 4));
+        pacer.sent();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(11 * MS, pacer.getDeparture(now, 512, MS / 4));
+            pacer.sent();
+        }
+
+        // The fifth packet is due exactly on the next tick
+        Assert.assertEquals(11 * MS, pacer.getDeparture(now, 512, MS / 4));
+        pacer.sent();
+
+        // The reservation is kept until the packet is sent
+        Assert.assertEquals(12 * MS, pacer.getDeparture(now, 512, MS / 4));
+        Assert.assertEquals(12 * MS, pacer.getDeparture(now + MS / 2, 512, MS / 4));
+
+        // A ceiling of 1000 bytes per ms, shared by two sessions
+        PacingClock shared = new PacingClock(MS, 1000 * 1000);
+        Pacer first = new Pacer(shared);
+        Pacer second = new Pacer(shared);
+        long last = 0;
+        for (int i = 0; i < 10; i++) {
+            Pacer pacer2 = i % 2 == 0 ? first : second;
+            last = pacer2.getDeparture(now, 1000, 0);
+            pacer2.sent();
+        }
+
+        // One tick of burst (two packets leave now), then one packet per ms
+        Assert.assertEquals(now + 8 * MS, last);
+    }
+}
@@ -8,12 +8,17 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.stubbing.OngoingStubbing;
 
 import formats.RequestMessage;
 import formats.AckMessage;
@@ -152,6 +157,83 @@ public class DelayPacketStateTest {
             Assert.fail(e.getMessage());
         }
 	}
+
+	@Test
+	public void testRelayNotBlocked() {
+		try {
+			checker = new ErrorChecker(MessageType.ACK, 1);
+			state.setErrorChecker(checker);
+
+			byte[] delayedBytes = new AckMessage(1).toByteArray();
+			byte[] forwardedBytes = new AckMessage(2).toByteArray();
+			DatagramPacket delayedPacket = new DatagramPacket(delayedBytes, delayedBytes.length, serverSocketAddress);
+			DatagramPacket forwardedPacket = new DatagramPacket(forwardedBytes, forwardedBytes.length, serverSocketAddress);
+			Mockito.when(socket.receive())
+				.thenReturn(delayedPacket)
+				.thenReturn(forwardedPacket)
+				.thenThrow(new RuntimeException("TEST EXCEPTION"));
+
+			state.setServerWorkerPort(3000);
+			state.setClientAddress(serverSocketAddress);
+
+			thread.start();
+
+			// The next packet is forwarded while the first one is delayed
+			Mockito.verify(socket, Mockito.timeout(DelayPacketState.DEFAULT_DELAY / 4).times(1))
+				.forwardPacket(Mockito.eq(forwardedPacket), Mockito.eq(serverAddress), Mockito.eq(3000));
+			Mockito.verify(socket, Mockito.never())
+				.forwardPacket(Mockito.eq(delayedPacket), Mockito.eq(serverAddress), Mockito.eq(3000));
+			Mockito.verify(socket, Mockito.after(DelayPacketState.DEFAULT_DELAY * 2).times(1))
+				.forwardPacket(Mockito.eq(delayedPacket), Mockito.eq(serverAddress), Mockito.eq(3000));
+		} catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+	}
+
+	@Test
+	public void testManyDelayedPackets() {
+		try {
+			int count = 2000;
+			long delay = 200;
+			checker = new ErrorChecker(MessageType.DATA, 1, 1);
+			state.setErrorChecker(checker);
+			state.setDelay(delay);
+
+			OngoingStubbing<DatagramPacket> receive = Mockito.when(socket.receive());
+			for (int i = 1; i <= count; i++) {
+				byte[] bytes = new DataMessage(i, new byte[] { 0 }).toByteArray();
+				receive = receive.thenReturn(new DatagramPacket(bytes, bytes.length, serverSocketAddress));
+			}
+			receive.thenThrow(new RuntimeException("TEST EXCEPTION"));
+
+			// Records the block and the time of each forwarded packet
+			List<Integer> blocks = Collections.synchronizedList(new ArrayList<>());
+			List<Long> times = Collections.synchronizedList(new ArrayList<>());
+			Mockito.doAnswer(invocation -> {
+				times.add(System.nanoTime());
+				blocks.add(DataMessage.parseMessage(((DatagramPacket) invocation.getArgument(0)).getData()).getBlockNum());
+				return null;
+			}).when(socket).forwardPacket(Mockito.any(DatagramPacket.class), Mockito.eq(serverAddress), Mockito.eq(3000));
+
+			state.setServerWorkerPort(3000);
+			state.setClientAddress(serverSocketAddress);
+
+			long start = System.nanoTime();
+			state.execute();
+			long received = System.nanoTime();
+			Assert.assertTrue("The relay was blocked", received - start < TimeUnit.MILLISECONDS.toNanos(delay));
+			Assert.assertTrue(blocks.size() < count);
+
+			Mockito.verify(socket, Mockito.timeout(delay * 10).times(count))
+				.forwardPacket(Mockito.any(DatagramPacket.class), Mockito.eq(serverAddress), Mockito.eq(3000));
+			for (int i = 0; i < count; i++) {
+				Assert.assertEquals(i + 1, (int) blocks.get(i));
+				Assert.assertTrue(times.get(i) - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+			}
+		} catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+	}
 }
 
 class DelayStateThread extends Thread {
@@ -0,0 +1,201 @@
+package states;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Stubber;
+
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.Message;
+import formats.Message.MessageType;
+import parsing.Parser;
+import socket.TFTPDatagramSocket;
+import util.ErrorChecker;
+
+public class FaultPipelineTest {
+	private static final int WORKER_PORT = 3000;
+	private static final int CLIENT_PORT = 5000;
+
+	private TFTPDatagramSocket socket;
+	private InetAddress serverAddress;
+	private InetSocketAddress clientAddress;
+	private InetSocketAddress workerAddress;
+	private List<String> forwarded;
+	private Semaphore recorded;
+
+	@Before
+	public void setup() throws IOException {
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outStream));
+		socket = Mockito.mock(TFTPDatagramSocket.class);
+		serverAddress = InetAddress.getByName(StateTestConfig.SERVER_HOST);
+		clientAddress = new InetSocketAddress(serverAddress, CLIENT_PORT);
+		workerAddress = new InetSocketAddress(serverAddress, WORKER_PORT);
+
+		// Records each forwarded message as "MESSAGE -> port"
+		forwarded = Collections.synchronizedList(new ArrayList<>());
+		recorded = new Semaphore(0);
+		Mockito.doAnswer(invocation -> record(invocation.getArgument(0), invocation.getArgument(2)))
+			.when(socket).forwardPacket(Mockito.any(DatagramPacket.class), Mockito.any(InetAddress.class), Mockito.anyInt());
+		Mockito.doAnswer(invocation -> record(invocation.getArgument(0), ((InetSocketAddress) invocation.getArgument(1)).getPort()))
+			.when(socket).forwardPacket(Mockito.any(DatagramPacket.class), Mockito.any(InetSocketAddress.class));
+	}
+	@After
+	public void tearDown() {
+		System.setOut(System.out);
+	}
+
+	private Object record(DatagramPacket packet, int port) throws Exception {
+		byte[] data = packet.getData();
+		Message message = Message.parseGenericMessage(new DatagramPacket(data, data.length));
+		String block = message instanceof DataMessage ? "DATA " + ((DataMessage) message).getBlockNum()
+				: "ACK " + ((AckMessage) message).getBlockNum();
+		forwarded.add(block + " -> " + port);
+		recorded.release();
+		return null;
+	}
+
+	private static DatagramPacket packet(Message message, InetSocketAddress source) throws IOException {
+		byte[] data = message.toByteArray();
+		return new DatagramPacket(data, data.length, source);
+	}
+
+	private ForwardState newState() throws IOException {
+		ForwardState state = new ForwardState(socket, serverAddress);
+		state.openFlow(clientAddress, WORKER_PORT);
+		return state;
+	}
+
+	private void execute(ForwardState state, DatagramPacket... packets) throws IOException {
+		// (stubbed without calling receive(), which throws once a previous run ended)
+		Stubber receive = Mockito.doReturn(packets[0]);
+		for (int i = 1; i < packets.length; i++)
+			receive = receive.doReturn(packets[i]);
+		receive.doThrow(new RuntimeException("TEST EXCEPTION")).when(socket).receive();
+
+		state.execute();
+	}
+
+	/**
+	 * Ensure the stages run in order, each on the packets of its matcher
+	 */
+	@Test
+	public void testChain() throws IOException {
+		ForwardState state = newState();
+		FaultPipeline pipeline = state.getPipeline();
+		pipeline.add(new FaultStage.Loss(new ErrorChecker(MessageType.ACK, 1), 1, "ack 1"));
+		pipeline.add(new FaultStage.Duplicate(new ErrorChecker(MessageType.DATA, 2), 1, "data 2"));
+		pipeline.add(new FaultStage.Filter(new ErrorChecker(MessageType.DATA, 3), 1, "data 3"));
+		pipeline.add(new FaultStage.Loss(null, 1, ""));
+
+		execute(state,
+				packet(new DataMessage(1, new byte[] { 0 }), workerAddress),
+				packet(new AckMessage(1), clientAddress),
+				packet(new DataMessage(2, new byte[] { 0 }), workerAddress),
+				packet(new AckMessage(2), clientAddress),
+				packet(new DataMessage(3, new byte[] { 0 }), workerAddress));
+
+		// Only DATA 3 reaches the last stage, which loses it
+		Assert.assertArrayEquals(new String[] {
+				"DATA 1 -> " + CLIENT_PORT,
+				"DATA 2 -> " + CLIENT_PORT,
+				"DATA 2 -> " + CLIENT_PORT,
+				"ACK 2 -> " + WORKER_PORT
+		}, forwarded.toArray());
+	}
+
+	/**
+	 * Ensure a change of the stages applies to the next packets, and the delayed packets still finish their chain
+	 */
+	@Test
+	public void testReconfigure() throws IOException, InterruptedException {
+		ForwardState state = newState();
+		FaultPipeline pipeline = state.getPipeline();
+		pipeline.add(new FaultStage.Delay(300, null, 1, ""));
+		pipeline.add(new FaultStage.Duplicate(null, 1, ""));
+
+		execute(state, packet(new DataMessage(1, new byte[] { 0 }), workerAddress));
+		Assert.assertEquals(1, pipeline.getDelayedCount());
+
+		pipeline.clear();
+		// The error mode changes as well, the pipeline is kept
+		ForwardState next = new LostPacketState(socket, serverAddress, new ErrorChecker(MessageType.RRQ));
+		next.adopt(state);
+		Assert.assertSame(pipeline, next.getPipeline());
+		execute(next, packet(new DataMessage(2, new byte[] { 0 }), workerAddress));
+
+		// (waits for the packets to be recorded, not only forwarded)
+		Assert.assertTrue(recorded.tryAcquire(3, 2, TimeUnit.SECONDS));
+		Assert.assertArrayEquals(new String[] {
+				"DATA 2 -> " + CLIENT_PORT,
+				"DATA 1 -> " + CLIENT_PORT,
+				"DATA 1 -> " + CLIENT_PORT
+		}, forwarded.toArray());
+	}
+
+	/**
+	 * Ensure a stage can select the packets of one side of the flows
+	 */
+	@Test
+	public void testSide() throws IOException {
+		ForwardState state = newState();
+		state.getPipeline().add(new FaultStage.Loss(ErrorChecker.compile("data,ack from server".split(" ")), 1, ""));
+
+		execute(state,
+				packet(new DataMessage(1, new byte[] { 0 }), workerAddress),
+				packet(new AckMessage(1), clientAddress),
+				packet(new AckMessage(2), workerAddress),
+				packet(new DataMessage(2, new byte[] { 0 }), clientAddress));
+
+		Assert.assertArrayEquals(new String[] {
+				"ACK 1 -> " + WORKER_PORT,
+				"DATA 2 -> " + WORKER_PORT
+		}, forwarded.toArray());
+	}
+
+	/**
+	 * Ensure the pipeline command adds and removes stages
+	 */
+	@Test
+	public void testPipelineCommand() {
+		FaultPipeline pipeline = new FaultPipeline();
+
+		Parser.parsePipelineCommand("pipeline add loss 2%".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline add delay 30".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline add dup ack 7".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline add corrupt 50% data 1 2".split(" "), pipeline);
+		// Invalid commands do not change the pipeline
+		Parser.parsePipelineCommand("pipeline add delay".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline add jitter 5".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline add dup fin".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline add loss data every".split(" "), pipeline);
+		Parser.parsePipelineCommand("pipeline remove 9".split(" "), pipeline);
+
+		List<FaultStage> stages = pipeline.getStages();
+		Assert.assertEquals(4, stages.size());
+		Assert.assertTrue(stages.get(0) instanceof FaultStage.Loss);
+		Assert.assertTrue(stages.get(1) instanceof FaultStage.Delay);
+		Assert.assertEquals("dup ack 7", stages.get(2).toString());
+		Assert.assertTrue(stages.get(3) instanceof FaultStage.Corrupt);
+
+		Parser.parsePipelineCommand("pipeline remove 0".split(" "), pipeline);
+		Assert.assertTrue(pipeline.getStages().get(0) instanceof FaultStage.Delay);
+		Parser.parsePipelineCommand("pipeline clear".split(" "), pipeline);
+		Assert.assertTrue(pipeline.getStages().isEmpty());
+	}
+}
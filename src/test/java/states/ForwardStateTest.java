@@ -0,0 +1,211 @@
+package states;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.ErrorMessage;
+import formats.Message;
+import formats.RequestMessage;
+import formats.Message.MessageType;
+import socket.TFTPDatagramSocket;
+import util.ErrorChecker;
+import static resources.Configuration.GLOBAL_CONFIG;
+
+public class ForwardStateTest {
+	private TFTPDatagramSocket socket;
+	private InetAddress serverAddress;
+	private InetSocketAddress clientA;
+	private InetSocketAddress clientB;
+	private InetSocketAddress workerA;
+	private InetSocketAddress workerB;
+	private List<String> forwarded;
+
+	@Before
+	public void setup() throws IOException {
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outStream));
+		socket = Mockito.mock(TFTPDatagramSocket.class);
+		serverAddress = InetAddress.getByName(StateTestConfig.SERVER_HOST);
+		// The clients run on the host of the server
+		clientA = new InetSocketAddress(serverAddress, 5001);
+		clientB = new InetSocketAddress(serverAddress, 5002);
+		workerA = new InetSocketAddress(serverAddress, 3001);
+		workerB = new InetSocketAddress(serverAddress, 3002);
+
+		// Records each forwarded message as "MESSAGE -> port"
+		forwarded = new ArrayList<>();
+		Mockito.doAnswer(invocation -> record(invocation.getArgument(0), invocation.getArgument(2)))
+			.when(socket).forwardPacket(Mockito.any(DatagramPacket.class), Mockito.any(InetAddress.class), Mockito.anyInt());
+		Mockito.doAnswer(invocation -> record(invocation.getArgument(0), ((InetSocketAddress) invocation.getArgument(1)).getPort()))
+			.when(socket).forwardPacket(Mockito.any(DatagramPacket.class), Mockito.any(InetSocketAddress.class));
+	}
+	@After
+	public void tearDown() {
+		System.setOut(System.out);
+	}
+
+	private Object record(DatagramPacket packet, int port) throws Exception {
+		forwarded.add(describe(packet.getData()) + " -> " + port);
+		return null;
+	}
+
+	private static String describe(byte[] data) throws Exception {
+		Message message = Message.parseGenericMessage(new DatagramPacket(data, data.length));
+		if (message instanceof DataMessage)
+			return "DATA " + ((DataMessage) message).getBlockNum() + " " + new String(((DataMessage) message).getData());
+		if (message instanceof AckMessage)
+			return "ACK " + ((AckMessage) message).getBlockNum();
+		return message.getMessageType().toString();
+	}
+
+	private static DatagramPacket packet(Message message, InetSocketAddress source) throws IOException {
+		byte[] data = message.toByteArray();
+		return new DatagramPacket(data, data.length, source);
+	}
+
+	private void execute(ForwardState state, DatagramPacket... packets) throws IOException {
+		org.mockito.stubbing.OngoingStubbing<DatagramPacket> stub = Mockito.when(socket.receive());
+		for (DatagramPacket packet : packets)
+			stub = stub.thenReturn(packet);
+		stub.thenThrow(new RuntimeException("TEST EXCEPTION"));
+
+		state.execute();
+	}
+
+	/**
+	 * Ensure two clients requesting at the same time are each relayed to their own server worker
+	 */
+	@Test
+	public void testConcurrentClients() throws Exception {
+		ForwardState state = new ForwardState(socket, serverAddress);
+
+		execute(state,
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientA),
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientB),
+				packet(new DataMessage(1, "a".getBytes()), workerA),
+				packet(new DataMessage(1, "b".getBytes()), workerB),
+				packet(new AckMessage(1), clientB),
+				packet(new AckMessage(1), clientA),
+				packet(new DataMessage(2, "b".getBytes()), workerB));
+
+		Assert.assertEquals(2, state.getFlowCount());
+		String server = " -> " + GLOBAL_CONFIG.SERVER_PORT;
+		// The request of B is held until the server answered A
+		Assert.assertArrayEquals(new String[] {
+				"RRQ" + server,
+				"RRQ" + server,
+				"DATA 1 a -> 5001",
+				"DATA 1 b -> 5002",
+				"ACK 1 -> 3002",
+				"ACK 1 -> 3001",
+				"DATA 2 b -> 5002"
+		}, forwarded.toArray());
+	}
+
+	/**
+	 * Ensure the second worker started by a retransmitted request is not bound to the next client: the request of
+	 * the next client is held until the answer of that worker arrived
+	 */
+	@Test
+	public void testRetransmittedRequest() throws Exception {
+		ForwardState state = new ForwardState(socket, serverAddress);
+		InetSocketAddress workerC = new InetSocketAddress(serverAddress, 3003);
+
+		execute(state,
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientA),
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientA),
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientB),
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientB),
+				packet(new DataMessage(1, "a".getBytes()), workerA),
+				// The worker of the retransmitted request of A
+				packet(new DataMessage(1, "a".getBytes()), workerB),
+				packet(new DataMessage(1, "b".getBytes()), workerC),
+				packet(new AckMessage(1), clientB));
+
+		String server = " -> " + GLOBAL_CONFIG.SERVER_PORT;
+		Assert.assertArrayEquals(new String[] {
+				"RRQ" + server,
+				"RRQ" + server,
+				"DATA 1 a -> 5001",
+				"RRQ" + server,
+				"DATA 1 b -> 5002",
+				"ACK 1 -> 3003"
+		}, forwarded.toArray());
+		Mockito.verify(socket).sendMessage(Mockito.any(ErrorMessage.class), Mockito.eq(workerB));
+	}
+
+	/**
+	 * Ensure a worker that answers no forwarded request is sent an error instead of being bound to a flow
+	 */
+	@Test
+	public void testUnknownWorker() throws Exception {
+		ForwardState state = new ForwardState(socket, serverAddress);
+
+		execute(state,
+				packet(new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME), clientA),
+				packet(new DataMessage(1, "a".getBytes()), workerA),
+				// A second worker for the request of A
+				packet(new DataMessage(1, "a".getBytes()), workerB),
+				packet(new RequestMessage(MessageType.WRQ, StateTestConfig.FILENAME), clientB),
+				// The WRQ of B is answered with an ACK, not DATA
+				packet(new DataMessage(1, "a".getBytes()), workerB),
+				packet(new AckMessage(0), workerB));
+
+		String server = " -> " + GLOBAL_CONFIG.SERVER_PORT;
+		Assert.assertArrayEquals(new String[] {
+				"RRQ" + server,
+				"DATA 1 a -> 5001",
+				"WRQ" + server,
+				"ACK 0 -> 5002"
+		}, forwarded.toArray());
+		Mockito.verify(socket, Mockito.times(2)).sendMessage(Mockito.any(ErrorMessage.class), Mockito.eq(workerB));
+		Assert.assertEquals(2, state.getFlowCount());
+	}
+
+	/**
+	 * Ensure an error mode counts the packets of each flow separately
+	 */
+	@Test
+	public void testErrorPerFlow() throws Exception {
+		LostPacketState state = new LostPacketState(socket, serverAddress, new ErrorChecker(MessageType.ACK, 1));
+		state.openFlow(clientA, workerA.getPort());
+		state.openFlow(clientB, workerB.getPort());
+
+		execute(state,
+				packet(new AckMessage(1), clientA),
+				packet(new AckMessage(1), clientB),
+				packet(new AckMessage(1), clientA),
+				packet(new AckMessage(1), clientB));
+
+		Assert.assertArrayEquals(new String[] {"ACK 1 -> 3001", "ACK 1 -> 3002"}, forwarded.toArray());
+	}
+
+	/**
+	 * Ensure the flows of a state are kept when the error mode changes
+	 */
+	@Test
+	public void testAdoptFlows() throws Exception {
+		ForwardState previous = new ForwardState(socket, serverAddress);
+		previous.openFlow(clientA, workerA.getPort());
+
+		ForwardState state = new DuplicateState(socket, serverAddress, new ErrorChecker(MessageType.DATA, 2));
+		state.adopt(previous);
+		execute(state, packet(new DataMessage(2, "a".getBytes()), workerA));
+
+		Assert.assertArrayEquals(new String[] {"DATA 2 a -> 5001", "DATA 2 a -> 5001"}, forwarded.toArray());
+	}
+}
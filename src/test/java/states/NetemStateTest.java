@@ -0,0 +1,194 @@
+package states;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Stubber;
+
+import formats.DataMessage;
+import formats.RequestMessage;
+import formats.Message.MessageType;
+import socket.TFTPDatagramSocket;
+import static resources.Configuration.GLOBAL_CONFIG;
+
+public class NetemStateTest {
+	private static final int WORKER_PORT = 3000;
+
+	private TFTPDatagramSocket socket;
+	private InetAddress serverAddress;
+	private InetSocketAddress clientAddress;
+	private List<Integer> blocks;
+	private List<Long> times;
+
+	@Before
+	public void setup() throws IOException {
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outStream));
+		socket = Mockito.mock(TFTPDatagramSocket.class);
+		serverAddress = InetAddress.getByName(StateTestConfig.SERVER_HOST);
+		clientAddress = new InetSocketAddress(serverAddress, GLOBAL_CONFIG.SERVER_PORT);
+
+		// Records the block and the time of each packet forwarded to the worker
+		blocks = Collections.synchronizedList(new ArrayList<>());
+		times = Collections.synchronizedList(new ArrayList<>());
+		Mockito.doAnswer(invocation -> {
+			times.add(System.nanoTime());
+			blocks.add(DataMessage.parseMessage(((DatagramPacket) invocation.getArgument(0)).getData()).getBlockNum());
+			return null;
+		}).when(socket).forwardPacket(Mockito.any(DatagramPacket.class), Mockito.eq(serverAddress), Mockito.eq(WORKER_PORT));
+	}
+	@After
+	public void tearDown() {
+		System.setOut(System.out);
+	}
+
+	/**
+	 * Relays DATA packets 1 to count from the client
+	 */
+	private NetemState execute(NetemProfile profile, int count, int dataSize) throws IOException {
+		NetemState state = new NetemState(socket, serverAddress, profile);
+		state.openFlow(clientAddress, WORKER_PORT);
+
+		// (stubbed without calling receive(), which throws once a previous run ended)
+		Stubber receive = null;
+		for (int i = 1; i <= count; i++) {
+			byte[] bytes = new DataMessage(i, new byte[dataSize]).toByteArray();
+			DatagramPacket packet = new DatagramPacket(bytes, bytes.length, clientAddress);
+			receive = receive == null ? Mockito.doReturn(packet) : receive.doReturn(packet);
+		}
+		receive.doThrow(new RuntimeException("TEST EXCEPTION")).when(socket).receive();
+
+		state.execute();
+		return state;
+	}
+
+	@Test
+	public void testParse() {
+		NetemProfile profile = NetemProfile.parse(
+				"loss 2.5% gemodel 1 25 delay 30 5 reorder 10 duplicate 1 rate 125000 3000 seed 7".split(" "));
+
+		Assert.assertEquals(0.025, profile.getLoss(), 1e-9);
+		Assert.assertTrue(profile.isBurstLoss());
+		Assert.assertEquals(0.01, profile.getEnterBurst(), 1e-9);
+		Assert.assertEquals(0.25, profile.getLeaveBurst(), 1e-9);
+		Assert.assertEquals(1, profile.getBurstLossRate(), 1e-9);
+		Assert.assertEquals(0, profile.getGapLossRate(), 1e-9);
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(30), profile.getDelayNanos());
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(5), profile.getJitterNanos());
+		Assert.assertEquals(0.1, profile.getReorder(), 1e-9);
+		Assert.assertEquals(0.01, profile.getDuplicate(), 1e-9);
+		Assert.assertEquals(125000, profile.getRate());
+		Assert.assertEquals(3000, profile.getBurstBytes());
+		Assert.assertEquals(7, profile.getSeed());
+
+		for (String invalid : new String[] {"loss", "loss 1 2", "delay a", "jitter 5", "gemodel 1", "seed 1.5"}) {
+			try {
+				NetemProfile.parse(invalid.split(" "));
+				Assert.fail("Expected an invalid command: " + invalid);
+			} catch (IllegalArgumentException iAE) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Ensure packets are lost at the loss rate, and the same seed loses the same packets
+	 */
+	@Test
+	public void testLoss() throws IOException {
+		NetemState state = execute(new NetemProfile().loss(0.1).seed(48), 10000, 1);
+		List<Integer> forwarded = new ArrayList<>(blocks);
+
+		Assert.assertEquals(10000 - state.getLostCount(), forwarded.size());
+		Assert.assertEquals(1000, state.getLostCount(), 150);
+
+		blocks.clear();
+		execute(new NetemProfile().loss(0.1).seed(48), 10000, 1);
+		Assert.assertEquals(forwarded, blocks);
+	}
+
+	/**
+	 * Ensure the burst model loses packets in runs of 1/r packets on average
+	 */
+	@Test
+	public void testBurstLoss() throws IOException {
+		NetemState state = execute(new NetemProfile().burstLoss(0.02, 0.25, 1, 0).seed(48), 20000, 1);
+
+		// The runs of lost packets are the gaps between the forwarded blocks
+		int bursts = 0;
+		for (int i = 1; i < blocks.size(); i++) {
+			if (blocks.get(i) != blocks.get(i - 1) + 1)
+				bursts++;
+		}
+
+		double meanBurst = (double) state.getLostCount() / bursts;
+		Assert.assertEquals(4, meanBurst, 0.6);
+		// About p / (p + r) of the packets are in a burst
+		Assert.assertEquals(20000 * 0.02 / 0.27, state.getLostCount(), 250);
+	}
+
+	/**
+	 * Ensure the packets are released after the delay, and only reordered packets overtake others
+	 */
+	@Test
+	public void testDelay() throws IOException {
+		long start = System.nanoTime();
+		NetemState state = execute(new NetemProfile().delay(TimeUnit.MILLISECONDS.toNanos(100), 0).reorder(0.2).seed(48), 200, 1);
+
+		Mockito.verify(socket, Mockito.timeout(2000).times(200))
+			.forwardPacket(Mockito.any(DatagramPacket.class), Mockito.eq(serverAddress), Mockito.eq(WORKER_PORT));
+		Assert.assertEquals(40, state.getReorderedCount(), 15);
+
+		// The reordered packets were forwarded first, the others after the delay and in order
+		List<Integer> delayed = blocks.subList((int) state.getReorderedCount(), blocks.size());
+		for (int i = 1; i < delayed.size(); i++)
+			Assert.assertTrue(delayed.get(i) > delayed.get(i - 1));
+		Assert.assertTrue(times.get((int) state.getReorderedCount()) - start >= TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	/**
+	 * Ensure the bandwidth cap spaces the packets by their size
+	 */
+	@Test
+	public void testRate() throws IOException {
+		int size = new DataMessage(1, new byte[508]).toByteArray().length;
+		long start = System.nanoTime();
+		execute(new NetemProfile().rate(size * 100, size).seed(48), 21, 508);
+
+		Mockito.verify(socket, Mockito.timeout(2000).times(21))
+			.forwardPacket(Mockito.any(DatagramPacket.class), Mockito.eq(serverAddress), Mockito.eq(WORKER_PORT));
+		// The first packet uses the burst, the next 20 packets take 10 ms each
+		long elapsed = times.get(20) - start;
+		Assert.assertTrue("Took " + elapsed + " ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(195));
+		Assert.assertTrue("Took " + elapsed + " ns", elapsed < TimeUnit.MILLISECONDS.toNanos(600));
+	}
+
+	/**
+	 * Ensure requests are never lost
+	 */
+	@Test
+	public void testRequestIsNeverLost() throws IOException {
+		NetemState state = new NetemState(socket, serverAddress, new NetemProfile().loss(1));
+		byte[] bytes = new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME).toByteArray();
+		DatagramPacket packet = new DatagramPacket(bytes, bytes.length, clientAddress);
+		Mockito.when(socket.receive())
+			.thenReturn(packet)
+			.thenThrow(new RuntimeException("TEST EXCEPTION"));
+
+		state.execute();
+		Mockito.verify(socket, Mockito.times(1)).forwardPacket(packet, serverAddress, GLOBAL_CONFIG.SERVER_PORT);
+	}
+}
@@ -0,0 +1,93 @@
+package states;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import formats.DataMessage;
+import formats.RequestMessage;
+import formats.Message.MessageType;
+import socket.TFTPDatagramSocket;
+import static resources.Configuration.GLOBAL_CONFIG;
+
+public class RandomLossStateTest {
+	private TFTPDatagramSocket socket;
+	private InetAddress serverAddress;
+	private InetSocketAddress serverSocketAddress;
+
+	@Before
+	public void setup() throws IOException {
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outStream));
+		socket = Mockito.mock(TFTPDatagramSocket.class);
+		serverAddress = InetAddress.getByName(StateTestConfig.SERVER_HOST);
+		serverSocketAddress = new InetSocketAddress(serverAddress, GLOBAL_CONFIG.SERVER_PORT);
+	}
+	@After
+	public void tearDown() {
+		System.setOut(System.out);
+	}
+
+	private RandomLossState execute(double lossRate, DatagramPacket packet, boolean fromClient) throws SocketException, IOException {
+		RandomLossState state = new RandomLossState(socket, serverAddress, lossRate, 42);
+		Mockito.when(socket.receive())
+			.thenReturn(packet)
+			.thenThrow(new RuntimeException("TEST EXCEPTION"));
+
+		if (fromClient) {
+			state.setServerWorkerPort(3000);
+			state.setClientAddress(serverSocketAddress);
+		}
+		state.execute();
+		return state;
+	}
+
+	@Test
+	public void testRequestIsNeverLost() {
+		try {
+			byte[] bytes = new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME).toByteArray();
+			DatagramPacket packet = new DatagramPacket(bytes, bytes.length, serverSocketAddress);
+
+			execute(1, packet, false);
+			Mockito.verify(socket, Mockito.times(1)).forwardPacket(packet, serverAddress, GLOBAL_CONFIG.SERVER_PORT);
+		} catch (IOException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testLostData() {
+		try {
+			byte[] bytes = new DataMessage(1, new byte[] { 0 }).toByteArray();
+			DatagramPacket packet = new DatagramPacket(bytes, bytes.length, serverSocketAddress);
+
+			execute(1, packet, true);
+			Mockito.verify(socket, Mockito.times(0)).forwardPacket(Mockito.eq(packet), Mockito.eq(serverAddress), Mockito.eq(3000));
+		} catch (IOException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testForwardedData() {
+		try {
+			byte[] bytes = new DataMessage(1, new byte[] { 0 }).toByteArray();
+			DatagramPacket packet = new DatagramPacket(bytes, bytes.length, serverSocketAddress);
+
+			execute(0, packet, true);
+			Mockito.verify(socket, Mockito.times(1)).forwardPacket(Mockito.eq(packet), Mockito.eq(serverAddress), Mockito.eq(3000));
+		} catch (IOException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Assert;
@@ -140,6 +142,7 @@ public class ReadStateTest {
 
             Mockito.verify(socket, Mockito.times(1)).receive();
             Mockito.verify(mockedFile, Mockito.times(0)).writeBytesToFile(Mockito.any(byte[].class));
+            Mockito.verify(mockedFile, Mockito.times(0)).writeBytesToFile(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt());
 
             // Ensure Message is displayed to the user
             Assert.assertTrue("File Not Found User Message Not Found", outStream.toString().contains(expectedErrorMessage));
@@ -192,6 +195,14 @@ public class ReadStateTest {
             String mockFile = length != -1 ? StateTestConfig.FILE_STRING.substring(0, length - 1) : StateTestConfig.FILE_STRING;
             List<DataMessage> mockedDataSequence = DataMessage.createDataMessageSequence(mockFile.getBytes());
 
+            // The session reuses its (netascii) buffer, so record a copy of each written block
+            List<byte[]> writtenBlocks = new ArrayList<>();
+            Mockito.doAnswer(invocation -> {
+                int offset = invocation.getArgument(1);
+                writtenBlocks.add(Arrays.copyOfRange((byte[]) invocation.getArgument(0), offset, offset + (int) invocation.getArgument(2)));
+                return null;
+            }).when(mockedFile).writeBytesToFile(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt());
+
             // Mocked and expected Messages to be passed in 1 block read file transfer
             RequestMessage expectedRRQ = new RequestMessage(MessageType.RRQ, StateTestConfig.FILENAME);
 
@@ -220,8 +231,10 @@ public class ReadStateTest {
                     new String(requestArgument.getValue().toByteArray()));
 
             // Verify second sent request is an ACK with same block number
-            for(DataMessage dataMessage: mockedDataSequence) {
-                inOrder.verify(mockedFile).writeBytesToFile(dataMessage.getData());
+            for(int i = 0; i < mockedDataSequence.size(); i++) {
+                DataMessage dataMessage = mockedDataSequence.get(i);
+                inOrder.verify(mockedFile).writeBytesToFile(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.eq(dataMessage.getData().length));
+                Assert.assertArrayEquals(dataMessage.getData(), writtenBlocks.get(i));
                 inOrder.verify(socket).sendMessage(ackArgument.capture(), Mockito.eq(connectionManagerSocketAddress));
                 Assert.assertEquals(
                         "Expected ACK Message with Block " + dataMessage.getBlockNum() + " Does Not Match",
@@ -0,0 +1,140 @@
+package trace;
+
+import formats.AckMessage;
+import formats.DataMessage;
+import formats.Message;
+import formats.RequestMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketTraceTest {
+    private static final InetSocketAddress PEER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 6969);
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("trace");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Records a read session: RRQ, DATA 1 (retransmitted), ACK 1
+     */
+    private static PacketTrace createReadTrace() throws IOException {
+        PacketTrace trace = new PacketTrace(16);
+        trace.start(PEER);
+
+        trace.recordSent(new RequestMessage(Message.MessageType.RRQ, "file.txt"), false);
+        byte[] data = new DataMessage(1, new byte[100]).toByteArray();
+        trace.recordReceived(new DatagramPacket(data, data.length, PEER), (byte) 0);
+        trace.recordSent(new AckMessage(1), false);
+        trace.recordTimeout();
+        trace.recordSent(new AckMessage(1), true);
+
+        return trace;
+    }
+
+    /**
+     * Ensure records are written to the trace file and decoded back
+     */
+    @Test
+    public void testWriteAndRead() throws IOException {
+        PacketTrace trace = createReadTrace();
+        Path base = directory.resolve("test.trace");
+
+        try (TraceFile traceFile = new TraceFile(base, 4096, 2)) {
+            traceFile.write(trace, TraceFile.REASON_FAILED);
+        }
+        trace.close();
+
+        List<TraceSession> sessions = TraceReader.read(TraceFile.getSegmentPath(base, 0));
+        assertEquals(1, sessions.size());
+
+        TraceSession session = sessions.get(0);
+        assertEquals(trace.getSessionId(), session.getSessionId());
+        assertEquals(TraceFile.REASON_FAILED, session.getReason());
+        assertEquals(PEER, session.getPeer());
+        assertEquals(5, session.getRecords().size());
+
+        TraceRecord dataRecord = session.getRecords().get(1);
+        assertEquals(PacketTrace.RECEIVED, dataRecord.getDirection());
+        assertEquals(3, dataRecord.getOpcode());
+        assertEquals(1, dataRecord.getBlock());
+        assertEquals(104, dataRecord.getLength());
+
+        assertEquals(1, session.getRetransmitCount());
+        assertEquals(1, session.getTimeoutCount());
+
+        // Only RRQ -> DATA 1 can be sampled (ACK 1 was never answered)
+        assertEquals(1, session.getRttSamples().length);
+        assertTrue(session.getRttSamples()[0] >= 0);
+    }
+
+    /**
+     * Ensure the ring keeps the most recent records
+     */
+    @Test
+    public void testRingOverwrite() {
+        PacketTrace trace = new PacketTrace(4);
+        trace.start(PEER);
+
+        for (int i = 1; i <= 10; i++)
+            trace.recordSent(new AckMessage(i), false);
+
+        assertEquals(4, trace.getRecordCount());
+        assertEquals(6, trace.getDroppedCount());
+        trace.close();
+    }
+
+    /**
+     * Ensure dumps rotate to the next segment once a segment is full
+     */
+    @Test
+    public void testRotation() throws IOException {
+        Path base = directory.resolve("rotate.trace");
+        int segmentSize = TraceFile.FILE_HEADER_SIZE + TraceFile.SESSION_HEADER_SIZE * 2 + PacketTrace.RECORD_SIZE * 8;
+
+        try (TraceFile traceFile = new TraceFile(base, segmentSize, 2)) {
+            traceFile.write(createReadTrace(), TraceFile.REASON_ON_DEMAND);
+            traceFile.write(createReadTrace(), TraceFile.REASON_ON_DEMAND);
+        }
+
+        assertEquals(1, TraceReader.read(TraceFile.getSegmentPath(base, 0)).size());
+        assertEquals(1, TraceReader.read(TraceFile.getSegmentPath(base, 1)).size());
+    }
+
+    /**
+     * Ensure a capacity of 0 disables the trace
+     */
+    @Test
+    public void testDisabled() {
+        PacketTrace trace = new PacketTrace(0);
+        trace.start(PEER);
+        trace.recordSent(new AckMessage(1), false);
+
+        assertFalse(trace.isEnabled());
+        assertEquals(0, trace.getRecordCount());
+        assertFalse(PacketTrace.getActiveTraces().contains(trace));
+    }
+}
@@ -117,6 +117,81 @@ public class ErrorCheckerTest {
 		assertFalse(checker.check(rrq));
 		assertFalse(checker.check(wrq));
 	}
-	
 
+	private static DatagramPacket ack(int blockNum) throws IOException {
+		byte[] bytes = new AckMessage(blockNum).toByteArray();
+		return new DatagramPacket(bytes, bytes.length);
+	}
+
+	@Test
+	public void testCompileLegacy() {
+		ErrorChecker checker = ErrorChecker.compile("ack 1 3".split(" "));
+		assertTrue(checker.check(ack1));
+		assertFalse(checker.check(ack2));
+		assertFalse(checker.check(data1));
+
+		// The block number is ignored for requests
+		checker = ErrorChecker.compile("RRQ 1".split(" "));
+		assertTrue(checker.check(rrq));
+		assertFalse(checker.check(wrq));
+	}
+
+	@Test
+	public void testCompilePredicates() throws IOException {
+		ErrorChecker checker = ErrorChecker.compile("data,ack block 2-4 every 2".split(" "));
+		assertFalse(checker.check(ack1));
+		assertFalse(checker.check(ack2));
+		assertTrue(checker.check(data2));
+		assertFalse(checker.check(ack(3)));
+		assertTrue(checker.check(ack(4)));
+		assertFalse(checker.check(ack(5)));
+		assertFalse(checker.check(rrq));
+
+		checker = ErrorChecker.compile("any size 4".split(" "));
+		assertTrue(checker.check(ack1));
+		assertFalse(checker.check(data1));
+		assertFalse(checker.check(error));
+
+		checker = ErrorChecker.compile("error 0%".split(" "));
+		assertFalse(checker.check(error));
+		checker = ErrorChecker.compile("error 100%".split(" "));
+		assertTrue(checker.check(error));
+	}
+
+	@Test
+	public void testSide() {
+		ErrorChecker checker = ErrorChecker.compile("data from server".split(" "));
+		assertTrue(checker.check(data1, ErrorChecker.Side.SERVER));
+		assertFalse(checker.check(data1, ErrorChecker.Side.CLIENT));
+		// A packet of an unknown side is not selected
+		assertFalse(checker.check(data1));
+	}
+
+	/**
+	 * Ensure the header is read at the offset of the packet, and short packets are not selected
+	 */
+	@Test
+	public void testRawHeader() throws IOException {
+		byte[] bytes = new AckMessage(7).toByteArray();
+		byte[] buffer = new byte[bytes.length + 10];
+		System.arraycopy(bytes, 0, buffer, 5, bytes.length);
+
+		ErrorChecker checker = ErrorChecker.compile("ack 7".split(" "));
+		assertTrue(checker.check(new DatagramPacket(buffer, 5, bytes.length)));
+		assertFalse(ErrorChecker.compile("ack block 7".split(" ")).check(new DatagramPacket(bytes, 3)));
+		assertFalse(ErrorChecker.compile("any".split(" ")).check(new DatagramPacket(bytes, 1)));
+	}
+
+	@Test
+	public void testCompileInvalid() {
+		for (String invalid : new String[] {"", "fin", "data every", "data every 0", "ack from nowhere",
+				"ack block 5-2", "data size x", "ack 150%", "ack 1 2 3", "ack loudly 2"}) {
+			try {
+				ErrorChecker.compile(invalid.split(" "));
+				fail("Expected an invalid matcher: " + invalid);
+			} catch (IllegalArgumentException iAE) {
+				// Expected
+			}
+		}
+	}
 }